@@ -37,6 +37,68 @@ public final class BrokerConstants {
     public static final int DEFAULT_SEGMENTED_QUEUE_PAGE_SIZE = 64 * MB;
     public static final String SEGMENTED_QUEUE_SEGMENT_SIZE = "queue_segment_size";
     public static final int DEFAULT_SEGMENTED_QUEUE_SEGMENT_SIZE = 4 * MB;
+    /**
+     * When true the segmented queues store each payload once, in a store shared by all the sessions, and keep
+     * only a reference to it. Defaults to false.
+     */
+    public static final String SEGMENTED_QUEUE_SHARED_PAYLOADS = "queue_shared_payloads";
+    /**
+     * When the segmented queues are forced to the disk: none (default), periodic or group_commit.
+     */
+    public static final String SEGMENTED_QUEUE_DURABILITY = "queue_durability";
+    /**
+     * Milliseconds between the forces of the periodic durability.
+     */
+    public static final String SEGMENTED_QUEUE_FORCE_INTERVAL = "queue_force_interval_ms";
+    public static final int DEFAULT_SEGMENTED_QUEUE_FORCE_INTERVAL = 100;
+    /**
+     * Milliseconds between the runs of the compaction that deletes the free page files of the segmented queues,
+     * 0 disables it, the default.
+     */
+    public static final String SEGMENTED_QUEUE_COMPACTION_INTERVAL = "queue_compaction_interval_ms";
+    public static final int DEFAULT_SEGMENTED_QUEUE_COMPACTION_INTERVAL = 0;
+    /**
+     * Max bytes per second copied by the compaction when it moves segments out of the last pages, 0 for no limit.
+     */
+    public static final String SEGMENTED_QUEUE_COMPACTION_RATE = "queue_compaction_rate";
+    public static final int DEFAULT_SEGMENTED_QUEUE_COMPACTION_RATE = 16 * MB;
+    /**
+     * Comma separated directories where the page files of the segmented queues are spread, defaults to the
+     * data_path, that keeps the checkpoint anyway.
+     */
+    public static final String SEGMENTED_QUEUE_PAGE_PATHS = "queue_page_paths";
+    /**
+     * How the new page files are spread over the page paths: round_robin (default) or free_space.
+     */
+    public static final String SEGMENTED_QUEUE_PAGE_PLACEMENT = "queue_page_placement";
+    /**
+     * Newest messages of each persistent session kept in memory, the older ones are spilled to the persistent
+     * queue. 0 (default) for no limit, the queue is fully persistent if this and the bytes limit are both 0.
+     * Not allowed with the group_commit durability.
+     */
+    public static final String PERSISTENT_QUEUE_MEMORY_MESSAGES = "queue_memory_messages";
+    /**
+     * Payload bytes of each persistent session kept in memory, the older messages are spilled to the persistent
+     * queue. 0 (default) for no limit.
+     */
+    public static final String PERSISTENT_QUEUE_MEMORY_BYTES = "queue_memory_bytes";
+    /**
+     * Messages queued by each session, 0 (default) for no limit.
+     */
+    public static final String SESSION_QUEUE_MAX_MESSAGES = "queue_max_messages";
+    /**
+     * Payload bytes queued by each session, 0 (default) for no limit.
+     */
+    public static final String SESSION_QUEUE_MAX_BYTES = "queue_max_bytes";
+    /**
+     * What a full session queue does with a new message: drop_newest (default), drop_oldest or disconnect.
+     */
+    public static final String SESSION_QUEUE_OVERFLOW_POLICY = "queue_overflow_policy";
+    /**
+     * Comma separated overrides of the session queue limits, as prefix:messages:bytes[:policy], for the client
+     * ids starting with the prefix.
+     */
+    public static final String SESSION_QUEUE_CLIENT_LIMITS = "queue_client_limits";
     public static final String AUTOSAVE_INTERVAL_PROPERTY_NAME = "autosave_interval";
     public static final String PASSWORD_FILE_PROPERTY_NAME = "password_file";
     public static final String PORT_PROPERTY_NAME = "port";
@@ -49,6 +111,28 @@ public final class BrokerConstants {
     public static final String WEB_SOCKET_PATH_PROPERTY_NAME = "websocket_path";
     public static final String WEB_SOCKET_MAX_FRAME_SIZE_PROPERTY_NAME = "websocket_max_frame_size";
     public static final String SESSION_QUEUE_SIZE = "session_queue_size";
+    /**
+     * What a session event loop does when its command queue is empty: park (default) or busy_spin.
+     */
+    public static final String SESSION_LOOP_IDLE_STRATEGY = "session_loop_idle_strategy";
+    /**
+     * Number of session event loops, defaults to the number of available processors.
+     */
+    public static final String SESSION_LOOPS = "session_loops";
+    /**
+     * Fill percentage of a session queue that stops reading from the publishers routing to it, 0 (default)
+     * disables the backpressure.
+     */
+    public static final String SESSION_QUEUE_HIGH_WATERMARK = "session_queue_high_watermark";
+    /**
+     * Fill percentage of the session queues a publisher was throttled on under which it's read again, defaults
+     * to half of the high watermark.
+     */
+    public static final String SESSION_QUEUE_LOW_WATERMARK = "session_queue_low_watermark";
+    /**
+     * Max number of publish topics whose matching subscriptions are cached, 0 (default) disables the cache.
+     */
+    public static final String ROUTE_CACHE_SIZE = "route_cache_size";
 
     /**
      * Defines the SSL implementation to use, default to "JDK".
@@ -101,6 +185,21 @@ public final class BrokerConstants {
 
     public static final int FLIGHT_BEFORE_RESEND_MS = 5_000;
     public static final int INFLIGHT_WINDOW_SIZE = 10;
+    /**
+     * Max number of QoS1/2 messages sent to a client and not yet acknowledged, up to 65535.
+     * Defaults to INFLIGHT_WINDOW_SIZE, the listener specific properties default to this one.
+     */
+    public static final String INFLIGHT_WINDOW_SIZE_PROPERTY_NAME = "inflight_window_size";
+    public static final String WEB_SOCKET_INFLIGHT_WINDOW_SIZE_PROPERTY_NAME = "websocket_inflight_window_size";
+    public static final String SSL_INFLIGHT_WINDOW_SIZE_PROPERTY_NAME = "ssl_inflight_window_size";
+    public static final String WSS_INFLIGHT_WINDOW_SIZE_PROPERTY_NAME = "secure_websocket_inflight_window_size";
+    /**
+     * When true the window of each session starts from the listener size and adapts to the ack round trip
+     * time and to the resends of its client, up to INFLIGHT_WINDOW_MAX_SIZE_PROPERTY_NAME.
+     */
+    public static final String INFLIGHT_WINDOW_ADAPTIVE_PROPERTY_NAME = "inflight_window_adaptive";
+    public static final String INFLIGHT_WINDOW_MAX_SIZE_PROPERTY_NAME = "inflight_window_max_size";
+    public static final int DEFAULT_INFLIGHT_WINDOW_MAX_SIZE = 1024;
 
     private BrokerConstants() {
     }
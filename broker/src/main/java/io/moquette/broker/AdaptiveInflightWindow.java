@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Inflight window of a session that adapts to the client, driven by the round trip time of the acks
+ * and by the resends.
+ *
+ * It's an AIMD controller: the window starts doubling every round trip, then it grows by one slot every
+ * full window of acks. It's halved, at most once per round trip, when a packet has to be resent or when
+ * the smoothed round trip time inflates over the minimum observed, a sign that the client is queueing.
+ * Updated only by the session loop, the volatile fields are read by the metrics.
+ * */
+final class AdaptiveInflightWindow {
+
+    private static final int MIN_SIZE = 1;
+    // smoothed RTT over this multiple of the min RTT, and over it by the slack, means the client is queueing
+    private static final int LATENCY_TOLERANCE = 2;
+    private static final long LATENCY_SLACK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+    private final int maxSize;
+    private volatile int size;
+    private boolean slowStart = true;
+    private int ackedInRound;
+    private volatile long smoothedRttNanos = -1;
+    private long minRttNanos = Long.MAX_VALUE;
+    private boolean decreased;
+    private long lastDecreaseNanos;
+    private volatile long resends;
+
+    AdaptiveInflightWindow(int initialSize, int maxSize) {
+        if (maxSize < MIN_SIZE) {
+            throw new IllegalArgumentException("Max inflight window must be positive, was: " + maxSize);
+        }
+        this.maxSize = maxSize;
+        this.size = Math.max(MIN_SIZE, Math.min(initialSize, maxSize));
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the smoothed round trip time of the acks, -1 if not yet measured.
+     * */
+    long smoothedRttNanos() {
+        return smoothedRttNanos;
+    }
+
+    long resends() {
+        return resends;
+    }
+
+    /**
+     * @param rttNanos round trip time of the acked packet, negative if it can't be measured because the packet
+     *                 was resent.
+     * @return the change of the window size.
+     * */
+    int onAck(long rttNanos, long now) {
+        if (rttNanos >= 0) {
+            sample(rttNanos);
+            if (latencyInflated()) {
+                return decrease(now);
+            }
+        }
+        if (slowStart) {
+            return resize(size + 1);
+        }
+        if (++ackedInRound >= size) {
+            ackedInRound = 0;
+            return resize(size + 1);
+        }
+        return 0;
+    }
+
+    /**
+     * @return the change of the window size.
+     * */
+    int onResend(long now) {
+        resends++;
+        return decrease(now);
+    }
+
+    private void sample(long rttNanos) {
+        minRttNanos = Math.min(minRttNanos, rttNanos);
+        final long srtt = smoothedRttNanos;
+        // EWMA with weight 1/8, as TCP does
+        smoothedRttNanos = srtt < 0 ? rttNanos : srtt + (rttNanos - srtt) / 8;
+    }
+
+    private boolean latencyInflated() {
+        final long srtt = smoothedRttNanos;
+        return srtt > minRttNanos * LATENCY_TOLERANCE && srtt - minRttNanos > LATENCY_SLACK_NANOS;
+    }
+
+    private int decrease(long now) {
+        slowStart = false;
+        ackedInRound = 0;
+        // the packets of the same round trip carry the same signal
+        final long srtt = smoothedRttNanos;
+        if (decreased && srtt > 0 && now - lastDecreaseNanos < srtt) {
+            return 0;
+        }
+        decreased = true;
+        lastDecreaseNanos = now;
+        return resize(size / 2);
+    }
+
+    private int resize(int newSize) {
+        final int bounded = Math.max(MIN_SIZE, Math.min(newSize, maxSize));
+        final int delta = bounded - size;
+        size = bounded;
+        return delta;
+    }
+}
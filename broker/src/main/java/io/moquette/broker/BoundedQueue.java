@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import java.util.List;
+
+/**
+ * Session queue that limits the messages and the payload bytes held by another queue, applying the overflow
+ * policy to the messages that don't fit. Every dropped message is reported to the registry.
+ *
+ * The counters start from the messages already in the queue, so a reloaded persistent queue keeps its limits,
+ * and then follow the messages passing through this queue.
+ * */
+class BoundedQueue implements SessionMessageQueue<SessionRegistry.EnqueuedMessage> {
+
+    private final SessionRegistry registry;
+    private final String clientId;
+    private final SessionMessageQueue<SessionRegistry.EnqueuedMessage> queue;
+    private final SessionQueueLimits.Limit limit;
+    private int messages;
+    private long bytes;
+    private boolean closed;
+
+    BoundedQueue(SessionRegistry registry, String clientId, SessionMessageQueue<SessionRegistry.EnqueuedMessage> queue,
+                 SessionQueueLimits.Limit limit) {
+        this.registry = registry;
+        this.clientId = clientId;
+        this.queue = queue;
+        this.limit = limit;
+        this.messages = queue.size();
+        this.bytes = queue.payloadBytes();
+    }
+
+    @Override
+    public void enqueue(SessionRegistry.EnqueuedMessage message) {
+        if (closed) {
+            // the session has been expired by an overflow while routing to it
+            message.release();
+            return;
+        }
+        final long size = message.payloadSize();
+        if (fits(size)) {
+            add(message, size);
+            return;
+        }
+        switch (limit.policy()) {
+            case DROP_OLDEST:
+                if (limit.maxBytes() > 0 && size > limit.maxBytes()) {
+                    // doesn't fit even in the empty queue
+                    drop(message, QueueOverflowPolicy.DROP_NEWEST);
+                    return;
+                }
+                while (!fits(size)) {
+                    final SessionRegistry.EnqueuedMessage oldest = dequeue();
+                    if (oldest == null) {
+                        break;
+                    }
+                    drop(oldest, QueueOverflowPolicy.DROP_OLDEST);
+                }
+                add(message, size);
+                break;
+            case DROP_NEWEST:
+                drop(message, QueueOverflowPolicy.DROP_NEWEST);
+                break;
+            case DISCONNECT:
+                drop(message, QueueOverflowPolicy.DISCONNECT);
+                // last, expiring the session closes this queue
+                registry.queueOverflowed(clientId);
+                break;
+            default:
+                throw new IllegalStateException("Unknown overflow policy " + limit.policy());
+        }
+    }
+
+    private boolean fits(long size) {
+        return (limit.maxMessages() == 0 || messages < limit.maxMessages()) &&
+            (limit.maxBytes() == 0 || bytes + size <= limit.maxBytes());
+    }
+
+    private void add(SessionRegistry.EnqueuedMessage message, long size) {
+        queue.enqueue(message);
+        messages++;
+        bytes += size;
+    }
+
+    private void drop(SessionRegistry.EnqueuedMessage message, QueueOverflowPolicy reason) {
+        registry.messageDropped(clientId, message, message.payloadSize(), reason);
+        message.release();
+    }
+
+    private void removed(SessionRegistry.EnqueuedMessage message) {
+        messages--;
+        bytes -= message.payloadSize();
+    }
+
+    @Override
+    public SessionRegistry.EnqueuedMessage dequeue() {
+        final SessionRegistry.EnqueuedMessage message = queue.dequeue();
+        if (message != null) {
+            removed(message);
+        }
+        return message;
+    }
+
+    @Override
+    public List<SessionRegistry.EnqueuedMessage> dequeueBatch(int maxMessages) {
+        final List<SessionRegistry.EnqueuedMessage> batch = queue.dequeueBatch(maxMessages);
+        for (SessionRegistry.EnqueuedMessage message : batch) {
+            removed(message);
+        }
+        return batch;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    @Override
+    public int size() {
+        return messages;
+    }
+
+    @Override
+    public long payloadBytes() {
+        return bytes;
+    }
+
+    @Override
+    public void closeAndPurge() {
+        queue.closeAndPurge();
+        messages = 0;
+        bytes = 0;
+        closed = true;
+    }
+}
@@ -24,12 +24,21 @@ class BrokerConfiguration {
     private final boolean allowZeroByteClientId;
     private final boolean reauthorizeSubscriptionsOnConnect;
     private final boolean immediateBufferFlush;
+    private final boolean inflightWindowAdaptive;
+    private final int inflightWindowMaxSize;
 
     BrokerConfiguration(IConfig props) {
         allowAnonymous = props.boolProp(BrokerConstants.ALLOW_ANONYMOUS_PROPERTY_NAME, true);
         allowZeroByteClientId = props.boolProp(BrokerConstants.ALLOW_ZERO_BYTE_CLIENT_ID_PROPERTY_NAME, false);
         reauthorizeSubscriptionsOnConnect = props.boolProp(BrokerConstants.REAUTHORIZE_SUBSCRIPTIONS_ON_CONNECT, false);
         immediateBufferFlush = props.boolProp(BrokerConstants.IMMEDIATE_BUFFER_FLUSH_PROPERTY_NAME, false);
+        inflightWindowAdaptive = props.boolProp(BrokerConstants.INFLIGHT_WINDOW_ADAPTIVE_PROPERTY_NAME, false);
+        inflightWindowMaxSize = props.intProp(BrokerConstants.INFLIGHT_WINDOW_MAX_SIZE_PROPERTY_NAME,
+                                              BrokerConstants.DEFAULT_INFLIGHT_WINDOW_MAX_SIZE);
+        if (inflightWindowMaxSize < 1 || inflightWindowMaxSize > 65535) {
+            throw new IllegalArgumentException(BrokerConstants.INFLIGHT_WINDOW_MAX_SIZE_PROPERTY_NAME +
+                " must be in range [1..65535], was: " + inflightWindowMaxSize);
+        }
     }
 
     public BrokerConfiguration(boolean allowAnonymous, boolean allowZeroByteClientId,
@@ -38,6 +47,8 @@ class BrokerConfiguration {
         this.allowZeroByteClientId = allowZeroByteClientId;
         this.reauthorizeSubscriptionsOnConnect = reauthorizeSubscriptionsOnConnect;
         this.immediateBufferFlush = immediateBufferFlush;
+        this.inflightWindowAdaptive = false;
+        this.inflightWindowMaxSize = BrokerConstants.DEFAULT_INFLIGHT_WINDOW_MAX_SIZE;
     }
 
     public boolean isAllowAnonymous() {
@@ -55,4 +66,12 @@ class BrokerConfiguration {
     public boolean isImmediateBufferFlush() {
         return immediateBufferFlush;
     }
+
+    public boolean isInflightWindowAdaptive() {
+        return inflightWindowAdaptive;
+    }
+
+    public int getInflightWindowMaxSize() {
+        return inflightWindowMaxSize;
+    }
 }
@@ -7,11 +7,13 @@ public class ClientDescriptor {
     private final String clientID;
     private final String address;
     private final int port;
+    private final int inflightWindowSize;
 
-    ClientDescriptor(String clientID, String address, int port) {
+    ClientDescriptor(String clientID, String address, int port, int inflightWindowSize) {
         this.clientID = clientID;
         this.address = address;
         this.port = port;
+        this.inflightWindowSize = inflightWindowSize;
     }
 
     public String getClientID() {
@@ -26,6 +28,14 @@ public class ClientDescriptor {
         return port;
     }
 
+    /**
+     * @return the inflight window of the session when the descriptor was created, it changes over time when
+     * the window is adaptive so it's not part of the identity of the descriptor.
+     * */
+    public int getInflightWindowSize() {
+        return inflightWindowSize;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -47,6 +57,7 @@ public class ClientDescriptor {
             "clientID='" + clientID + '\'' +
             ", address='" + address + '\'' +
             ", port=" + port +
+            ", inflightWindowSize=" + inflightWindowSize +
             '}';
     }
 }
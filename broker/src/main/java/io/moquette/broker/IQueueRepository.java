@@ -1,6 +1,11 @@
 package io.moquette.broker;
 
+import io.moquette.broker.metrics.QueueCompactionMetrics;
+import io.moquette.broker.metrics.QueueDurabilityMetrics;
+
+import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 public interface IQueueRepository {
 
@@ -10,5 +15,33 @@ public interface IQueueRepository {
 
     SessionMessageQueue<SessionRegistry.EnqueuedMessage> getOrCreateQueue(String clientId);
 
+    /**
+     * @return true if the acknowledge of a QoS1 publish queued to the sessions has to wait for commit.
+     * */
+    default boolean isCommitAwaited() {
+        return false;
+    }
+
+    /**
+     * @return future completed when the messages queued before the invocation are durable.
+     * */
+    default CompletableFuture<Void> commit() {
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * @return the latencies added by the durability policy, empty if the repository doesn't have one.
+     * */
+    default Optional<QueueDurabilityMetrics> durabilityMetrics() {
+        return Optional.empty();
+    }
+
+    /**
+     * @return the progress of the compaction of the storage, empty if the repository doesn't compact.
+     * */
+    default Optional<QueueCompactionMetrics> compactionMetrics() {
+        return Optional.empty();
+    }
+
     void close();
 }
@@ -1,5 +1,6 @@
 package io.moquette.broker;
 
+import java.util.Collection;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
@@ -27,6 +28,14 @@ public class InMemoryQueue extends AbstractSessionMessageQueue<SessionRegistry.E
         queue.add(message);
     }
 
+    @Override
+    public void enqueueAll(Collection<? extends SessionRegistry.EnqueuedMessage> messages) {
+        for (SessionRegistry.EnqueuedMessage message : messages) {
+            checkEnqueuePreconditions(message);
+        }
+        queue.addAll(messages);
+    }
+
     @Override
     public SessionRegistry.EnqueuedMessage dequeue() {
         checkDequeuePreconditions();
@@ -39,6 +48,20 @@ public class InMemoryQueue extends AbstractSessionMessageQueue<SessionRegistry.E
         return queue.isEmpty();
     }
 
+    @Override
+    public int size() {
+        return queue.size();
+    }
+
+    @Override
+    public long payloadBytes() {
+        long bytes = 0;
+        for (SessionRegistry.EnqueuedMessage message : queue) {
+            bytes += message.payloadSize();
+        }
+        return bytes;
+    }
+
     @Override
     public void closeAndPurge() {
         for (SessionRegistry.EnqueuedMessage msg : queue) {
@@ -31,7 +31,6 @@ import org.slf4j.LoggerFactory;
 import java.net.InetSocketAddress;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static io.netty.channel.ChannelFutureListener.CLOSE_ON_FAILURE;
@@ -54,6 +53,8 @@ final class MQTTConnection {
     private volatile boolean connected;
     private final AtomicInteger lastPacketId = new AtomicInteger(0);
     private Session bindedSession;
+    // last PUBACK waiting for its turn, only touched by the session loop of the client
+    private CompletableFuture<Void> pubAckTail = CompletableFuture.completedFuture(null);
 
     MQTTConnection(Channel channel, BrokerConfiguration brokerConfig, IAuthenticator authenticator,
                    SessionRegistry sessionRegistry, PostOffice postOffice) {
@@ -236,11 +237,14 @@ final class MQTTConnection {
                         // OK continue with sending queued messages and normal flow
 
                         if (result.mode == SessionRegistry.CreationModeEnum.REOPEN_EXISTING) {
-                            result.session.sendQueuedMessagesWhileOffline();
+                            // the session state is owned by the session loop, not by this netty thread
+                            postOffice.routeCommand(clientIdUsed, "SEND OFFLINE MSGS", () -> {
+                                result.session.sendQueuedMessagesWhileOffline();
+                                return null;
+                            });
                         }
 
                         initializeKeepAliveTimeout(channel, msg, clientIdUsed);
-                        setupInflightResender(channel);
 
                         postOffice.dispatchConnection(msg);
                         LOG.trace("dispatch connection: {}", msg);
@@ -255,11 +259,6 @@ final class MQTTConnection {
         });
     }
 
-    private void setupInflightResender(Channel channel) {
-        channel.pipeline()
-            .addFirst("inflightResender", new InflightResender(5_000, TimeUnit.MILLISECONDS));
-    }
-
     private void initializeKeepAliveTimeout(Channel channel, MqttConnectMessage msg, String clientId) {
         int keepAlive = msg.variableHeader().keepAliveTimeSeconds();
         NettyUtils.keepAlive(channel, keepAlive);
@@ -315,6 +314,7 @@ final class MQTTConnection {
     }
 
     void handleConnectionLost() {
+        postOffice.releaseThrottledPublisher(channel);
         final String clientID = NettyUtils.clientID(channel);
         if (clientID == null || clientID.isEmpty()) {
             return;
@@ -440,15 +440,16 @@ final class MQTTConnection {
         // retain else msg is cleaned by the NewNettyMQTTHandler and is not available
         // in execution by SessionEventLoop
         msg.retain();
+        postOffice.throttlePublisherIfOverloaded(channel, clientId);
         switch (qos) {
             case AT_MOST_ONCE:
                 return postOffice.routeCommand(clientId, "PUB QoS0", () -> {
                     checkMatchSessionLoop(clientId);
                     if (!isBoundToSession())
                         return null;
-                    postOffice.receivedPublishQos0(topic, username, clientId, msg);
+                    postOffice.receivedPublishQos0(this, topic, username, msg);
                     return null;
-                }).ifFailed(msg::release);
+                }, channel).ifFailed(msg::release);
             case AT_LEAST_ONCE:
                 return postOffice.routeCommand(clientId, "PUB QoS1", () -> {
                     checkMatchSessionLoop(clientId);
@@ -456,7 +457,7 @@ final class MQTTConnection {
                         return null;
                     postOffice.receivedPublishQos1(this, topic, username, messageID, msg);
                     return null;
-                }).ifFailed(msg::release);
+                }, channel).ifFailed(msg::release);
             case EXACTLY_ONCE: {
                 final PostOffice.RouteResult firstStepResult = postOffice.routeCommand(clientId, "PUB QoS2", () -> {
                     checkMatchSessionLoop(clientId);
@@ -464,7 +465,7 @@ final class MQTTConnection {
                         return null;
                     bindedSession.receivedPublishQos2(messageID, msg);
                     return null;
-                });
+                }, channel);
                 if (!firstStepResult.isSuccess()) {
                     msg.release();
                     LOG.trace("Failed to enqueue PUB QoS2 to session loop for  {}", clientId);
@@ -517,6 +518,28 @@ final class MQTTConnection {
         sendIfWritableElseDrop(publishMsg);
     }
 
+    /**
+     * Write a PUBLISH of a batch drained from the session queue, it's never dropped and never flushed:
+     * the caller sizes the batch on the writability of the channel and flushes once at the end.
+     * */
+    void writeBatchedPublish(MqttPublishMessage publishMsg) {
+        LOG.debug("Sending batched PUBLISH({}) message. MessageId={}, topic={}",
+                  publishMsg.fixedHeader().qosLevel(), publishMsg.variableHeader().packetId(),
+                  publishMsg.variableHeader().topicName());
+        // the payload is still referenced by the inflight window
+        channel.write(publishMsg.retainedDuplicate()).addListener(FIRE_EXCEPTION_ON_FAILURE);
+    }
+
+    /**
+     * Send a PUBLISH built from the header encoded once for all the subscribers, it skips the MqttEncoder.
+     * */
+    void sendSharedPublish(SharedPublishFrames frames, MqttQoS qos, int packetId) {
+        LOG.debug("Sending shared PUBLISH({}) message. MessageId={}, topic={}", qos, packetId, frames.topic());
+        if (channel.isWritable()) {
+            write(frames.frame(qos, packetId, channel.alloc()));
+        }
+    }
+
     void sendIfWritableElseDrop(MqttMessage msg) {
         if (LOG.isDebugEnabled()) {
             LOG.debug("OUT {}", msg.fixedHeader().messageType());
@@ -529,21 +552,31 @@ final class MQTTConnection {
             if (msg instanceof ByteBufHolder) {
                 retainedDup = ((ByteBufHolder) msg).retainedDuplicate();
             }
+            write(retainedDup);
+        }
+    }
 
-            ChannelFuture channelFuture;
-            if (brokerConfig.isImmediateBufferFlush()) {
-                channelFuture = channel.writeAndFlush(retainedDup);
-            } else {
-                channelFuture = channel.write(retainedDup);
-            }
-            channelFuture.addListener(FIRE_EXCEPTION_ON_FAILURE);
+    private void write(Object msg) {
+        ChannelFuture channelFuture;
+        if (brokerConfig.isImmediateBufferFlush()) {
+            channelFuture = channel.writeAndFlush(msg);
+        } else {
+            channelFuture = channel.write(msg);
         }
+        channelFuture.addListener(FIRE_EXCEPTION_ON_FAILURE);
     }
 
     public void writabilityChanged() {
         if (channel.isWritable()) {
             LOG.debug("Channel is again writable");
-            bindedSession.writabilityChanged();
+            final String clientId = getClientId();
+            postOffice.routeCommand(clientId, "WRITABLE", () -> {
+                checkMatchSessionLoop(clientId);
+                if (isBoundToSession()) {
+                    bindedSession.writabilityChanged();
+                }
+                return null;
+            });
         }
     }
 
@@ -555,6 +588,28 @@ final class MQTTConnection {
         sendIfWritableElseDrop(pubAckMessage);
     }
 
+    /**
+     * Sends the PUBACK once the commit is done and after the PUBACKs of the previous QoS1 publishes, so the client
+     * receives them in the order it published. Nothing is sent if the commit fails, the client resends a DUP.
+     *
+     * @param commit the commit of the queues the acknowledge waits for, null if the message doesn't need one.
+     * */
+    void sendPubAckInOrder(int messageID, CompletableFuture<Void> commit) {
+        if (commit == null && pubAckTail.isDone()) {
+            sendPubAck(messageID);
+            return;
+        }
+        final CompletableFuture<Boolean> committed = commit == null
+            ? CompletableFuture.completedFuture(Boolean.TRUE)
+            : commit.handle((v, ex) -> ex == null);
+        pubAckTail = pubAckTail.thenCombine(committed, (v, ack) -> {
+            if (ack) {
+                sendPubAck(messageID);
+            }
+            return null;
+        });
+    }
+
     private void sendPubCompMessage(int messageID) {
         LOG.trace("Sending PUBCOMP message messageId: {}", messageID);
         MqttFixedHeader fixedHeader = new MqttFixedHeader(MqttMessageType.PUBCOMP, false, AT_MOST_ONCE, false, 0);
@@ -607,8 +662,16 @@ final class MQTTConnection {
         return new MqttPublishMessage(fixedHeader, varHeader, message);
     }
 
-    public void resendNotAckedPublishes() {
-        bindedSession.resendInflightNotAcked();
+    int inflightWindowSize() {
+        return NettyUtils.inflightWindowSize(channel);
+    }
+
+    boolean isInflightWindowAdaptive() {
+        return brokerConfig.isInflightWindowAdaptive();
+    }
+
+    int inflightWindowMaxSize() {
+        return brokerConfig.getInflightWindowMaxSize();
     }
 
     int nextPacketId() {
@@ -626,9 +689,15 @@ final class MQTTConnection {
 
     public void readCompleted() {
         LOG.debug("readCompleted client CId: {}", getClientId());
-        if (getClientId() != null) {
-            // TODO drain all messages in target's session in-flight message queue
-            bindedSession.flushAllQueuedMessages();
+        final String clientId = getClientId();
+        if (clientId != null) {
+            postOffice.routeCommand(clientId, "FLUSH QUEUED", () -> {
+                checkMatchSessionLoop(clientId);
+                if (isBoundToSession()) {
+                    bindedSession.flushAllQueuedMessages();
+                }
+                return null;
+            });
         }
     }
 
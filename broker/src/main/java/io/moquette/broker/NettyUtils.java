@@ -18,6 +18,7 @@ package io.moquette.broker;
 
 import java.io.IOException;
 
+import io.moquette.BrokerConstants;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.mqtt.MqttMessage;
@@ -34,10 +35,13 @@ public final class NettyUtils {
     private static final String ATTR_CLIENTID = "ClientID";
     private static final String CLEAN_SESSION = "removeTemporaryQoS2";
     private static final String KEEP_ALIVE = "keepAlive";
+    private static final String INFLIGHT_WINDOW_SIZE = "inflightWindowSize";
     private static final AttributeKey<Object> ATTR_KEY_KEEPALIVE = AttributeKey.valueOf(KEEP_ALIVE);
     private static final AttributeKey<Object> ATTR_KEY_CLEANSESSION = AttributeKey.valueOf(CLEAN_SESSION);
     private static final AttributeKey<Object> ATTR_KEY_CLIENTID = AttributeKey.valueOf(ATTR_CLIENTID);
     private static final AttributeKey<Object> ATTR_KEY_USERNAME = AttributeKey.valueOf(ATTR_USERNAME);
+    private static final AttributeKey<Object> ATTR_KEY_INFLIGHT_WINDOW_SIZE =
+        AttributeKey.valueOf(INFLIGHT_WINDOW_SIZE);
 
     public static Object getAttribute(ChannelHandlerContext ctx, AttributeKey<Object> key) {
         Attribute<Object> attr = ctx.channel().attr(key);
@@ -72,6 +76,18 @@ public final class NettyUtils {
         return (String) channel.attr(NettyUtils.ATTR_KEY_USERNAME).get();
     }
 
+    public static void inflightWindowSize(Channel channel, int inflightWindowSize) {
+        channel.attr(NettyUtils.ATTR_KEY_INFLIGHT_WINDOW_SIZE).set(inflightWindowSize);
+    }
+
+    /**
+     * @return the inflight window size of the listener that accepted the channel.
+     * */
+    public static int inflightWindowSize(Channel channel) {
+        final Object size = channel.attr(NettyUtils.ATTR_KEY_INFLIGHT_WINDOW_SIZE).get();
+        return size == null ? BrokerConstants.INFLIGHT_WINDOW_SIZE : (Integer) size;
+    }
+
     /**
 	 * Validate that the provided message is an MqttMessage and that it does not contain a failed result.
 	 *
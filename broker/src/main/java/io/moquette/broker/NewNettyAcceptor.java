@@ -250,18 +250,31 @@ class NewNettyAcceptor {
             return;
         }
         int port = Integer.parseInt(tcpPortProp);
+        final int inflightWindowSize = inflightWindowSize(props, BrokerConstants.INFLIGHT_WINDOW_SIZE_PROPERTY_NAME);
         initFactory(host, port, PLAIN_MQTT_PROTO, new PipelineInitializer() {
 
             @Override
             void init(SocketChannel channel) {
                 ChannelPipeline pipeline = channel.pipeline();
-                configureMQTTPipeline(pipeline, timeoutHandler, handler);
+                configureMQTTPipeline(pipeline, timeoutHandler, handler, inflightWindowSize);
             }
         });
     }
 
+    private static int inflightWindowSize(IConfig props, String listenerPropertyName) {
+        final int defaultSize = props.intProp(BrokerConstants.INFLIGHT_WINDOW_SIZE_PROPERTY_NAME,
+                                              BrokerConstants.INFLIGHT_WINDOW_SIZE);
+        final int size = props.intProp(listenerPropertyName, defaultSize);
+        if (size <= 0 || size > 65535) {
+            throw new IllegalArgumentException("Property " + listenerPropertyName
+                + " must be in range [1..65535], was: " + size);
+        }
+        return size;
+    }
+
     private void configureMQTTPipeline(ChannelPipeline pipeline, MoquetteIdleTimeoutHandler timeoutHandler,
-                                       NewNettyMQTTHandler handler) {
+                                       NewNettyMQTTHandler handler, int inflightWindowSize) {
+        NettyUtils.inflightWindowSize(pipeline.channel(), inflightWindowSize);
         pipeline.addFirst("idleStateHandler", new IdleStateHandler(nettyChannelTimeoutSeconds, 0, 0));
         pipeline.addAfter("idleStateHandler", "idleEventHandler", timeoutHandler);
         // pipeline.addLast("logger", new LoggingHandler("Netty", LogLevel.ERROR));
@@ -296,6 +309,8 @@ class NewNettyAcceptor {
         String host = props.getProperty(BrokerConstants.HOST_PROPERTY_NAME);
         String path = props.getProperty(BrokerConstants.WEB_SOCKET_PATH_PROPERTY_NAME, BrokerConstants.WEBSOCKET_PATH);
         int maxFrameSize = props.intProp(BrokerConstants.WEB_SOCKET_MAX_FRAME_SIZE_PROPERTY_NAME, 65536);
+        final int inflightWindowSize = inflightWindowSize(props,
+            BrokerConstants.WEB_SOCKET_INFLIGHT_WINDOW_SIZE_PROPERTY_NAME);
         initFactory(host, port, "Websocket MQTT", new PipelineInitializer() {
 
             @Override
@@ -307,7 +322,7 @@ class NewNettyAcceptor {
                         new WebSocketServerProtocolHandler(path, MQTT_SUBPROTOCOL_CSV_LIST, false, maxFrameSize));
                 pipeline.addLast("ws2bytebufDecoder", new WebSocketFrameToByteBufDecoder());
                 pipeline.addLast("bytebuf2wsEncoder", new ByteBufToWebSocketFrameEncoder());
-                configureMQTTPipeline(pipeline, timeoutHandler, handler);
+                configureMQTTPipeline(pipeline, timeoutHandler, handler, inflightWindowSize);
             }
         });
     }
@@ -329,13 +344,15 @@ class NewNettyAcceptor {
         String host = props.getProperty(BrokerConstants.HOST_PROPERTY_NAME);
         String sNeedsClientAuth = props.getProperty(BrokerConstants.NEED_CLIENT_AUTH, "false");
         final boolean needsClientAuth = Boolean.valueOf(sNeedsClientAuth);
+        final int inflightWindowSize = inflightWindowSize(props,
+            BrokerConstants.SSL_INFLIGHT_WINDOW_SIZE_PROPERTY_NAME);
         initFactory(host, sslPort, SSL_MQTT_PROTO, new PipelineInitializer() {
 
             @Override
             void init(SocketChannel channel) throws Exception {
                 ChannelPipeline pipeline = channel.pipeline();
                 pipeline.addLast("ssl", createSslHandler(channel, sslContext, needsClientAuth));
-                configureMQTTPipeline(pipeline, timeoutHandler, handler);
+                configureMQTTPipeline(pipeline, timeoutHandler, handler, inflightWindowSize);
             }
         });
     }
@@ -356,6 +373,8 @@ class NewNettyAcceptor {
         int maxFrameSize = props.intProp(BrokerConstants.WEB_SOCKET_MAX_FRAME_SIZE_PROPERTY_NAME, 65536);
         String sNeedsClientAuth = props.getProperty(BrokerConstants.NEED_CLIENT_AUTH, "false");
         final boolean needsClientAuth = Boolean.valueOf(sNeedsClientAuth);
+        final int inflightWindowSize = inflightWindowSize(props,
+            BrokerConstants.WSS_INFLIGHT_WINDOW_SIZE_PROPERTY_NAME);
         initFactory(host, sslPort, "Secure websocket", new PipelineInitializer() {
 
             @Override
@@ -370,7 +389,7 @@ class NewNettyAcceptor {
                 pipeline.addLast("ws2bytebufDecoder", new WebSocketFrameToByteBufDecoder());
                 pipeline.addLast("bytebuf2wsEncoder", new ByteBufToWebSocketFrameEncoder());
 
-                configureMQTTPipeline(pipeline, timeoutHandler, handler);
+                configureMQTTPipeline(pipeline, timeoutHandler, handler, inflightWindowSize);
             }
         });
     }
@@ -105,13 +105,4 @@ public class NewNettyMQTTHandler extends ChannelInboundHandlerAdapter {
         ctx.fireChannelWritabilityChanged();
     }
 
-    @Override
-    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) {
-        if (evt instanceof InflightResender.ResendNotAckedPublishes) {
-            final MQTTConnection mqttConnection = mqttConnection(ctx.channel());
-            mqttConnection.resendNotAckedPublishes();
-        }
-        ctx.fireUserEventTriggered(evt);
-    }
-
 }
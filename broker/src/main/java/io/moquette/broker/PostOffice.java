@@ -16,13 +16,19 @@
 package io.moquette.broker;
 
 import io.moquette.interception.BrokerInterceptor;
+import io.moquette.broker.metrics.BackpressureMetrics;
+import io.moquette.broker.metrics.RouteCacheMetrics;
+import io.moquette.broker.metrics.SessionLoopMetrics;
 import io.moquette.broker.subscriptions.ISubscriptionsDirectory;
 import io.moquette.broker.subscriptions.Subscription;
 import io.moquette.broker.subscriptions.Topic;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
 import io.netty.handler.codec.mqtt.*;
 import io.netty.util.ReferenceCountUtil;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -30,10 +36,14 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Objects;
+import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
@@ -45,80 +55,169 @@ class PostOffice {
 
     /**
      * Maps the failed packetID per clientId (id client source, id_packet) -> [id client target]
+     *
+     * The entries are indexed by publisher so that the cleanup of a client touches only its own entries. They are
+     * bounded in number and expire if the publisher doesn't resend the DUP in time, after that the publish is
+     * lost for the subscribers that failed. A publisher without entries is removed from the index, the publishers
+     * that never come back are swept periodically.
      * */
     private static class FailedPublishCollection {
 
-        static class PacketId {
+        private static final long EXPIRY_NANOS = TimeUnit.MINUTES.toNanos(5);
+        private static final long GLOBAL_SWEEP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+        private static final int MAX_ENTRIES = 100_000;
 
-            private final String clientId;
-            private final int idPacket;
+        private static final class FailedPacket {
+            private final Set<String> targets = new HashSet<>();
+            private long expireAt;
+        }
 
-            PacketId(String clientId, int idPacket) {
-                this.clientId = clientId;
-                this.idPacket = idPacket;
-            }
-            @Override
-            public boolean equals(Object o) {
-                if (this == o) return true;
-                if (o == null || getClass() != o.getClass()) return false;
-                PacketId packetId = (PacketId) o;
-                return idPacket == packetId.idPacket && Objects.equals(clientId, packetId.clientId);
-            }
+        /**
+         * Failed packets of a publisher, accessed under its lock: mostly by the publisher's session loop.
+         * */
+        private static final class ClientFailures {
+            private final IntObjectHashMap<FailedPacket> packets = new IntObjectHashMap<>();
+            // no packet expires before this time
+            private long nextSweep;
+            // removed from the index, a new instance has to be used
+            private boolean retired;
+        }
 
-            @Override
-            public int hashCode() {
-                return Objects.hash(clientId, idPacket);
-            }
+        private final ConcurrentMap<String, ClientFailures> byPublisher = new ConcurrentHashMap<>();
+        private final AtomicInteger size = new AtomicInteger();
+        private final AtomicLong nextGlobalSweep = new AtomicLong(System.nanoTime());
 
-            public boolean belongToClient(String clientId) {
-                return this.clientId.equals(clientId);
+        void insertAll(int messageID, String clientId, Collection<String> routings) {
+            if (routings.isEmpty()) {
+                return;
+            }
+            final long now = System.nanoTime();
+            expireAll(now);
+            while (true) {
+                final ClientFailures failures = byPublisher.computeIfAbsent(clientId, k -> new ClientFailures());
+                synchronized (failures) {
+                    if (failures.retired) {
+                        continue;
+                    }
+                    expireStale(clientId, failures, now);
+                    if (failures.retired) {
+                        // all its packets expired
+                        continue;
+                    }
+                    FailedPacket packet = failures.packets.get(messageID);
+                    if (packet == null) {
+                        if (size.get() >= MAX_ENTRIES) {
+                            LOG.warn("Failed publishes are over the limit of {}, not tracking packet {} of {} for " +
+                                "subscribers {}", MAX_ENTRIES, messageID, clientId, routings);
+                            retireIfEmpty(clientId, failures);
+                            return;
+                        }
+                        packet = new FailedPacket();
+                        failures.packets.put(messageID, packet);
+                        size.incrementAndGet();
+                    }
+                    packet.expireAt = now + EXPIRY_NANOS;
+                    if (failures.packets.size() == 1) {
+                        failures.nextSweep = packet.expireAt;
+                    }
+                    packet.targets.addAll(routings);
+                    return;
+                }
             }
         }
 
-        private final ConcurrentMap<PacketId, Set<String>> packetsMap = new ConcurrentHashMap<>();
-
-        private void insert(String clientId, int messageID, String failedClientId) {
-            final PacketId packetId = new PacketId(clientId, messageID);
-            packetsMap.computeIfAbsent(packetId, k -> new HashSet<>())
-                .add(failedClientId);
+        void removeAll(int messageID, String clientId, Collection<String> routings) {
+            if (routings.isEmpty()) {
+                return;
+            }
+            final ClientFailures failures = byPublisher.get(clientId);
+            if (failures == null) {
+                return;
+            }
+            synchronized (failures) {
+                final FailedPacket packet = failures.packets.get(messageID);
+                if (packet == null) {
+                    return;
+                }
+                packet.targets.removeAll(routings);
+                if (packet.targets.isEmpty()) {
+                    failures.packets.remove(messageID);
+                    size.decrementAndGet();
+                    retireIfEmpty(clientId, failures);
+                }
+            }
         }
 
-        public void remove(String clientId, int messageID, String targetClientId) {
-            final PacketId packetId = new PacketId(clientId, messageID);
-            packetsMap.computeIfPresent(packetId, (key, clientsSet) -> {
-               clientsSet.remove(targetClientId);
-               if (clientsSet.isEmpty()) {
-                   // the mapping key, value is removed
-                   return null;
-               } else {
-                   return clientsSet;
-               }
-            });
+        void cleanupForClient(String clientId) {
+            final ClientFailures failures = byPublisher.remove(clientId);
+            if (failures == null) {
+                return;
+            }
+            synchronized (failures) {
+                failures.retired = true;
+                size.addAndGet(-failures.packets.size());
+                failures.packets.clear();
+            }
         }
 
-        private void removeAll(int messageID, String clientId, Collection<String> routings) {
-            for (String targetClientId : routings) {
-                remove(clientId, messageID, targetClientId);
+        Set<String> listFailed(String clientId, int messageID) {
+            final ClientFailures failures = byPublisher.get(clientId);
+            if (failures == null) {
+                return Collections.emptySet();
+            }
+            synchronized (failures) {
+                expireStale(clientId, failures, System.nanoTime());
+                final FailedPacket packet = failures.packets.get(messageID);
+                return packet == null ? Collections.emptySet() : new HashSet<>(packet.targets);
             }
         }
 
-        void cleanupForClient(String clientId) {
-            // the only way to linear scan the map to collect of PacketIds references,
-            // for a following step of cleaning
-            packetsMap.keySet().stream()
-                .filter(packet -> packet.belongToClient(clientId))
-                .forEach(packetsMap::remove);
+        // must hold the lock of failures, retires them if no packet is left
+        private void expireStale(String clientId, ClientFailures failures, long now) {
+            if (failures.packets.isEmpty() || now - failures.nextSweep < 0) {
+                return;
+            }
+            long nextSweep = now + EXPIRY_NANOS;
+            final Iterator<IntObjectMap.PrimitiveEntry<FailedPacket>> it = failures.packets.entries().iterator();
+            while (it.hasNext()) {
+                final IntObjectMap.PrimitiveEntry<FailedPacket> entry = it.next();
+                final long expireAt = entry.value().expireAt;
+                if (now - expireAt >= 0) {
+                    LOG.debug("Expired failed publish {} for subscribers {}", entry.key(), entry.value().targets);
+                    it.remove();
+                    size.decrementAndGet();
+                } else if (expireAt - nextSweep < 0) {
+                    nextSweep = expireAt;
+                }
+            }
+            failures.nextSweep = nextSweep;
+            retireIfEmpty(clientId, failures);
         }
 
-        void insertAll(int messageID, String clientId, Collection<String> routings) {
-            for (String targetClientId : routings) {
-                insert(clientId, messageID, targetClientId);
+        // must hold the lock of failures
+        private void retireIfEmpty(String clientId, ClientFailures failures) {
+            if (failures.packets.isEmpty()) {
+                failures.retired = true;
+                byPublisher.remove(clientId, failures);
             }
         }
 
-        Set<String> listFailed(String clientId, int messageID) {
-            final PacketId packetId = new PacketId(clientId, messageID);
-            return packetsMap.getOrDefault(packetId, Collections.emptySet());
+        /**
+         * Expire the stale entries of all the publishers, at most once per interval.
+         * */
+        private void expireAll(long now) {
+            final long scheduled = nextGlobalSweep.get();
+            if (now - scheduled < 0 || !nextGlobalSweep.compareAndSet(scheduled, now + GLOBAL_SWEEP_INTERVAL_NANOS)) {
+                return;
+            }
+            for (Map.Entry<String, ClientFailures> entry : byPublisher.entrySet()) {
+                final ClientFailures failures = entry.getValue();
+                synchronized (failures) {
+                    if (!failures.retired) {
+                        expireStale(entry.getKey(), failures, now);
+                    }
+                }
+            }
         }
     }
 
@@ -171,6 +270,8 @@ class PostOffice {
     private static final Logger LOG = LoggerFactory.getLogger(PostOffice.class);
 
     private static final Set<String> NO_FILTER = new HashSet<>();
+    // times a move waits for the commands already queued for the session before being refused
+    private static final int MOVE_SESSION_ATTEMPTS = 16;
 
     private final Authorizator authorizator;
     private final ISubscriptionsDirectory subscriptions;
@@ -179,25 +280,70 @@ class PostOffice {
     private BrokerInterceptor interceptor;
 
     private final Thread[] sessionExecutors;
-    private final BlockingQueue<FutureTask<String>>[] sessionQueues;
-    private final int eventLoops = Runtime.getRuntime().availableProcessors();
+    private final SessionCommandQueue[] sessionQueues;
+    private final int eventLoops;
+    private final SessionLoopAffinity affinity;
     private final FailedPublishCollection failedPublishes = new FailedPublishCollection();
+    private final RouteCache routeCache;
+    private final PublishBackpressure backpressure;
+    // checked by a session loop before executing a command, the commands of the sessions moved after being
+    // queued are forwarded to the loop that owns the session, deferred by the old loop while that one is full
+    private final SessionCommandQueue.Rerouter movedSessionsRerouter = new SessionCommandQueue.Rerouter() {
+        @Override
+        public int ownerLoop(int fromLoop, String sessionId) {
+            return affinity.loopFor(sessionId);
+        }
+
+        @Override
+        public boolean forward(int toLoop, String sessionId, Callable<String> action,
+                               CompletableFuture<String> task) {
+            return sessionQueues[toLoop].offer(sessionId, action, task);
+        }
+    };
 
     PostOffice(ISubscriptionsDirectory subscriptions, IRetainedRepository retainedRepository,
                SessionRegistry sessionRegistry, BrokerInterceptor interceptor, Authorizator authorizator, int sessionQueueSize) {
+        this(subscriptions, retainedRepository, sessionRegistry, interceptor, authorizator, sessionQueueSize, 0,
+             SessionCommandQueue.IdleStrategy.PARK, Runtime.getRuntime().availableProcessors(), 0, 0);
+    }
+
+    /**
+     * @param routeCacheSize max number of topics kept in the route cache, 0 disables it.
+     * @param idleStrategy what the session loops do while their command queues are empty.
+     * @param sessionLoops number of session event loops.
+     * @param highWatermarkPercent fill percentage of a session queue that throttles the publishers routing to it,
+     *                             0 disables the backpressure and the publishes that don't fit in a queue fail,
+     *                             otherwise they are parked until the throttled publishers stop.
+     * @param lowWatermarkPercent fill percentage of the session queues under which their throttled publishers
+     *                            resume.
+     * */
+    PostOffice(ISubscriptionsDirectory subscriptions, IRetainedRepository retainedRepository,
+               SessionRegistry sessionRegistry, BrokerInterceptor interceptor, Authorizator authorizator,
+               int sessionQueueSize, int routeCacheSize, SessionCommandQueue.IdleStrategy idleStrategy,
+               int sessionLoops, int highWatermarkPercent, int lowWatermarkPercent) {
+        this.eventLoops = sessionLoops;
+        this.affinity = new SessionLoopAffinity(sessionLoops);
         this.authorizator = authorizator;
+        this.routeCache = routeCacheSize > 0 ? new RouteCache(routeCacheSize) : null;
         this.subscriptions = subscriptions;
         this.retainedRepository = retainedRepository;
         this.sessionRegistry = sessionRegistry;
         this.interceptor = interceptor;
+        // an expired session releases its entry in the pin table, a returning client goes to its hashed loop
+        sessionRegistry.onSessionExpired(affinity::unpin);
 
-        this.sessionQueues = new BlockingQueue[eventLoops];
+        this.sessionQueues = new SessionCommandQueue[eventLoops];
         for (int i = 0; i < eventLoops; i++) {
-            this.sessionQueues[i] = new ArrayBlockingQueue<>(sessionQueueSize);
+            this.sessionQueues[i] = new SessionCommandQueue(i, sessionQueueSize, idleStrategy, movedSessionsRerouter);
         }
+        this.backpressure = highWatermarkPercent > 0
+            ? new PublishBackpressure(sessionQueues, highWatermarkPercent, lowWatermarkPercent)
+            : null;
         this.sessionExecutors = new Thread[eventLoops];
         for (int i = 0; i < eventLoops; i++) {
-            this.sessionExecutors[i] = new Thread(new SessionEventLoop(this.sessionQueues[i]));
+            final int loop = i;
+            final Runnable drainListener = backpressure != null ? () -> backpressure.resumeIfDrained(loop) : () -> { };
+            this.sessionExecutors[i] = new Thread(new SessionEventLoop(this.sessionQueues[i], true, drainListener));
             this.sessionExecutors[i].setName(sessionLoopName(i));
             this.sessionExecutors[i].start();
         }
@@ -319,13 +465,16 @@ class PostOffice {
         mqttConnection.sendUnsubAckMessage(topics, clientID, messageId);
     }
 
-    CompletableFuture<Void> receivedPublishQos0(Topic topic, String username, String clientID, MqttPublishMessage msg) {
+    CompletableFuture<Void> receivedPublishQos0(MQTTConnection connection, Topic topic, String username,
+                                                MqttPublishMessage msg) {
+        final String clientID = connection.getClientId();
         if (!authorizator.canWrite(topic, username, clientID)) {
             LOG.error("client is not authorized to publish on topic: {}", topic);
             ReferenceCountUtil.release(msg);
             return CompletableFuture.completedFuture(null);
         }
-        final RoutingResults publishResult = publish2Subscribers(msg.payload(), topic, AT_MOST_ONCE);
+        final RoutingResults publishResult = publish2Subscribers(msg.payload(), topic, AT_MOST_ONCE, NO_FILTER,
+                                                                 connection.channel);
         if (publishResult.isAllFailed()) {
             LOG.info("No one publish was successfully enqueued to session loops");
             ReferenceCountUtil.release(msg);
@@ -364,16 +513,34 @@ class PostOffice {
         final RoutingResults routes;
         if (msg.fixedHeader().isDup()) {
             final Set<String> failedClients = failedPublishes.listFailed(clientId, messageID);
-            routes = publish2Subscribers(payload, topic, AT_LEAST_ONCE, failedClients);
+            routes = publish2Subscribers(payload, topic, AT_LEAST_ONCE, failedClients, connection.channel);
         } else {
-            routes = publish2Subscribers(payload, topic, AT_LEAST_ONCE);
+            routes = publish2Subscribers(payload, topic, AT_LEAST_ONCE, NO_FILTER, connection.channel);
         }
         if (LOG.isTraceEnabled()) {
             LOG.trace("subscriber routes: {}", routes);
         }
+        // cleanup success resends from the failed publishes cache, before a failed commit registers them again
+        failedPublishes.removeAll(messageID, clientId, routes.successedRoutings);
+
         if (routes.isAllSuccess()) {
             // QoS1 message was enqueued successfully to every event loop
-            connection.sendPubAck(messageID);
+            if (sessionRegistry.isQueuesCommitAwaited() && !routes.successedRoutings.isEmpty()) {
+                // acknowledge once the sessions have queued it and the queues forced it to the disk
+                final CompletableFuture<Void> commit = routes.completableFuture()
+                    .thenCompose(v -> sessionRegistry.commitQueues())
+                    .whenComplete((v, ex) -> {
+                        if (ex != null) {
+                            LOG.warn("Not acknowledging QoS1 message {} from {}, commit of the queues failed",
+                                     messageID, clientId, ex);
+                            // the DUP resend goes only to the subscribers of the failed commit
+                            failedPublishes.insertAll(messageID, clientId, routes.successedRoutings);
+                        }
+                    });
+                connection.sendPubAckInOrder(messageID, commit);
+            } else {
+                connection.sendPubAckInOrder(messageID, null);
+            }
             manageRetain(topic, msg);
             interceptor.notifyTopicPublished(msg, clientId, username);
         } else {
@@ -382,9 +549,6 @@ class PostOffice {
         }
         ReferenceCountUtil.release(msg);
 
-        // cleanup success resends from the failed publishes cache
-        failedPublishes.removeAll(messageID, clientId, routes.successedRoutings);
-
         return routes;
     }
 
@@ -400,7 +564,7 @@ class PostOffice {
     }
 
     private RoutingResults publish2Subscribers(ByteBuf payload, Topic topic, MqttQoS publishingQos) {
-        return publish2Subscribers(payload, topic, publishingQos, NO_FILTER);
+        return publish2Subscribers(payload, topic, publishingQos, NO_FILTER, null);
     }
 
     private class BatchingPublishesCollector {
@@ -412,6 +576,18 @@ class PostOffice {
             this.eventLoops = eventLoops;
         }
 
+        /**
+         * Collector over already grouped batches, for example retrieved from the route cache.
+         * */
+        BatchingPublishesCollector(List<Subscription>[] batches) {
+            subscriptions = batches;
+            this.eventLoops = batches.length;
+        }
+
+        List<Subscription>[] batches() {
+            return subscriptions;
+        }
+
         public void add(Subscription sub) {
             final int targetQueueId = subscriberEventLoop(sub.getClientId());
             if (subscriptions[targetQueueId] == null) {
@@ -421,10 +597,14 @@ class PostOffice {
         }
 
         private int subscriberEventLoop(String clientId) {
-            return Math.abs(clientId.hashCode()) % this.eventLoops;
+            return affinity.loopFor(clientId);
         }
 
-        List<RouteResult> routeBatchedPublishes(Consumer<List<Subscription>> action) {
+        /**
+         * @param publisher channel throttled if a loop the batches are routed to is overloaded, null if the
+         *                  publish doesn't come from a client.
+         * */
+        List<RouteResult> routeBatchedPublishes(Consumer<List<Subscription>> action, Channel publisher) {
             List<RouteResult> publishResults = new ArrayList<>(this.eventLoops);
 
             for (List<Subscription> subscriptionsBatch : subscriptions) {
@@ -442,7 +622,10 @@ class PostOffice {
                 publishResults.add(routeCommand(clientId, "batched PUB", () -> {
                     action.accept(subscriptionsBatch);
                     return null;
-                }));
+                }, publisher));
+                if (publisher != null && backpressure != null) {
+                    backpressure.throttleIfOverloaded(publisher, subscriberEventLoop(clientId));
+                }
             }
             return publishResults;
         }
@@ -465,27 +648,20 @@ class PostOffice {
     }
 
     private RoutingResults publish2Subscribers(ByteBuf payload, Topic topic, MqttQoS publishingQos,
-                                               Set<String> filterTargetClients) {
-        Set<Subscription> topicMatchingSubscriptions = subscriptions.matchQosSharpening(topic);
-        if (topicMatchingSubscriptions.isEmpty()) {
+                                               Set<String> filterTargetClients, Channel publisher) {
+        final BatchingPublishesCollector collector = collectRoutes(topic, filterTargetClients);
+        final int batches = collector.countBatches();
+        if (batches == 0) {
             // no matching subscriptions, clean exit
             LOG.trace("No matching subscriptions for topic: {}", topic);
             return new RoutingResults(Collections.emptyList(), Collections.emptyList(), CompletableFuture.completedFuture(null));
         }
-
-        final BatchingPublishesCollector collector = new BatchingPublishesCollector(eventLoops);
-
-        for (final Subscription sub : topicMatchingSubscriptions) {
-            if (filterTargetClients == NO_FILTER || filterTargetClients.contains(sub.getClientId())) {
-                collector.add(sub);
-            }
-        }
-        payload.retain(collector.countBatches());
+        payload.retain(batches);
 
         List<RouteResult> publishResults = collector.routeBatchedPublishes((batch) -> {
             publishToSession(payload, topic, batch, publishingQos);
             payload.release();
-        });
+        }, publisher);
 
         final CompletableFuture[] publishFutures = publishResults.stream()
             .filter(RouteResult::isSuccess)
@@ -506,21 +682,76 @@ class PostOffice {
         return new RoutingResults(successedRoutings, failedRoutings, publishes);
     }
 
+    private BatchingPublishesCollector collectRoutes(Topic topic, Set<String> filterTargetClients) {
+        if (routeCache == null || filterTargetClients != NO_FILTER) {
+            final BatchingPublishesCollector collector = new BatchingPublishesCollector(eventLoops);
+            // the subscriptions are sharpened during the match and go straight to the batches
+            subscriptions.matchQosSharpening(topic, sub -> {
+                if (filterTargetClients == NO_FILTER || filterTargetClients.contains(sub.getClientId())) {
+                    collector.add(sub);
+                }
+            });
+            return collector;
+        }
+
+        // read the generation before matching, so a concurrent change of subscriptions makes the entry stale
+        final long generation = subscriptions.generation();
+        final long epoch = routeCache.epoch();
+        final String topicName = topic.toString();
+        final List<Subscription>[] cachedBatches = routeCache.lookup(topicName, generation);
+        if (cachedBatches != null) {
+            return new BatchingPublishesCollector(cachedBatches);
+        }
+        final BatchingPublishesCollector collector = new BatchingPublishesCollector(eventLoops);
+        subscriptions.matchQosSharpening(topic, collector::add);
+        routeCache.store(topicName, generation, epoch, collector.batches());
+        return collector;
+    }
+
     private void publishToSession(ByteBuf payload, Topic topic, Collection<Subscription> subscriptions, MqttQoS publishingQos) {
-        for (Subscription sub : subscriptions) {
-            MqttQoS qos = lowerQosToTheSubscriptionDesired(sub, publishingQos);
-            publishToSession(payload, topic, sub, qos);
+        // the encoded PUBLISH header is shared by all the subscribers of the batch
+        final SharedPublishFrames frames = new SharedPublishFrames(topic, payload, false);
+        try {
+            for (Subscription sub : subscriptions) {
+                MqttQoS qos = lowerQosToTheSubscriptionDesired(sub, publishingQos);
+                if (isOwnedByCurrentLoop(sub.getClientId())) {
+                    publishToSession(frames, sub, qos);
+                } else {
+                    // the batch was grouped before the session moved to another loop
+                    forwardToMovedSession(payload, topic, sub, qos);
+                }
+            }
+        } finally {
+            frames.release();
         }
     }
 
-    private void publishToSession(ByteBuf payload, Topic topic, Subscription sub, MqttQoS qos) {
+    private boolean isOwnedByCurrentLoop(String clientId) {
+        return Thread.currentThread() == sessionExecutors[affinity.loopFor(clientId)];
+    }
+
+    private void forwardToMovedSession(ByteBuf payload, Topic topic, Subscription sub, MqttQoS qos) {
+        payload.retain();
+        routeCommand(sub.getClientId(), "moved session PUB", () -> {
+            final SharedPublishFrames frames = new SharedPublishFrames(topic, payload, false);
+            try {
+                publishToSession(frames, sub, qos);
+            } finally {
+                frames.release();
+                payload.release();
+            }
+            return null;
+        }).ifFailed(payload::release);
+    }
+
+    private void publishToSession(SharedPublishFrames frames, Subscription sub, MqttQoS qos) {
         Session targetSession = this.sessionRegistry.retrieve(sub.getClientId());
 
         boolean isSessionPresent = targetSession != null;
         if (isSessionPresent) {
             LOG.debug("Sending PUBLISH message to active subscriber CId: {}, topicFilter: {}, qos: {}",
                       sub.getClientId(), sub.getTopicFilter(), qos);
-            targetSession.sendNotRetainedPublishOnSessionAtQos(topic, qos, payload);
+            targetSession.sendNotRetainedPublishOnSessionAtQos(frames, qos);
         } else {
             // If we are, the subscriber disconnected after the subscriptions tree selected that session as a
             // destination.
@@ -551,9 +782,9 @@ class PostOffice {
         final RoutingResults publishRoutings;
         if (msg.fixedHeader().isDup()) {
             final Set<String> failedClients = failedPublishes.listFailed(clientId, messageID);
-            publishRoutings = publish2Subscribers(payload, topic, EXACTLY_ONCE, failedClients);
+            publishRoutings = publish2Subscribers(payload, topic, EXACTLY_ONCE, failedClients, connection.channel);
         } else {
-            publishRoutings = publish2Subscribers(payload, topic, EXACTLY_ONCE);
+            publishRoutings = publish2Subscribers(payload, topic, EXACTLY_ONCE, NO_FILTER, connection.channel);
         }
         if (publishRoutings.isAllSuccess()) {
             // QoS2 PUB message was enqueued successfully to every event loop
@@ -634,33 +865,143 @@ class PostOffice {
     }
 
     private int targetQueueOrdinal(String clientId) {
-        return Math.abs(clientId.hashCode()) % this.eventLoops;
+        return affinity.loopFor(clientId);
+    }
+
+    /**
+     * Move a session to another session event loop. The move is executed on the loop that owns the session and
+     * is refused for connected or not existing sessions.
+     *
+     * The session is switched only once the old loop holds no other command for it, the move is queued again
+     * behind them otherwise, and refused if they keep coming after MOVE_SESSION_ATTEMPTS tries. So the new loop
+     * executes the commands of the session in the order they were routed. A command that read the old loop
+     * right before the switch, and is queued after it, is forwarded to the new loop, never dropped.
+     *
+     * @return future completed with true if the session has been moved.
+     * */
+    CompletableFuture<Boolean> moveSession(String clientId, int targetLoop) {
+        if (targetLoop < 0 || targetLoop >= eventLoops) {
+            throw new IllegalArgumentException("Session loop must be in range [0.." + (eventLoops - 1) + "], was: " +
+                targetLoop);
+        }
+        final CompletableFuture<Boolean> moved = new CompletableFuture<>();
+        routeCommand(clientId, "move session", () -> moveOnOwnerLoop(clientId, targetLoop, moved,
+                                                                     MOVE_SESSION_ATTEMPTS))
+            .ifFailed(() -> moved.complete(false));
+        return moved;
+    }
+
+    private String moveOnOwnerLoop(String clientId, int targetLoop, CompletableFuture<Boolean> moved,
+                                   int attempts) {
+        final Session session = sessionRegistry.retrieve(clientId);
+        if (session == null) {
+            // nothing would remove the pin of a session that doesn't exist
+            LOG.info("Session {} doesn't exist, not moving it to session loop {}", clientId, targetLoop);
+            moved.complete(false);
+            return null;
+        }
+        if (session.connected()) {
+            LOG.info("Session {} is connected, not moving it to session loop {}", clientId, targetLoop);
+            moved.complete(false);
+            return null;
+        }
+        final SessionCommandQueue ownerQueue = sessionQueues[affinity.loopFor(clientId)];
+        if (ownerQueue.hasQueuedCommandsOf(clientId)) {
+            // switching now would let the new loop run the newer commands before these ones
+            if (attempts <= 1 || !ownerQueue.offer(clientId,
+                () -> moveOnOwnerLoop(clientId, targetLoop, moved, attempts - 1), new CompletableFuture<>())) {
+                LOG.info("Session {} keeps having queued commands on session loop {}, not moving it to session " +
+                    "loop {}", clientId, ownerQueue.loopId(), targetLoop);
+                moved.complete(false);
+            }
+            return null;
+        }
+        affinity.pin(clientId, targetLoop);
+        if (routeCache != null) {
+            // the cached routes are grouped by session loop
+            routeCache.invalidateAll();
+        }
+        LOG.info("Moved session {} to session loop {}", clientId, targetLoop);
+        moved.complete(true);
+        return null;
     }
 
     /**
      * Route the command to the owning SessionEventLoop
      * */
     public RouteResult routeCommand(String clientId, String actionDescription, Callable<String> action) {
-        SessionCommand cmd = new SessionCommand(clientId, action);
-        final int targetQueueId = targetQueueOrdinal(cmd.getSessionId());
-        LOG.debug("Routing cmd [{}] for session [{}] to event processor {}", actionDescription, cmd.getSessionId(), targetQueueId);
-        final FutureTask<String> task = new FutureTask<>(() -> {
-            cmd.execute();
-            cmd.complete();
-            return cmd.getSessionId();
-        });
+        return routeCommand(clientId, actionDescription, action, null);
+    }
+
+    /**
+     * Route a command carrying a publish, with the backpressure enabled the command that finds the queue full is
+     * parked instead of failed: its publisher is throttled, so it soon stops producing.
+     *
+     * @param publisher channel of the client that sent the publish, null if the command doesn't come from one.
+     * */
+    RouteResult routeCommand(String clientId, String actionDescription, Callable<String> action,
+                             Channel publisher) {
+        final int targetQueueId = targetQueueOrdinal(clientId);
+        LOG.debug("Routing cmd [{}] for session [{}] to event processor {}", actionDescription, clientId,
+                  targetQueueId);
+        final CompletableFuture<String> task = new CompletableFuture<>();
         if (Thread.currentThread() == sessionExecutors[targetQueueId]) {
-            SessionEventLoop.executeTask(task);
-            return RouteResult.success(clientId, cmd.completableFuture());
+            SessionCommand.execute(clientId, action, task);
+            return RouteResult.success(clientId, task);
         }
-        if (this.sessionQueues[targetQueueId].offer(task)) {
-            return RouteResult.success(clientId, cmd.completableFuture());
+        final SessionCommandQueue queue = this.sessionQueues[targetQueueId];
+        final boolean queued = publisher != null && backpressure != null
+            ? queue.offerOrPark(clientId, action, task)
+            : queue.offer(clientId, action, task);
+        if (queued) {
+            return RouteResult.success(clientId, task);
         } else {
             LOG.warn("Session command queue {} is full executing action {}", targetQueueId, actionDescription);
             return RouteResult.failed(clientId);
         }
     }
 
+    /**
+     * @return the counters of the route cache, empty if the cache is disabled.
+     * */
+    Optional<RouteCacheMetrics> routeCacheMetrics() {
+        return routeCache == null ? Optional.empty() : Optional.of(routeCache.computeMetrics());
+    }
+
+    /**
+     * Stop reading from the channel of a publisher if the session loop of the publisher is overloaded, the
+     * loops of the subscribers are checked when the publish is routed to them.
+     * */
+    void throttlePublisherIfOverloaded(Channel channel, String clientId) {
+        if (backpressure != null) {
+            backpressure.throttleIfOverloaded(channel, targetQueueOrdinal(clientId));
+        }
+    }
+
+    void releaseThrottledPublisher(Channel channel) {
+        if (backpressure != null) {
+            backpressure.release(channel);
+        }
+    }
+
+    /**
+     * @return the counters of the publishers throttling, empty if the backpressure is disabled.
+     * */
+    Optional<BackpressureMetrics> backpressureMetrics() {
+        return backpressure == null ? Optional.empty() : Optional.of(backpressure.computeMetrics());
+    }
+
+    List<SessionLoopMetrics> sessionLoopsMetrics() {
+        final int[] pinnedSessions = affinity.pinnedCountByLoop();
+        final List<SessionLoopMetrics> metrics = new ArrayList<>(eventLoops);
+        for (SessionCommandQueue queue : sessionQueues) {
+            final int loopId = queue.loopId();
+            metrics.add(new SessionLoopMetrics(loopId, queue.size(), queue.capacity(), queue.executedCommands(),
+                queue.rejectedCommands(), queue.reroutedCommands(), queue.parkedCommands(), pinnedSessions[loopId]));
+        }
+        return metrics;
+    }
+
     public void terminate() {
         for (Thread processor : sessionExecutors) {
             processor.interrupt();
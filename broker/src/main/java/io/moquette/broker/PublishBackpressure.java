@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.moquette.broker.metrics.BackpressureMetrics;
+import io.netty.channel.Channel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Throttles the publishers when the session loops can't keep up, moving the bottleneck back to TCP.
+ *
+ * When a session command queue that receives the messages of a publisher, its own loop or the loop of a
+ * subscriber, crosses the high watermark the channel of the publisher stops reading; the channel is resumed
+ * when all the loops it was throttled on are back under the low watermark. A hot loop throttles only the
+ * publishers that route to it. The check for the resume is done by the session loops after each drained batch.
+ * The publishes already read when the queue fills up are parked by the queue, not failed.
+ * */
+final class PublishBackpressure {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PublishBackpressure.class);
+
+    /**
+     * The loops that throttled a channel, replaced by a new instance when another loop is added.
+     * */
+    private static final class Throttle {
+        private final long throttledAt;
+        private final BitSet loops;
+
+        private Throttle(long throttledAt, BitSet loops) {
+            this.throttledAt = throttledAt;
+            this.loops = loops;
+        }
+
+        private boolean contains(int loop) {
+            return loops.get(loop);
+        }
+
+        private Throttle with(int loop) {
+            final BitSet updated = (BitSet) loops.clone();
+            updated.set(loop);
+            return new Throttle(throttledAt, updated);
+        }
+    }
+
+    private final SessionCommandQueue[] queues;
+    private final long highWatermark;
+    private final long lowWatermark;
+    private final ConcurrentMap<Channel, Throttle> throttled = new ConcurrentHashMap<>();
+    private final LongAdder throttleEvents = new LongAdder();
+    private final LongAdder throttledNanos = new LongAdder();
+
+    /**
+     * @param highWatermarkPercent fill percentage of a queue that throttles the publishers routing to it.
+     * @param lowWatermarkPercent fill percentage of the queues under which their throttled publishers are resumed.
+     * */
+    PublishBackpressure(SessionCommandQueue[] queues, int highWatermarkPercent, int lowWatermarkPercent) {
+        if (highWatermarkPercent <= 0 || highWatermarkPercent > 100) {
+            throw new IllegalArgumentException("High watermark must be in range (0..100], was: " +
+                highWatermarkPercent);
+        }
+        if (lowWatermarkPercent < 0 || lowWatermarkPercent >= highWatermarkPercent) {
+            throw new IllegalArgumentException("Low watermark must be in range [0.." + highWatermarkPercent +
+                "), was: " + lowWatermarkPercent);
+        }
+        this.queues = queues;
+        final int capacity = queues[0].capacity();
+        this.highWatermark = Math.max(1, (long) capacity * highWatermarkPercent / 100);
+        this.lowWatermark = (long) capacity * lowWatermarkPercent / 100;
+    }
+
+    private boolean isAbove(int loop, long watermark) {
+        return queues[loop].size() > watermark;
+    }
+
+    private boolean allUnderLowWatermark(Throttle throttle) {
+        for (int loop = throttle.loops.nextSetBit(0); loop >= 0; loop = throttle.loops.nextSetBit(loop + 1)) {
+            if (isAbove(loop, lowWatermark)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stops reading from the publisher's channel if the session loop that receives its messages crossed the
+     * high watermark.
+     * */
+    void throttleIfOverloaded(Channel channel, int loop) {
+        if (!isAbove(loop, highWatermark - 1)) {
+            return;
+        }
+        while (true) {
+            final Throttle current = throttled.get(channel);
+            if (current == null) {
+                final BitSet loops = new BitSet(queues.length);
+                loops.set(loop);
+                // stopped before registering, a resume racing with the registration can't be overwritten
+                channel.config().setAutoRead(false);
+                if (throttled.putIfAbsent(channel, new Throttle(System.nanoTime(), loops)) == null) {
+                    LOG.debug("Session queue {} over high watermark, stop reading from channel {}", loop, channel);
+                    throttleEvents.increment();
+                    break;
+                }
+            } else if (current.contains(loop)) {
+                return;
+            } else if (throttled.replace(channel, current, current.with(loop))) {
+                break;
+            }
+        }
+        // the loop could have drained before the channel was registered
+        resumeIfDrained(loop);
+    }
+
+    /**
+     * Invoked by a session loop after a drain, resumes the channels throttled on it once all their loops are
+     * under the low watermark.
+     * */
+    void resumeIfDrained(int loop) {
+        if (throttled.isEmpty() || isAbove(loop, lowWatermark)) {
+            return;
+        }
+        for (Map.Entry<Channel, Throttle> entry : throttled.entrySet()) {
+            final Throttle throttle = entry.getValue();
+            if (throttle.contains(loop) && allUnderLowWatermark(throttle)) {
+                resume(entry.getKey(), throttle);
+            }
+        }
+    }
+
+    /**
+     * Forget a closed channel.
+     * */
+    void release(Channel channel) {
+        final Throttle throttle = throttled.get(channel);
+        if (throttle != null) {
+            resume(channel, throttle);
+        }
+    }
+
+    private void resume(Channel channel, Throttle throttle) {
+        // only one of the concurrent resumes wins, a throttle extended meanwhile is checked again
+        if (throttled.remove(channel, throttle)) {
+            throttledNanos.add(System.nanoTime() - throttle.throttledAt);
+            channel.config().setAutoRead(true);
+            LOG.debug("Session queues under low watermark, resume reading from channel {}", channel);
+        }
+    }
+
+    BackpressureMetrics computeMetrics() {
+        final long now = System.nanoTime();
+        long nanos = throttledNanos.sum();
+        for (Throttle throttle : throttled.values()) {
+            nanos += now - throttle.throttledAt;
+        }
+        return new BackpressureMetrics(throttleEvents.sum(), throttled.size(), TimeUnit.NANOSECONDS.toMillis(nanos),
+            highWatermark, lowWatermark);
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import java.util.Locale;
+
+/**
+ * What a session queue does with a message that doesn't fit its limits.
+ * */
+public enum QueueOverflowPolicy {
+    /**
+     * Drop the oldest queued messages until the new one fits.
+     * */
+    DROP_OLDEST,
+    /**
+     * Drop the new message.
+     * */
+    DROP_NEWEST,
+    /**
+     * Drop the new message and the connection of the session, or expire the session if it's not connected.
+     * */
+    DISCONNECT;
+
+    public static QueueOverflowPolicy parse(String value) {
+        return QueueOverflowPolicy.valueOf(value.trim().toUpperCase(Locale.ROOT));
+    }
+}
@@ -5,6 +5,13 @@ import lombok.Data;
 import lombok.EqualsAndHashCode;
 import lombok.SneakyThrows;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * @author 楚孔响
@@ -15,6 +22,18 @@ import org.springframework.data.redis.core.StringRedisTemplate;
 @EqualsAndHashCode(callSuper = true)
 public class RedisQueue extends AbstractSessionMessageQueue<SessionRegistry.EnqueuedMessage> {
 
+    /**
+     * Pops up to ARGV[1] items from the same end popped by dequeue, range and trim are atomic in a script.
+     * */
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> POP_BATCH = new DefaultRedisScript<>(
+        "local items = redis.call('LRANGE', KEYS[1], -tonumber(ARGV[1]), -1)\n" +
+        "if #items > 0 then redis.call('LTRIM', KEYS[1], 0, -#items - 1) end\n" +
+        "return items", List.class);
+
+    // items read at once when summing the payloads
+    private static final int SCAN_PAGE = 1000;
+
     private final String key;
 
     private final ObjectMapper objectMapper;
@@ -33,6 +52,21 @@ public class RedisQueue extends AbstractSessionMessageQueue<SessionRegistry.Enqu
         redisTemplate.boundListOps(key).rightPush(objectMapper.writeValueAsString(message));
     }
 
+    @SneakyThrows
+    @Override
+    public void enqueueAll(Collection<? extends SessionRegistry.EnqueuedMessage> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+        final String[] jsons = new String[messages.size()];
+        int i = 0;
+        for (SessionRegistry.EnqueuedMessage message : messages) {
+            jsons[i++] = objectMapper.writeValueAsString(message);
+        }
+        // push all the items with a single call
+        redisTemplate.boundListOps(key).rightPushAll(jsons);
+    }
+
     @SneakyThrows
     @Override
     public SessionRegistry.EnqueuedMessage dequeue() {
@@ -41,12 +75,55 @@ public class RedisQueue extends AbstractSessionMessageQueue<SessionRegistry.Enqu
         return objectMapper.readValue(json, SessionRegistry.PublishedMessage.class);
     }
 
+    @SneakyThrows
+    @Override
+    public List<SessionRegistry.EnqueuedMessage> dequeueBatch(int maxMessages) {
+        if (maxMessages <= 0) {
+            return Collections.emptyList();
+        }
+        @SuppressWarnings("unchecked")
+        final List<String> jsons = redisTemplate.execute(POP_BATCH, Collections.singletonList(key),
+                                                         String.valueOf(maxMessages));
+        if (jsons == null || jsons.isEmpty()) {
+            return Collections.emptyList();
+        }
+        final List<SessionRegistry.EnqueuedMessage> batch = new ArrayList<>(jsons.size());
+        for (int i = jsons.size() - 1; i >= 0; i--) {
+            batch.add(objectMapper.readValue(jsons.get(i), SessionRegistry.PublishedMessage.class));
+        }
+        return batch;
+    }
+
     @Override
     public boolean isEmpty() {
         Long size = redisTemplate.boundListOps(key).size();
         return size == null || size == 0;
     }
 
+    @Override
+    public int size() {
+        Long size = redisTemplate.boundListOps(key).size();
+        return size == null ? 0 : size.intValue();
+    }
+
+    @SneakyThrows
+    @Override
+    public long payloadBytes() {
+        long bytes = 0;
+        for (long start = 0; ; start += SCAN_PAGE) {
+            final List<String> jsons = redisTemplate.boundListOps(key).range(start, start + SCAN_PAGE - 1);
+            if (jsons == null || jsons.isEmpty()) {
+                return bytes;
+            }
+            for (String json : jsons) {
+                final SessionRegistry.PublishedMessage message =
+                    objectMapper.readValue(json, SessionRegistry.PublishedMessage.class);
+                bytes += message.payloadSize();
+                message.release();
+            }
+        }
+    }
+
     @Override
     public void closeAndPurge() {
         // TODO all key
@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timing wheel of the resend deadlines of the in flight packets, one for each session event loop.
+ *
+ * Scheduling and cancelling are O(1), a timeout is a node of the doubly linked list of its bucket. The wheel
+ * is advanced by its loop, that resends the expired packets in a batch and flushes each connection once.
+ * It's not thread safe: it must be used only by the thread of its loop, that finds it with {@link #current()}.
+ * */
+final class ResendTimingWheel {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ResendTimingWheel.class);
+
+    static final long DEFAULT_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    static final int DEFAULT_WHEEL_SIZE = 512;
+
+    private static final ThreadLocal<ResendTimingWheel> LOOP_WHEEL = new ThreadLocal<>();
+
+    /**
+     * Resend deadline of an in flight packet of a session.
+     * */
+    static final class Timeout {
+        private final ResendTimingWheel wheel;
+        final Session session;
+        final int packetId;
+        private final long deadlineTick;
+        // when the packet was written, to measure the round trip time of its ack
+        final long sentNanos;
+        // the packet was written more than once, so its ack can't be matched to a single write
+        final boolean resent;
+        private Timeout prev;
+        private Timeout next;
+        private boolean scheduled = true;
+
+        private Timeout(ResendTimingWheel wheel, Session session, int packetId, long deadlineTick,
+                        long sentNanos, boolean resent) {
+            this.wheel = wheel;
+            this.session = session;
+            this.packetId = packetId;
+            this.deadlineTick = deadlineTick;
+            this.sentNanos = sentNanos;
+            this.resent = resent;
+        }
+
+        /**
+         * Remove the timeout from the wheel, it doesn't expire anymore.
+         * */
+        void cancel() {
+            if (scheduled) {
+                wheel.unlink(this);
+            }
+        }
+    }
+
+    private final long tickNanos;
+    private final int mask;
+    private final Timeout[] heads;
+    private final Timeout[] tails;
+    private final long startNanos;
+    // next tick to be processed
+    private long currentTick;
+    private int pending;
+    private final List<Timeout> expired = new ArrayList<>();
+    private final Set<Session> touchedSessions = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    ResendTimingWheel() {
+        this(DEFAULT_TICK_NANOS, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * @param wheelSize number of buckets, rounded up to the next power of two.
+     * */
+    ResendTimingWheel(long tickNanos, int wheelSize) {
+        if (tickNanos <= 0) {
+            throw new IllegalArgumentException("Tick duration must be positive, was: " + tickNanos);
+        }
+        if (wheelSize <= 0 || wheelSize > (1 << 30)) {
+            throw new IllegalArgumentException("Wheel size must be in range (0..2^30], was: " + wheelSize);
+        }
+        final int size = Integer.highestOneBit(wheelSize) == wheelSize
+            ? wheelSize
+            : Integer.highestOneBit(wheelSize) << 1;
+        this.tickNanos = tickNanos;
+        this.mask = size - 1;
+        this.heads = new Timeout[size];
+        this.tails = new Timeout[size];
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * Bind the wheel to the current thread, invoked by the session loop when it starts.
+     * */
+    void bindToCurrentThread() {
+        LOOP_WHEEL.set(this);
+    }
+
+    /**
+     * @return the wheel of the session loop running on the current thread.
+     * */
+    static ResendTimingWheel current() {
+        final ResendTimingWheel wheel = LOOP_WHEEL.get();
+        if (wheel == null) {
+            throw new IllegalStateException("Resends can be scheduled only by a session loop, current thread: " +
+                Thread.currentThread().getName() + ". This means a programming error");
+        }
+        return wheel;
+    }
+
+    Timeout schedule(Session session, int packetId, long delay, TimeUnit unit) {
+        return schedule(session, packetId, delay, unit, false);
+    }
+
+    /**
+     * @param resent true if the packet guarded by the timeout has already been written before.
+     * */
+    Timeout schedule(Session session, int packetId, long delay, TimeUnit unit, boolean resent) {
+        final long now = System.nanoTime();
+        final long deadline = now + unit.toNanos(delay) - startNanos;
+        // round up, a timeout never expires before its deadline
+        final long deadlineTick = Math.max((deadline + tickNanos - 1) / tickNanos, currentTick);
+        final Timeout timeout = new Timeout(this, session, packetId, deadlineTick, now, resent);
+        final int bucket = (int) (deadlineTick & mask);
+        final Timeout tail = tails[bucket];
+        if (tail == null) {
+            heads[bucket] = timeout;
+        } else {
+            tail.next = timeout;
+            timeout.prev = tail;
+        }
+        tails[bucket] = timeout;
+        pending++;
+        return timeout;
+    }
+
+    private void unlink(Timeout timeout) {
+        final int bucket = (int) (timeout.deadlineTick & mask);
+        if (timeout.prev == null) {
+            heads[bucket] = timeout.next;
+        } else {
+            timeout.prev.next = timeout.next;
+        }
+        if (timeout.next == null) {
+            tails[bucket] = timeout.prev;
+        } else {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.scheduled = false;
+        pending--;
+    }
+
+    boolean hasPending() {
+        return pending > 0;
+    }
+
+    /**
+     * @return nanoseconds before the next tick has to be processed, Long.MAX_VALUE if nothing is scheduled.
+     * */
+    long nanosToNextTick(long now) {
+        if (pending == 0) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, startNanos + currentTick * tickNanos - now);
+    }
+
+    /**
+     * Process the ticks elapsed until now, resending the packets of the expired timeouts.
+     * */
+    void advance(long now) {
+        if (pending == 0) {
+            // nothing to expire, just keep the current tick aligned
+            currentTick = Math.max(currentTick, (now - startNanos) / tickNanos);
+            return;
+        }
+        final long targetTick = (now - startNanos) / tickNanos;
+        if (targetTick < currentTick) {
+            return;
+        }
+        // after a long pause every bucket is visited once
+        final long lastTick = Math.min(targetTick, currentTick + mask);
+        for (long tick = currentTick; tick <= lastTick; tick++) {
+            collectExpired((int) (tick & mask), targetTick);
+        }
+        currentTick = targetTick + 1;
+        fireExpired();
+    }
+
+    private void collectExpired(int bucket, long targetTick) {
+        Timeout timeout = heads[bucket];
+        while (timeout != null) {
+            final Timeout next = timeout.next;
+            if (timeout.deadlineTick <= targetTick) {
+                unlink(timeout);
+                expired.add(timeout);
+            }
+            timeout = next;
+        }
+    }
+
+    private void fireExpired() {
+        if (expired.isEmpty()) {
+            return;
+        }
+        LOG.debug("Resending {} expired in flight packets", expired.size());
+        try {
+            for (Timeout timeout : expired) {
+                try {
+                    timeout.session.resendExpired(timeout.packetId);
+                    touchedSessions.add(timeout.session);
+                } catch (Throwable th) {
+                    LOG.warn("Failed resending packet {} of session {}", timeout.packetId,
+                        timeout.session.getClientID(), th);
+                }
+            }
+            for (Session session : touchedSessions) {
+                session.flushResends();
+            }
+        } finally {
+            expired.clear();
+            touchedSessions.clear();
+        }
+    }
+}
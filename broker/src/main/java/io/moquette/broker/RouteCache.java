@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.moquette.broker.metrics.RouteCacheMetrics;
+import io.moquette.broker.subscriptions.Subscription;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of the QoS sharpened subscriptions, grouped by session event loop, that match a
+ * publish topic.
+ *
+ * Every entry is tagged with the generation of the subscriptions directory used to compute it, an
+ * entry with a different generation is stale and considered a miss. The entries are tagged also with the
+ * epoch of the cache, bumped when all the routes are invalidated because the grouping by loop changed.
+ */
+final class RouteCache {
+
+    private static final class Routes {
+        private final long generation;
+        private final long epoch;
+        private final List<Subscription>[] batches;
+
+        Routes(long generation, long epoch, List<Subscription>[] batches) {
+            this.generation = generation;
+            this.epoch = epoch;
+            this.batches = batches;
+        }
+    }
+
+    private final ConcurrentMap<String, Routes> routes = new ConcurrentHashMap<>();
+    private final int capacity;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private volatile long epoch;
+
+    RouteCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Route cache capacity must be positive, was: " + capacity);
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * @return the batches of subscriptions per session loop, or null if not present or stale. The
+     * returned array and lists must not be modified.
+     * */
+    List<Subscription>[] lookup(String topic, long generation) {
+        final Routes cached = routes.get(topic);
+        if (cached != null && cached.generation == generation && cached.epoch == epoch) {
+            hits.increment();
+            return cached.batches;
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * @return the current epoch, to be read before computing the routes to store.
+     * */
+    long epoch() {
+        return epoch;
+    }
+
+    void store(String topic, long generation, long epoch, List<Subscription>[] batches) {
+        if (epoch != this.epoch) {
+            // computed before an invalidation
+            return;
+        }
+        if (routes.size() >= capacity && !routes.containsKey(topic)) {
+            evictOne();
+        }
+        routes.put(topic, new Routes(generation, epoch, batches));
+    }
+
+    /**
+     * Invalidate all the cached routes, also the ones being computed concurrently.
+     * */
+    synchronized void invalidateAll() {
+        epoch++;
+        routes.clear();
+    }
+
+    private void evictOne() {
+        // approximate eviction, remove the first entry found
+        final Iterator<String> it = routes.keySet().iterator();
+        if (it.hasNext()) {
+            it.next();
+            it.remove();
+            evictions.increment();
+        }
+    }
+
+    RouteCacheMetrics computeMetrics() {
+        return new RouteCacheMetrics(hits.sum(), misses.sum(), evictions.sum(), routes.size(), capacity);
+    }
+}
@@ -17,9 +17,18 @@ package io.moquette.broker;
 
 import io.moquette.BrokerConstants;
 import io.moquette.broker.config.*;
+import io.moquette.broker.metrics.BackpressureMetrics;
+import io.moquette.broker.metrics.InflightWindowMetrics;
+import io.moquette.broker.metrics.QueueCompactionMetrics;
+import io.moquette.broker.metrics.QueueDurabilityMetrics;
+import io.moquette.broker.metrics.QueueOverflowMetrics;
+import io.moquette.broker.metrics.RouteCacheMetrics;
+import io.moquette.broker.metrics.SessionLoopMetrics;
 import io.moquette.broker.security.*;
 import io.moquette.broker.subscriptions.CTrieSubscriptionDirectory;
 import io.moquette.broker.subscriptions.ISubscriptionsDirectory;
+import io.moquette.broker.unsafequeues.PagePlacement;
+import io.moquette.broker.unsafequeues.QueueDurability;
 import io.moquette.broker.unsafequeues.QueueException;
 import io.moquette.interception.BrokerInterceptor;
 import io.moquette.interception.InterceptHandler;
@@ -44,6 +53,7 @@ import java.nio.file.Paths;
 import java.rmi.RemoteException;
 import java.text.ParseException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 
@@ -236,10 +246,19 @@ public class Server {
         ISubscriptionsDirectory subscriptions = new CTrieSubscriptionDirectory();
         subscriptions.init(subscriptionsRepository);
         final Authorizator authorizator = new Authorizator(authorizatorPolicy);
-        sessions = new SessionRegistry(subscriptions, queueRepository, authorizator);
+        sessions = new SessionRegistry(subscriptions, queueRepository, authorizator, interceptor,
+                                       initSessionQueueLimits(config));
         final int sessionQueueSize = config.intProp(BrokerConstants.SESSION_QUEUE_SIZE, 1024);
+        final int routeCacheSize = config.intProp(BrokerConstants.ROUTE_CACHE_SIZE, 0);
+        final SessionCommandQueue.IdleStrategy idleStrategy = SessionCommandQueue.IdleStrategy.parse(
+            config.getProperty(BrokerConstants.SESSION_LOOP_IDLE_STRATEGY, "park"));
+        final int sessionLoops = config.intProp(BrokerConstants.SESSION_LOOPS,
+            Runtime.getRuntime().availableProcessors());
+        final int highWatermark = config.intProp(BrokerConstants.SESSION_QUEUE_HIGH_WATERMARK, 0);
+        final int lowWatermark = config.intProp(BrokerConstants.SESSION_QUEUE_LOW_WATERMARK, highWatermark / 2);
         dispatcher = new PostOffice(subscriptions, retainedRepository, sessions, interceptor, authorizator,
-                                    sessionQueueSize);
+                                    sessionQueueSize, routeCacheSize, idleStrategy, sessionLoops,
+                                    highWatermark, lowWatermark);
         final BrokerConfiguration brokerConfig = new BrokerConfiguration(config);
         MQTTConnectionFactory connectionFactory = new MQTTConnectionFactory(brokerConfig, authenticator, sessions,
                                                                             dispatcher);
@@ -268,8 +287,30 @@ public class Server {
             log.info("Configuring segmented queue store to {}", dataPath);
             final int pageSize = config.intProp(BrokerConstants.SEGMENTED_QUEUE_PAGE_SIZE, BrokerConstants.DEFAULT_SEGMENTED_QUEUE_PAGE_SIZE);
             final int segmentSize = config.intProp(BrokerConstants.SEGMENTED_QUEUE_SEGMENT_SIZE, BrokerConstants.DEFAULT_SEGMENTED_QUEUE_SEGMENT_SIZE);
+            final boolean sharedPayloads = config.boolProp(BrokerConstants.SEGMENTED_QUEUE_SHARED_PAYLOADS, false);
+            final QueueDurability.Mode durability = QueueDurability.Mode.parse(
+                config.getProperty(BrokerConstants.SEGMENTED_QUEUE_DURABILITY, "none"));
+            final int forceInterval = config.intProp(BrokerConstants.SEGMENTED_QUEUE_FORCE_INTERVAL,
+                BrokerConstants.DEFAULT_SEGMENTED_QUEUE_FORCE_INTERVAL);
+            final int compactionInterval = config.intProp(BrokerConstants.SEGMENTED_QUEUE_COMPACTION_INTERVAL,
+                BrokerConstants.DEFAULT_SEGMENTED_QUEUE_COMPACTION_INTERVAL);
+            final int compactionRate = config.intProp(BrokerConstants.SEGMENTED_QUEUE_COMPACTION_RATE,
+                BrokerConstants.DEFAULT_SEGMENTED_QUEUE_COMPACTION_RATE);
+            final List<Path> pagePaths = new ArrayList<>();
+            final String pagePathsProp = config.getProperty(BrokerConstants.SEGMENTED_QUEUE_PAGE_PATHS, "");
+            for (String pagePath : pagePathsProp.split(",")) {
+                if (!pagePath.trim().isEmpty()) {
+                    pagePaths.add(Paths.get(pagePath.trim()));
+                }
+            }
+            if (pagePaths.isEmpty()) {
+                pagePaths.add(dataPath);
+            }
+            final PagePlacement placement = PagePlacement.parse(
+                config.getProperty(BrokerConstants.SEGMENTED_QUEUE_PAGE_PLACEMENT, "round_robin"));
             try {
-                queueRepository = new SegmentQueueRepository(dataPath, pageSize, segmentSize);
+                queueRepository = new SegmentQueueRepository(dataPath, pagePaths, placement, pageSize, segmentSize,
+                    sharedPayloads, durability, forceInterval, compactionInterval, compactionRate);
             } catch (QueueException e) {
                 throw new IOException("Problem in configuring persistent queue on path " + dataPath, e);
             }
@@ -277,9 +318,40 @@ public class Server {
             final String errMsg = String.format("Invalid property for %s found [%s] while only h2 or segmented are admitted", BrokerConstants.PERSISTENT_QUEUE_TYPE_PROPERTY_NAME, queueType);
             throw new RuntimeException(errMsg);
         }
+
+        final int memoryMessages = config.intProp(BrokerConstants.PERSISTENT_QUEUE_MEMORY_MESSAGES, 0);
+        final int memoryBytes = config.intProp(BrokerConstants.PERSISTENT_QUEUE_MEMORY_BYTES, 0);
+        if (memoryMessages > 0 || memoryBytes > 0) {
+            if (queueRepository.isCommitAwaited()) {
+                queueRepository.close();
+                final String errMsg = String.format("Properties %s and %s can't be used with %s group_commit, " +
+                    "the acknowledges would confirm messages kept only in memory",
+                    BrokerConstants.PERSISTENT_QUEUE_MEMORY_MESSAGES, BrokerConstants.PERSISTENT_QUEUE_MEMORY_BYTES,
+                    BrokerConstants.SEGMENTED_QUEUE_DURABILITY);
+                throw new RuntimeException(errMsg);
+            }
+            log.info("Keeping in memory the newest {} messages and {} payload bytes of each persistent queue",
+                memoryMessages, memoryBytes);
+            return new TieredQueueRepository(queueRepository, memoryMessages, memoryBytes);
+        }
         return queueRepository;
     }
 
+    private static SessionQueueLimits initSessionQueueLimits(IConfig config) {
+        final SessionQueueLimits.Limit global = new SessionQueueLimits.Limit(
+            config.intProp(BrokerConstants.SESSION_QUEUE_MAX_MESSAGES, 0),
+            config.intProp(BrokerConstants.SESSION_QUEUE_MAX_BYTES, 0),
+            QueueOverflowPolicy.parse(
+                config.getProperty(BrokerConstants.SESSION_QUEUE_OVERFLOW_POLICY, "drop_newest")));
+        final SessionQueueLimits limits = new SessionQueueLimits(global,
+            config.getProperty(BrokerConstants.SESSION_QUEUE_CLIENT_LIMITS, ""));
+        if (!limits.isUnbounded()) {
+            log.info("Limiting each session queue to {} messages and {} payload bytes, overflow policy {}",
+                global.maxMessages(), global.maxBytes(), global.policy());
+        }
+        return limits;
+    }
+
     private void collectAndSendTelemetryDataAsynch(IConfig config) {
         final Thread telCollector = new Thread(() -> collectAndSendTelemetryData(config));
         telCollector.start();
@@ -634,4 +706,93 @@ public class Server {
     public Collection<ClientDescriptor> listConnectedClients() {
         return sessions.listConnectedClients();
     }
+
+    /**
+     * Return the inflight window of each connected client, empty if the broker is not started.
+     * */
+    public List<InflightWindowMetrics> getInflightWindowsMetrics() {
+        if (!initialized) {
+            return Collections.emptyList();
+        }
+        return sessions.inflightWindowsMetrics();
+    }
+
+    /**
+     * Return the hit and miss counters of the publish route cache, empty if the cache is not enabled.
+     * */
+    public Optional<RouteCacheMetrics> getRouteCacheMetrics() {
+        if (!initialized) {
+            return Optional.empty();
+        }
+        return dispatcher.routeCacheMetrics();
+    }
+
+    /**
+     * Return the counters of the publishers throttled because the session loops were overloaded, empty if the
+     * backpressure is not enabled.
+     * */
+    public Optional<BackpressureMetrics> getBackpressureMetrics() {
+        if (!initialized) {
+            return Optional.empty();
+        }
+        return dispatcher.backpressureMetrics();
+    }
+
+    /**
+     * Return the latencies of the durability policy of the segmented queues, empty if the broker is not started
+     * or doesn't use them.
+     * */
+    public Optional<QueueDurabilityMetrics> getQueueDurabilityMetrics() {
+        if (!initialized) {
+            return Optional.empty();
+        }
+        return sessions.queuesDurabilityMetrics();
+    }
+
+    /**
+     * Return the progress of the compaction of the segmented queues pages, empty if the broker is not started
+     * or doesn't use them.
+     * */
+    public Optional<QueueCompactionMetrics> getQueueCompactionMetrics() {
+        if (!initialized) {
+            return Optional.empty();
+        }
+        return sessions.queuesCompactionMetrics();
+    }
+
+    /**
+     * Return the counters of the messages dropped by the limits of the session queues, empty if the broker is not
+     * started or the queues have no limits.
+     * */
+    public Optional<QueueOverflowMetrics> getQueueOverflowMetrics() {
+        if (!initialized) {
+            return Optional.empty();
+        }
+        return sessions.queuesOverflowMetrics();
+    }
+
+    /**
+     * Return the load of each session event loop, empty if the broker is not started.
+     * */
+    public List<SessionLoopMetrics> getSessionLoopsMetrics() {
+        if (!initialized) {
+            return Collections.emptyList();
+        }
+        return dispatcher.sessionLoopsMetrics();
+    }
+
+    /**
+     * Move a disconnected session to another session event loop, to rebalance the load of the loops.
+     *
+     * @param clientId the id of the session to move.
+     * @param sessionLoop the index of the target loop, in range [0..getSessionLoopsMetrics().size()).
+     * @return future completed with true if the session has been moved, false if it's connected, doesn't exist
+     *         or the broker is not started.
+     * */
+    public CompletableFuture<Boolean> moveSession(String clientId, int sessionLoop) {
+        if (!initialized) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return dispatcher.moveSession(clientId, sessionLoop);
+    }
 }
@@ -22,14 +22,14 @@ import io.moquette.broker.subscriptions.Topic;
 import io.netty.buffer.ByteBuf;
 import io.netty.handler.codec.mqtt.*;
 import io.netty.util.ReferenceCountUtil;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.InetSocketAddress;
 import java.time.Instant;
 import java.util.*;
-import java.util.concurrent.DelayQueue;
-import java.util.concurrent.Delayed;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
@@ -40,35 +40,8 @@ import static io.moquette.BrokerConstants.INFLIGHT_WINDOW_SIZE;
 class Session {
 
     private static final Logger LOG = LoggerFactory.getLogger(Session.class);
-
-    static class InFlightPacket implements Delayed {
-
-        final int packetId;
-        private long startTime;
-
-        InFlightPacket(int packetId, long delayInMilliseconds) {
-            this.packetId = packetId;
-            this.startTime = System.currentTimeMillis() + delayInMilliseconds;
-        }
-
-        @Override
-        public long getDelay(TimeUnit unit) {
-            long diff = startTime - System.currentTimeMillis();
-            return unit.convert(diff, TimeUnit.MILLISECONDS);
-        }
-
-        @Override
-        public int compareTo(Delayed o) {
-            if ((this.startTime - ((InFlightPacket) o).startTime) == 0) {
-                return 0;
-            }
-            if ((this.startTime - ((InFlightPacket) o).startTime) > 0) {
-                return 1;
-            } else {
-                return -1;
-            }
-        }
-    }
+    // max messages dequeued at once from the session queue
+    private static final int MAX_DRAIN_BATCH = 128;
 
     enum SessionStatus {
         CONNECTED, CONNECTING, DISCONNECTING, DISCONNECTED, DESTROYED
@@ -95,11 +68,17 @@ class Session {
     private final SessionMessageQueue<SessionRegistry.EnqueuedMessage> sessionQueue;
     private final AtomicReference<SessionStatus> status = new AtomicReference<>(SessionStatus.DISCONNECTED);
     private MQTTConnection mqttConnection;
+    // the last connection dropped because the session queue was full
+    private MQTTConnection droppedConnection;
     private final Set<Subscription> subscriptions = new HashSet<>();
-    private final Map<Integer, SessionRegistry.EnqueuedMessage> inflightWindow = new HashMap<>();
-    private final DelayQueue<InFlightPacket> inflightTimeouts = new DelayQueue<>();
-    private final Map<Integer, MqttPublishMessage> qos2Receiving = new HashMap<>();
-    private final AtomicInteger inflightSlots = new AtomicInteger(INFLIGHT_WINDOW_SIZE); // this should be configurable
+    private final IntObjectHashMap<SessionRegistry.EnqueuedMessage> inflightWindow = new IntObjectHashMap<>();
+    // resend deadlines of the inflight packets, in the timing wheel of the session loop
+    private final IntObjectHashMap<ResendTimingWheel.Timeout> inflightTimeouts = new IntObjectHashMap<>();
+    private final IntObjectHashMap<MqttPublishMessage> qos2Receiving = new IntObjectHashMap<>();
+    private volatile int inflightWindowSize = INFLIGHT_WINDOW_SIZE;
+    // null when the window has the fixed size of the listener
+    private volatile AdaptiveInflightWindow adaptiveWindow;
+    private final AtomicInteger inflightSlots = new AtomicInteger(INFLIGHT_WINDOW_SIZE);
     private final Instant created;
     private final int expiryInterval;
 
@@ -139,6 +118,16 @@ class Session {
 
     void bind(MQTTConnection mqttConnection) {
         this.mqttConnection = mqttConnection;
+        // the window is defined by the listener of the connection, the packets still inflight keep their slots
+        this.inflightWindowSize = mqttConnection.inflightWindowSize();
+        // a new connection can have a different round trip time, the adaptive window restarts from the listener size
+        this.adaptiveWindow = mqttConnection.isInflightWindowAdaptive()
+            ? new AdaptiveInflightWindow(inflightWindowSize, mqttConnection.inflightWindowMaxSize())
+            : null;
+        if (adaptiveWindow != null) {
+            this.inflightWindowSize = adaptiveWindow.size();
+        }
+        inflightSlots.set(inflightWindowSize - inflightWindow.size());
     }
 
     boolean isBoundTo(MQTTConnection mqttConnection) {
@@ -182,11 +171,27 @@ class Session {
     }
 
     public void closeImmediately() {
+        cancelAllResends();
         mqttConnection.dropConnection();
         mqttConnection = null;
         status.set(SessionStatus.DISCONNECTED);
     }
 
+    /**
+     * Close the connection bound to the session, once for each connection.
+     *
+     * @return true if the connection has been closed by this invocation.
+     * */
+    boolean dropConnection() {
+        final MQTTConnection localMqttConnectionRef = mqttConnection;
+        if (localMqttConnectionRef == null || localMqttConnectionRef == droppedConnection) {
+            return false;
+        }
+        droppedConnection = localMqttConnectionRef;
+        localMqttConnectionRef.dropConnection();
+        return true;
+    }
+
     public void disconnect() {
         final boolean res = assignState(SessionStatus.CONNECTED, SessionStatus.DISCONNECTING);
         if (!res) {
@@ -197,6 +202,8 @@ class Session {
 
         mqttConnection = null;
         will = null;
+        // re-armed when the client reconnects
+        cancelAllResends();
 
         assignState(SessionStatus.DISCONNECTING, SessionStatus.DISCONNECTED);
     }
@@ -212,6 +219,7 @@ class Session {
             LOG.warn("Received a PUBREC with not matching packetId");
             return;
         }
+        cancelResend(pubRecPacketId);
         removed.release();
         if (removed instanceof SessionRegistry.PubRelMarker) {
             LOG.info("Received a PUBREC for packetId that was already moved in second step of Qos2");
@@ -222,7 +230,7 @@ class Session {
             return;
         }
         inflightWindow.put(pubRecPacketId, new SessionRegistry.PubRelMarker());
-        inflightTimeouts.add(new InFlightPacket(pubRecPacketId, FLIGHT_BEFORE_RESEND_MS));
+        scheduleResend(pubRecPacketId, FLIGHT_BEFORE_RESEND_MS);
         MqttMessage pubRel = MQTTConnection.pubrel(pubRecPacketId);
         mqttConnection.sendIfWritableElseDrop(pubRel);
 
@@ -236,8 +244,10 @@ class Session {
             LOG.warn("Received a PUBCOMP with not matching packetId");
             return;
         }
+        final ResendTimingWheel.Timeout timeout = cancelResend(messageID);
         removed.release();
         inflightSlots.incrementAndGet();
+        adaptWindowOnAck(timeout);
         drainQueueToConnection();
 
         // TODO notify the interceptor
@@ -247,32 +257,46 @@ class Session {
     }
 
     public void sendRetainedPublishOnSessionAtQos(Topic topic, MqttQoS qos, ByteBuf payload) {
-        sendPublishOnSessionAtQos(topic, qos, payload, true);
+        sendPublishOnSessionAtQos(topic, qos, payload, true, null);
     }
 
     public void sendNotRetainedPublishOnSessionAtQos(Topic topic, MqttQoS qos, ByteBuf payload) {
-        sendPublishOnSessionAtQos(topic, qos, payload, false);
+        sendPublishOnSessionAtQos(topic, qos, payload, false, null);
+    }
+
+    /**
+     * Send a not retained publish that is delivered to many subscribers, the frames written directly to the
+     * connection reuse the encoded header shared by all of them.
+     * */
+    void sendNotRetainedPublishOnSessionAtQos(SharedPublishFrames frames, MqttQoS qos) {
+        sendPublishOnSessionAtQos(frames.topic(), qos, frames.payload(), false, frames);
     }
 
-    private void sendPublishOnSessionAtQos(Topic topic, MqttQoS qos, ByteBuf payload, boolean retained) {
+    private void sendPublishOnSessionAtQos(Topic topic, MqttQoS qos, ByteBuf payload, boolean retained,
+                                           SharedPublishFrames frames) {
         switch (qos) {
             case AT_MOST_ONCE:
                 if (connected()) {
-                    mqttConnection.sendPublishQos0(topic, qos, payload, retained);
+                    if (frames != null) {
+                        mqttConnection.sendSharedPublish(frames, qos, 0);
+                    } else {
+                        mqttConnection.sendPublishQos0(topic, qos, payload, retained);
+                    }
                 }
                 break;
             case AT_LEAST_ONCE:
-                sendPublishQos1(topic, qos, payload, retained);
+                sendPublishQos1(topic, qos, payload, retained, frames);
                 break;
             case EXACTLY_ONCE:
-                sendPublishQos2(topic, qos, payload, retained);
+                sendPublishQos2(topic, qos, payload, retained, frames);
                 break;
             case FAILURE:
                 LOG.error("Not admissible");
         }
     }
 
-    private void sendPublishQos1(Topic topic, MqttQoS qos, ByteBuf payload, boolean retained) {
+    private void sendPublishQos1(Topic topic, MqttQoS qos, ByteBuf payload, boolean retained,
+                                 SharedPublishFrames frames) {
         if (!connected() && isClean()) {
             //pushing messages to disconnected not clean session
             return;
@@ -281,7 +305,7 @@ class Session {
         final MQTTConnection localMqttConnectionRef = mqttConnection;
         if (canSkipQueue(localMqttConnectionRef)) {
             inflightSlots.decrementAndGet();
-            int packetId = localMqttConnectionRef.nextPacketId();
+            int packetId = nextFreePacketId(localMqttConnectionRef);
 
             // Adding to a map, retain.
             payload.retain();
@@ -291,11 +315,9 @@ class Session {
                 old.release();
                 inflightSlots.incrementAndGet();
             }
-            inflightTimeouts.add(new InFlightPacket(packetId, FLIGHT_BEFORE_RESEND_MS));
+            scheduleResend(packetId, FLIGHT_BEFORE_RESEND_MS);
 
-            MqttPublishMessage publishMsg = MQTTConnection.createNotRetainedPublishMessage(topic.toString(), qos,
-                                                                                           payload, packetId);
-            localMqttConnectionRef.sendPublish(publishMsg);
+            sendDirect(localMqttConnectionRef, topic, qos, payload, packetId, frames);
             LOG.debug("Write direct to the peer, inflight slots: {}", inflightSlots.get());
             if (inflightSlots.get() == 0) {
                 localMqttConnectionRef.flush();
@@ -311,11 +333,12 @@ class Session {
         }
     }
 
-    private void sendPublishQos2(Topic topic, MqttQoS qos, ByteBuf payload, boolean retained) {
+    private void sendPublishQos2(Topic topic, MqttQoS qos, ByteBuf payload, boolean retained,
+                                 SharedPublishFrames frames) {
         final MQTTConnection localMqttConnectionRef = mqttConnection;
         if (canSkipQueue(localMqttConnectionRef)) {
             inflightSlots.decrementAndGet();
-            int packetId = localMqttConnectionRef.nextPacketId();
+            int packetId = nextFreePacketId(localMqttConnectionRef);
 
             // Retain before adding to map
             payload.retain();
@@ -325,11 +348,9 @@ class Session {
                 old.release();
                 inflightSlots.incrementAndGet();
             }
-            inflightTimeouts.add(new InFlightPacket(packetId, FLIGHT_BEFORE_RESEND_MS));
+            scheduleResend(packetId, FLIGHT_BEFORE_RESEND_MS);
 
-            MqttPublishMessage publishMsg = MQTTConnection.createNotRetainedPublishMessage(topic.toString(), qos,
-                                                                                           payload, packetId);
-            localMqttConnectionRef.sendPublish(publishMsg);
+            sendDirect(localMqttConnectionRef, topic, qos, payload, packetId, frames);
 
             drainQueueToConnection();
         } else {
@@ -340,6 +361,74 @@ class Session {
         }
     }
 
+    private static void sendDirect(MQTTConnection connection, Topic topic, MqttQoS qos, ByteBuf payload,
+                                   int packetId, SharedPublishFrames frames) {
+        if (frames != null) {
+            connection.sendSharedPublish(frames, qos, packetId);
+            return;
+        }
+        MqttPublishMessage publishMsg = MQTTConnection.createNotRetainedPublishMessage(topic.toString(), qos,
+                                                                                       payload, packetId);
+        connection.sendPublish(publishMsg);
+    }
+
+    /**
+     * @return the next packet id of the connection not used by a packet still inflight, packets sent before a
+     * reconnection could still be waiting for the ack. A free slot in the window guarantees a free id.
+     * */
+    private int nextFreePacketId(MQTTConnection connection) {
+        int packetId;
+        do {
+            packetId = connection.nextPacketId();
+        } while (inflightWindow.containsKey(packetId));
+        return packetId;
+    }
+
+    int inflightWindowSize() {
+        return inflightWindowSize;
+    }
+
+    int inflightMessages() {
+        return Math.max(0, inflightWindowSize - inflightSlots.get());
+    }
+
+    boolean isInflightWindowAdaptive() {
+        return adaptiveWindow != null;
+    }
+
+    /**
+     * @return the smoothed round trip time of the acks, -1 if the window is fixed or nothing was measured.
+     * */
+    long ackRoundTripNanos() {
+        final AdaptiveInflightWindow window = adaptiveWindow;
+        return window == null ? -1 : window.smoothedRttNanos();
+    }
+
+    long inflightResends() {
+        final AdaptiveInflightWindow window = adaptiveWindow;
+        return window == null ? 0 : window.resends();
+    }
+
+    private void adaptWindowOnAck(ResendTimingWheel.Timeout timeout) {
+        final AdaptiveInflightWindow window = adaptiveWindow;
+        if (window == null) {
+            return;
+        }
+        final long now = System.nanoTime();
+        // Karn's rule: the ack of a resent packet could be of any of its writes, it's not a valid sample
+        final long rtt = timeout == null || timeout.resent ? -1 : now - timeout.sentNanos;
+        resizeWindow(window.onAck(rtt, now));
+    }
+
+    private void resizeWindow(int delta) {
+        if (delta == 0) {
+            return;
+        }
+        inflightWindowSize += delta;
+        // when shrinking the slots can go negative, the acks of the packets over the window bring them back
+        inflightSlots.addAndGet(delta);
+    }
+
     private boolean canSkipQueue(MQTTConnection localMqttConnectionRef) {
         return localMqttConnectionRef != null &&
             sessionQueue.isEmpty() &&
@@ -348,12 +437,6 @@ class Session {
             localMqttConnectionRef.channel.isWritable();
     }
 
-    private boolean inflighHasSlotsAndConnectionIsUp() {
-        return inflightSlots.get() > 0 &&
-            connected() &&
-            mqttConnection.channel.isWritable();
-    }
-
     void pubAckReceived(int ackPacketId) {
         // TODO remain to invoke in somehow m_interceptor.notifyMessageAcknowledged
         SessionRegistry.EnqueuedMessage removed = inflightWindow.remove(ackPacketId);
@@ -361,9 +444,11 @@ class Session {
             LOG.warn("Received a PUBACK with not matching packetId");
             return;
         }
+        final ResendTimingWheel.Timeout timeout = cancelResend(ackPacketId);
         removed.release();
 
         inflightSlots.incrementAndGet();
+        adaptWindowOnAck(timeout);
         drainQueueToConnection();
     }
 
@@ -371,81 +456,147 @@ class Session {
         drainQueueToConnection();
     }
 
-    public void resendInflightNotAcked() {
-        Collection<InFlightPacket> expired = new ArrayList<>(INFLIGHT_WINDOW_SIZE);
-        inflightTimeouts.drainTo(expired);
+    private void scheduleResend(int packetId, long delayMillis) {
+        scheduleResend(packetId, delayMillis, false);
+    }
 
-        debugLogPacketIds(expired);
+    private void scheduleResend(int packetId, long delayMillis, boolean resent) {
+        final ResendTimingWheel.Timeout timeout = ResendTimingWheel.current()
+            .schedule(this, packetId, delayMillis, TimeUnit.MILLISECONDS, resent);
+        final ResendTimingWheel.Timeout old = inflightTimeouts.put(packetId, timeout);
+        if (old != null) {
+            old.cancel();
+        }
+    }
 
-        for (InFlightPacket notAckPacketId : expired) {
-            final SessionRegistry.EnqueuedMessage msg = inflightWindow.get(notAckPacketId.packetId);
-            if (msg == null) {
-                // Already acked...
-                continue;
-            }
-            if (msg instanceof SessionRegistry.PubRelMarker) {
-                MqttMessage pubRel = MQTTConnection.pubrel(notAckPacketId.packetId);
-                inflightTimeouts.add(new InFlightPacket(notAckPacketId.packetId, FLIGHT_BEFORE_RESEND_MS));
-                mqttConnection.sendIfWritableElseDrop(pubRel);
-            } else {
-                final SessionRegistry.PublishedMessage pubMsg = (SessionRegistry.PublishedMessage) msg;
-                final Topic topic = pubMsg.getTopic();
-                final MqttQoS qos = pubMsg.getPublishingQos();
-                final ByteBuf payload = pubMsg.getPayload();
-                // message fetched from map, but not removed from map. No need to duplicate or release.
-                MqttPublishMessage publishMsg = publishNotRetainedDuplicated(notAckPacketId, topic, qos, payload);
-                inflightTimeouts.add(new InFlightPacket(notAckPacketId.packetId, FLIGHT_BEFORE_RESEND_MS));
-                mqttConnection.sendPublish(publishMsg);
-            }
+    private ResendTimingWheel.Timeout cancelResend(int packetId) {
+        final ResendTimingWheel.Timeout timeout = inflightTimeouts.remove(packetId);
+        if (timeout != null) {
+            timeout.cancel();
         }
+        return timeout;
     }
 
-    private void debugLogPacketIds(Collection<InFlightPacket> expired) {
-        if (!LOG.isDebugEnabled() || expired.isEmpty()) {
+    private void cancelAllResends() {
+        for (ResendTimingWheel.Timeout timeout : inflightTimeouts.values()) {
+            timeout.cancel();
+        }
+        inflightTimeouts.clear();
+    }
+
+    /**
+     * Invoked by the timing wheel of the session loop when the packet was not acked in time.
+     * */
+    void resendExpired(int packetId) {
+        inflightTimeouts.remove(packetId);
+        final MQTTConnection connection = mqttConnection;
+        if (connection == null || !connected()) {
             return;
         }
+        if (!inflightWindow.containsKey(packetId)) {
+            // Already acked...
+            return;
+        }
+        final AdaptiveInflightWindow window = adaptiveWindow;
+        if (window != null) {
+            resizeWindow(window.onResend(System.nanoTime()));
+        }
+        resendInflight(connection, packetId);
+    }
+
+    private void resendInflight(MQTTConnection connection, int packetId) {
+        final SessionRegistry.EnqueuedMessage msg = inflightWindow.get(packetId);
+        LOG.debug("Resending in flight packet {}", packetId);
+        scheduleResend(packetId, FLIGHT_BEFORE_RESEND_MS, true);
+        if (msg instanceof SessionRegistry.PubRelMarker) {
+            MqttMessage pubRel = MQTTConnection.pubrel(packetId);
+            connection.sendIfWritableElseDrop(pubRel);
+        } else {
+            final SessionRegistry.PublishedMessage pubMsg = (SessionRegistry.PublishedMessage) msg;
+            final Topic topic = pubMsg.getTopic();
+            final MqttQoS qos = pubMsg.getPublishingQos();
+            final ByteBuf payload = pubMsg.getPayload();
+            // message fetched from map, but not removed from map. No need to duplicate or release.
+            MqttPublishMessage publishMsg = publishNotRetainedDuplicated(packetId, topic, qos, payload);
+            connection.sendPublish(publishMsg);
+        }
+    }
 
-        StringBuilder sb = new StringBuilder();
-        for (InFlightPacket packet : expired) {
-            sb.append(packet.packetId).append(", ");
+    /**
+     * Invoked by the timing wheel after a batch of resends.
+     * */
+    void flushResends() {
+        final MQTTConnection connection = mqttConnection;
+        if (connection != null) {
+            connection.flush();
         }
-        LOG.debug("Resending {} in flight packets [{}]", expired.size(), sb);
     }
 
-    private MqttPublishMessage publishNotRetainedDuplicated(InFlightPacket notAckPacketId, Topic topic, MqttQoS qos,
+    private MqttPublishMessage publishNotRetainedDuplicated(int packetId, Topic topic, MqttQoS qos,
                                                             ByteBuf payload) {
         MqttFixedHeader fixedHeader = new MqttFixedHeader(MqttMessageType.PUBLISH, true, qos, false, 0);
-        MqttPublishVariableHeader varHeader = new MqttPublishVariableHeader(topic.toString(), notAckPacketId.packetId);
+        MqttPublishVariableHeader varHeader = new MqttPublishVariableHeader(topic.toString(), packetId);
         return new MqttPublishMessage(fixedHeader, varHeader, payload);
     }
 
+    /**
+     * Consume the queue in batches: each batch is dequeued in one go, bounded by the free inflight slots and
+     * by the bytes the channel accepts before becoming not writable, written and then flushed once.
+     * */
     private void drainQueueToConnection() {
-        // consume the queue
-        while (!sessionQueue.isEmpty() && inflighHasSlotsAndConnectionIsUp()) {
-            final SessionRegistry.EnqueuedMessage msg = sessionQueue.dequeue();
-            if (msg == null) {
-                // Our message was already fetched by another Thread.
-                return;
+        final MQTTConnection connection = mqttConnection;
+        if (connection == null) {
+            return;
+        }
+        long writableBytes = connection.channel.bytesBeforeUnwritable();
+        long drained = 0;
+        long drainedBytes = 0;
+        while (writableBytes > 0 && inflightSlots.get() > 0 && connected()) {
+            int batchSize = Math.min(inflightSlots.get(), MAX_DRAIN_BATCH);
+            if (drained > 0) {
+                // a batch is written even past the budget, size it on the messages written so far
+                final long averageSize = Math.max(1, drainedBytes / drained);
+                batchSize = (int) Math.min(batchSize, writableBytes / averageSize + 1);
             }
-            inflightSlots.decrementAndGet();
-            int sendPacketId = mqttConnection.nextPacketId();
-
-            // Putting it in a map, but the retain is cancelled out by the below release.
-            EnqueuedMessage old = inflightWindow.put(sendPacketId, msg);
-            if (old != null) {
-                old.release();
-                inflightSlots.incrementAndGet();
+            final List<EnqueuedMessage> batch = sessionQueue.dequeueBatch(batchSize);
+            for (EnqueuedMessage msg : batch) {
+                final int size = writeDequeued(connection, (SessionRegistry.PublishedMessage) msg);
+                drainedBytes += size;
+                writableBytes -= size;
             }
-            inflightTimeouts.add(new InFlightPacket(sendPacketId, FLIGHT_BEFORE_RESEND_MS));
-            final SessionRegistry.PublishedMessage msgPub = (SessionRegistry.PublishedMessage) msg;
-            MqttPublishMessage publishMsg = MQTTConnection.createNotRetainedPublishMessage(
-                msgPub.getTopic().toString(),
-                msgPub.getPublishingQos(),
-                msgPub.getPayload(), sendPacketId);
-            mqttConnection.sendPublish(publishMsg);
+            drained += batch.size();
+            if (!batch.isEmpty()) {
+                connection.flush();
+            }
+            if (batch.size() < batchSize) {
+                // the queue is empty
+                break;
+            }
+        }
+    }
 
-            // we fetched msg from a map, but the release is cancelled out by the above retain
+    /**
+     * @return the estimated size on the wire of the written PUBLISH.
+     * */
+    private int writeDequeued(MQTTConnection connection, SessionRegistry.PublishedMessage msg) {
+        inflightSlots.decrementAndGet();
+        int sendPacketId = nextFreePacketId(connection);
+
+        // Putting it in a map, but the retain is cancelled out by the below release.
+        EnqueuedMessage old = inflightWindow.put(sendPacketId, msg);
+        if (old != null) {
+            old.release();
+            inflightSlots.incrementAndGet();
         }
+        scheduleResend(sendPacketId, FLIGHT_BEFORE_RESEND_MS);
+        final String topic = msg.getTopic().toString();
+        MqttPublishMessage publishMsg = MQTTConnection.createNotRetainedPublishMessage(
+            topic, msg.getPublishingQos(), msg.getPayload(), sendPacketId);
+        connection.writeBatchedPublish(publishMsg);
+
+        // we fetched msg from a map, but the release is cancelled out by the above retain
+        // fixed header, topic length and packet id, the topic is assumed mostly ASCII
+        return 5 + 2 + topic.length() + 2 + msg.getPayload().readableBytes();
     }
 
     public void writabilityChanged() {
@@ -454,6 +605,14 @@ class Session {
 
     public void sendQueuedMessagesWhileOffline() {
         LOG.trace("Republishing all saved messages for session {}", this);
+        final MQTTConnection connection = mqttConnection;
+        if (connection != null && connected() && !inflightWindow.isEmpty()) {
+            // the packets not acked before the disconnection are resent first, they are not a sign of congestion
+            for (IntObjectMap.PrimitiveEntry<EnqueuedMessage> entry : inflightWindow.entries()) {
+                resendInflight(connection, entry.key());
+            }
+            connection.flush();
+        }
         drainQueueToConnection();
     }
 
@@ -482,6 +641,7 @@ class Session {
     }
 
     public void cleanUp() {
+        cancelAllResends();
         // in case of in memory session queues all contained messages
         // has to be released.
         sessionQueue.closeAndPurge();
@@ -1,33 +1,70 @@
 package io.moquette.broker;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import java.util.concurrent.Callable;
 import java.util.concurrent.CompletableFuture;
 
+/**
+ * Command to be executed on a session event loop.
+ * Instances are the preallocated slots of a SessionCommandQueue, filled by the producer and reused
+ * once the command has been executed, so they are not allocated per routed command.
+ * */
 final class SessionCommand {
 
-    private final String sessionId;
-    private final Callable<String> action;
-    private final CompletableFuture<String> task;
+    private static final Logger LOG = LoggerFactory.getLogger(SessionCommand.class);
+
+    private String sessionId;
+    private Callable<String> action;
+    private CompletableFuture<String> task;
 
-    public  SessionCommand(String sessionId, Callable<String> action) {
+    void fill(String sessionId, Callable<String> action, CompletableFuture<String> task) {
         this.sessionId = sessionId;
         this.action = action;
-        this.task = new CompletableFuture<>();
+        this.task = task;
     }
 
     public String getSessionId() {
         return this.sessionId;
     }
 
-    public void execute() throws Exception {
-        action.call();
+    Callable<String> getAction() {
+        return action;
     }
 
-    public void complete() {
-        task.complete(sessionId);
+    CompletableFuture<String> getTask() {
+        return task;
     }
 
-    public CompletableFuture<String> completableFuture() {
-        return task;
+    /**
+     * Execute the command and release the references, so that the slot can be reused.
+     * */
+    void executeAndClear() {
+        execute(sessionId, action, task);
+        clear();
+    }
+
+    /**
+     * Release the references without executing, the slot can be reused.
+     * */
+    void clear() {
+        this.sessionId = null;
+        this.action = null;
+        this.task = null;
+    }
+
+    /**
+     * Run the action and complete the future, the future is completed exceptionally if the action fails.
+     * */
+    static void execute(String sessionId, Callable<String> action, CompletableFuture<String> task) {
+        try {
+            action.call();
+            task.complete(sessionId);
+        } catch (Throwable th) {
+            LOG.info("SessionEventLoop {} reached exception in processing command", Thread.currentThread().getName(),
+                     th);
+            task.completeExceptionally(th);
+        }
     }
 }
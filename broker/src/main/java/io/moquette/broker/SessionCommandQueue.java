@@ -0,0 +1,425 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock free, bounded, multi producer single consumer queue of commands for a session event loop.
+ *
+ * It's a ring of preallocated SessionCommand slots: a producer claims a sequence with a CAS, fills the
+ * slot and publishes it by storing the sequence in the availability array. The consumer executes the
+ * published slots in order, in batches, and releases them all at once at the end of a batch.
+ *
+ * The commands of throttled publishers that don't fit in the ring are parked in an unbounded list, up to the
+ * capacity of the ring. While commands are parked every new command is parked behind them, and each one is
+ * executed after the commands claimed in the ring before it, so the commands of a producer keep their order.
+ * */
+final class SessionCommandQueue {
+
+    /**
+     * What the consumer does when the queue is empty.
+     * */
+    enum IdleStrategy {
+        /**
+         * Keep polling the queue, lowest latency but it burns a core per session loop.
+         * */
+        BUSY_SPIN,
+        /**
+         * Spin and yield for a while, then park until a producer publishes a new command.
+         * */
+        PARK;
+
+        static IdleStrategy parse(String value) {
+            return IdleStrategy.valueOf(value.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * Hands the commands of a session moved to another loop over to the new owner of the session.
+     * */
+    interface Rerouter {
+
+        /**
+         * @return the loop that owns the session now, fromLoop if the command has to be executed there.
+         * */
+        int ownerLoop(int fromLoop, String sessionId);
+
+        /**
+         * Queue the command on the loop that owns the session.
+         *
+         * @return false if the queue of that loop is full.
+         * */
+        boolean forward(int toLoop, String sessionId, Callable<String> action, CompletableFuture<String> task);
+    }
+
+    static final Rerouter NO_REROUTE = new Rerouter() {
+        @Override
+        public int ownerLoop(int fromLoop, String sessionId) {
+            return fromLoop;
+        }
+
+        @Override
+        public boolean forward(int toLoop, String sessionId, Callable<String> action,
+                               CompletableFuture<String> task) {
+            throw new IllegalStateException("Sessions can't be moved to session loop " + toLoop);
+        }
+    };
+
+    /**
+     * A command that didn't fit in the ring.
+     * */
+    private static final class ParkedCommand {
+        private final SessionCommand command = new SessionCommand();
+        // the ring sequences before it were claimed before it was parked
+        private final long afterSequence;
+
+        private ParkedCommand(String sessionId, Callable<String> action, CompletableFuture<String> task,
+                              long afterSequence) {
+            command.fill(sessionId, action, task);
+            this.afterSequence = afterSequence;
+        }
+    }
+
+    private static final int SPIN_ROUNDS = 100;
+    private static final int YIELD_ROUNDS = 100;
+    // max park of a consumer with forwards waiting for room in the queue of another loop
+    private static final long DEFERRED_RETRY_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final SessionCommand[] slots;
+    // slot i contains the sequence of the last command published in it
+    private final AtomicLongArray available;
+    private final int mask;
+    private final int capacity;
+    private final IdleStrategy idleStrategy;
+    private final int loopId;
+    private final Rerouter rerouter;
+    private final AtomicLong producerSequence = new AtomicLong();
+    // next sequence to consume, all the slots before it are free to be reused
+    private volatile long consumerSequence;
+    private volatile boolean consumerParked;
+    private volatile Thread consumer;
+    // load counters, the executed and rerouted ones are written only by the consumer
+    private volatile long executedCommands;
+    private volatile long reroutedCommands;
+    private final LongAdder rejectedCommands = new LongAdder();
+    // sequence of the command being executed, or of the last executed one, written only by the consumer
+    private long executingSequence = -1;
+    // commands of moved sessions that didn't fit in the queue of the new loop, forwarded in order before the
+    // commands drained after them, accessed only by the consumer
+    private final ArrayDeque<SessionCommand> deferredForwards = new ArrayDeque<>();
+    private final ConcurrentLinkedQueue<ParkedCommand> parked = new ConcurrentLinkedQueue<>();
+    // incremented before a command is parked, decremented once it's executed
+    private final AtomicInteger parkedCount = new AtomicInteger();
+    private final LongAdder parkedCommands = new LongAdder();
+
+    SessionCommandQueue(int requestedCapacity, IdleStrategy idleStrategy) {
+        this(0, requestedCapacity, idleStrategy, NO_REROUTE);
+    }
+
+    /**
+     * @param loopId index of the session loop consuming this queue.
+     * @param rerouter checked before executing each command, to forward the ones of moved sessions.
+     * */
+    SessionCommandQueue(int loopId, int requestedCapacity, IdleStrategy idleStrategy, Rerouter rerouter) {
+        if (requestedCapacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive, was: " + requestedCapacity);
+        }
+        this.capacity = roundToPowerOfTwo(requestedCapacity);
+        this.mask = capacity - 1;
+        this.idleStrategy = idleStrategy;
+        this.loopId = loopId;
+        this.rerouter = rerouter;
+        this.slots = new SessionCommand[capacity];
+        this.available = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new SessionCommand();
+            // mark as not yet published: the first sequence landing in slot i is i
+            available.set(i, i - capacity);
+        }
+    }
+
+    private static int roundToPowerOfTwo(int value) {
+        final int highest = Integer.highestOneBit(value);
+        return highest == value ? value : highest << 1;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Invoked by the consumer thread before starting to drain.
+     * */
+    void bindConsumer(Thread consumer) {
+        this.consumer = consumer;
+    }
+
+    /**
+     * @return false if the queue is full.
+     * */
+    boolean offer(String sessionId, Callable<String> action, CompletableFuture<String> task) {
+        return offer(sessionId, action, task, false);
+    }
+
+    /**
+     * Like offer, but a command that doesn't fit in the ring is parked instead of rejected. To be used for the
+     * commands of publishers throttled by the backpressure, that soon stop producing.
+     *
+     * @return false if also the parked commands reached the capacity.
+     * */
+    boolean offerOrPark(String sessionId, Callable<String> action, CompletableFuture<String> task) {
+        return offer(sessionId, action, task, true);
+    }
+
+    private boolean offer(String sessionId, Callable<String> action, CompletableFuture<String> task,
+                          boolean parkIfFull) {
+        if (parkedCount.get() != 0) {
+            // queue behind the parked commands, a producer that parked one mustn't overtake it
+            return park(sessionId, action, task);
+        }
+        long sequence;
+        do {
+            sequence = producerSequence.get();
+            if (sequence - consumerSequence >= capacity) {
+                if (parkIfFull) {
+                    return park(sessionId, action, task);
+                }
+                rejectedCommands.increment();
+                return false;
+            }
+        } while (!producerSequence.compareAndSet(sequence, sequence + 1));
+
+        final int index = (int) sequence & mask;
+        slots[index].fill(sessionId, action, task);
+        // volatile store, publishes the slot content and orders with the read of consumerParked
+        available.set(index, sequence);
+
+        wakeUpConsumer();
+        return true;
+    }
+
+    private boolean park(String sessionId, Callable<String> action, CompletableFuture<String> task) {
+        if (parkedCount.incrementAndGet() > capacity) {
+            parkedCount.decrementAndGet();
+            rejectedCommands.increment();
+            return false;
+        }
+        parked.add(new ParkedCommand(sessionId, action, task, producerSequence.get()));
+        parkedCommands.increment();
+        wakeUpConsumer();
+        return true;
+    }
+
+    private void wakeUpConsumer() {
+        if (consumerParked) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * Executes up to limit published or parked commands, after retrying the forwards deferred by the previous
+     * drains. To be invoked only by the consumer thread.
+     *
+     * @return the number of executed, forwarded or deferred commands.
+     * */
+    int drain(int limit) {
+        final int forwarded = deferredForwards.isEmpty() ? 0 : forwardDeferred();
+        final long start = consumerSequence;
+        long sequence = start;
+        int unparked = 0;
+        int rerouted = 0;
+        while (sequence - start + unparked < limit) {
+            final ParkedCommand next = parked.peek();
+            if (next != null && next.afterSequence <= sequence) {
+                // all the commands claimed before it have been executed
+                parked.poll();
+                executingSequence = sequence - 1;
+                if (executeOrForward(next.command)) {
+                    rerouted++;
+                }
+                parkedCount.decrementAndGet();
+                unparked++;
+                continue;
+            }
+            final int index = (int) sequence & mask;
+            if (available.get(index) != sequence) {
+                // empty or the producer that claimed it hasn't yet published
+                break;
+            }
+            executingSequence = sequence;
+            if (executeOrForward(slots[index])) {
+                rerouted++;
+            }
+            sequence++;
+        }
+        final int drained = (int) (sequence - start) + unparked;
+        if (drained != 0) {
+            // release the whole batch of slots to the producers
+            consumerSequence = sequence;
+            executedCommands += drained - rerouted;
+            if (rerouted != 0) {
+                reroutedCommands += rerouted;
+            }
+        }
+        return drained + forwarded;
+    }
+
+    /**
+     * @return true if the command has been forwarded to the loop that owns its session now.
+     * */
+    private boolean executeOrForward(SessionCommand command) {
+        final int owner = rerouter.ownerLoop(loopId, command.getSessionId());
+        if (owner == loopId) {
+            command.executeAndClear();
+            return false;
+        }
+        forward(owner, command);
+        command.clear();
+        return true;
+    }
+
+    /**
+     * Forward the command to the loop that owns its session, or keep a copy if that loop is full, or other
+     * forwards are already waiting, so the commands of a session are never dropped nor reordered.
+     * */
+    private void forward(int owner, SessionCommand command) {
+        if (deferredForwards.isEmpty()
+            && rerouter.forward(owner, command.getSessionId(), command.getAction(), command.getTask())) {
+            return;
+        }
+        final SessionCommand deferred = new SessionCommand();
+        deferred.fill(command.getSessionId(), command.getAction(), command.getTask());
+        deferredForwards.addLast(deferred);
+    }
+
+    /**
+     * @return the number of deferred commands forwarded, stopping at the first one that doesn't fit yet.
+     * */
+    private int forwardDeferred() {
+        int forwarded = 0;
+        SessionCommand command;
+        while ((command = deferredForwards.peekFirst()) != null) {
+            final int owner = rerouter.ownerLoop(loopId, command.getSessionId());
+            if (owner == loopId) {
+                // the session has been moved back in the meantime
+                command.executeAndClear();
+            } else if (!rerouter.forward(owner, command.getSessionId(), command.getAction(), command.getTask())) {
+                return forwarded;
+            }
+            deferredForwards.pollFirst();
+            forwarded++;
+        }
+        return forwarded;
+    }
+
+    /**
+     * @return true if a command of the session is queued after the one being executed, or if a producer has
+     * claimed a slot without publishing it yet, so it can't be excluded. To be invoked only by the consumer.
+     * */
+    boolean hasQueuedCommandsOf(String sessionId) {
+        final long end = producerSequence.get();
+        for (long sequence = executingSequence + 1; sequence < end; sequence++) {
+            final int index = (int) sequence & mask;
+            if (available.get(index) != sequence || sessionId.equals(slots[index].getSessionId())) {
+                return true;
+            }
+        }
+        for (ParkedCommand parkedCommand : parked) {
+            if (sessionId.equals(parkedCommand.command.getSessionId())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    int loopId() {
+        return loopId;
+    }
+
+    /**
+     * @return the number of commands published, claimed by producers or parked, and not yet consumed.
+     * */
+    long size() {
+        return Math.max(0, producerSequence.get() - consumerSequence) + parkedCount.get();
+    }
+
+    long executedCommands() {
+        return executedCommands;
+    }
+
+    long reroutedCommands() {
+        return reroutedCommands;
+    }
+
+    long rejectedCommands() {
+        return rejectedCommands.sum();
+    }
+
+    long parkedCommands() {
+        return parkedCommands.sum();
+    }
+
+    boolean isEmpty() {
+        final long sequence = consumerSequence;
+        return available.get((int) sequence & mask) != sequence && parked.isEmpty();
+    }
+
+    /**
+     * Invoked by the consumer when a drain found nothing to execute.
+     *
+     * @param idleRounds number of consecutive empty drains.
+     * */
+    void idle(int idleRounds) {
+        idle(idleRounds, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param maxParkNanos max time the consumer can be parked, Long.MAX_VALUE to wait for a producer.
+     * */
+    void idle(int idleRounds, long maxParkNanos) {
+        // with forwards waiting, drain again soon to retry them
+        final long parkNanos = deferredForwards.isEmpty() ? maxParkNanos
+            : Math.min(maxParkNanos, DEFERRED_RETRY_NANOS);
+        if (idleStrategy == IdleStrategy.BUSY_SPIN || idleRounds < SPIN_ROUNDS) {
+            return;
+        }
+        if (idleRounds < SPIN_ROUNDS + YIELD_ROUNDS) {
+            Thread.yield();
+            return;
+        }
+        consumerParked = true;
+        // check again after the flag is visible, a producer could have published in the meantime
+        if (isEmpty()) {
+            if (parkNanos == Long.MAX_VALUE) {
+                LockSupport.park(this);
+            } else if (parkNanos > 0) {
+                LockSupport.parkNanos(this, parkNanos);
+            }
+        }
+        consumerParked = false;
+    }
+}
@@ -3,53 +3,66 @@ package io.moquette.broker;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.FutureTask;
-
 final class SessionEventLoop implements Runnable {
 
     private static final Logger LOG = LoggerFactory.getLogger(SessionEventLoop.class);
 
-    private final BlockingQueue<FutureTask<String>> sessionQueue;
+    // max commands executed before releasing the slots to the producers
+    private static final int DRAIN_BATCH_SIZE = 256;
+
+    private static final Runnable NO_LISTENER = () -> { };
+
+    private final SessionCommandQueue sessionQueue;
     private final boolean flushOnExit;
+    private final Runnable drainListener;
+    private final ResendTimingWheel resendWheel = new ResendTimingWheel();
 
-    public SessionEventLoop(BlockingQueue<FutureTask<String>> sessionQueue) {
+    SessionEventLoop(SessionCommandQueue sessionQueue) {
         this(sessionQueue, true);
     }
 
     /**
      * @param flushOnExit consume the commands queue before exit.
      * */
-    public SessionEventLoop(BlockingQueue<FutureTask<String>> sessionQueue, boolean flushOnExit) {
+    SessionEventLoop(SessionCommandQueue sessionQueue, boolean flushOnExit) {
+        this(sessionQueue, flushOnExit, NO_LISTENER);
+    }
+
+    /**
+     * @param drainListener invoked after each batch of executed commands.
+     * */
+    SessionEventLoop(SessionCommandQueue sessionQueue, boolean flushOnExit, Runnable drainListener) {
         this.sessionQueue = sessionQueue;
         this.flushOnExit = flushOnExit;
+        this.drainListener = drainListener;
     }
 
     @Override
     public void run() {
-        while (!Thread.interrupted() || (Thread.interrupted() && !sessionQueue.isEmpty() && flushOnExit)) {
-            try {
-                // blocking call
-                final FutureTask<String> task = this.sessionQueue.take();
-                executeTask(task);
-            } catch (InterruptedException e) {
-                LOG.info("SessionEventLoop {} interrupted", Thread.currentThread().getName());
-                Thread.currentThread().interrupt();
+        sessionQueue.bindConsumer(Thread.currentThread());
+        resendWheel.bindToCurrentThread();
+        int idleRounds = 0;
+        while (!Thread.currentThread().isInterrupted()) {
+            if (sessionQueue.drain(DRAIN_BATCH_SIZE) > 0) {
+                drainListener.run();
+                idleRounds = 0;
+            } else {
+                // don't sleep past the next resend deadline
+                sessionQueue.idle(idleRounds, resendWheel.nanosToNextTick(System.nanoTime()));
+                if (idleRounds < Integer.MAX_VALUE) {
+                    idleRounds++;
+                }
+            }
+            if (resendWheel.hasPending()) {
+                resendWheel.advance(System.nanoTime());
             }
         }
-        LOG.info("SessionEventLoop {} exit", Thread.currentThread().getName());
-    }
-
-    public static void executeTask(final FutureTask<String> task) {
-        if (!task.isCancelled()) {
-            try {
-                task.run();
-
-                // we ran it, but we have to grab the exception if raised
-                task.get();
-            } catch (Throwable th) {
-                LOG.info("SessionEventLoop {} reached exception in processing command", Thread.currentThread().getName(), th);
+        LOG.info("SessionEventLoop {} interrupted", Thread.currentThread().getName());
+        if (flushOnExit) {
+            while (sessionQueue.drain(DRAIN_BATCH_SIZE) > 0) {
+                // consume the commands still present
             }
         }
+        LOG.info("SessionEventLoop {} exit", Thread.currentThread().getName());
     }
 }
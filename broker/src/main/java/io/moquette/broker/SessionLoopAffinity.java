@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Decides which session event loop owns a session.
+ *
+ * By default the loop is selected hashing the clientId, the explicit affinity table overrides it for the
+ * sessions that have been pinned to another loop, for example to move them away from an overloaded one.
+ * */
+final class SessionLoopAffinity {
+
+    private final int loops;
+    private final ConcurrentMap<String, Integer> pinned = new ConcurrentHashMap<>();
+
+    SessionLoopAffinity(int loops) {
+        if (loops <= 0) {
+            throw new IllegalArgumentException("Session loops must be at least 1, was: " + loops);
+        }
+        this.loops = loops;
+    }
+
+    int loops() {
+        return loops;
+    }
+
+    int loopFor(String clientId) {
+        if (!pinned.isEmpty()) {
+            final Integer loop = pinned.get(clientId);
+            if (loop != null) {
+                return loop;
+            }
+        }
+        return hashedLoop(clientId);
+    }
+
+    private int hashedLoop(String clientId) {
+        return Math.floorMod(clientId.hashCode(), loops);
+    }
+
+    /**
+     * Assign the session to the loop, pinning it to the hashed loop removes the entry from the table.
+     * To be invoked only by the loop that currently owns the session.
+     * */
+    void pin(String clientId, int loop) {
+        if (loop < 0 || loop >= loops) {
+            throw new IllegalArgumentException("Session loop must be in range [0.." + (loops - 1) + "], was: " + loop);
+        }
+        if (loop == hashedLoop(clientId)) {
+            pinned.remove(clientId);
+        } else {
+            pinned.put(clientId, loop);
+        }
+    }
+
+    /**
+     * Forget the loop of an expired session, the client will be assigned to its hashed loop if it comes back.
+     * To be invoked only by the loop that currently owns the session.
+     * */
+    void unpin(String clientId) {
+        pinned.remove(clientId);
+    }
+
+    /**
+     * @return the number of sessions explicitly pinned to each loop.
+     * */
+    int[] pinnedCountByLoop() {
+        final int[] counts = new int[loops];
+        for (Integer loop : pinned.values()) {
+            counts[loop]++;
+        }
+        return counts;
+    }
+}
@@ -1,5 +1,10 @@
 package io.moquette.broker;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * Queue definition used by the Session class.
  * Due to the fact that Session's code is executed in a single thread, because the
@@ -9,13 +14,58 @@ package io.moquette.broker;
 public interface SessionMessageQueue<T> {
     void enqueue(T message);
 
+    /**
+     * Enqueue all the messages in order, the implementations backed by a store should override it
+     * to write the batch with a single access.
+     * */
+    default void enqueueAll(Collection<? extends T> messages) {
+        for (T message : messages) {
+            enqueue(message);
+        }
+    }
+
     /**
      * @return null if queue is empty.
      * */
     T dequeue();
 
+    /**
+     * Dequeue up to maxMessages in one go, the implementations backed by a store should override it
+     * to fetch the batch with a single access.
+     *
+     * @return the dequeued messages in queue order, empty list if the queue is empty.
+     * */
+    default List<T> dequeueBatch(int maxMessages) {
+        if (maxMessages <= 0) {
+            return Collections.emptyList();
+        }
+        List<T> batch = null;
+        for (int i = 0; i < maxMessages; i++) {
+            final T message = dequeue();
+            if (message == null) {
+                break;
+            }
+            if (batch == null) {
+                batch = new ArrayList<>(Math.min(maxMessages, 64));
+            }
+            batch.add(message);
+        }
+        return batch == null ? Collections.emptyList() : batch;
+    }
+
     boolean isEmpty();
 
+    /**
+     * @return the number of messages in the queue, it could count them, so it's not meant for the hot path.
+     * */
+    int size();
+
+    /**
+     * @return the payload bytes of the messages in the queue, it could sum them, so it's not meant for the hot
+     * path.
+     * */
+    long payloadBytes();
+
     /**
      * Executes cleanup code to release the queue.
      * A closed queue will not accept new items and will be removed from the repository.
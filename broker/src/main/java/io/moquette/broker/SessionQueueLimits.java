@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The limits of the session queues, global with overrides for the client ids starting with a prefix.
+ *
+ * The overrides are written as a comma separated list of prefix:messages:bytes[:policy], the longest prefix
+ * matching the client id wins and a missing policy is the global one.
+ * */
+final class SessionQueueLimits {
+
+    static final class Limit {
+        private final int maxMessages;
+        private final long maxBytes;
+        private final QueueOverflowPolicy policy;
+
+        /**
+         * @param maxMessages messages in the queue, 0 for no limit.
+         * @param maxBytes payload bytes in the queue, 0 for no limit.
+         * */
+        Limit(int maxMessages, long maxBytes, QueueOverflowPolicy policy) {
+            if (maxMessages < 0 || maxBytes < 0) {
+                throw new IllegalArgumentException("Queue limits can't be negative, were: " + maxMessages +
+                    " messages and " + maxBytes + " bytes");
+            }
+            this.maxMessages = maxMessages;
+            this.maxBytes = maxBytes;
+            this.policy = policy;
+        }
+
+        int maxMessages() {
+            return maxMessages;
+        }
+
+        long maxBytes() {
+            return maxBytes;
+        }
+
+        QueueOverflowPolicy policy() {
+            return policy;
+        }
+
+        boolean isUnbounded() {
+            return maxMessages == 0 && maxBytes == 0;
+        }
+    }
+
+    private final Limit global;
+    // longest prefix first
+    private final List<String> prefixes = new ArrayList<>();
+    private final List<Limit> overrides = new ArrayList<>();
+
+    SessionQueueLimits(Limit global, String overrides) {
+        this.global = global;
+        for (String override : overrides.split(",")) {
+            if (!override.trim().isEmpty()) {
+                addOverride(override.trim());
+            }
+        }
+    }
+
+    private void addOverride(String override) {
+        final String[] fields = override.split(":");
+        if (fields.length < 3 || fields.length > 4 || fields[0].isEmpty()) {
+            throw new IllegalArgumentException("Invalid queue limits override, expected " +
+                "prefix:messages:bytes[:policy], was: " + override);
+        }
+        final QueueOverflowPolicy policy = fields.length == 4
+            ? QueueOverflowPolicy.parse(fields[3])
+            : global.policy();
+        final Limit limit = new Limit(Integer.parseInt(fields[1].trim()), Long.parseLong(fields[2].trim()), policy);
+        int index = 0;
+        while (index < prefixes.size() && prefixes.get(index).length() >= fields[0].length()) {
+            index++;
+        }
+        prefixes.add(index, fields[0]);
+        overrides.add(index, limit);
+    }
+
+    /**
+     * @return the limit of the queue of the client, with the longest matching prefix.
+     * */
+    Limit forClient(String clientId) {
+        for (int i = 0; i < prefixes.size(); i++) {
+            if (clientId.startsWith(prefixes.get(i))) {
+                return overrides.get(i);
+            }
+        }
+        return global;
+    }
+
+    /**
+     * @return true if no queue has a limit.
+     * */
+    boolean isUnbounded() {
+        if (!global.isUnbounded()) {
+            return false;
+        }
+        for (Limit override : overrides) {
+            if (!override.isUnbounded()) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -18,9 +18,15 @@ package io.moquette.broker;
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 import io.moquette.broker.Session.SessionStatus;
+import io.moquette.broker.metrics.InflightWindowMetrics;
+import io.moquette.broker.metrics.QueueCompactionMetrics;
+import io.moquette.broker.metrics.QueueDurabilityMetrics;
+import io.moquette.broker.metrics.QueueOverflowMetrics;
 import io.moquette.broker.subscriptions.ISubscriptionsDirectory;
 import io.moquette.broker.subscriptions.Subscription;
 import io.moquette.broker.subscriptions.Topic;
+import io.moquette.interception.Interceptor;
+import io.moquette.interception.messages.InterceptDroppedMessage;
 import io.moquette.spring.serializer.ByteBufDeserializer;
 import io.moquette.spring.serializer.ByteBufSerializer;
 import io.netty.buffer.ByteBuf;
@@ -36,10 +42,15 @@ import org.slf4j.LoggerFactory;
 import java.net.InetSocketAddress;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 public class SessionRegistry {
@@ -57,6 +68,13 @@ public class SessionRegistry {
          * to a store.
          */
         public void retain() {}
+
+        /**
+         * @return the bytes of the payload, accounted by the limits of the queues.
+         */
+        public long payloadSize() {
+            return 0;
+        }
     }
 
     @Data
@@ -101,6 +119,10 @@ public class SessionRegistry {
             payload.retain();
         }
 
+        @Override
+        public long payloadSize() {
+            return payload.readableBytes();
+        }
     }
 
     public static final class PubRelMarker extends EnqueuedMessage {
@@ -129,13 +151,26 @@ public class SessionRegistry {
     private final ISubscriptionsDirectory subscriptionsDirectory;
     private final IQueueRepository queueRepository;
     private final Authorizator authorizator;
+    private final Interceptor interceptor;
+    private final SessionQueueLimits queueLimits;
+    private final LongAdder droppedOldest = new LongAdder();
+    private final LongAdder droppedNewest = new LongAdder();
+    private final LongAdder droppedOnDisconnect = new LongAdder();
+    private final LongAdder droppedBytes = new LongAdder();
+    private final LongAdder disconnectedSessions = new LongAdder();
+    private final LongAdder expiredSessions = new LongAdder();
+    private volatile Consumer<String> sessionExpiredListener = clientId -> { };
 
     SessionRegistry(ISubscriptionsDirectory subscriptionsDirectory,
                     IQueueRepository queueRepository,
-                    Authorizator authorizator) {
+                    Authorizator authorizator,
+                    Interceptor interceptor,
+                    SessionQueueLimits queueLimits) {
         this.subscriptionsDirectory = subscriptionsDirectory;
         this.queueRepository = queueRepository;
         this.authorizator = authorizator;
+        this.interceptor = interceptor;
+        this.queueLimits = queueLimits;
         recreateSessionPool();
     }
 
@@ -144,7 +179,8 @@ public class SessionRegistry {
         for (String clientId : subscriptionsDirectory.listAllSessionIds()) {
             // if the subscriptions are present is obviously false
             if (queueRepository.containsQueue(clientId)) {
-                final SessionMessageQueue<EnqueuedMessage> persistentQueue = queueRepository.getOrCreateQueue(clientId);
+                final SessionMessageQueue<EnqueuedMessage> persistentQueue =
+                    bounded(clientId, queueRepository.getOrCreateQueue(clientId));
                 queues.remove(clientId);
                 Session rehydrated = new Session(clientId, false, persistentQueue);
                 pool.put(clientId, rehydrated);
@@ -235,12 +271,13 @@ public class SessionRegistry {
     private Session createNewSession(MqttConnectMessage msg, String clientId) {
         final boolean clean = msg.variableHeader().isCleanSession();
         final Session newSession;
-        final SessionMessageQueue<EnqueuedMessage> queue;
+        SessionMessageQueue<EnqueuedMessage> queue;
         if (!clean) {
             queue = queueRepository.getOrCreateQueue(clientId);
         } else {
             queue = new InMemoryQueue();
         }
+        queue = bounded(clientId, queue);
         if (msg.variableHeader().isWillFlag()) {
             final Session.Will will = createWill(msg);
             newSession = new Session(clientId, clean, will, queue);
@@ -252,6 +289,60 @@ public class SessionRegistry {
         return newSession;
     }
 
+    private SessionMessageQueue<EnqueuedMessage> bounded(String clientId, SessionMessageQueue<EnqueuedMessage> queue) {
+        final SessionQueueLimits.Limit limit = queueLimits.forClient(clientId);
+        if (limit.isUnbounded()) {
+            return queue;
+        }
+        return new BoundedQueue(this, clientId, queue, limit);
+    }
+
+    /**
+     * Invoked by the queue of a session before releasing a message it drops.
+     * */
+    void messageDropped(String clientId, EnqueuedMessage message, long size, QueueOverflowPolicy reason) {
+        switch (reason) {
+            case DROP_OLDEST:
+                droppedOldest.increment();
+                break;
+            case DROP_NEWEST:
+                droppedNewest.increment();
+                break;
+            default:
+                droppedOnDisconnect.increment();
+        }
+        droppedBytes.add(size);
+        LOG.debug("Dropped message of session {} because the queue is full, reason: {}", clientId, reason);
+        String topic = null;
+        MqttQoS qos = null;
+        if (message instanceof PublishedMessage) {
+            topic = ((PublishedMessage) message).getTopic().toString();
+            qos = ((PublishedMessage) message).getPublishingQos();
+        }
+        interceptor.notifyMessageDropped(new InterceptDroppedMessage(clientId, topic, qos, size, reason));
+    }
+
+    /**
+     * Invoked, from the session event loop, by the queue of a session with the disconnect policy when it's full:
+     * the connection is dropped, or the session expired if not connected.
+     * */
+    void queueOverflowed(String clientId) {
+        final Session session = retrieve(clientId);
+        if (session == null) {
+            return;
+        }
+        if (session.connected()) {
+            if (session.dropConnection()) {
+                LOG.info("Dropping the connection of session {} because its queue is full", clientId);
+                disconnectedSessions.increment();
+            }
+        } else if (session.disconnected()) {
+            LOG.info("Expiring the session {} because its queue is full", clientId);
+            expireSession(session);
+            expiredSessions.increment();
+        }
+    }
+
     private void copySessionConfig(MqttConnectMessage msg, Session session) {
         final boolean clean = msg.variableHeader().isCleanSession();
         final Session.Will will;
@@ -275,10 +366,18 @@ public class SessionRegistry {
         return pool.get(clientID);
     }
 
+    /**
+     * Set the callback invoked, on the session loop, when a session is removed without being replaced by a
+     * new one for the same client.
+     * */
+    void onSessionExpired(Consumer<String> listener) {
+        this.sessionExpiredListener = listener;
+    }
+
     void connectionClosed(Session session) {
         session.disconnect();
         if (session.expireImmediately()) {
-            purgeSessionState(session);
+            expireSession(session);
             return;
         } else {
             // TODO if binded session has expiry, disconnect it and schedule a task to do the cleanup after that
@@ -286,6 +385,11 @@ public class SessionRegistry {
         }
     }
 
+    private void expireSession(Session session) {
+        purgeSessionState(session);
+        sessionExpiredListener.accept(session.getClientID());
+    }
+
     private void purgeSessionState(Session session) {
         LOG.debug("Remove session state for client {}", session.getClientID());
         boolean result = session.assignState(SessionStatus.DISCONNECTED, SessionStatus.DESTROYED);
@@ -316,7 +420,46 @@ public class SessionRegistry {
     private Optional<ClientDescriptor> createClientDescriptor(Session s) {
         final String clientID = s.getClientID();
         final Optional<InetSocketAddress> remoteAddressOpt = s.remoteAddress();
-        return remoteAddressOpt.map(r -> new ClientDescriptor(clientID, r.getHostString(), r.getPort()));
+        return remoteAddressOpt.map(r -> new ClientDescriptor(clientID, r.getHostString(), r.getPort(),
+                                                              s.inflightWindowSize()));
+    }
+
+    List<InflightWindowMetrics> inflightWindowsMetrics() {
+        return pool.values().stream()
+            .filter(Session::connected)
+            .map(s -> new InflightWindowMetrics(s.getClientID(), s.isInflightWindowAdaptive(),
+                                                s.inflightWindowSize(), s.inflightMessages(),
+                                                toMicros(s.ackRoundTripNanos()), s.inflightResends()))
+            .collect(Collectors.toList());
+    }
+
+    private static long toMicros(long nanos) {
+        return nanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    boolean isQueuesCommitAwaited() {
+        return queueRepository.isCommitAwaited();
+    }
+
+    CompletableFuture<Void> commitQueues() {
+        return queueRepository.commit();
+    }
+
+    Optional<QueueDurabilityMetrics> queuesDurabilityMetrics() {
+        return queueRepository.durabilityMetrics();
+    }
+
+    Optional<QueueCompactionMetrics> queuesCompactionMetrics() {
+        return queueRepository.compactionMetrics();
+    }
+
+    Optional<QueueOverflowMetrics> queuesOverflowMetrics() {
+        if (queueLimits.isUnbounded()) {
+            return Optional.empty();
+        }
+        return Optional.of(new QueueOverflowMetrics(droppedOldest.sum(), droppedNewest.sum(),
+                                                    droppedOnDisconnect.sum(), droppedBytes.sum(),
+                                                    disconnectedSessions.sum(), expiredSessions.sum()));
     }
 
     /**
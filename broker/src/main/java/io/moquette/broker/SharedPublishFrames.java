@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.moquette.broker.subscriptions.Topic;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttQoS;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * PUBLISH frames of a message delivered to many subscribers, the fixed header and the topic are encoded
+ * once for each QoS and shared, with the payload, by the frames written to the subscribers' channels.
+ *
+ * Not thread safe, it's used by the session loop that is delivering the publish and released at the end.
+ * */
+final class SharedPublishFrames {
+
+    private static final int PACKET_ID_LENGTH = 2;
+
+    private final Topic topic;
+    private final ByteBuf payload;
+    private final boolean retained;
+    private byte[] topicBytes;
+    // encoded fixed header plus topic, indexed by QoS
+    private final ByteBuf[] headers = new ByteBuf[3];
+
+    SharedPublishFrames(Topic topic, ByteBuf payload, boolean retained) {
+        this.topic = topic;
+        this.payload = payload;
+        this.retained = retained;
+    }
+
+    Topic topic() {
+        return topic;
+    }
+
+    ByteBuf payload() {
+        return payload;
+    }
+
+    /**
+     * @param alloc allocator of the channel, the shared header is allocated with it the first time it's encoded.
+     * @return a new frame ready to be written to a channel, owned by the caller.
+     * */
+    ByteBuf frame(MqttQoS qos, int packetId, ByteBufAllocator alloc) {
+        final ByteBuf header = header(qos, alloc);
+        if (qos == MqttQoS.AT_MOST_ONCE) {
+            return alloc.compositeBuffer(2)
+                .addComponents(true, header.retainedSlice(), payload.retainedDuplicate());
+        }
+        final ByteBuf packetIdBuf = alloc.buffer(PACKET_ID_LENGTH, PACKET_ID_LENGTH).writeShort(packetId);
+        final CompositeByteBuf frame = alloc.compositeBuffer(3);
+        return frame.addComponents(true, header.retainedSlice(), packetIdBuf, payload.retainedDuplicate());
+    }
+
+    private ByteBuf header(MqttQoS qos, ByteBufAllocator alloc) {
+        final int qosValue = qos.value();
+        ByteBuf header = headers[qosValue];
+        if (header == null) {
+            header = encodeHeader(qos, alloc);
+            headers[qosValue] = header;
+        }
+        return header;
+    }
+
+    // same layout produced by the MqttEncoder, the packet id of QoS > 0 is left out
+    private ByteBuf encodeHeader(MqttQoS qos, ByteBufAllocator alloc) {
+        if (topicBytes == null) {
+            topicBytes = topic.toString().getBytes(StandardCharsets.UTF_8);
+        }
+        final int packetIdLength = qos == MqttQoS.AT_MOST_ONCE ? 0 : PACKET_ID_LENGTH;
+        final int remainingLength = 2 + topicBytes.length + packetIdLength + payload.readableBytes();
+        final ByteBuf header = alloc.buffer(1 + 4 + 2 + topicBytes.length);
+        header.writeByte(fixedHeaderByte1(qos));
+        writeVariableLengthInt(header, remainingLength);
+        header.writeShort(topicBytes.length);
+        header.writeBytes(topicBytes);
+        return header;
+    }
+
+    private int fixedHeaderByte1(MqttQoS qos) {
+        int ret = MqttMessageType.PUBLISH.value() << 4;
+        ret |= qos.value() << 1;
+        if (retained) {
+            ret |= 0x01;
+        }
+        return ret;
+    }
+
+    private static void writeVariableLengthInt(ByteBuf buf, int num) {
+        do {
+            int digit = num % 128;
+            num /= 128;
+            if (num > 0) {
+                digit |= 0x80;
+            }
+            buf.writeByte(digit);
+        } while (num > 0);
+    }
+
+    /**
+     * Release the shared headers, the frames already written keep their slices alive.
+     * */
+    void release() {
+        for (int i = 0; i < headers.length; i++) {
+            if (headers[i] != null) {
+                headers[i].release();
+                headers[i] = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Session queue that keeps the newest messages in memory and spills the older ones to a persistent queue.
+ *
+ * Every message in the persistent queue is older than the ones in memory, so the persistent queue is drained
+ * first. A session disconnected for a short time never touches the disk, while a long disconnection keeps in
+ * memory at most the configured number of messages and payload bytes.
+ *
+ * The methods are synchronized only because the memory tier is spilled on close, from the thread that closes
+ * the repository.
+ * */
+public class TieredQueue extends AbstractSessionMessageQueue<SessionRegistry.EnqueuedMessage> {
+
+    private final TieredQueueRepository queueRepository;
+    private final String queueName;
+    private final SessionMessageQueue<SessionRegistry.EnqueuedMessage> spillQueue;
+    private final int maxMessages;
+    private final long maxBytes;
+    // the newest messages, oldest first
+    private final ArrayDeque<SessionRegistry.EnqueuedMessage> memory = new ArrayDeque<>();
+    private long memoryBytes;
+    // true if the spill queue could have messages, to not access it once drained
+    private boolean spilled;
+
+    /**
+     * @param maxMessages messages kept in memory, 0 for no limit.
+     * @param maxBytes payload bytes kept in memory, 0 for no limit.
+     * */
+    TieredQueue(TieredQueueRepository queueRepository, String queueName,
+                SessionMessageQueue<SessionRegistry.EnqueuedMessage> spillQueue, int maxMessages, long maxBytes) {
+        this.queueRepository = queueRepository;
+        this.queueName = queueName;
+        this.spillQueue = spillQueue;
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.spilled = !spillQueue.isEmpty();
+    }
+
+    @Override
+    public synchronized void enqueue(SessionRegistry.EnqueuedMessage message) {
+        checkEnqueuePreconditions(message);
+        addToMemory(message);
+        spillOverflow();
+    }
+
+    @Override
+    public synchronized void enqueueAll(Collection<? extends SessionRegistry.EnqueuedMessage> messages) {
+        for (SessionRegistry.EnqueuedMessage message : messages) {
+            checkEnqueuePreconditions(message);
+        }
+        for (SessionRegistry.EnqueuedMessage message : messages) {
+            addToMemory(message);
+        }
+        spillOverflow();
+    }
+
+    private void addToMemory(SessionRegistry.EnqueuedMessage message) {
+        memory.addLast(message);
+        memoryBytes += message.payloadSize();
+    }
+
+    /**
+     * Move the oldest messages in memory over the limits to the spill queue, with a single bulk write.
+     * */
+    private void spillOverflow() {
+        List<SessionRegistry.EnqueuedMessage> overflow = null;
+        while (isOverLimits()) {
+            if (overflow == null) {
+                overflow = new ArrayList<>();
+            }
+            overflow.add(pollMemory());
+        }
+        if (overflow != null) {
+            spill(overflow);
+        }
+    }
+
+    private boolean isOverLimits() {
+        return (maxMessages > 0 && memory.size() > maxMessages) || (maxBytes > 0 && memoryBytes > maxBytes);
+    }
+
+    private void spill(List<SessionRegistry.EnqueuedMessage> messages) {
+        // the spill queue takes the ownership of the messages
+        spillQueue.enqueueAll(messages);
+        spilled = true;
+    }
+
+    private SessionRegistry.EnqueuedMessage pollMemory() {
+        final SessionRegistry.EnqueuedMessage message = memory.pollFirst();
+        if (message != null) {
+            memoryBytes -= message.payloadSize();
+        }
+        return message;
+    }
+
+    @Override
+    public synchronized SessionRegistry.EnqueuedMessage dequeue() {
+        checkDequeuePreconditions();
+        if (spilled) {
+            final SessionRegistry.EnqueuedMessage message = spillQueue.dequeue();
+            if (message != null) {
+                return message;
+            }
+            spilled = false;
+        }
+        return pollMemory();
+    }
+
+    @Override
+    public synchronized boolean isEmpty() {
+        checkIsEmptyPreconditions();
+        return memory.isEmpty() && (!spilled || spillQueue.isEmpty());
+    }
+
+    @Override
+    public synchronized int size() {
+        return memory.size() + (spilled ? spillQueue.size() : 0);
+    }
+
+    @Override
+    public synchronized long payloadBytes() {
+        return memoryBytes + (spilled ? spillQueue.payloadBytes() : 0);
+    }
+
+    /**
+     * Move all the messages in memory to the spill queue, so they survive a restart.
+     * */
+    synchronized void spillAll() {
+        if (closed || memory.isEmpty()) {
+            return;
+        }
+        final List<SessionRegistry.EnqueuedMessage> messages = new ArrayList<>(memory);
+        memory.clear();
+        memoryBytes = 0;
+        spill(messages);
+    }
+
+    @Override
+    public synchronized void closeAndPurge() {
+        for (SessionRegistry.EnqueuedMessage message : memory) {
+            message.release();
+        }
+        memory.clear();
+        memoryBytes = 0;
+        spillQueue.closeAndPurge();
+        queueRepository.dropQueue(queueName, this);
+        this.closed = true;
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.moquette.broker.metrics.QueueCompactionMetrics;
+import io.moquette.broker.metrics.QueueDurabilityMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Wraps the queues of a persistent repository in TieredQueue, keeping the newest messages of each session
+ * in memory. On close the messages in memory are spilled, before closing the wrapped repository.
+ *
+ * The messages in memory are never durable, so a repository that awaits commits, like the segmented queues
+ * with group commit, can't be wrapped: its commits would confirm messages that are only in memory.
+ * */
+public class TieredQueueRepository implements IQueueRepository {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TieredQueueRepository.class);
+
+    private final IQueueRepository spillRepository;
+    private final int maxMessages;
+    private final long maxBytes;
+    // the same queue has to be returned to all the requests, the memory tier is not shared otherwise
+    private final ConcurrentMap<String, TieredQueue> queues = new ConcurrentHashMap<>();
+
+    /**
+     * @param maxMessages messages kept in memory by each queue, 0 for no limit.
+     * @param maxBytes payload bytes kept in memory by each queue, 0 for no limit.
+     * */
+    public TieredQueueRepository(IQueueRepository spillRepository, int maxMessages, long maxBytes) {
+        if (maxMessages <= 0 && maxBytes <= 0) {
+            throw new IllegalArgumentException("At least one of the messages or bytes limits has to be set");
+        }
+        if (spillRepository.isCommitAwaited()) {
+            throw new IllegalArgumentException("The messages kept in memory can't be committed, the queues " +
+                "repository awaiting commits can't be tiered");
+        }
+        this.spillRepository = spillRepository;
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public Set<String> listQueueNames() {
+        return spillRepository.listQueueNames();
+    }
+
+    @Override
+    public boolean containsQueue(String clientId) {
+        return spillRepository.containsQueue(clientId);
+    }
+
+    @Override
+    public SessionMessageQueue<SessionRegistry.EnqueuedMessage> getOrCreateQueue(String clientId) {
+        return queues.computeIfAbsent(clientId, id -> new TieredQueue(this, id,
+            spillRepository.getOrCreateQueue(id), maxMessages, maxBytes));
+    }
+
+    void dropQueue(String queueName, TieredQueue queue) {
+        queues.remove(queueName, queue);
+    }
+
+    @Override
+    public Optional<QueueDurabilityMetrics> durabilityMetrics() {
+        return spillRepository.durabilityMetrics();
+    }
+
+    @Override
+    public Optional<QueueCompactionMetrics> compactionMetrics() {
+        return spillRepository.compactionMetrics();
+    }
+
+    @Override
+    public void close() {
+        for (TieredQueue queue : queues.values()) {
+            try {
+                queue.spillAll();
+            } catch (RuntimeException e) {
+                LOG.error("Error spilling the messages in memory of a session queue", e);
+            }
+        }
+        queues.clear();
+        spillRepository.close();
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package io.moquette.broker.metrics;
+
+/**
+ * Snapshot of the throttling of the publishers done when the session loops are overloaded.
+ */
+public class BackpressureMetrics {
+
+    private final long throttleEvents;
+    private final int throttledChannels;
+    private final long throttledTimeMillis;
+    private final long highWatermark;
+    private final long lowWatermark;
+
+    public BackpressureMetrics(long throttleEvents, int throttledChannels, long throttledTimeMillis,
+                               long highWatermark, long lowWatermark) {
+        this.throttleEvents = throttleEvents;
+        this.throttledChannels = throttledChannels;
+        this.throttledTimeMillis = throttledTimeMillis;
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+    }
+
+    /**
+     * @return how many times a publisher's channel stopped reading.
+     * */
+    public long throttleEvents() {
+        return throttleEvents;
+    }
+
+    /**
+     * @return the channels currently not reading.
+     * */
+    public int throttledChannels() {
+        return throttledChannels;
+    }
+
+    /**
+     * @return the time spent throttled summed over all the channels, including the ones still throttled.
+     * */
+    public long throttledTimeMillis() {
+        return throttledTimeMillis;
+    }
+
+    /**
+     * @return queued commands in a session queue that throttle the publishers routing to it.
+     * */
+    public long highWatermark() {
+        return highWatermark;
+    }
+
+    /**
+     * @return queued commands under which, in every session queue it was throttled on, a publisher is resumed.
+     * */
+    public long lowWatermark() {
+        return lowWatermark;
+    }
+
+    @Override
+    public String toString() {
+        return "BackpressureMetrics{throttleEvents=" + throttleEvents + ", throttledChannels=" + throttledChannels +
+            ", throttledTimeMillis=" + throttledTimeMillis + ", highWatermark=" + highWatermark +
+            ", lowWatermark=" + lowWatermark + '}';
+    }
+}
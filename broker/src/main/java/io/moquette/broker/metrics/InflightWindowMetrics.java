@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package io.moquette.broker.metrics;
+
+/**
+ * Snapshot of the inflight window of a connected session.
+ */
+public class InflightWindowMetrics {
+
+    private final String clientId;
+    private final boolean adaptive;
+    private final int windowSize;
+    private final int inflightMessages;
+    private final long ackRoundTripMicros;
+    private final long resends;
+
+    public InflightWindowMetrics(String clientId, boolean adaptive, int windowSize, int inflightMessages,
+                                 long ackRoundTripMicros, long resends) {
+        this.clientId = clientId;
+        this.adaptive = adaptive;
+        this.windowSize = windowSize;
+        this.inflightMessages = inflightMessages;
+        this.ackRoundTripMicros = ackRoundTripMicros;
+        this.resends = resends;
+    }
+
+    public String clientId() {
+        return clientId;
+    }
+
+    /**
+     * @return true if the window adapts to the ack latency of the client.
+     * */
+    public boolean adaptive() {
+        return adaptive;
+    }
+
+    /**
+     * @return the current max number of messages not yet acked.
+     * */
+    public int windowSize() {
+        return windowSize;
+    }
+
+    public int inflightMessages() {
+        return inflightMessages;
+    }
+
+    /**
+     * @return the smoothed round trip time of the acks, -1 if not measured.
+     * */
+    public long ackRoundTripMicros() {
+        return ackRoundTripMicros;
+    }
+
+    /**
+     * @return the packets resent because not acked in time, counted only by the adaptive window.
+     * */
+    public long resends() {
+        return resends;
+    }
+
+    @Override
+    public String toString() {
+        return "InflightWindowMetrics{clientId='" + clientId + '\'' + ", adaptive=" + adaptive +
+            ", windowSize=" + windowSize + ", inflightMessages=" + inflightMessages +
+            ", ackRoundTripMicros=" + ackRoundTripMicros + ", resends=" + resends + '}';
+    }
+}
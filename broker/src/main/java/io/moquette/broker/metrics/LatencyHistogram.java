@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package io.moquette.broker.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free recorder of latencies, in buckets of logarithmic size: each power of two is split in 4 buckets,
+ * so the percentiles have an error under 25%.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKETS = 4;
+    private static final int BUCKETS = SUB_BUCKETS * 62;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    public void record(long nanos) {
+        counts.incrementAndGet(bucket(Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos))));
+    }
+
+    private static int bucket(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        final int msb = 63 - Long.numberOfLeadingZeros(micros);
+        return SUB_BUCKETS * (msb - 1) + (int) ((micros >>> (msb - 2)) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * @return the highest value contained in the bucket.
+     * */
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        final int msb = bucket / SUB_BUCKETS + 1;
+        final long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (msb - 2);
+        return lower + (1L << (msb - 2)) - 1;
+    }
+
+    public LatencyMetrics snapshot() {
+        final long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        int highest = -1;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+            if (snapshot[i] != 0) {
+                highest = i;
+            }
+        }
+        if (total == 0) {
+            return new LatencyMetrics(0, 0, 0, 0, 0, 0);
+        }
+        return new LatencyMetrics(total, percentile(snapshot, total, 0.5), percentile(snapshot, total, 0.9),
+                                  percentile(snapshot, total, 0.99), percentile(snapshot, total, 0.999),
+                                  upperBound(highest));
+    }
+
+    private static long percentile(long[] snapshot, long total, double percentile) {
+        final long rank = (long) Math.ceil(total * percentile);
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(snapshot.length - 1);
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package io.moquette.broker.metrics;
+
+/**
+ * Snapshot of a LatencyHistogram, the values are in microseconds.
+ */
+public class LatencyMetrics {
+
+    private final long count;
+    private final long p50Micros;
+    private final long p90Micros;
+    private final long p99Micros;
+    private final long p999Micros;
+    private final long maxMicros;
+
+    public LatencyMetrics(long count, long p50Micros, long p90Micros, long p99Micros, long p999Micros,
+                          long maxMicros) {
+        this.count = count;
+        this.p50Micros = p50Micros;
+        this.p90Micros = p90Micros;
+        this.p99Micros = p99Micros;
+        this.p999Micros = p999Micros;
+        this.maxMicros = maxMicros;
+    }
+
+    /**
+     * @return number of recorded latencies.
+     * */
+    public long count() {
+        return count;
+    }
+
+    public long p50Micros() {
+        return p50Micros;
+    }
+
+    public long p90Micros() {
+        return p90Micros;
+    }
+
+    public long p99Micros() {
+        return p99Micros;
+    }
+
+    public long p999Micros() {
+        return p999Micros;
+    }
+
+    public long maxMicros() {
+        return maxMicros;
+    }
+
+    @Override
+    public String toString() {
+        return "LatencyMetrics{count=" + count + ", p50Micros=" + p50Micros + ", p90Micros=" + p90Micros +
+            ", p99Micros=" + p99Micros + ", p999Micros=" + p999Micros + ", maxMicros=" + maxMicros + '}';
+    }
+}
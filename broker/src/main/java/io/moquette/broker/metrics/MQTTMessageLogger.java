@@ -17,6 +17,7 @@
 package io.moquette.broker.metrics;
 
 import io.moquette.broker.NettyUtils;
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelDuplexHandler;
 import io.netty.channel.ChannelHandler.Sharable;
 import io.netty.channel.ChannelHandlerContext;
@@ -26,6 +27,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
 
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 
 import static io.moquette.broker.Utils.messageId;
@@ -72,6 +74,10 @@ public class MQTTMessageLogger extends ChannelDuplexHandler {
     }
 
     private void logMQTTMessage(ChannelHandlerContext ctx, Object message, String direction) throws Exception {
+        if (message instanceof ByteBuf) {
+            logEncodedPublish(ctx, (ByteBuf) message, direction);
+            return;
+        }
         if (!(message instanceof MqttMessage)) {
             return;
         }
@@ -118,6 +124,29 @@ public class MQTTMessageLogger extends ChannelDuplexHandler {
         }
     }
 
+    /**
+     * The PUBLISH of a message delivered to many subscribers is written already encoded, the topic is read from
+     * its variable header without moving the reader index.
+     * */
+    private void logEncodedPublish(ChannelHandlerContext ctx, ByteBuf frame, String direction) {
+        if (!LOG.isDebugEnabled() || !frame.isReadable()) {
+            return;
+        }
+        int index = frame.readerIndex();
+        if ((frame.getUnsignedByte(index) >> 4) != MqttMessageType.PUBLISH.value()) {
+            return;
+        }
+        // skip the remaining length, from 1 to 4 bytes with the continuation bit
+        do {
+            index++;
+        } while ((frame.getUnsignedByte(index) & 0x80) != 0);
+        index++;
+        final int topicLength = frame.getUnsignedShort(index);
+        final String topic = frame.toString(index + 2, topicLength, StandardCharsets.UTF_8);
+        MDC.put("msg.type", "[" + MqttMessageType.PUBLISH.name() + "]");
+        LOG.debug("{} PUBLISH <{}> to topics <{}>", direction, NettyUtils.clientID(ctx.channel()), topic);
+    }
+
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
         updateFishtags(ctx);
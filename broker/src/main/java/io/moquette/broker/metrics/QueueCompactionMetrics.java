@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package io.moquette.broker.metrics;
+
+/**
+ * Snapshot of the progress of the compaction of the segmented queues pages.
+ */
+public class QueueCompactionMetrics {
+
+    private final boolean enabled;
+    private final long runs;
+    private final long movedSegments;
+    private final long movedBytes;
+    private final long pendingSegments;
+    private final long deletedPageFiles;
+    private final int pageFiles;
+    private final long lastRunMillis;
+
+    public QueueCompactionMetrics(boolean enabled, long runs, long movedSegments, long movedBytes,
+                                  long pendingSegments, long deletedPageFiles, int pageFiles, long lastRunMillis) {
+        this.enabled = enabled;
+        this.runs = runs;
+        this.movedSegments = movedSegments;
+        this.movedBytes = movedBytes;
+        this.pendingSegments = pendingSegments;
+        this.deletedPageFiles = deletedPageFiles;
+        this.pageFiles = pageFiles;
+        this.lastRunMillis = lastRunMillis;
+    }
+
+    /**
+     * @return true if the background compaction runs.
+     * */
+    public boolean enabled() {
+        return enabled;
+    }
+
+    /**
+     * @return number of completed runs.
+     * */
+    public long runs() {
+        return runs;
+    }
+
+    /**
+     * @return segments moved out of the trailing pages since the start.
+     * */
+    public long movedSegments() {
+        return movedSegments;
+    }
+
+    /**
+     * @return bytes copied by the moves of the segments.
+     * */
+    public long movedBytes() {
+        return movedBytes;
+    }
+
+    /**
+     * @return segments still to move in the run in progress, 0 if none is moving.
+     * */
+    public long pendingSegments() {
+        return pendingSegments;
+    }
+
+    /**
+     * @return page files deleted since the start.
+     * */
+    public long deletedPageFiles() {
+        return deletedPageFiles;
+    }
+
+    /**
+     * @return page files currently on the disk.
+     * */
+    public int pageFiles() {
+        return pageFiles;
+    }
+
+    /**
+     * @return duration of the last run.
+     * */
+    public long lastRunMillis() {
+        return lastRunMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "QueueCompactionMetrics{enabled=" + enabled + ", runs=" + runs + ", movedSegments=" + movedSegments +
+            ", movedBytes=" + movedBytes + ", pendingSegments=" + pendingSegments + ", deletedPageFiles=" +
+            deletedPageFiles + ", pageFiles=" + pageFiles + ", lastRunMillis=" + lastRunMillis + '}';
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package io.moquette.broker.metrics;
+
+/**
+ * Snapshot of the durability policy of the segmented queues and of the latencies it adds.
+ */
+public class QueueDurabilityMetrics {
+
+    private final String mode;
+    private final LatencyMetrics enqueueLatency;
+    private final LatencyMetrics forceLatency;
+    private final LatencyMetrics commitLatency;
+    private final long corruptedRecords;
+
+    public QueueDurabilityMetrics(String mode, LatencyMetrics enqueueLatency, LatencyMetrics forceLatency,
+                                  LatencyMetrics commitLatency, long corruptedRecords) {
+        this.mode = mode;
+        this.enqueueLatency = enqueueLatency;
+        this.forceLatency = forceLatency;
+        this.commitLatency = commitLatency;
+        this.corruptedRecords = corruptedRecords;
+    }
+
+    /**
+     * @return the configured durability mode: none, periodic or group_commit.
+     * */
+    public String mode() {
+        return mode;
+    }
+
+    /**
+     * @return time spent writing messages into the segments.
+     * */
+    public LatencyMetrics enqueueLatency() {
+        return enqueueLatency;
+    }
+
+    /**
+     * @return time spent forcing the dirty pages and the journal to the disk.
+     * */
+    public LatencyMetrics forceLatency() {
+        return forceLatency;
+    }
+
+    /**
+     * @return delay of the QoS1 acknowledges waiting for a group commit.
+     * */
+    public LatencyMetrics commitLatency() {
+        return commitLatency;
+    }
+
+    /**
+     * @return records found with a checksum mismatch while dequeuing, skipped by their queues.
+     * */
+    public long corruptedRecords() {
+        return corruptedRecords;
+    }
+
+    @Override
+    public String toString() {
+        return "QueueDurabilityMetrics{mode='" + mode + '\'' + ", enqueueLatency=" + enqueueLatency +
+            ", forceLatency=" + forceLatency + ", commitLatency=" + commitLatency +
+            ", corruptedRecords=" + corruptedRecords + '}';
+    }
+}
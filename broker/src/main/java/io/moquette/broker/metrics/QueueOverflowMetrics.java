@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package io.moquette.broker.metrics;
+
+/**
+ * Snapshot of the messages dropped by the limits of the session queues, since the start.
+ */
+public class QueueOverflowMetrics {
+
+    private final long droppedOldest;
+    private final long droppedNewest;
+    private final long droppedOnDisconnect;
+    private final long droppedBytes;
+    private final long disconnectedSessions;
+    private final long expiredSessions;
+
+    public QueueOverflowMetrics(long droppedOldest, long droppedNewest, long droppedOnDisconnect, long droppedBytes,
+                                long disconnectedSessions, long expiredSessions) {
+        this.droppedOldest = droppedOldest;
+        this.droppedNewest = droppedNewest;
+        this.droppedOnDisconnect = droppedOnDisconnect;
+        this.droppedBytes = droppedBytes;
+        this.disconnectedSessions = disconnectedSessions;
+        this.expiredSessions = expiredSessions;
+    }
+
+    /**
+     * @return queued messages dropped to make room for newer ones.
+     * */
+    public long droppedOldest() {
+        return droppedOldest;
+    }
+
+    /**
+     * @return new messages dropped because the queue was full.
+     * */
+    public long droppedNewest() {
+        return droppedNewest;
+    }
+
+    /**
+     * @return new messages dropped by the queues that disconnect or expire their session.
+     * */
+    public long droppedOnDisconnect() {
+        return droppedOnDisconnect;
+    }
+
+    /**
+     * @return payload bytes of all the dropped messages.
+     * */
+    public long droppedBytes() {
+        return droppedBytes;
+    }
+
+    /**
+     * @return connections closed because the queue of their session was full.
+     * */
+    public long disconnectedSessions() {
+        return disconnectedSessions;
+    }
+
+    /**
+     * @return not connected sessions expired because their queue was full.
+     * */
+    public long expiredSessions() {
+        return expiredSessions;
+    }
+
+    @Override
+    public String toString() {
+        return "QueueOverflowMetrics{droppedOldest=" + droppedOldest + ", droppedNewest=" + droppedNewest +
+            ", droppedOnDisconnect=" + droppedOnDisconnect + ", droppedBytes=" + droppedBytes +
+            ", disconnectedSessions=" + disconnectedSessions + ", expiredSessions=" + expiredSessions + '}';
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package io.moquette.broker.metrics;
+
+/**
+ * Snapshot of the load of a session event loop.
+ */
+public class SessionLoopMetrics {
+
+    private final int loopId;
+    private final long queuedCommands;
+    private final int queueCapacity;
+    private final long executedCommands;
+    private final long rejectedCommands;
+    private final long reroutedCommands;
+    private final long parkedCommands;
+    private final int pinnedSessions;
+
+    public SessionLoopMetrics(int loopId, long queuedCommands, int queueCapacity, long executedCommands,
+                              long rejectedCommands, long reroutedCommands, long parkedCommands,
+                              int pinnedSessions) {
+        this.loopId = loopId;
+        this.queuedCommands = queuedCommands;
+        this.queueCapacity = queueCapacity;
+        this.executedCommands = executedCommands;
+        this.rejectedCommands = rejectedCommands;
+        this.reroutedCommands = reroutedCommands;
+        this.parkedCommands = parkedCommands;
+        this.pinnedSessions = pinnedSessions;
+    }
+
+    public int loopId() {
+        return loopId;
+    }
+
+    /**
+     * @return the commands waiting in the queue of the loop.
+     * */
+    public long queuedCommands() {
+        return queuedCommands;
+    }
+
+    public int queueCapacity() {
+        return queueCapacity;
+    }
+
+    public long executedCommands() {
+        return executedCommands;
+    }
+
+    /**
+     * @return the commands not accepted because the queue was full.
+     * */
+    public long rejectedCommands() {
+        return rejectedCommands;
+    }
+
+    /**
+     * @return the commands forwarded to another loop because their session was moved.
+     * */
+    public long reroutedCommands() {
+        return reroutedCommands;
+    }
+
+    /**
+     * @return the commands of throttled publishers parked because the queue was full, instead of rejected.
+     * */
+    public long parkedCommands() {
+        return parkedCommands;
+    }
+
+    /**
+     * @return the sessions explicitly assigned to this loop by the affinity table.
+     * */
+    public int pinnedSessions() {
+        return pinnedSessions;
+    }
+
+    @Override
+    public String toString() {
+        return "SessionLoopMetrics{loopId=" + loopId + ", queuedCommands=" + queuedCommands +
+            ", queueCapacity=" + queueCapacity + ", executedCommands=" + executedCommands +
+            ", rejectedCommands=" + rejectedCommands + ", reroutedCommands=" + reroutedCommands +
+            ", parkedCommands=" + parkedCommands + ", pinnedSessions=" + pinnedSessions + '}';
+    }
+}
@@ -20,19 +20,21 @@ import java.util.*;
 class CNode {
 
     private Token token;
-    private List<INode> children;
+    private ChildrenIndex children;
     Set<Subscription> subscriptions;
+    // snapshot of subscriptions, lazily created and reset on any change, used to iterate without allocations
+    private volatile Subscription[] subscriptionsArray;
 
     CNode() {
-        this.children = new ArrayList<>();
+        this.children = ChildrenIndex.EMPTY;
         this.subscriptions = new HashSet<>();
     }
 
     //Copy constructor
-    private CNode(Token token, List<INode> children, Set<Subscription> subscriptions) {
+    private CNode(Token token, ChildrenIndex children, Set<Subscription> subscriptions) {
         this.token = token; // keep reference, root comparison in directory logic relies on it for now.
         this.subscriptions = new HashSet<>(subscriptions);
-        this.children = new ArrayList<>(children);
+        this.children = children; // immutable, safe to share between copies
     }
 
     public Token getToken() {
@@ -44,31 +46,47 @@ class CNode {
     }
 
     boolean anyChildrenMatch(Token token) {
-        for (INode iNode : children) {
-            final CNode child = iNode.mainNode();
-            if (child.equalsToken(token)) {
-                return true;
-            }
-        }
-        return false;
+        return liveChild(token) != null;
     }
 
     List<INode> allChildren() {
-        return this.children;
+        return this.children.values();
+    }
+
+    boolean hasChildren() {
+        return !this.children.isEmpty();
     }
 
     INode childOf(Token token) {
-        for (INode iNode : children) {
-            final CNode child = iNode.mainNode();
-            if (child.equalsToken(token)) {
-                return iNode;
-            }
+        final INode child = liveChild(token);
+        if (child == null) {
+            throw new IllegalArgumentException("Asked for a token that doesn't exists in any child [" + token + "]");
         }
-        throw new IllegalArgumentException("Asked for a token that doesn't exists in any child [" + token + "]");
+        return child;
+    }
+
+    /**
+     * @return the child with the exact token, null if not present or already tombed.
+     * */
+    INode literalChild(Token token) {
+        return liveChild(token);
     }
 
-    private boolean equalsToken(Token token) {
-        return token != null && this.token != null && this.token.equals(token);
+    INode singleWildcardChild() {
+        return children.singleWildcard();
+    }
+
+    INode multiWildcardChild() {
+        return children.multiWildcard();
+    }
+
+    private INode liveChild(Token token) {
+        if (token == null) {
+            return null;
+        }
+        final INode child = children.get(token);
+        // a tombed child is waiting for cleanTomb, it's not considered a match anymore
+        return child == null || child.isTombed() ? null : child;
     }
 
     @Override
@@ -81,14 +99,27 @@ class CNode {
     }
 
     public void add(INode newINode) {
-        this.children.add(newINode);
+        this.children = this.children.with(newINode.mainNode().getToken(), newINode);
     }
 
-    public void remove(INode node) {
-        this.children.remove(node);
+    public void remove(Token token, INode node) {
+        this.children = this.children.without(token, node);
+    }
+
+    /**
+     * @return the subscriptions of this node as array. It must not be modified by the caller.
+     * */
+    Subscription[] subscriptionsArray() {
+        Subscription[] snapshot = subscriptionsArray;
+        if (snapshot == null) {
+            snapshot = subscriptions.toArray(new Subscription[0]);
+            subscriptionsArray = snapshot;
+        }
+        return snapshot;
     }
 
     CNode addSubscription(Subscription newSubscription) {
+        subscriptionsArray = null;
         // if already contains one with same topic and same client, keep that with higher QoS
         if (subscriptions.contains(newSubscription)) {
             final Subscription existing = subscriptions.stream()
@@ -128,6 +159,7 @@ class CNode {
     }
 
     void removeSubscriptionsFor(String clientId) {
+        subscriptionsArray = null;
         Set<Subscription> toRemove = new HashSet<>();
         for (Subscription sub : this.subscriptions) {
             if (sub.getClientId().equals(clientId)) {
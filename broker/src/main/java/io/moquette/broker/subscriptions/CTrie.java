@@ -1,9 +1,12 @@
 package io.moquette.broker.subscriptions;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Optional;
 import java.util.Set;
+import java.util.function.Consumer;
 
 public class CTrie {
 
@@ -16,6 +19,44 @@ public class CTrie {
 
     private static final Token ROOT = new Token("root");
     private static final INode NO_PARENT = null;
+    private static final ThreadLocal<MatchStack> MATCH_STACKS = ThreadLocal.withInitial(MatchStack::new);
+
+    /**
+     * Stack of the nodes still to be visited by the matcher, each one paired with the number of topic's
+     * tokens consumed to reach it. Instances are reused by the same thread, so the match doesn't
+     * allocate.
+     * */
+    private static final class MatchStack {
+        private INode[] nodes = new INode[16];
+        private int[] levels = new int[16];
+        private int size;
+
+        void push(INode node, int level) {
+            if (size == nodes.length) {
+                nodes = Arrays.copyOf(nodes, size * 2);
+                levels = Arrays.copyOf(levels, size * 2);
+            }
+            nodes[size] = node;
+            levels[size] = level;
+            size++;
+        }
+
+        int size() {
+            return size;
+        }
+
+        int peekLevel() {
+            return levels[size - 1];
+        }
+
+        INode pop() {
+            size--;
+            final INode node = nodes[size];
+            // don't retain references to the trie nodes between matches
+            nodes[size] = null;
+            return node;
+        }
+    }
 
     private enum Action {
         OK, REPEAT
@@ -82,12 +123,78 @@ public class CTrie {
         if (remainingTopic.isEmpty()) {
             subscriptions.addAll(cnode.subscriptions);
         }
-        for (INode subInode : cnode.allChildren()) {
-            subscriptions.addAll(recursiveMatch(remainingTopic, subInode));
+        // only the children that could match are visited, no scan of the literal ones
+        final INode multiInode = cnode.multiWildcardChild();
+        if (multiInode != null) {
+            subscriptions.addAll(recursiveMatch(remainingTopic, multiInode));
+        }
+        if (remainingTopic.isEmpty()) {
+            return subscriptions;
+        }
+        final INode singleInode = cnode.singleWildcardChild();
+        if (singleInode != null) {
+            subscriptions.addAll(recursiveMatch(remainingTopic, singleInode));
+        }
+        final INode literalInode = cnode.literalChild(remainingTopic.headToken());
+        if (literalInode != null && literalInode != singleInode && literalInode != multiInode) {
+            subscriptions.addAll(recursiveMatch(remainingTopic, literalInode));
         }
         return subscriptions;
     }
 
+    /**
+     * Iterative version of recursiveMatch, walks the tokens of the topic with a cursor and pushes every
+     * subscription that matches into the sink.
+     *
+     * @param topic the topic to match, it can't contain wildcards.
+     * @param sink the consumer of the matching subscriptions, each subscription is pushed at most once.
+     * */
+    public void match(Topic topic, Consumer<Subscription> sink) {
+        final List<Token> tokens = topic.getTokens();
+        if (tokens == null || tokens.isEmpty()) {
+            return;
+        }
+        final int tokensCount = tokens.size();
+        final MatchStack stack = MATCH_STACKS.get();
+        // a sink could match again from the same thread, so visit only the entries pushed by this call
+        final int base = stack.size();
+        stack.push(this.root, 0);
+        while (stack.size() > base) {
+            final int level = stack.peekLevel();
+            final CNode cnode = stack.pop().mainNode();
+            if (cnode instanceof TNode) {
+                continue;
+            }
+            if (level == tokensCount) {
+                emitAll(cnode, sink);
+            }
+            final INode multiInode = cnode.multiWildcardChild();
+            if (multiInode != null) {
+                final CNode multi = multiInode.mainNode();
+                if (!(multi instanceof TNode)) {
+                    emitAll(multi, sink);
+                }
+            }
+            if (level == tokensCount) {
+                continue;
+            }
+            final INode singleInode = cnode.singleWildcardChild();
+            if (singleInode != null) {
+                stack.push(singleInode, level + 1);
+            }
+            final INode literalInode = cnode.literalChild(tokens.get(level));
+            if (literalInode != null && literalInode != singleInode && literalInode != multiInode) {
+                stack.push(literalInode, level + 1);
+            }
+        }
+    }
+
+    private static void emitAll(CNode cnode, Consumer<Subscription> sink) {
+        for (Subscription subscription : cnode.subscriptionsArray()) {
+            sink.accept(subscription);
+        }
+    }
+
     public void addToTree(Subscription newSubscription) {
         Action res;
         do {
@@ -171,13 +278,13 @@ public class CTrie {
                 // Consider calling cleanTomb here too
                 return Action.OK;
             }
-            if (cnode.containsOnly(clientId) && topic.isEmpty() && cnode.allChildren().isEmpty()) {
+            if (cnode.containsOnly(clientId) && topic.isEmpty() && !cnode.hasChildren()) {
                 // last client to leave this node, AND there are no downstream children, remove via TNode tomb
                 if (inode == this.root) {
                     return inode.compareAndSet(cnode, inode.mainNode().copy()) ? Action.OK : Action.REPEAT;
                 }
                 TNode tnode = new TNode();
-                return inode.compareAndSet(cnode, tnode) ? cleanTomb(inode, iParent) : Action.REPEAT;
+                return inode.compareAndSet(cnode, tnode) ? cleanTomb(inode, cnode.getToken(), iParent) : Action.REPEAT;
             } else if (cnode.contains(clientId) && topic.isEmpty()) {
                 CNode updatedCnode = cnode.copy();
                 updatedCnode.removeSubscriptionsFor(clientId);
@@ -198,12 +305,13 @@ public class CTrie {
      *
      *
      * @param inode inode that handle to the tomb node.
+     * @param token the token the tombed node was indexed with in the parent.
      * @param iParent inode parent.
      * @return REPEAT if the this methods wasn't successful or OK.
      */
-    private Action cleanTomb(INode inode, INode iParent) {
+    private Action cleanTomb(INode inode, Token token, INode iParent) {
         CNode updatedCnode = iParent.mainNode().copy();
-        updatedCnode.remove(inode);
+        updatedCnode.remove(token, inode);
         return iParent.compareAndSet(iParent.mainNode(), updatedCnode) ? Action.OK : Action.REPEAT;
     }
 
@@ -20,12 +20,17 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
 
     private static final Logger LOG = LoggerFactory.getLogger(CTrieSubscriptionDirectory.class);
+    private static final ThreadLocal<QosSharpeningSink> QOS_SHARPENING_SINKS =
+        ThreadLocal.withInitial(QosSharpeningSink::new);
 
     private CTrie ctrie;
+    private final AtomicLong generation = new AtomicLong();
     private volatile ISubscriptionsRepository subscriptionsRepository;
 
     @Override
@@ -77,27 +82,44 @@ public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
      */
     @Override
     public Set<Subscription> matchWithoutQosSharpening(Topic topic) {
-        return ctrie.recursiveMatch(topic);
+        final Set<Subscription> subscriptions = new HashSet<>();
+        ctrie.match(topic, subscriptions::add);
+        return subscriptions;
     }
 
     @Override
     public Set<Subscription> matchQosSharpening(Topic topic) {
-        final Set<Subscription> subscriptions = matchWithoutQosSharpening(topic);
-
-        Map<String, Subscription> subsGroupedByClient = new HashMap<>();
-        for (Subscription sub : subscriptions) {
-            Subscription existingSub = subsGroupedByClient.get(sub.getClientId());
-            // update the selected subscriptions if not present or if has a greater qos
-            if (existingSub == null || existingSub.qosLessThan(sub)) {
-                subsGroupedByClient.put(sub.getClientId(), sub);
-            }
+        final Set<Subscription> subscriptions = new HashSet<>();
+        matchQosSharpening(topic, subscriptions::add);
+        return subscriptions;
+    }
+
+    @Override
+    public void matchQosSharpening(Topic topic, Consumer<Subscription> sink) {
+        QosSharpeningSink sharpening = QOS_SHARPENING_SINKS.get();
+        if (!sharpening.acquire()) {
+            // invoked again from inside a sink, the thread's instance is busy
+            sharpening = new QosSharpeningSink();
+            sharpening.acquire();
         }
-        return new HashSet<>(subsGroupedByClient.values());
+        try {
+            ctrie.match(topic, sharpening);
+        } catch (RuntimeException ex) {
+            sharpening.release();
+            throw ex;
+        }
+        sharpening.drainTo(sink);
+    }
+
+    @Override
+    public void match(Topic topic, Consumer<Subscription> sink) {
+        ctrie.match(topic, sink);
     }
 
     @Override
     public void add(Subscription newSubscription) {
         ctrie.addToTree(newSubscription);
+        generation.incrementAndGet();
         subscriptionsRepository.addNewSubscription(newSubscription);
     }
 
@@ -111,9 +133,15 @@ public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
     @Override
     public void removeSubscription(Topic topic, String clientID) {
         ctrie.removeFromTree(topic, clientID);
+        generation.incrementAndGet();
         this.subscriptionsRepository.removeSubscription(topic.toString(), clientID);
     }
 
+    @Override
+    public long generation() {
+        return generation.get();
+    }
+
     @Override
     public int size() {
         return ctrie.size();
@@ -0,0 +1,358 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Immutable index of the children of a CNode, keyed by the Token of each child.
+ *
+ * The wildcard children (+ and #) are kept in dedicated slots, while the literal ones are stored
+ * in a persistent hash array mapped trie, so that updates share the untouched branches with the
+ * previous version. This keeps the copy on write of CNode cheap also when a level has hundreds of
+ * thousands of children.
+ */
+final class ChildrenIndex {
+
+    static final ChildrenIndex EMPTY = new ChildrenIndex(null, null, null);
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    private final INode single;
+    private final INode multi;
+    private final Node literals;
+
+    private ChildrenIndex(INode single, INode multi, Node literals) {
+        this.single = single;
+        this.multi = multi;
+        this.literals = literals;
+    }
+
+    /**
+     * @return the child mapped to the token, null if not present.
+     */
+    INode get(Token token) {
+        if (Token.SINGLE.equals(token)) {
+            return single;
+        }
+        if (Token.MULTI.equals(token)) {
+            return multi;
+        }
+        return literals == null ? null : literals.find(0, hash(token), token);
+    }
+
+    INode singleWildcard() {
+        return single;
+    }
+
+    INode multiWildcard() {
+        return multi;
+    }
+
+    /**
+     * @return a new index with the child mapped to token, replacing any previous mapping.
+     */
+    ChildrenIndex with(Token token, INode child) {
+        if (Token.SINGLE.equals(token)) {
+            return new ChildrenIndex(child, multi, literals);
+        }
+        if (Token.MULTI.equals(token)) {
+            return new ChildrenIndex(single, child, literals);
+        }
+        final Node updated = literals == null
+            ? BitmapNode.EMPTY.put(0, hash(token), token, child)
+            : literals.put(0, hash(token), token, child);
+        return updated == literals ? this : new ChildrenIndex(single, multi, updated);
+    }
+
+    /**
+     * @return a new index without the mapping for token, only if it's mapped exactly to child.
+     */
+    ChildrenIndex without(Token token, INode child) {
+        if (Token.SINGLE.equals(token)) {
+            return single == child ? new ChildrenIndex(null, multi, literals) : this;
+        }
+        if (Token.MULTI.equals(token)) {
+            return multi == child ? new ChildrenIndex(single, null, literals) : this;
+        }
+        if (literals == null) {
+            return this;
+        }
+        final Node updated = literals.remove(0, hash(token), token, child);
+        return updated == literals ? this : new ChildrenIndex(single, multi, updated);
+    }
+
+    boolean isEmpty() {
+        return single == null && multi == null && literals == null;
+    }
+
+    List<INode> values() {
+        final List<INode> res = new ArrayList<>();
+        if (literals != null) {
+            literals.collect(res);
+        }
+        if (single != null) {
+            res.add(single);
+        }
+        if (multi != null) {
+            res.add(multi);
+        }
+        return res;
+    }
+
+    private static int hash(Token token) {
+        final int h = token.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static int bitpos(int hash, int shift) {
+        return 1 << ((hash >>> shift) & MASK);
+    }
+
+    private interface Node {
+
+        INode find(int shift, int hash, Token key);
+
+        Node put(int shift, int hash, Token key, INode value);
+
+        /**
+         * @return the updated node, null if it remains empty.
+         */
+        Node remove(int shift, int hash, Token key, INode expected);
+
+        void collect(List<INode> out);
+    }
+
+    /**
+     * Node of the trie, the array contains key/value pairs, where a null key means that the value is
+     * a sub node.
+     */
+    private static final class BitmapNode implements Node {
+
+        static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+        private final int bitmap;
+        private final Object[] array;
+
+        BitmapNode(int bitmap, Object[] array) {
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        private int index(int bit) {
+            return 2 * Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        @Override
+        public INode find(int shift, int hash, Token key) {
+            final int bit = bitpos(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return null;
+            }
+            final int idx = index(bit);
+            final Object keyOrNull = array[idx];
+            final Object valOrNode = array[idx + 1];
+            if (keyOrNull == null) {
+                return ((Node) valOrNode).find(shift + BITS, hash, key);
+            }
+            return key.equals(keyOrNull) ? (INode) valOrNode : null;
+        }
+
+        @Override
+        public Node put(int shift, int hash, Token key, INode value) {
+            final int bit = bitpos(hash, shift);
+            final int idx = index(bit);
+            if ((bitmap & bit) == 0) {
+                final Object[] newArray = new Object[array.length + 2];
+                System.arraycopy(array, 0, newArray, 0, idx);
+                newArray[idx] = key;
+                newArray[idx + 1] = value;
+                System.arraycopy(array, idx, newArray, idx + 2, array.length - idx);
+                return new BitmapNode(bitmap | bit, newArray);
+            }
+            final Object keyOrNull = array[idx];
+            final Object valOrNode = array[idx + 1];
+            if (keyOrNull == null) {
+                final Node subNode = (Node) valOrNode;
+                final Node updated = subNode.put(shift + BITS, hash, key, value);
+                return updated == subNode ? this : withSlot(idx, null, updated);
+            }
+            if (key.equals(keyOrNull)) {
+                return valOrNode == value ? this : withSlot(idx, key, value);
+            }
+            final Token existingKey = (Token) keyOrNull;
+            final Node subNode = createNode(shift + BITS, hash(existingKey), existingKey, (INode) valOrNode,
+                                            hash, key, value);
+            return withSlot(idx, null, subNode);
+        }
+
+        @Override
+        public Node remove(int shift, int hash, Token key, INode expected) {
+            final int bit = bitpos(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return this;
+            }
+            final int idx = index(bit);
+            final Object keyOrNull = array[idx];
+            final Object valOrNode = array[idx + 1];
+            if (keyOrNull == null) {
+                final Node subNode = (Node) valOrNode;
+                final Node updated = subNode.remove(shift + BITS, hash, key, expected);
+                if (updated == subNode) {
+                    return this;
+                }
+                if (updated == null) {
+                    return withoutSlot(idx, bit);
+                }
+                if (updated instanceof BitmapNode && ((BitmapNode) updated).isSingleEntry()) {
+                    // pull up the single remaining entry, to keep the trie compact
+                    final Object[] entry = ((BitmapNode) updated).array;
+                    return withSlot(idx, entry[0], entry[1]);
+                }
+                return withSlot(idx, null, updated);
+            }
+            if (!key.equals(keyOrNull) || valOrNode != expected) {
+                return this;
+            }
+            return withoutSlot(idx, bit);
+        }
+
+        private boolean isSingleEntry() {
+            return array.length == 2 && array[0] != null;
+        }
+
+        private BitmapNode withSlot(int idx, Object key, Object value) {
+            final Object[] newArray = array.clone();
+            newArray[idx] = key;
+            newArray[idx + 1] = value;
+            return new BitmapNode(bitmap, newArray);
+        }
+
+        private BitmapNode withoutSlot(int idx, int bit) {
+            if (bitmap == bit) {
+                return null;
+            }
+            final Object[] newArray = new Object[array.length - 2];
+            System.arraycopy(array, 0, newArray, 0, idx);
+            System.arraycopy(array, idx + 2, newArray, idx, array.length - idx - 2);
+            return new BitmapNode(bitmap ^ bit, newArray);
+        }
+
+        @Override
+        public void collect(List<INode> out) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (array[i] == null) {
+                    ((Node) array[i + 1]).collect(out);
+                } else {
+                    out.add((INode) array[i + 1]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Leaf node containing keys that share the same full hash.
+     */
+    private static final class CollisionNode implements Node {
+
+        private final int hash;
+        private final Object[] array;
+
+        CollisionNode(int hash, Object[] array) {
+            this.hash = hash;
+            this.array = array;
+        }
+
+        private int indexOf(Token key) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (key.equals(array[i])) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public INode find(int shift, int hash, Token key) {
+            if (hash != this.hash) {
+                return null;
+            }
+            final int idx = indexOf(key);
+            return idx < 0 ? null : (INode) array[idx + 1];
+        }
+
+        @Override
+        public Node put(int shift, int hash, Token key, INode value) {
+            if (hash != this.hash) {
+                // nest this collision node into a bitmap node and retry
+                final BitmapNode wrapper = new BitmapNode(bitpos(this.hash, shift), new Object[] {null, this});
+                return wrapper.put(shift, hash, key, value);
+            }
+            final int idx = indexOf(key);
+            if (idx >= 0) {
+                if (array[idx + 1] == value) {
+                    return this;
+                }
+                final Object[] newArray = array.clone();
+                newArray[idx + 1] = value;
+                return new CollisionNode(hash, newArray);
+            }
+            final Object[] newArray = new Object[array.length + 2];
+            System.arraycopy(array, 0, newArray, 0, array.length);
+            newArray[array.length] = key;
+            newArray[array.length + 1] = value;
+            return new CollisionNode(hash, newArray);
+        }
+
+        @Override
+        public Node remove(int shift, int hash, Token key, INode expected) {
+            if (hash != this.hash) {
+                return this;
+            }
+            final int idx = indexOf(key);
+            if (idx < 0 || array[idx + 1] != expected) {
+                return this;
+            }
+            if (array.length == 4) {
+                final int remaining = idx == 0 ? 2 : 0;
+                return new BitmapNode(bitpos(hash, shift), new Object[] {array[remaining], array[remaining + 1]});
+            }
+            final Object[] newArray = new Object[array.length - 2];
+            System.arraycopy(array, 0, newArray, 0, idx);
+            System.arraycopy(array, idx + 2, newArray, idx, array.length - idx - 2);
+            return new CollisionNode(hash, newArray);
+        }
+
+        @Override
+        public void collect(List<INode> out) {
+            for (int i = 1; i < array.length; i += 2) {
+                out.add((INode) array[i]);
+            }
+        }
+    }
+
+    private static Node createNode(int shift, int hash1, Token key1, INode value1,
+                                   int hash2, Token key2, INode value2) {
+        if (hash1 == hash2) {
+            return new CollisionNode(hash1, new Object[] {key1, value1, key2, value2});
+        }
+        return BitmapNode.EMPTY
+            .put(shift, hash1, key1, value1)
+            .put(shift, hash2, key2, value2);
+    }
+}
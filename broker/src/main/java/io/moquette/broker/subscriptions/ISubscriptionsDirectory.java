@@ -19,6 +19,7 @@ import io.moquette.broker.ISubscriptionsRepository;
 
 import java.util.List;
 import java.util.Set;
+import java.util.function.Consumer;
 
 public interface ISubscriptionsDirectory {
 
@@ -30,10 +31,27 @@ public interface ISubscriptionsDirectory {
 
     Set<Subscription> matchQosSharpening(Topic topic);
 
+    /**
+     * Streams the matching subscriptions into the sink, selecting for each client only the one with
+     * the highest QoS.
+     * */
+    void matchQosSharpening(Topic topic, Consumer<Subscription> sink);
+
+    /**
+     * Streams the subscriptions matching the topic into the sink, without collecting them.
+     * */
+    void match(Topic topic, Consumer<Subscription> sink);
+
     void add(Subscription newSubscription);
 
     void removeSubscription(Topic topic, String clientID);
 
+    /**
+     * @return a counter that changes on every add or remove of subscriptions, used to verify if a
+     * previously computed match result is still valid.
+     * */
+    long generation();
+
     int size();
 
     String dumpTree();
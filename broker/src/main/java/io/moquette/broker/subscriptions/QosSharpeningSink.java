@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import java.util.function.Consumer;
+
+/**
+ * Sink used during the trie walk that keeps, for each client, only the matching subscription with the
+ * highest QoS. It's an open addressing table keyed by clientId, meant to be reused by the same thread
+ * so that the QoS sharpening doesn't create any intermediate collection.
+ */
+final class QosSharpeningSink implements Consumer<Subscription> {
+
+    private static final int INITIAL_CAPACITY = 32;
+    // tables bigger than this are dropped after a match, to not retain memory after a huge fan out
+    private static final int MAX_RETAINED_CAPACITY = 1 << 16;
+
+    private String[] clientIds;
+    private Subscription[] selected;
+    // slots in insertion order, used to iterate and clear without scanning the whole table
+    private int[] usedSlots;
+    private int size;
+    private boolean inUse;
+
+    QosSharpeningSink() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        clientIds = new String[capacity];
+        selected = new Subscription[capacity];
+        usedSlots = new int[capacity / 2];
+    }
+
+    boolean acquire() {
+        if (inUse) {
+            return false;
+        }
+        inUse = true;
+        return true;
+    }
+
+    @Override
+    public void accept(Subscription sub) {
+        if (size == usedSlots.length) {
+            grow();
+        }
+        final String clientId = sub.getClientId();
+        final int slot = findSlot(clientIds, clientId);
+        if (clientIds[slot] == null) {
+            clientIds[slot] = clientId;
+            selected[slot] = sub;
+            usedSlots[size++] = slot;
+        } else if (selected[slot].qosLessThan(sub)) {
+            // update the selected subscription if has a greater qos
+            selected[slot] = sub;
+        }
+    }
+
+    /**
+     * Pushes the selected subscriptions into the sink and resets this instance for the next match.
+     * */
+    void drainTo(Consumer<Subscription> sink) {
+        try {
+            for (int i = 0; i < size; i++) {
+                sink.accept(selected[usedSlots[i]]);
+            }
+        } finally {
+            release();
+        }
+    }
+
+    void release() {
+        if (clientIds.length > MAX_RETAINED_CAPACITY) {
+            allocate(INITIAL_CAPACITY);
+        } else {
+            for (int i = 0; i < size; i++) {
+                final int slot = usedSlots[i];
+                clientIds[slot] = null;
+                selected[slot] = null;
+            }
+        }
+        size = 0;
+        inUse = false;
+    }
+
+    private void grow() {
+        final String[] oldClientIds = clientIds;
+        final Subscription[] oldSelected = selected;
+        final int[] oldUsedSlots = usedSlots;
+        allocate(oldClientIds.length * 2);
+        for (int i = 0; i < size; i++) {
+            final int oldSlot = oldUsedSlots[i];
+            final int slot = findSlot(clientIds, oldClientIds[oldSlot]);
+            clientIds[slot] = oldClientIds[oldSlot];
+            selected[slot] = oldSelected[oldSlot];
+            usedSlots[i] = slot;
+        }
+    }
+
+    private static int findSlot(String[] table, String clientId) {
+        final int mask = table.length - 1;
+        final int h = clientId.hashCode();
+        int slot = (h ^ (h >>> 16)) & mask;
+        while (table[slot] != null && !table[slot].equals(clientId)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.unsafequeues;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * State kept by a component next to the queues, persisted in the snapshot and in the journal of the pool.
+ *
+ * Its records are written in the same journal of the queue changes, so the recovery replays a prefix of both
+ * in the order they happened: a queue record referencing the state never survives a crash that loses the
+ * change it references.
+ * */
+public interface JournaledState {
+
+    /**
+     * Sink of the records of a change.
+     * */
+    interface Records {
+        void append(byte[] record) throws IOException;
+    }
+
+    /**
+     * Change of the state, applied while the journal is locked, so its records and the snapshots are ordered.
+     * */
+    interface Change<T> {
+        T apply(Records records) throws IOException;
+    }
+
+    /**
+     * Journal of the pool, as seen by the state attached to it.
+     * */
+    interface Journal {
+
+        <T> T change(Change<T> change) throws IOException;
+
+        /**
+         * Force the data of the state and then the journal, so the records written so far survive a crash.
+         * */
+        void force() throws IOException;
+
+        /**
+         * Write a new snapshot, with the current state.
+         * */
+        void checkpoint() throws IOException;
+    }
+
+    /**
+     * Reset to the state saved in the snapshot, before the replay of the journal.
+     * */
+    void loadSnapshot(DataInputStream in) throws IOException;
+
+    void writeSnapshot(DataOutputStream out) throws IOException;
+
+    /**
+     * Apply a record of the journal.
+     * */
+    void replay(DataInputStream record) throws IOException;
+
+    /**
+     * Force to the disk the data referenced by the records, done before forcing the journal.
+     * */
+    void force() throws IOException;
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.unsafequeues;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Location of the page files, spread over one or more directories.
+ *
+ * The directories are the record of where each page is: they are scanned at load, so they can be added or
+ * reordered between restarts, and the pages of a previous single directory setup are still found. New pages
+ * are placed only in the configured page directories.
+ *
+ * Thread safe.
+ * */
+final class PageFiles {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PageFiles.class);
+
+    private static final String PAGE_SUFFIX = ".page";
+
+    /**
+     * Usable space of the file store of a directory, for the FREE_SPACE placement.
+     * */
+    interface UsableSpace {
+        long of(Path directory) throws IOException;
+    }
+
+    private static final UsableSpace FILE_STORE_SPACE = directory -> Files.getFileStore(directory).getUsableSpace();
+
+    private final List<Path> directories;
+    private final PagePlacement placement;
+    private final UsableSpace usableSpace;
+    private final ConcurrentMap<Integer, Path> pages = new ConcurrentHashMap<>();
+
+    private PageFiles(List<Path> directories, PagePlacement placement, UsableSpace usableSpace) {
+        this.directories = directories;
+        this.placement = placement;
+        this.usableSpace = usableSpace;
+    }
+
+    /**
+     * @param directories where the new pages are placed.
+     * @param legacyDirectory scanned for pages too, the data path of the single directory setup.
+     * */
+    static PageFiles scan(List<Path> directories, Path legacyDirectory, PagePlacement placement) throws QueueException {
+        return scan(directories, legacyDirectory, placement, FILE_STORE_SPACE);
+    }
+
+    // visible for testing
+    static PageFiles scan(List<Path> directories, Path legacyDirectory, PagePlacement placement,
+                          UsableSpace usableSpace) throws QueueException {
+        if (directories.isEmpty()) {
+            throw new IllegalArgumentException("At least one directory is needed for the page files");
+        }
+        final PageFiles pageFiles = new PageFiles(new ArrayList<>(directories), placement, usableSpace);
+        final Set<Path> scanned = new LinkedHashSet<>(directories);
+        scanned.add(legacyDirectory);
+        for (Path directory : scanned) {
+            try {
+                Files.createDirectories(directory);
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + PAGE_SUFFIX)) {
+                    for (Path file : files) {
+                        pageFiles.register(file);
+                    }
+                }
+            } catch (IOException ex) {
+                throw new QueueException("Can't scan the page files in " + directory, ex);
+            }
+        }
+        if (directories.size() > 1) {
+            LOG.info("Found {} page files in {}, placing the new ones by {}", pageFiles.pages.size(), scanned,
+                     placement);
+        }
+        return pageFiles;
+    }
+
+    private void register(Path file) throws QueueException {
+        final String fileName = file.getFileName().toString();
+        final int pageId;
+        try {
+            pageId = Integer.parseInt(fileName.substring(0, fileName.length() - PAGE_SUFFIX.length()));
+        } catch (NumberFormatException ex) {
+            LOG.warn("Skipping file {}, not a page file", file);
+            return;
+        }
+        final Path previous = pages.putIfAbsent(pageId, file);
+        if (previous != null && !previous.equals(file)) {
+            throw new QueueException("Page " + pageId + " found both in " + previous + " and in " + file);
+        }
+    }
+
+    /**
+     * @return the file of the page, placing it in one of the directories if it doesn't exist.
+     * */
+    Path pageFile(int pageId) throws QueueException {
+        final Path existing = pages.get(pageId);
+        if (existing != null) {
+            return existing;
+        }
+        final Path placed = place(pageId).resolve(pageId + PAGE_SUFFIX);
+        final Path previous = pages.putIfAbsent(pageId, placed);
+        return previous != null ? previous : placed;
+    }
+
+    boolean exists(int pageId) {
+        final Path file = pages.get(pageId);
+        return file != null && Files.exists(file);
+    }
+
+    void delete(int pageId) throws IOException {
+        final Path file = pages.remove(pageId);
+        if (file != null) {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private Path place(int pageId) throws QueueException {
+        if (placement == PagePlacement.ROUND_ROBIN || directories.size() == 1) {
+            return directories.get(pageId % directories.size());
+        }
+        Path mostFree = null;
+        long mostFreeSpace = -1;
+        for (Path directory : directories) {
+            final long usable;
+            try {
+                usable = usableSpace.of(directory);
+            } catch (IOException ex) {
+                throw new QueueException("Can't read the free space of " + directory, ex);
+            }
+            if (usable > mostFreeSpace) {
+                mostFree = directory;
+                mostFreeSpace = usable;
+            }
+        }
+        return mostFree;
+    }
+
+    @Override
+    public String toString() {
+        return "PageFiles{directories=" + directories + ", placement=" + placement + '}';
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.unsafequeues;
+
+import java.util.Locale;
+
+/**
+ * How the new page files are spread over the page directories.
+ * */
+public enum PagePlacement {
+    /**
+     * Consecutive pages go to consecutive directories.
+     * */
+    ROUND_ROBIN,
+    /**
+     * Each page goes to the directory with the most usable space.
+     * */
+    FREE_SPACE;
+
+    public static PagePlacement parse(String value) {
+        return PagePlacement.valueOf(value.trim().toUpperCase(Locale.ROOT));
+    }
+}
@@ -6,53 +6,53 @@ import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
-import java.util.Properties;
 
 /**
- * Default implementation of SegmentAllocator. It uses a series of files (named pages) and split them in segments.
+ * Default implementation of SegmentAllocator. It uses a series of files (named pages) and split them in segments,
+ * the files are placed by PageFiles.
  *
- * This class is not thread safe.
+ * This class is not thread safe, apart from reopenSegment that only maps the page file.
  * */
 class PagedFilesAllocator implements SegmentAllocator {
 
     interface AllocationListener {
-        void segmentedCreated(String name, Segment segment);
+        void segmentedCreated(String name, Segment segment) throws QueueException;
     }
 
-    private final Path pagesFolder;
+    private final PageFiles pageFiles;
     private final int pageSize;
     private final int segmentSize;
     private int lastSegmentAllocated;
     private int lastPage;
     private MappedByteBuffer currentPage;
-    private FileChannel currentPageFile;
 
-    PagedFilesAllocator(Path pagesFolder, int pageSize, int segmentSize, int lastPage, int lastSegmentAllocated) throws QueueException {
+    PagedFilesAllocator(PageFiles pageFiles, int pageSize, int segmentSize, int lastPage, int lastSegmentAllocated)
+        throws QueueException {
         if (pageSize % segmentSize != 0) {
             throw new IllegalArgumentException("The pageSize must be an exact multiple of the segmentSize");
         }
-        this.pagesFolder = pagesFolder;
+        this.pageFiles = pageFiles;
         this.pageSize = pageSize;
         this.segmentSize = segmentSize;
         this.lastPage = lastPage;
         this.lastSegmentAllocated = lastSegmentAllocated;
-        this.currentPage = openRWPageFile(this.pagesFolder, this.lastPage);
+        this.currentPage = openRWPageFile(this.lastPage);
     }
 
-    private MappedByteBuffer openRWPageFile(Path pagesFolder, int pageId) throws QueueException {
-        final Path pageFile = pagesFolder.resolve(String.format("%d.page", pageId));
+    private MappedByteBuffer openRWPageFile(int pageId) throws QueueException {
+        final Path pageFile = pageFiles.pageFile(pageId);
         boolean createNew = false;
         if (!Files.exists(pageFile)) {
             try {
-                pageFile.toFile().createNewFile();
-                createNew = true;
+                // false if another thread created it in the meantime
+                createNew = pageFile.toFile().createNewFile();
             } catch (IOException ex) {
                 throw new QueueException("Reached an IO error during the bootstrapping of empty 'checkpoint.properties'", ex);
             }
         }
 
+        // the mapping stays valid after the channel is closed
         try (FileChannel fileChannel = FileChannel.open(pageFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
-            this.currentPageFile = fileChannel;
             final MappedByteBuffer mappedPage = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, pageSize);
             // DBG
             if (createNew && QueuePool.queueDebug) {
@@ -71,7 +71,7 @@ class PagedFilesAllocator implements SegmentAllocator {
     public Segment nextFreeSegment() throws QueueException {
         if (currentPageIsExhausted()) {
             lastPage++;
-            currentPage = openRWPageFile(pagesFolder, lastPage);
+            currentPage = openRWPageFile(lastPage);
             lastSegmentAllocated = 0;
         }
 
@@ -84,27 +84,37 @@ class PagedFilesAllocator implements SegmentAllocator {
 
     @Override
     public Segment reopenSegment(int pageId, int beginOffset) throws QueueException {
-        final MappedByteBuffer page = openRWPageFile(pagesFolder, pageId);
+        final MappedByteBuffer page = openRWPageFile(pageId);
         final SegmentPointer begin = new SegmentPointer(pageId, beginOffset);
         final SegmentPointer end = new SegmentPointer(pageId, beginOffset + segmentSize - 1);
         return new Segment(page, begin, end);
     }
 
     @Override
-    public void close() throws QueueException {
-        if (currentPageFile != null) {
-            try {
-                currentPageFile.close();
-            } catch (IOException ex) {
-                throw new QueueException("Problem closing current page file", ex);
-            }
+    public void rewind(int lastPage, int lastSegmentAllocated) throws QueueException {
+        if (lastSegmentAllocated < 0 || lastSegmentAllocated * segmentSize > pageSize) {
+            throw new IllegalArgumentException("Invalid number of allocated segments: " + lastSegmentAllocated);
         }
+        if (lastPage != this.lastPage) {
+            currentPage = openRWPageFile(lastPage);
+        }
+        this.lastPage = lastPage;
+        this.lastSegmentAllocated = lastSegmentAllocated;
+    }
+
+    @Override
+    public void close() throws QueueException {
+        // the page files are closed as soon as they are mapped, the mappings are released by the GC
+    }
+
+    @Override
+    public int lastPage() {
+        return lastPage;
     }
 
     @Override
-    public void dumpState(Properties checkpoint) {
-        checkpoint.setProperty("segments.last_page", String.valueOf(this.lastPage));
-        checkpoint.setProperty("segments.last_segment", String.valueOf(this.lastSegmentAllocated));
+    public int lastSegmentAllocated() {
+        return lastSegmentAllocated;
     }
 
     @Override
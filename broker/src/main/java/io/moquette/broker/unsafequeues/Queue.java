@@ -1,13 +1,22 @@
 package io.moquette.broker.unsafequeues;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.ReferenceCountUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
 
 /**
  * Not thread safe disk persisted queue.
@@ -16,7 +25,15 @@ public class Queue {
     private static final Logger LOG = LoggerFactory.getLogger(Queue.class);
 
     public static final int LENGTH_HEADER_SIZE = 4;
+    // CRC32 of the record, after the length
+    static final int CHECKSUM_SIZE = 4;
+    // max delay in journaling the moves of head and tail inside the same segments
+    private static final long JOURNAL_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
     private final String name;
+    // queues created before the checksums have records with only the length header
+    private final boolean checksummed;
+    private final int headerSize;
+    private final CRC32 crc = new CRC32();
     /* Last wrote byte, point to head byte */
     private VirtualPointer currentHeadPtr;
     private Segment headSegment;
@@ -28,12 +45,93 @@ public class Queue {
     private final QueuePool queuePool;
     private final SegmentAllocator allocator;
     private final PagedFilesAllocator.AllocationListener allocationListener;
+    // held while a record is written, the compaction relocates only segments not being written
+    private final Object segmentsMonitor;
+    // segments added or consumed since the last journaled pointers
+    private boolean segmentsChanged;
+    // segments written by the last reservation, marked dirty once the record is written
+    private final List<Segment> reservedSegments = new ArrayList<>(2);
+    private long lastJournaledNanos = System.nanoTime();
+    // segments walked by a scan in place of the ones of the pool, null when dequeuing
+    private Deque<QueuePool.SegmentRef> scanSegments;
 //    private final ReentrantLock lock = new ReentrantLock();
 
+    /**
+     * How a dequeued payload is extracted from the segments that contain it.
+     * */
+    private interface PayloadReader<T> {
+
+        /**
+         * Read the part of the payload contained in one segment.
+         * */
+        T read(Segment segment, VirtualPointer start, int length);
+
+        /**
+         * Compose the parts, read from consecutive segments, in the full payload.
+         * */
+        T join(List<T> parts);
+    }
+
+    private static final PayloadReader<ByteBuffer> HEAP_READER = new PayloadReader<ByteBuffer>() {
+        @Override
+        public ByteBuffer read(Segment segment, VirtualPointer start, int length) {
+            return segment.read(start, length);
+        }
+
+        @Override
+        public ByteBuffer join(List<ByteBuffer> parts) {
+            return joinBuffers(parts);
+        }
+    };
+
+    // the records of a scan are visited while the segments monitor is held, so they don't need a lease
+    private static final PayloadReader<ByteBuf> SCAN_READER = new PayloadReader<ByteBuf>() {
+        @Override
+        public ByteBuf read(Segment segment, VirtualPointer start, int length) {
+            return Unpooled.wrappedBuffer(segment.region(start, length));
+        }
+
+        @Override
+        public ByteBuf join(List<ByteBuf> parts) {
+            if (parts.size() == 1) {
+                return parts.get(0);
+            }
+            return Unpooled.wrappedBuffer(parts.size(), parts.toArray(new ByteBuf[0]));
+        }
+    };
+
+    private final PayloadReader<ByteBuf> sliceReader = new PayloadReader<ByteBuf>() {
+        @Override
+        public ByteBuf read(Segment segment, VirtualPointer start, int length) {
+            return queuePool.leasedSlice(segment, start, length);
+        }
+
+        @Override
+        public ByteBuf join(List<ByteBuf> parts) {
+            if (parts.size() == 1) {
+                return parts.get(0);
+            }
+            // the composite owns the parts, releasing it releases the leases on all the segments
+            return Unpooled.wrappedBuffer(parts.size(), parts.toArray(new ByteBuf[0]));
+        }
+    };
+
     Queue(String name, Segment headSegment, VirtualPointer currentHeadPtr,
           Segment tailSegment, VirtualPointer currentTailPtr,
           SegmentAllocator allocator, PagedFilesAllocator.AllocationListener allocationListener, QueuePool queuePool) {
+        this(name, true, headSegment, currentHeadPtr, tailSegment, currentTailPtr, allocator, allocationListener,
+            queuePool);
+    }
+
+    /**
+     * @param checksummed if the records have the CRC32 after the length header.
+     * */
+    Queue(String name, boolean checksummed, Segment headSegment, VirtualPointer currentHeadPtr,
+          Segment tailSegment, VirtualPointer currentTailPtr,
+          SegmentAllocator allocator, PagedFilesAllocator.AllocationListener allocationListener, QueuePool queuePool) {
         this.name = name;
+        this.checksummed = checksummed;
+        this.headerSize = headerSize(checksummed);
         this.headSegment = headSegment;
         this.currentHeadPtr = currentHeadPtr;
         this.currentTailPtr = currentTailPtr;
@@ -41,96 +139,209 @@ public class Queue {
         this.allocator = allocator;
         this.allocationListener = allocationListener;
         this.queuePool = queuePool;
+        this.segmentsMonitor = queuePool.segmentsMonitor(name);
+    }
+
+    static int headerSize(boolean checksummed) {
+        return checksummed ? LENGTH_HEADER_SIZE + CHECKSUM_SIZE : LENGTH_HEADER_SIZE;
     }
 
     /**
-     * @throws QueueException if an error happens during access to file.
+     * Start the checksum of a record with its length, so a zeroed region is not taken for empty records.
      * */
-    public void enqueue(ByteBuffer payload) throws QueueException {
-        final int messageSize = LENGTH_HEADER_SIZE + payload.remaining();
-        if (headSegment.hasSpace(currentHeadPtr, messageSize)) {
-            LOG.debug("Head segment has sufficient space for message length {}", LENGTH_HEADER_SIZE + payload.remaining());
-            writeData(headSegment, currentHeadPtr.plus(1), payload);
-            // move head segment
-            currentHeadPtr = currentHeadPtr.moveForward(messageSize);
-            return;
-        }
+    static void resetChecksum(CRC32 crc, int recordLength) {
+        crc.reset();
+        crc.update(recordLength >>> 24);
+        crc.update(recordLength >>> 16);
+        crc.update(recordLength >>> 8);
+        crc.update(recordLength);
+    }
 
-        LOG.debug("Head segment doesn't have enough space");
-        // the payload can't be fully contained into the current head segment and needs to be splitted
-        // with another segment.
+    /**
+     * Serializes a record directly in the space reserved for it in the segments.
+     * */
+    public interface RecordWriter {
 
+        /**
+         * @param target buffer wrapping the reserved space, exactly the declared record size has to be written.
+         * */
+        void write(ByteBuf target);
+    }
 
-        final int dataSize = payload.remaining();
-        final ByteBuffer rawData = (ByteBuffer) ByteBuffer.allocate(LENGTH_HEADER_SIZE + dataSize)
-            .putInt(dataSize)
-            .put(payload)
-            .flip();
+    /**
+     * Receives the records of a scan.
+     * */
+    public interface RecordVisitor {
 
-        // the bytes written from the payload input
-        long bytesRemainingInHeaderSegment = Math.min(rawData.remaining(), headSegment.bytesAfter(currentHeadPtr));
-        LOG.trace("Writing partial payload to offset {} for {} bytes", currentHeadPtr, bytesRemainingInHeaderSegment);
+        /**
+         * @param record the content of the record, valid only during the call.
+         * */
+        void visit(ByteBuf record);
+    }
 
-        if (bytesRemainingInHeaderSegment > 0) {
-            int copySize = (int) bytesRemainingInHeaderSegment;
-            ByteBuffer slice = rawData.slice();
-            slice.limit(copySize);
-            writeDataNoHeader(headSegment, currentHeadPtr.plus(1), slice);
-            currentHeadPtr = currentHeadPtr.moveForward(bytesRemainingInHeaderSegment);
-            // No need to move newSegmentPointer the pointer because the last spinningMove has already moved it
+    /**
+     * Sizes and serializes records of type T, for the bulk writes.
+     * */
+    public interface RecordSerializer<T> {
 
-            // shift forward the consumption point
-            rawData.position(rawData.position() + copySize);
-        }
+        /**
+         * @return the exact number of bytes written by write for the record.
+         * */
+        int size(T record);
 
-        Segment newSegment = null;
+        void write(T record, ByteBuf target);
+    }
 
-        // till the payload is not completely stored,
-        // save the remaining part into a new segment.
-        while (rawData.hasRemaining()) {
-            // To request the next segment, it's needed to be done in global lock.
-            newSegment = queuePool.nextFreeSegment();
-            //notify segment creation for queue in queue pool
-            allocationListener.segmentedCreated(name, newSegment);
+    /**
+     * @throws QueueException if an error happens during access to file.
+     * */
+    public void enqueue(ByteBuffer payload) throws QueueException {
+        enqueue(payload.remaining(), target -> target.writeBytes(payload));
+    }
 
-            int copySize = (int) Math.min(rawData.remaining(), allocator.getSegmentSize());
-            ByteBuffer slice = rawData.slice();
-            slice.limit(copySize);
+    /**
+     * Reserve the space for the length header and the record, spanning new segments if the head one
+     * is not enough, and let the writer fill it in place, without any intermediate copy.
+     *
+     * @param recordSize the exact number of bytes the writer is going to write.
+     * @throws QueueException if an error happens during access to file or the writer doesn't fill the record.
+     * */
+    public void enqueue(int recordSize, RecordWriter writer) throws QueueException {
+        final long start = System.nanoTime();
+        synchronized (segmentsMonitor) {
+            write(reserve(headerSize + recordSize, null), recordSize, writer);
+        }
+        journalPointers();
+        queuePool.durability().recordEnqueue(System.nanoTime() - start);
+    }
 
-            currentHeadPtr = currentHeadPtr.moveForward(copySize);
-            writeDataNoHeader(newSegment, newSegment.begin, slice);
-            headSegment = newSegment;
+    /**
+     * Append all the records, the segments needed by the whole batch are taken from the pool at once.
+     *
+     * @throws QueueException if an error happens during access to file or a record is not fully written.
+     * */
+    public <T> void enqueueAll(Collection<? extends T> records, RecordSerializer<T> serializer) throws QueueException {
+        if (records.isEmpty()) {
+            return;
+        }
+        final long start = System.nanoTime();
+        final int[] sizes = new int[records.size()];
+        long totalSize = 0;
+        int i = 0;
+        for (T record : records) {
+            sizes[i] = serializer.size(record);
+            totalSize += headerSize + sizes[i];
+            i++;
+        }
 
-            // shift forward the consumption point
-            rawData.position(rawData.position() + copySize);
+        // the records fill the head segment and then each new segment before moving to the next
+        final long overflow = totalSize - headSegment.bytesAfter(currentHeadPtr);
+        final Iterator<Segment> preallocated;
+        if (overflow > 0) {
+            final int segmentsCount = (int) ((overflow + allocator.getSegmentSize() - 1) / allocator.getSegmentSize());
+            preallocated = queuePool.nextFreeSegments(segmentsCount).iterator();
+        } else {
+            preallocated = Collections.emptyIterator();
         }
-    }
 
-    private void writeDataNoHeader(Segment segment, SegmentPointer start, ByteBuffer data) {
-        segment.write(start, data);
+        try {
+            i = 0;
+            for (T record : records) {
+                final int recordSize = sizes[i++];
+                synchronized (segmentsMonitor) {
+                    write(reserve(headerSize + recordSize, preallocated), recordSize,
+                          target -> serializer.write(record, target));
+                }
+            }
+            journalPointers();
+            queuePool.durability().recordEnqueue(System.nanoTime() - start);
+        } finally {
+            if (preallocated.hasNext()) {
+                final List<Segment> unused = new ArrayList<>();
+                preallocated.forEachRemaining(unused::add);
+                LOG.warn("Bulk write on queue {} didn't use {} preallocated segments", name, unused.size());
+                queuePool.releaseUnusedSegments(unused);
+            }
+        }
     }
 
-    private void writeDataNoHeader(Segment segment, VirtualPointer start, ByteBuffer data) {
-        segment.write(start, data);
+    private void write(ByteBuf target, int recordSize, RecordWriter writer) throws QueueException {
+        final int messageSize = headerSize + recordSize;
+        try {
+            target.writeInt(recordSize);
+            if (checksummed) {
+                // placeholder, filled once the record is written
+                target.writeInt(0);
+            }
+            writer.write(target);
+            if (target.writerIndex() != messageSize) {
+                throw new QueueException("Record writer filled " + (target.writerIndex() - headerSize) +
+                    " bytes, declared " + recordSize);
+            }
+            if (checksummed) {
+                resetChecksum(crc, recordSize);
+                for (ByteBuffer part : target.nioBuffers(headerSize, recordSize)) {
+                    crc.update(part);
+                }
+                target.setInt(LENGTH_HEADER_SIZE, (int) crc.getValue());
+            }
+            for (Segment segment : reservedSegments) {
+                queuePool.durability().markDirty(segment);
+            }
+        } finally {
+            reservedSegments.clear();
+            target.release();
+        }
     }
 
     /**
-     * Writes data and size to the current Head segment starting from start pointer.
+     * Move the head forward of size bytes, allocating new segments when needed.
+     *
+     * @param preallocated segments to use before requesting new ones to the pool, could be null.
+     * @return an empty buffer wrapping the reserved space of the segments.
      * */
-    private void writeData(Segment segment, VirtualPointer start, ByteBuffer data) {
-        writeData(segment, start, data.remaining(), data);
-    }
+    private ByteBuf reserve(int size, Iterator<Segment> preallocated) throws QueueException {
+        reservedSegments.add(headSegment);
+        if (headSegment.hasSpace(currentHeadPtr, size)) {
+            LOG.debug("Head segment has sufficient space for message length {}", size);
+            final ByteBuffer region = headSegment.region(currentHeadPtr.plus(1), size);
+            // move head segment
+            currentHeadPtr = currentHeadPtr.moveForward(size);
+            return Unpooled.wrappedBuffer(region).clear();
+        }
 
-    /**
-     * @param segment the target segment.
-     * @param start where start writing.
-     * @param size the length of the data to write on the segment.
-     * @param data the data to write.
-     * */
-    private void writeData(Segment segment, VirtualPointer start, int size, ByteBuffer data) {
-        ByteBuffer length = (ByteBuffer) ByteBuffer.allocate(LENGTH_HEADER_SIZE).putInt(size).flip();
-        segment.write(start, length); // write 4 bytes header
-        segment.write(start.plus(LENGTH_HEADER_SIZE), data); // write the payload
+        LOG.debug("Head segment doesn't have enough space");
+        // the message can't be fully contained into the current head segment and needs to be splitted
+        // with other segments.
+        final List<ByteBuffer> regions = new ArrayList<>(segmentCountFromSize(size) + 1);
+        int remaining = size;
+
+        final int bytesRemainingInHeaderSegment = (int) Math.min(remaining, headSegment.bytesAfter(currentHeadPtr));
+        LOG.trace("Reserving partial space at offset {} for {} bytes", currentHeadPtr, bytesRemainingInHeaderSegment);
+        if (bytesRemainingInHeaderSegment > 0) {
+            regions.add(headSegment.region(currentHeadPtr.plus(1), bytesRemainingInHeaderSegment));
+            currentHeadPtr = currentHeadPtr.moveForward(bytesRemainingInHeaderSegment);
+            remaining -= bytesRemainingInHeaderSegment;
+        }
+
+        // till the message has not enough space, reserve the remaining part into new segments.
+        while (remaining > 0) {
+            // To request the next segment, it's needed to be done in global lock.
+            final Segment newSegment = preallocated != null && preallocated.hasNext()
+                ? preallocated.next()
+                : queuePool.nextFreeSegment();
+            //notify segment creation for queue in queue pool
+            allocationListener.segmentedCreated(name, newSegment);
+            segmentsChanged = true;
+
+            final int reservedSize = Math.min(remaining, allocator.getSegmentSize());
+            regions.add(newSegment.region(newSegment.begin, reservedSize));
+            currentHeadPtr = currentHeadPtr.moveForward(reservedSize);
+            headSegment = newSegment;
+            reservedSegments.add(newSegment);
+            remaining -= reservedSize;
+        }
+        return Unpooled.wrappedBuffer(regions.toArray(new ByteBuffer[0])).clear();
     }
 
     /**
@@ -160,16 +371,73 @@ public class Queue {
      * Read next message or return null if the queue has no data.
      * */
     public Optional<ByteBuffer> dequeue() throws QueueException {
-        if (!currentHeadPtr.isGreaterThan(currentTailPtr)) {
-            if (currentTailPtr.isGreaterThan(currentHeadPtr)) {
-                // sanity check
-                throw new QueueException("Current tail " + currentTailPtr + " is forward head " + currentHeadPtr);
+        return dequeue(HEAP_READER);
+    }
+
+    /**
+     * Read next message without copying it out of the mapped pages, a message that spans more segments is
+     * returned as a composite buffer. The segments are not recycled until the returned buffer is released,
+     * so it has to be released as soon as the content is not needed anymore.
+     * */
+    public Optional<ByteBuf> dequeueSlice() throws QueueException {
+        return dequeue(sliceReader);
+    }
+
+    private <T> Optional<T> dequeue(PayloadReader<T> reader) throws QueueException {
+        Optional<T> record;
+        boolean skipped = false;
+        // the tail has already moved past a corrupted record, go on with the next one
+        while ((record = read(reader)) == null) {
+            skipped = true;
+        }
+        if (record.isPresent() || skipped) {
+            journalPointers();
+        }
+        return record;
+    }
+
+    /**
+     * Visit the records from the tail to the head without consuming them, skipping the corrupted ones like
+     * dequeue does. It reads all the queue, so it's meant to size a queue once, when it's reopened.
+     * */
+    public void scan(RecordVisitor visitor) throws QueueException {
+        synchronized (segmentsMonitor) {
+            final VirtualPointer tail = currentTailPtr;
+            final Segment segment = tailSegment;
+            scanSegments = queuePool.copySegments(name);
+            try {
+                Optional<ByteBuf> record;
+                while ((record = read(SCAN_READER)) == null || record.isPresent()) {
+                    if (record != null) {
+                        try {
+                            visitor.visit(record.get());
+                        } finally {
+                            record.get().release();
+                        }
+                    }
+                }
+            } finally {
+                currentTailPtr = tail;
+                tailSegment = segment;
+                scanSegments = null;
             }
-            // head and tail pointer are the same, the queue is empty
+        }
+    }
+
+    /**
+     * @return the next record, empty if the queue has no data or null if the record was corrupted and skipped.
+     * */
+    private <T> Optional<T> read(PayloadReader<T> reader) throws QueueException {
+        if (isEmpty()) {
+            // the tail is on the byte after the head, or both are untouched
             return Optional.empty();
         }
+        if (!currentHeadPtr.isGreaterThan(currentTailPtr)) {
+            // sanity check
+            throw new QueueException("Current tail " + currentTailPtr + " is forward head " + currentHeadPtr);
+        }
         if (tailSegment == null) {
-            tailSegment = queuePool.openNextTailSegment(name).get();
+            tailSegment = openNextTailSegment().get();
         }
 
         LOG.debug("currentTail is {}", currentTailPtr);
@@ -183,103 +451,178 @@ public class Queue {
                 existingTail = currentTailPtr.copy();
             }
             final int payloadLength = tailSegment.readHeader(existingTail);
+            final int checksum = checksummed ? tailSegment.readHeader(existingTail.plus(LENGTH_HEADER_SIZE)) : 0;
+            checkLength(payloadLength, existingTail.moveForward(headerSize));
             // tail must be moved to the next byte to read, so has to move to
             // header size + payload size + 1
-            final int fullMessageSize = payloadLength + LENGTH_HEADER_SIZE;
+            final int fullMessageSize = payloadLength + headerSize;
             long remainingInSegment = tailSegment.bytesAfter(existingTail) + 1;
             if (remainingInSegment > fullMessageSize) {
                 // tail segment fully contains the payload with space left over
                 currentTailPtr = existingTail.moveForward(fullMessageSize);
-                // read data from currentTail + 4 bytes(the length)
-                final VirtualPointer dataStart = existingTail.moveForward(LENGTH_HEADER_SIZE);
+                // read data after the header
+                final VirtualPointer dataStart = existingTail.moveForward(headerSize);
+                if (checksummed) {
+                    resetChecksum(crc, payloadLength);
+                    crc.update(tailSegment.region(dataStart, payloadLength));
+                    if (!checksumMatches(checksum, existingTail)) {
+                        return null;
+                    }
+                }
 
-                return Optional.of(readData(tailSegment, dataStart, payloadLength));
+                return Optional.of(reader.read(tailSegment, dataStart, payloadLength));
             } else {
                 // payload is split across currentSegment and next ones
-                VirtualPointer dataStart = existingTail.moveForward(LENGTH_HEADER_SIZE);
+                VirtualPointer dataStart = existingTail.moveForward(headerSize);
 
-                if (remainingInSegment - LENGTH_HEADER_SIZE == 0) {
-                    queuePool.consumedTailSegment(name);
-                    if (QueuePool.queueDebug) {
-                        tailSegment.fillWith((byte) 'D');
-                    }
-                    tailSegment = queuePool.openNextTailSegment(name).get();
+                if (remainingInSegment - headerSize == 0) {
+                    consumedTailSegment(tailSegment);
+                    tailSegment = openNextTailSegment().get();
                 }
 
                 LOG.debug("Loading payload size {}", payloadLength);
-                return Optional.of(loadPayloadFromSegments(payloadLength, tailSegment, dataStart));
+                final T payload = loadPayloadFromSegments(payloadLength, checksum, tailSegment, dataStart, reader);
+                return payload == null ? null : Optional.of(payload);
             }
         } else {
             // header is split across 2 segments
             // the currentSegment is still the tailSegment
             // read the length header that's crossing 2 segments
             final CrossSegmentHeaderResult result = decodeCrossHeader(tailSegment, currentTailPtr);
+            checkLength(result.payloadLength, result.pointer);
 
             // load all payload parts from the segments
             LOG.debug("Loading payload size {}", result.payloadLength);
-            return Optional.of(loadPayloadFromSegments(result.payloadLength, result.segment, result.pointer));
+            final T payload = loadPayloadFromSegments(result.payloadLength, result.checksum, result.segment,
+                result.pointer, reader);
+            return payload == null ? null : Optional.of(payload);
+        }
+    }
+
+    private Optional<Segment> openNextTailSegment() throws QueueException {
+        if (scanSegments == null) {
+            return queuePool.openNextTailSegment(name);
+        }
+        final QueuePool.SegmentRef next = scanSegments.peekLast();
+        return next == null ? Optional.empty() : Optional.of(queuePool.openSegment(next));
+    }
+
+    private void consumedTailSegment(Segment segment) throws QueueException {
+        if (scanSegments != null) {
+            // a scan only moves past the segment
+            scanSegments.pollLast();
+            return;
+        }
+        queuePool.consumedTailSegment(name);
+        segmentsChanged = true;
+        if (QueuePool.queueDebug) {
+            segment.fillWith((byte) 'D');
+        }
+    }
+
+    /**
+     * Journal the position of head and tail: at once when segments changed or on group commit, otherwise at
+     * most once every JOURNAL_INTERVAL_NANOS. After a crash a stale position redelivers or loses only the
+     * last moves.
+     * */
+    private void journalPointers() throws QueueException {
+        final long now = System.nanoTime();
+        if (!segmentsChanged && !queuePool.durability().isGroupCommit()
+            && now - lastJournaledNanos < JOURNAL_INTERVAL_NANOS) {
+            return;
         }
+        queuePool.journalPointers(name, currentHeadPtr, currentTailPtr);
+        segmentsChanged = false;
+        lastJournaledNanos = now;
     }
 
-    private static boolean containsHeader(Segment segment, VirtualPointer tail) {
-        return segment.bytesAfter(tail) + 1 >= LENGTH_HEADER_SIZE;
+    private boolean containsHeader(Segment segment, VirtualPointer tail) {
+        return segment.bytesAfter(tail) + 1 >= headerSize;
+    }
+
+    /**
+     * Compare the checksum accumulated in crc with the one stored in the header of the record, a mismatch is
+     * logged and counted and the record has to be skipped.
+     * */
+    private boolean checksumMatches(int expected, VirtualPointer recordStart) {
+        if ((int) crc.getValue() == expected) {
+            return true;
+        }
+        if (scanSegments != null) {
+            // reported when dequeued
+            return false;
+        }
+        LOG.warn("Corrupted record at {} in queue {}, checksum mismatch, the record is skipped", recordStart, name);
+        queuePool.durability().corruptedRecordSkipped();
+        return false;
+    }
+
+    /**
+     * Fail if the record would end after the head: its length is corrupted, so the next record can't be found.
+     * */
+    private void checkLength(int payloadLength, VirtualPointer dataStart) throws QueueException {
+        if (payloadLength < 0 || dataStart.moveForward(payloadLength - 1L).isGreaterThan(currentHeadPtr)) {
+            throw new QueueException("Corrupted record length " + payloadLength + " at " + dataStart +
+                " in queue " + name + ", past the head " + currentHeadPtr);
+        }
     }
 
     private static class CrossSegmentHeaderResult {
         private final Segment segment;
         private final VirtualPointer pointer;
         private final int payloadLength;
+        private final int checksum;
 
-        private CrossSegmentHeaderResult(Segment segment, VirtualPointer pointer, int payloadLength) {
+        private CrossSegmentHeaderResult(Segment segment, VirtualPointer pointer, int payloadLength, int checksum) {
             this.segment = segment;
             this.pointer = pointer;
             this.payloadLength = payloadLength;
+            this.checksum = checksum;
         }
     }
 
     // TO BE called owning the lock
     private CrossSegmentHeaderResult decodeCrossHeader(Segment segment, VirtualPointer pointer) throws QueueException {
         // read first part
-        ByteBuffer lengthBuffer = ByteBuffer.allocate(LENGTH_HEADER_SIZE);
+        ByteBuffer lengthBuffer = ByteBuffer.allocate(headerSize);
         final ByteBuffer partialHeader = segment.readAllBytesAfter(pointer);
         final int consumedHeaderSize = partialHeader.remaining();
         lengthBuffer.put(partialHeader);
-        queuePool.consumedTailSegment(name);
-
-        if (QueuePool.queueDebug) {
-            segment.fillWith((byte) 'D');
-        }
+        consumedTailSegment(segment);
 
         // read second part
-        final int remainingHeaderSize = LENGTH_HEADER_SIZE - consumedHeaderSize;
-        Segment nextTailSegment = queuePool.openNextTailSegment(name).get();
+        final int remainingHeaderSize = headerSize - consumedHeaderSize;
+        Segment nextTailSegment = openNextTailSegment().get();
         lengthBuffer.put(nextTailSegment.read(nextTailSegment.begin, remainingHeaderSize));
-        final VirtualPointer dataStart = pointer.moveForward(LENGTH_HEADER_SIZE);
-        int payloadLength = ((ByteBuffer) lengthBuffer.flip()).getInt();
+        final VirtualPointer dataStart = pointer.moveForward(headerSize);
+        ((Buffer) lengthBuffer).flip();
+        int payloadLength = lengthBuffer.getInt();
+        int checksum = checksummed ? lengthBuffer.getInt() : 0;
 
-        return new CrossSegmentHeaderResult(nextTailSegment, dataStart, payloadLength);
+        return new CrossSegmentHeaderResult(nextTailSegment, dataStart, payloadLength, checksum);
     }
 
-    // TO BE called owning the lock on segments allocator
-    private ByteBuffer loadPayloadFromSegments(int remaining, Segment segment, VirtualPointer tail) throws QueueException {
-        List<ByteBuffer> createdBuffers = new ArrayList<>(segmentCountFromSize(remaining));
+    // TO BE called owning the lock on segments allocator, returns null if the record is corrupted
+    private <T> T loadPayloadFromSegments(int remaining, int checksum, Segment segment, VirtualPointer tail,
+                                          PayloadReader<T> reader) throws QueueException {
+        List<T> createdBuffers = new ArrayList<>(segmentCountFromSize(remaining));
         VirtualPointer scan = tail;
+        resetChecksum(crc, remaining);
 
         do {
             LOG.debug("Looping remaining {}", remaining);
             final int availableDataLength = Math.min(remaining, (int) segment.bytesAfter(scan) + 1);
-            final ByteBuffer buffer = segment.read(scan, availableDataLength);
-            createdBuffers.add(buffer);
+            if (checksummed) {
+                crc.update(segment.region(scan, availableDataLength));
+            }
+            createdBuffers.add(reader.read(segment, scan, availableDataLength));
             final boolean segmentCompletelyConsumed = (segment.bytesAfter(scan) + 1) == availableDataLength;
             scan = scan.moveForward(availableDataLength);
-            remaining -= buffer.remaining();
+            remaining -= availableDataLength;
 
             if (remaining > 0 || segmentCompletelyConsumed) {
-                queuePool.consumedTailSegment(name);
-                if (QueuePool.queueDebug) {
-                    segment.fillWith((byte) 'D');
-                }
-                segment = queuePool.openNextTailSegment(name).orElse(null);
+                consumedTailSegment(segment);
+                segment = openNextTailSegment().orElse(null);
             }
         } while (remaining > 0);
 
@@ -288,7 +631,12 @@ public class Queue {
         currentTailPtr = scan;
         LOG.debug("Moved currentTailPointer to {} from {}", scan, tail);
 
-        return joinBuffers(createdBuffers);
+        final T payload = reader.join(createdBuffers);
+        if (checksummed && !checksumMatches(checksum, tail.moveForward(-headerSize))) {
+            ReferenceCountUtil.release(payload);
+            return null;
+        }
+        return payload;
     }
 
     private int segmentCountFromSize(int remaining) {
@@ -302,7 +650,7 @@ public class Queue {
     /**
      * @return a ByteBuffer that's a composition of all buffers
      * */
-    private ByteBuffer joinBuffers(List<ByteBuffer> buffers) {
+    private static ByteBuffer joinBuffers(List<ByteBuffer> buffers) {
         final int neededSpace = buffers.stream().mapToInt(Buffer::remaining).sum();
         byte[] heapBuffer = new byte[neededSpace];
         int offset = 0;
@@ -314,8 +662,4 @@ public class Queue {
 
         return ByteBuffer.wrap(heapBuffer);
     }
-
-    private ByteBuffer readData(Segment source, VirtualPointer start, int length) {
-        return source.read(start, length);
-    }
 }
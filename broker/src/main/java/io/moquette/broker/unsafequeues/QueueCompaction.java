@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.unsafequeues;
+
+import io.moquette.broker.metrics.QueueCompactionMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Gives back the disk space of the pages left free once a backlog of messages has been consumed.
+ *
+ * The recycled segments are reused starting from the first page, so the last pages are the first to empty.
+ * Each run takes back the free segments cached by the session loops, copies the segments still used in the
+ * trailing pages with few of them to free segments of the pages before, then moves the allocation back before
+ * the free segments at the end, deleting the page files after it, and deletes the files of the other pages
+ * left without used segments. The copies are throttled to not compete with the queues for the disk.
+ * */
+public final class QueueCompaction {
+
+    private static final Logger LOG = LoggerFactory.getLogger(QueueCompaction.class);
+
+    // the trailing pages with more used segments than this are not worth moving
+    private static final int MAX_LIVE_PERCENT = 25;
+
+    private final QueuePool queuePool;
+    private final int segmentSize;
+    private final int maxLiveSegments;
+    private final long intervalNanos;
+    private final long bytesPerSecond;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition closed = lock.newCondition();
+    private volatile boolean running = true;
+    private final Thread compactor;
+    private final AtomicLong runs = new AtomicLong();
+    private final AtomicLong movedSegments = new AtomicLong();
+    private final AtomicLong deletedPageFiles = new AtomicLong();
+    private final AtomicLong pendingSegments = new AtomicLong();
+    private volatile long lastRunMillis;
+
+    /**
+     * @param intervalMillis interval between the runs, 0 disables the compaction.
+     * @param bytesPerSecond max rate of the copied segments, 0 for no limit.
+     * */
+    QueueCompaction(QueuePool queuePool, int segmentSize, int segmentsPerPage, long intervalMillis,
+                    long bytesPerSecond) {
+        this.queuePool = queuePool;
+        this.segmentSize = segmentSize;
+        this.maxLiveSegments = segmentsPerPage * MAX_LIVE_PERCENT / 100;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        this.bytesPerSecond = bytesPerSecond;
+        if (intervalMillis <= 0) {
+            compactor = null;
+        } else {
+            compactor = new Thread(this::compactLoop, "segmented-queues-compactor");
+            compactor.setDaemon(true);
+            compactor.start();
+        }
+    }
+
+    private void compactLoop() {
+        while (await(intervalNanos)) {
+            try {
+                compact();
+            } catch (QueueException ex) {
+                LOG.error("Problem compacting the pages of the segmented queues", ex);
+            }
+        }
+    }
+
+    /**
+     * @return false if the compaction has been closed during the wait.
+     * */
+    private boolean await(long nanos) {
+        lock.lock();
+        try {
+            while (running && nanos > 0) {
+                nanos = closed.awaitNanos(nanos);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            running = false;
+        } finally {
+            lock.unlock();
+        }
+        return running;
+    }
+
+    // visible for testing
+    void compact() throws QueueException {
+        final long start = System.nanoTime();
+        final long movedBefore = movedSegments.get();
+        queuePool.drainArenas();
+        final int fromPage = queuePool.evacuationStart(maxLiveSegments);
+        if (fromPage >= 0) {
+            moveSegmentsBefore(fromPage);
+        }
+        final int deleted = queuePool.deleteFreePages();
+        deletedPageFiles.addAndGet(deleted);
+        runs.incrementAndGet();
+        lastRunMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        final long moved = movedSegments.get() - movedBefore;
+        if (moved > 0 || deleted > 0) {
+            LOG.info("Compacted the segmented queues pages in {} ms, moved {} segments and deleted {} page files",
+                     lastRunMillis, moved, deleted);
+        }
+    }
+
+    private void moveSegmentsBefore(int fromPage) throws QueueException {
+        final Map<String, List<QueuePool.SegmentRef>> candidates = queuePool.middleSegmentsFrom(fromPage);
+        pendingSegments.set(candidates.values().stream().mapToInt(List::size).sum());
+        final List<QueuePool.SegmentRef> relocated = new ArrayList<>();
+        final long start = System.nanoTime();
+        long copiedBytes = 0;
+        try {
+            for (Map.Entry<String, List<QueuePool.SegmentRef>> entry : candidates.entrySet()) {
+                for (QueuePool.SegmentRef segmentRef : entry.getValue()) {
+                    if (!throttle(start, copiedBytes)) {
+                        return;
+                    }
+                    final Segment target = queuePool.nextFreeSegmentBefore(fromPage);
+                    if (target == null) {
+                        LOG.debug("No free segments before page {}, stop moving segments", fromPage);
+                        return;
+                    }
+                    final Segment source = queuePool.openSegment(segmentRef);
+                    target.region(target.begin, segmentSize).put(source.region(source.begin, segmentSize));
+                    target.force();
+                    copiedBytes += segmentSize;
+                    if (queuePool.relocateSegment(entry.getKey(), segmentRef, target)) {
+                        relocated.add(segmentRef);
+                        movedSegments.incrementAndGet();
+                    } else {
+                        queuePool.releaseUnusedSegments(Collections.singletonList(target));
+                    }
+                    pendingSegments.decrementAndGet();
+                }
+            }
+        } finally {
+            pendingSegments.set(0);
+            if (!relocated.isEmpty()) {
+                queuePool.recycleRelocated(relocated);
+            }
+        }
+    }
+
+    /**
+     * Wait until the bytes copied since start are within the max rate.
+     *
+     * @return false if the compaction has been closed.
+     * */
+    private boolean throttle(long start, long copiedBytes) {
+        if (bytesPerSecond <= 0) {
+            return running;
+        }
+        final long dueNanos = (long) ((double) copiedBytes / bytesPerSecond * TimeUnit.SECONDS.toNanos(1));
+        return await(start + dueNanos - System.nanoTime());
+    }
+
+    public QueueCompactionMetrics metrics() {
+        return new QueueCompactionMetrics(compactor != null, runs.get(), movedSegments.get(),
+                                          movedSegments.get() * segmentSize, pendingSegments.get(),
+                                          deletedPageFiles.get(), queuePool.pageFiles(), lastRunMillis);
+    }
+
+    /**
+     * Stop the compaction, waiting for the copy in progress.
+     * */
+    void close() {
+        if (compactor == null) {
+            return;
+        }
+        running = false;
+        lock.lock();
+        try {
+            closed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            compactor.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
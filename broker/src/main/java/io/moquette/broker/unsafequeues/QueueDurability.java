@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.unsafequeues;
+
+import io.moquette.broker.metrics.LatencyHistogram;
+import io.moquette.broker.metrics.QueueDurabilityMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * When the writes of the queues are forced from the mapped pages to the disk.
+ *
+ * The queues mark the pages they write as dirty; a flusher thread forces the dirty pages, the data of the
+ * state attached to the pool and then the journal, so the journal never points to data that's not on the disk.
+ * */
+public final class QueueDurability {
+
+    private static final Logger LOG = LoggerFactory.getLogger(QueueDurability.class);
+
+    public enum Mode {
+        /**
+         * Never force, the pages are written when the OS flushes its page cache.
+         * */
+        NONE,
+        /**
+         * Force the dirty pages every interval, a crash loses at most the last interval of writes.
+         * */
+        PERIODIC,
+        /**
+         * Force as soon as someone waits on commit, the requests arrived during a force are served together
+         * by the next one.
+         * */
+        GROUP_COMMIT;
+
+        public static Mode parse(String value) {
+            return Mode.valueOf(value.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    private static final CompletableFuture<Void> COMMITTED = CompletableFuture.completedFuture(null);
+
+    private static final class CommitRequest {
+        private final long requestedNanos = System.nanoTime();
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+    }
+
+    private final Mode mode;
+    private final long intervalNanos;
+    private final QueuePoolJournal journal;
+    // a segment of each page written since the last force, forcing it flushes the whole page
+    private final Map<Integer, Segment> dirtyPages = new ConcurrentHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition commitRequested = lock.newCondition();
+    // guarded by lock
+    private List<CommitRequest> commitRequests = new ArrayList<>();
+    private volatile boolean running = true;
+    private final Thread flusher;
+    private final LatencyHistogram enqueueLatency = new LatencyHistogram();
+    private final LatencyHistogram forceLatency = new LatencyHistogram();
+    private final LatencyHistogram commitLatency = new LatencyHistogram();
+    private final LongAdder corruptedRecords = new LongAdder();
+
+    QueueDurability(Mode mode, long intervalMillis, QueuePoolJournal journal) {
+        if (mode == Mode.PERIODIC && intervalMillis <= 0) {
+            throw new IllegalArgumentException("Force interval must be positive, was: " + intervalMillis);
+        }
+        this.mode = mode;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        this.journal = journal;
+        if (mode == Mode.NONE) {
+            flusher = null;
+        } else {
+            journal.trackForces();
+            flusher = new Thread(this::flushLoop, "segmented-queues-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+    }
+
+    public Mode mode() {
+        return mode;
+    }
+
+    /**
+     * @return true if every move of the queues pointers has to be journaled, to be covered by the next commit.
+     * */
+    public boolean isGroupCommit() {
+        return mode == Mode.GROUP_COMMIT;
+    }
+
+    /**
+     * Invoked after the data has been written in the segment.
+     * */
+    void markDirty(Segment segment) {
+        if (mode != Mode.NONE) {
+            // the last one written, a page file deleted by the compaction and created again is a new file
+            dirtyPages.put(segment.begin.pageId(), segment);
+        }
+    }
+
+    void recordEnqueue(long nanos) {
+        enqueueLatency.record(nanos);
+    }
+
+    /**
+     * @return future completed when everything written before the invocation is on the disk, already
+     * completed if the mode is not group commit.
+     * */
+    public CompletableFuture<Void> commit() {
+        if (mode != Mode.GROUP_COMMIT) {
+            return COMMITTED;
+        }
+        final CommitRequest request = new CommitRequest();
+        lock.lock();
+        try {
+            commitRequests.add(request);
+            commitRequested.signal();
+        } finally {
+            lock.unlock();
+        }
+        return request.done;
+    }
+
+    private void flushLoop() {
+        while (running) {
+            final List<CommitRequest> batch;
+            lock.lock();
+            try {
+                if (mode == Mode.PERIODIC) {
+                    commitRequested.awaitNanos(intervalNanos);
+                } else {
+                    while (commitRequests.isEmpty() && running) {
+                        commitRequested.await();
+                    }
+                }
+                batch = commitRequests;
+                commitRequests = new ArrayList<>();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                force();
+                final long now = System.nanoTime();
+                for (CommitRequest request : batch) {
+                    commitLatency.record(now - request.requestedNanos);
+                    request.done.complete(null);
+                }
+            } catch (QueueException ex) {
+                LOG.error("Problem forcing the segmented queues to the disk", ex);
+                for (CommitRequest request : batch) {
+                    request.done.completeExceptionally(ex);
+                }
+            }
+        }
+    }
+
+    private void force() throws QueueException {
+        final long start = System.nanoTime();
+        final QueuePoolJournal.ForceMark mark = journal.beginForce();
+        final Iterator<Segment> pages = dirtyPages.values().iterator();
+        while (pages.hasNext()) {
+            final Segment segment = pages.next();
+            // removed before forcing, a write after this point marks the page again
+            pages.remove();
+            segment.force();
+        }
+        // the shared payloads referenced by the records
+        journal.forceAttachedState();
+        journal.force();
+        // the heads journaled before the mark point only to forced records
+        journal.forced(mark);
+        forceLatency.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Count a record found corrupted while reading it, the queue skips it.
+     * */
+    void corruptedRecordSkipped() {
+        corruptedRecords.increment();
+    }
+
+    public QueueDurabilityMetrics metrics() {
+        return new QueueDurabilityMetrics(mode.name().toLowerCase(Locale.ROOT), enqueueLatency.snapshot(),
+                                          forceLatency.snapshot(), commitLatency.snapshot(), corruptedRecords.sum());
+    }
+
+    /**
+     * Stop the flusher and force the last writes, the commits still waiting are completed.
+     * */
+    void close() throws QueueException {
+        if (flusher == null) {
+            return;
+        }
+        running = false;
+        lock.lock();
+        try {
+            commitRequested.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flusher.join(TimeUnit.NANOSECONDS.toMillis(intervalNanos) + 1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        force();
+        final List<CommitRequest> pending;
+        lock.lock();
+        try {
+            pending = commitRequests;
+            commitRequests = new ArrayList<>();
+        } finally {
+            lock.unlock();
+        }
+        for (CommitRequest request : pending) {
+            request.done.complete(null);
+        }
+    }
+}
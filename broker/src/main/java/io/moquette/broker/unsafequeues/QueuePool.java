@@ -1,25 +1,29 @@
 package io.moquette.broker.unsafequeues;
 
+import io.netty.buffer.ByteBuf;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableSet;
 import java.util.Objects;
 import java.util.Optional;
-import java.util.Properties;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
@@ -92,18 +96,82 @@ public class QueuePool {
         }
     }
 
+    /**
+     * Head and tail offsets of a queue loaded from the checkpoint and not yet opened.
+     * */
+    private static final class RecoveredQueue {
+        final long headOffset;
+        final long tailOffset;
+        final boolean checksummed;
+
+        private RecoveredQueue(long headOffset, long tailOffset, boolean checksummed) {
+            this.headOffset = headOffset;
+            this.tailOffset = tailOffset;
+            this.checksummed = checksummed;
+        }
+    }
+
+    /**
+     * Free segments owned by a thread, each session loop takes the segments for its queues from its own arena
+     * and acquires the allocation lock only to refill it with the free segments of a whole page, so the loops
+     * write to pages of their own. The compaction drains the arenas from its thread.
+     * */
+    private static final class SegmentArena {
+        private final ArrayDeque<Segment> free = new ArrayDeque<>();
+
+        private synchronized Segment poll() {
+            return free.pollFirst();
+        }
+
+        private synchronized void addAll(Collection<Segment> segments) {
+            free.addAll(segments);
+        }
+
+        private synchronized void drainTo(Collection<SegmentRef> segmentRefs) {
+            copyTo(segmentRefs);
+            free.clear();
+        }
+
+        private synchronized void copyTo(Collection<SegmentRef> segmentRefs) {
+            for (Segment segment : free) {
+                segmentRefs.add(new SegmentRef(segment));
+            }
+        }
+    }
+
     private final SegmentAllocator allocator;
-    private final Path dataPath;
+    private final PageFiles pageFiles;
     private final int segmentSize;
+    private final QueuePoolJournal journal;
+    private final QueueDurability durability;
+    // each list is also the monitor guarding it, held by the queue while it writes a record
     private final ConcurrentMap<QueueName, LinkedList<SegmentRef>> queueSegments = new ConcurrentHashMap<>();
     private final ConcurrentMap<QueueName, Queue> queues = new ConcurrentHashMap<>();
+    private final ConcurrentMap<QueueName, RecoveredQueue> recoveredQueues = new ConcurrentHashMap<>();
     private final ConcurrentSkipListSet<SegmentRef> recycledSegments = new ConcurrentSkipListSet<>();
     private final ReentrantLock segmentsAllocationLock = new ReentrantLock();
-
-    private QueuePool(SegmentAllocator allocator, Path dataPath, int segmentSize) {
+    // number of not released buffers sliced on each segment, guarded by segmentsAllocationLock
+    private final TreeMap<SegmentRef, Integer> segmentLeases = new TreeMap<>();
+    // segments completely read but still referenced by some buffer, guarded by segmentsAllocationLock
+    private final TreeSet<SegmentRef> consumedLeasedSegments = new TreeSet<>();
+    // free pages before the last one with the file deleted, used after the recycled segments,
+    // guarded by segmentsAllocationLock
+    private final TreeSet<Integer> deletedPages = new TreeSet<>();
+    private QueueCompaction compaction;
+    private final Set<SegmentArena> allArenas = ConcurrentHashMap.newKeySet();
+    private final ThreadLocal<SegmentArena> arenas = ThreadLocal.withInitial(() -> {
+        final SegmentArena arena = new SegmentArena();
+        allArenas.add(arena);
+        return arena;
+    });
+
+    private QueuePool(SegmentAllocator allocator, PageFiles pageFiles, int segmentSize, QueuePoolJournal journal,
+                      QueueDurability durability) {
         this.allocator = allocator;
-        this.dataPath = dataPath;
+        this.pageFiles = pageFiles;
         this.segmentSize = segmentSize;
+        this.journal = journal;
+        this.durability = durability;
     }
 
     private static class SegmentAllocationCallback implements PagedFilesAllocator.AllocationListener {
@@ -115,155 +183,219 @@ public class QueuePool {
         }
 
         @Override
-        public void segmentedCreated(String name, Segment segment) {
+        public void segmentedCreated(String name, Segment segment) throws QueueException {
             queuePool.segmentedCreated(name, segment);
         }
     }
 
-    private void segmentedCreated(String name, Segment segment) {
+    private void segmentedCreated(String name, Segment segment) throws QueueException {
         LOG.debug("Registering new segment {} for queue {}", segment, name);
         final QueueName queueName = new QueueName(name);
         List<SegmentRef> segmentRefs = this.queueSegments.computeIfAbsent(queueName, k -> new LinkedList<>());
 
         // adds in head
-        segmentRefs.add(0, new SegmentRef(segment));
+        final SegmentRef segmentRef = new SegmentRef(segment);
+        synchronized (segmentRefs) {
+            segmentRefs.add(0, segmentRef);
+            journal.segmentAdded(name, segmentRef);
+        }
 
         LOG.debug("queueSegments for queue {} after insertion {}", queueName, segmentRefs);
     }
 
     public static QueuePool loadQueues(Path dataPath, int pageSize, int segmentSize) throws QueueException {
-        // read in checkpoint.properties
-        final Properties checkpointProps = createOrLoadCheckpointFile(dataPath);
+        return loadQueues(dataPath, pageSize, segmentSize, QueueDurability.Mode.NONE, 0);
+    }
+
+    /**
+     * @param durability when the written segments are forced to the disk.
+     * @param forceIntervalMillis interval between the forces of the periodic durability.
+     * */
+    public static QueuePool loadQueues(Path dataPath, int pageSize, int segmentSize,
+                                       QueueDurability.Mode durability, long forceIntervalMillis)
+        throws QueueException {
+        return loadQueues(dataPath, pageSize, segmentSize, durability, forceIntervalMillis, 0, 0);
+    }
+
+    /**
+     * @param compactionIntervalMillis interval between the runs of the compaction of the pages, 0 disables it.
+     * @param compactionBytesPerSecond max rate of the segments copied by the compaction, 0 for no limit.
+     * */
+    public static QueuePool loadQueues(Path dataPath, int pageSize, int segmentSize,
+                                       QueueDurability.Mode durability, long forceIntervalMillis,
+                                       long compactionIntervalMillis, long compactionBytesPerSecond)
+        throws QueueException {
+        return loadQueues(dataPath, Collections.singletonList(dataPath), PagePlacement.ROUND_ROBIN, pageSize,
+            segmentSize, durability, forceIntervalMillis, compactionIntervalMillis, compactionBytesPerSecond);
+    }
+
+    /**
+     * @param dataPath directory of the checkpoint and journal, its page files are found even if it's not one
+     *                 of the page paths.
+     * @param pagePaths directories where the page files are spread.
+     * @param placement how the new page files are spread.
+     * */
+    public static QueuePool loadQueues(Path dataPath, List<Path> pagePaths, PagePlacement placement,
+                                       int pageSize, int segmentSize,
+                                       QueueDurability.Mode durability, long forceIntervalMillis,
+                                       long compactionIntervalMillis, long compactionBytesPerSecond)
+        throws QueueException {
+        return loadQueues(dataPath, pagePaths, placement, pageSize, segmentSize, durability, forceIntervalMillis,
+            compactionIntervalMillis, compactionBytesPerSecond, null);
+    }
+
+    /**
+     * @param attachedState state saved and forced together with the queues, loaded before them, null if none.
+     *                      Its journal is returned by attachedStateJournal.
+     * */
+    public static QueuePool loadQueues(Path dataPath, List<Path> pagePaths, PagePlacement placement,
+                                       int pageSize, int segmentSize,
+                                       QueueDurability.Mode durability, long forceIntervalMillis,
+                                       long compactionIntervalMillis, long compactionBytesPerSecond,
+                                       JournaledState attachedState) throws QueueException {
+        // load the last checkpoint and replay the journal of the changes after it
+        final QueuePoolJournal journal = QueuePoolJournal.open(dataPath, attachedState);
+
+        final PageFiles pageFiles = PageFiles.scan(pagePaths, dataPath, placement);
+        checkPageFiles(journal.queues(), pageFiles);
 
         // load last references to segment and instantiate the allocator
-        final int lastPage = Integer.parseInt(checkpointProps.getProperty("segments.last_page", "0"));
-        final int lastSegment = Integer.parseInt(checkpointProps.getProperty("segments.last_segment", "0"));
+        final PagedFilesAllocator allocator = new PagedFilesAllocator(pageFiles, pageSize, segmentSize,
+            journal.lastPage(), journal.lastSegment());
 
-        final PagedFilesAllocator allocator = new PagedFilesAllocator(dataPath, pageSize, segmentSize, lastPage, lastSegment);
+        // validate the records written after the last force, the previous run could have crashed
+        if (new QueueRecovery(allocator, segmentSize).recover(journal.queues())) {
+            journal.checkpoint();
+        }
 
-        final QueuePool queuePool = new QueuePool(allocator, dataPath, segmentSize);
+        final QueuePool queuePool = new QueuePool(allocator, pageFiles, segmentSize, journal,
+            new QueueDurability(durability, forceIntervalMillis, journal));
         callback = new SegmentAllocationCallback(queuePool);
-        queuePool.loadQueueDefinitions(checkpointProps);
+        queuePool.loadQueueDefinitions(journal.queues());
         LOG.debug("Loaded queues definitions: {}", queuePool.queueSegments);
 
-        queuePool.loadRecycledSegments(checkpointProps);
-        LOG.debug("Recyclable segments are: {}", queuePool.recycledSegments);
+        queuePool.loadRecycledSegments();
+        LOG.debug("Recyclable segments are: {}, deleted pages: {}", queuePool.recycledSegments, queuePool.deletedPages);
+
+        queuePool.compaction = new QueueCompaction(queuePool, segmentSize, pageSize / segmentSize,
+            compactionIntervalMillis, compactionBytesPerSecond);
         return queuePool;
     }
 
-    public Set<String> queueNames() {
-        return queues.keySet().stream().map(qn -> qn.name).collect(Collectors.toSet());
-    }
-
-    private static Properties createOrLoadCheckpointFile(Path dataPath) throws QueueException {
-        final Path checkpointPath = dataPath.resolve("checkpoint.properties");
-        if (!Files.exists(checkpointPath)) {
-            LOG.info("Can't find any file named 'checkpoint.properties' in path: {}, creating new one", dataPath);
-            final boolean notExisted;
-            try {
-                notExisted = checkpointPath.toFile().createNewFile();
-            } catch (IOException e) {
-                LOG.error("IO Error creating the file {}", checkpointPath, e);
-                throw new QueueException("Reached an IO error during the bootstrapping of empty 'checkpoint.properties'", e);
-            }
-            if (!notExisted) {
-                LOG.warn("Found a checkpoint file while bootstrapping {}", checkpointPath);
+    /**
+     * Fail if a page used by a queue is in none of the directories, a missing file would be created again empty.
+     * */
+    private static void checkPageFiles(Map<String, QueuePoolJournal.QueueState> queues,
+                                       PageFiles pageFiles) throws QueueException {
+        for (Map.Entry<String, QueuePoolJournal.QueueState> entry : queues.entrySet()) {
+            for (SegmentRef segmentRef : entry.getValue().segments) {
+                if (!pageFiles.exists(segmentRef.pageId)) {
+                    throw new QueueException("Page file " + segmentRef.pageId + " of queue " + entry.getKey() +
+                        " not found in " + pageFiles);
+                }
             }
         }
+    }
 
-        final FileReader fileReader;
-        try {
-            fileReader = new FileReader(checkpointPath.toFile());
-        } catch (FileNotFoundException e) {
-            throw new QueueException("Can't find any file named 'checkpoint.properties' in path: " + dataPath, e);
-        }
-        final Properties checkpointProps = new Properties();
-        try {
-            checkpointProps.load(fileReader);
-        } catch (IOException e) {
-            throw new QueueException("if an error occurred when reading from: " + checkpointPath, e);
-        }
-        return checkpointProps;
-    }
-
-    private void loadQueueDefinitions(Properties checkpointProps) throws QueueException {
-        // structure of queues definitions in properties file:
-        // queues.0.name = bla bla
-        // queues.0.segments = head (id_page, offset), (id_page, offset), ... tail
-        // queues.0.head_offset = bytes offset from the start of the page where last data was written
-        // queues.0.tail_offset = bytes offset from the start of the page where first data could be read
-        boolean noMoreQueues = false;
-        int queueId = 0;
-        while (!noMoreQueues) {
-            final String queueKey = String.format("queues.%d.name", queueId);
-            if (!checkpointProps.containsKey(queueKey)) {
-                noMoreQueues = true;
+    public Set<String> queueNames() {
+        return queueSegments.keySet().stream().map(qn -> qn.name).collect(Collectors.toSet());
+    }
+
+    private void loadQueueDefinitions(Map<String, QueuePoolJournal.QueueState> checkpoint) {
+        for (Map.Entry<String, QueuePoolJournal.QueueState> entry : checkpoint.entrySet()) {
+            final QueuePoolJournal.QueueState state = entry.getValue();
+            if (state.segments.isEmpty()) {
+                LOG.warn("Queue {} has no segments in the checkpoint, skipping it", entry.getKey());
                 continue;
             }
-            final QueueName queueName = new QueueName(checkpointProps.getProperty(queueKey));
-            LinkedList<SegmentRef> segmentRefs = decodeSegments(checkpointProps.getProperty(String.format("queues.%d.segments", queueId)));
-            final int numSegments = segmentRefs.size();
-            queueSegments.put(queueName, segmentRefs);
-
-            final long headOffset = Long.parseLong(checkpointProps.getProperty(String.format("queues.%d.head_offset", queueId)));
-            final SegmentRef headSegmentRef = segmentRefs.get(0);
-            final SegmentPointer currentHead = new SegmentPointer(headSegmentRef.pageId, headOffset);
-            // TODO this reopen could be done in lazy way during getOrCreate method.
-            Segment headSegment = allocator.reopenSegment(headSegmentRef.pageId, headSegmentRef.offset);
-
-            final long tailOffset = Long.parseLong(checkpointProps.getProperty(String.format("queues.%d.tail_offset", queueId)));
-            final SegmentRef tailSegmentRef = segmentRefs.getLast();
-            final SegmentPointer currentTail = new SegmentPointer(tailSegmentRef.pageId, tailOffset);
-            Segment tailSegment = allocator.reopenSegment(tailSegmentRef.pageId, tailSegmentRef.offset);
-
-            // Create relative positioned head and tail pointers
-            // Tail is an offset relative to start of the first segment in the list
-            // Head is n-1 full segments plus the offset of the physical head
-            final VirtualPointer logicalTail = new VirtualPointer(currentTail.offset());
-            final VirtualPointer logicalHead = new VirtualPointer((long) (numSegments - 1) * segmentSize + currentHead.offset());
-            final Queue queue = new Queue(queueName.name, headSegment, logicalHead, tailSegment, logicalTail,
-                allocator, callback, this);
-            queues.put(queueName, queue);
-
-            queueId++;
+            final QueueName queueName = new QueueName(entry.getKey());
+            queueSegments.put(queueName, new LinkedList<>(state.segments));
+            // the segments are reopened when the queue is requested the first time
+            recoveredQueues.put(queueName, new RecoveredQueue(state.headOffset, state.tailOffset, state.checksummed));
         }
     }
 
-    private void loadRecycledSegments(Properties checkpointProps) throws QueueException {
-        TreeSet<SegmentRef> usedSegments = new TreeSet<>();
+    private Queue reopenQueue(QueueName queueName, RecoveredQueue recovered) throws QueueException {
+        final LinkedList<SegmentRef> segmentRefs = queueSegments.get(queueName);
+        final int numSegments;
+        final SegmentRef headSegmentRef;
+        final SegmentRef tailSegmentRef;
+        synchronized (segmentRefs) {
+            numSegments = segmentRefs.size();
+            headSegmentRef = segmentRefs.getFirst();
+            tailSegmentRef = segmentRefs.getLast();
+        }
 
-        boolean noMoreQueues = false;
-        int queueId = 0;
+        final Segment headSegment = allocator.reopenSegment(headSegmentRef.pageId, headSegmentRef.offset);
+        final Segment tailSegment = allocator.reopenSegment(tailSegmentRef.pageId, tailSegmentRef.offset);
+
+        // Create relative positioned head and tail pointers
+        // Tail is an offset relative to start of the first segment in the list
+        // Head is n-1 full segments plus the offset of the physical head
+        final VirtualPointer logicalTail = new VirtualPointer(recovered.tailOffset);
+        final VirtualPointer logicalHead =
+            new VirtualPointer((long) (numSegments - 1) * segmentSize + recovered.headOffset);
+        return new Queue(queueName.name, recovered.checksummed, headSegment, logicalHead, tailSegment, logicalTail,
+            allocator, callback, this);
+    }
 
-        // load all queues definitions from checkpoint file
-        // TODO second use of this, extract as an iterator
-        while (!noMoreQueues) {
-            final String queueKey = String.format("queues.%d.name", queueId);
-            if (!checkpointProps.containsKey(queueKey)) {
-                noMoreQueues = true;
-                continue;
-            }
-            LinkedList<SegmentRef> segmentRefs = decodeSegments(checkpointProps.getProperty(String.format("queues.%d.segments", queueId)));
+    private void loadRecycledSegments() throws QueueException {
+        TreeSet<SegmentRef> usedSegments = new TreeSet<>();
+        for (LinkedList<SegmentRef> segmentRefs : queueSegments.values()) {
             usedSegments.addAll(segmentRefs);
-
-            queueId++;
         }
 
-        if (usedSegments.isEmpty()) {
-            // no queue definitions were loaded
-            return;
+        final List<SegmentRef> recreatedSegments = new ArrayList<>();
+        if (!usedSegments.isEmpty()) {
+            recreatedSegments.addAll(recreateSegmentHoles(usedSegments));
         }
-
-        final List<SegmentRef> recreatedSegments = recreateSegmentHoles(usedSegments);
+        // the segments allocated after the last used one were released before the stop
+        recreatedSegments.addAll(recreateSegmentsAfter(usedSegments.isEmpty() ? null : usedSegments.last()));
 
         segmentsAllocationLock.lock();
         try {
             recycledSegments.addAll(recreatedSegments);
+            loadDeletedPages();
         } finally {
             segmentsAllocationLock.unlock();
         }
     }
 
+    private List<SegmentRef> recreateSegmentsAfter(SegmentRef lastUsed) {
+        final List<SegmentRef> recreatedSegments = new LinkedList<>();
+        int pageId = lastUsed == null ? 0 : lastUsed.pageId;
+        int offset = lastUsed == null ? 0 : lastUsed.offset + segmentSize;
+        final int allocatedEnd = allocator.lastSegmentAllocated() * segmentSize;
+        while (pageId < allocator.lastPage() || (pageId == allocator.lastPage() && offset < allocatedEnd)) {
+            if (offset == allocator.getPageSize()) {
+                pageId++;
+                offset = 0;
+                continue;
+            }
+            recreatedSegments.add(new SegmentRef(pageId, offset));
+            offset += segmentSize;
+        }
+        return recreatedSegments;
+    }
+
+    /**
+     * Move the free pages with a deleted file from the recycled segments to the deleted pages.
+     * */
+    private void loadDeletedPages() {
+        final int segmentsPerPage = allocator.getPageSize() / segmentSize;
+        for (int pageId = 0; pageId < allocator.lastPage(); pageId++) {
+            final NavigableSet<SegmentRef> pageSegments = pageSegments(pageId);
+            if (pageSegments.size() == segmentsPerPage && !pageFiles.exists(pageId)) {
+                pageSegments.clear();
+                deletedPages.add(pageId);
+            }
+        }
+    }
+
+    private NavigableSet<SegmentRef> pageSegments(int pageId) {
+        return recycledSegments.subSet(new SegmentRef(pageId, 0), new SegmentRef(pageId + 1, 0));
+    }
+
     /**
      * @param usedSegments sorted set of used segments
      * */
@@ -349,82 +481,69 @@ public class QueuePool {
         return recreatedSegments;
     }
 
-    private LinkedList<SegmentRef> decodeSegments(String s) {
-        final String[] segments = s.substring(s.indexOf("(") + 1, s.lastIndexOf(")"))
-                .split("\\), \\(");
-
-        LinkedList<SegmentRef> acc = new LinkedList<>();
-        for (String segment : segments) {
-            final String[] split = segment.split(",");
-            final int idPage = Integer.parseInt(split[0].trim());
-            final int offset = Integer.parseInt(split[1].trim());
-
-            acc.offer(new SegmentRef(idPage, offset));
-        }
-        return acc;
-    }
-
     public Queue getOrCreate(String queueName) throws QueueException {
         final QueueName queueN = new QueueName(queueName);
         if (queues.containsKey(queueN)) {
             return queues.get(queueN);
-        } else {
-            // create new queue with first empty segment
-            final Segment segment = nextFreeSegment();
-            //notify segment creation for queue in queue pool
-            segmentedCreated(queueName, segment);
-
-            // When a segment is freshly created the head must the last occupied byte,
-            // so can't be the start of a segment, but one position before, or in case
-            // of a new page, -1
-            final Queue queue = new Queue(queueName, segment, VirtualPointer.buildUntouched(), segment, VirtualPointer.buildUntouched(),
-                this.allocator, callback, this);
+        }
+        final RecoveredQueue recovered = recoveredQueues.remove(queueN);
+        if (recovered != null) {
+            final Queue queue = reopenQueue(queueN, recovered);
             queues.put(queueN, queue);
             return queue;
         }
+        // create new queue with first empty segment
+        final Segment segment = nextFreeSegment();
+        //notify segment creation for queue in queue pool
+        segmentedCreated(queueName, segment);
+
+        // When a segment is freshly created the head must the last occupied byte,
+        // so can't be the start of a segment, but one position before, or in case
+        // of a new page, -1
+        final Queue queue = new Queue(queueName, segment, VirtualPointer.buildUntouched(), segment,
+            VirtualPointer.buildUntouched(), this.allocator, callback, this);
+        journalPointers(queueName, queue.currentHead(), queue.currentTail());
+        queues.put(queueN, queue);
+        return queue;
     }
 
     /**
-     * Free mapped files
+     * Record the position of head and tail of the queue, committing the segments added and consumed
+     * since the previous invocation.
      * */
-    public void close() throws QueueException {
-        allocator.close();
+    void journalPointers(String name, VirtualPointer head, VirtualPointer tail) throws QueueException {
+        journal.pointersMoved(name, head.segmentOffset(segmentSize), tail.segmentOffset(segmentSize));
+    }
 
-        //save all into the checkpoint file
-        Properties checkpoint = new Properties();
-        allocator.dumpState(checkpoint);
+    public QueueDurability durability() {
+        return durability;
+    }
 
-        int queueCounter = 0;
-        for (Map.Entry<QueueName, LinkedList<SegmentRef>> entry : queueSegments.entrySet()) {
-            // queues.0.name = bla bla
-            final QueueName queueName = entry.getKey();
-            checkpoint.setProperty("queues." + queueCounter + ".name", queueName.name);
+    /**
+     * @return the journal where the state attached on load records its changes, null if none is attached.
+     * */
+    public JournaledState.Journal attachedStateJournal() {
+        return journal.attachedStateJournal();
+    }
 
-            // queues.0.segments = head (id_page, offset), (id_page, offset), ... tail
-            final LinkedList<SegmentRef> segmentRefs = entry.getValue();
-            final String segmentsDef = segmentRefs.stream()
-                .map(SegmentRef::toString)
-                .collect(Collectors.joining(", "));
-            checkpoint.setProperty("queues." + queueCounter + ".segments", segmentsDef);
+    public QueueCompaction compaction() {
+        return compaction;
+    }
 
-            // queues.0.head_offset = bytes offset from the start of the page where last data was written
-            final Queue queue = queues.get(queueName);
-            checkpoint.setProperty("queues." + queueCounter + ".head_offset", String.valueOf(queue.currentHead().segmentOffset(segmentSize)));
-            checkpoint.setProperty("queues." + queueCounter + ".tail_offset", String.valueOf(queue.currentTail().segmentOffset(segmentSize)));
-        }
+    /**
+     * Free mapped files
+     * */
+    public void close() throws QueueException {
+        compaction.close();
+        durability.close();
+        allocator.close();
 
-        final File propertiesFile = dataPath.resolve("checkpoint.properties").toFile();
-        final FileWriter fileWriter;
-        try {
-            fileWriter = new FileWriter(propertiesFile);
-        } catch (IOException ex) {
-            throw new QueueException("Problem opening checkpoint.properties file", ex);
-        }
-        try {
-            checkpoint.store(fileWriter, "DON'T EDIT, AUTOGENERATED");
-        } catch (IOException ex) {
-            throw new QueueException("Problem writing checkpoint.properties file", ex);
+        // the last positions of the opened queues, the others are still the loaded ones
+        for (Map.Entry<QueueName, Queue> entry : queues.entrySet()) {
+            final Queue queue = entry.getValue();
+            journalPointers(entry.getKey().name, queue.currentHead(), queue.currentTail());
         }
+        journal.close();
     }
 
     Optional<Segment> openNextTailSegment(String name) throws QueueException {
@@ -432,12 +551,15 @@ public class QueuePool {
         final QueueName queueName = new QueueName(name);
         final LinkedList<SegmentRef> segmentRefs = queueSegments.get(queueName);
 
-        final SegmentRef pollSegment = segmentRefs.peekLast();
+        final SegmentRef pollSegment;
+        synchronized (segmentRefs) {
+            pollSegment = segmentRefs.peekLast();
+        }
         if (pollSegment == null) {
             return Optional.empty();
         }
 
-        final Path pageFile = dataPath.resolve(String.format("%d.page", pollSegment.pageId));
+        final Path pageFile = pageFiles.pageFile(pollSegment.pageId);
         if (!Files.exists(pageFile)) {
             throw new QueueException("Can't find file for page file" + pageFile);
         }
@@ -457,34 +579,450 @@ public class QueuePool {
     /**
      * Notify the actual tail segment was completely read
      * */
-    void consumedTailSegment(String name) {
+    void consumedTailSegment(String name) throws QueueException {
         final QueueName queueName = new QueueName(name);
         final LinkedList<SegmentRef> segmentRefs = queueSegments.get(queueName);
-        final SegmentRef segmentRef = segmentRefs.pollLast();
+        final SegmentRef segmentRef;
+        synchronized (segmentRefs) {
+            segmentRef = segmentRefs.pollLast();
+            journal.segmentConsumed(name);
+        }
         LOG.debug("Consumed tail segment {} from queue {}", segmentRef, queueName);
         segmentsAllocationLock.lock();
         try {
-            recycledSegments.add(segmentRef);
+            if (segmentLeases.containsKey(segmentRef)) {
+                // recycled when the last buffer sliced on it is released
+                consumedLeasedSegments.add(segmentRef);
+            } else {
+                recycledSegments.add(segmentRef);
+            }
+        } finally {
+            segmentsAllocationLock.unlock();
+        }
+    }
+
+    /**
+     * @return a buffer wrapping the segment region, the segment can't be recycled until the buffer is released.
+     * */
+    ByteBuf leasedSlice(Segment segment, VirtualPointer start, int length) {
+        final SegmentRef segmentRef = new SegmentRef(segment);
+        segmentsAllocationLock.lock();
+        try {
+            segmentLeases.merge(segmentRef, 1, Integer::sum);
         } finally {
             segmentsAllocationLock.unlock();
         }
+        return new SegmentSliceByteBuf(segment.region(start, length), () -> releaseLease(segmentRef));
     }
 
+    private void releaseLease(SegmentRef segmentRef) {
+        segmentsAllocationLock.lock();
+        try {
+            final Integer leases = segmentLeases.get(segmentRef);
+            if (leases == null) {
+                LOG.warn("Released a not leased segment {}", segmentRef);
+                return;
+            }
+            if (leases > 1) {
+                segmentLeases.put(segmentRef, leases - 1);
+                return;
+            }
+            segmentLeases.remove(segmentRef);
+            if (consumedLeasedSegments.remove(segmentRef)) {
+                LOG.debug("Last lease released on consumed segment {}, recycling it", segmentRef);
+                recycledSegments.add(segmentRef);
+            }
+        } finally {
+            segmentsAllocationLock.unlock();
+        }
+    }
+
+    /**
+     * Take a segment from the arena of the current thread, refilling it from the pool when empty.
+     * */
     Segment nextFreeSegment() throws QueueException {
+        final SegmentArena arena = arenas.get();
+        final Segment cached = arena.poll();
+        if (cached != null) {
+            return cached;
+        }
+        final List<Segment> refill = takeFreePage();
+        arena.addAll(refill.subList(1, refill.size()));
+        return refill.get(0);
+    }
+
+    /**
+     * Take the free segments of a single page: the recycled ones of the first page that has any, or else all
+     * the segments left in the current page of the allocator, opening a new one if it's exhausted.
+     * */
+    private List<Segment> takeFreePage() throws QueueException {
+        final List<Segment> segments = new ArrayList<>();
+        final List<SegmentRef> recycled = new ArrayList<>();
         segmentsAllocationLock.lock();
         try {
-            if (recycledSegments.isEmpty()) {
-                LOG.debug("no recycled segments available, request the creation of new one");
-                return allocator.nextFreeSegment();
+            final SegmentRef first = pollRecycledSegment(Integer.MAX_VALUE);
+            if (first != null) {
+                recycled.add(first);
+                final NavigableSet<SegmentRef> samePage = pageSegments(first.pageId);
+                recycled.addAll(samePage);
+                samePage.clear();
+            } else {
+                final int segmentsPerPage = allocator.getPageSize() / segmentSize;
+                do {
+                    segments.add(allocator.nextFreeSegment());
+                } while (allocator.lastSegmentAllocated() < segmentsPerPage);
+                journal.allocatorMoved(allocator.lastPage(), allocator.lastSegmentAllocated());
             }
-            final SegmentRef recycledSegment = recycledSegments.pollFirst();
+        } finally {
+            segmentsAllocationLock.unlock();
+        }
+        for (SegmentRef recycledSegment : recycled) {
+            segments.add(allocator.reopenSegment(recycledSegment.pageId, recycledSegment.offset));
+        }
+        return segments;
+    }
+
+    /**
+     * Allocate count segments, the ones missing from the arena of the current thread taken from the pool
+     * acquiring the allocation lock once, for bulk writes.
+     * */
+    List<Segment> nextFreeSegments(int count) throws QueueException {
+        final List<Segment> segments = new ArrayList<>(count);
+        final SegmentArena arena = arenas.get();
+        Segment cached;
+        while (segments.size() < count && (cached = arena.poll()) != null) {
+            segments.add(cached);
+        }
+        if (segments.size() < count) {
+            segments.addAll(takeFreeSegments(count - segments.size()));
+        }
+        return segments;
+    }
+
+    /**
+     * Take count segments from the pool, the recycled ones first, mapping the recycled pages after having
+     * released the allocation lock.
+     * */
+    private List<Segment> takeFreeSegments(int count) throws QueueException {
+        final List<Segment> segments = new ArrayList<>(count);
+        final List<SegmentRef> recycled = new ArrayList<>(count);
+        segmentsAllocationLock.lock();
+        try {
+            while (recycled.size() + segments.size() < count) {
+                final SegmentRef recycledSegment = pollRecycledSegment(Integer.MAX_VALUE);
+                if (recycledSegment != null) {
+                    LOG.debug("Reusing recycled segment from page: {} at page offset: {}", recycledSegment.pageId,
+                        recycledSegment.offset);
+                    recycled.add(recycledSegment);
+                } else {
+                    LOG.debug("no recycled segments available, request the creation of new one");
+                    segments.add(allocator.nextFreeSegment());
+                }
+            }
+            if (!segments.isEmpty()) {
+                journal.allocatorMoved(allocator.lastPage(), allocator.lastSegmentAllocated());
+            }
+        } finally {
+            segmentsAllocationLock.unlock();
+        }
+        for (SegmentRef recycledSegment : recycled) {
+            segments.add(allocator.reopenSegment(recycledSegment.pageId, recycledSegment.offset));
+        }
+        return segments;
+    }
+
+    /**
+     * Give back to the pool the segments cached by the arenas, so the compaction sees them as free.
+     * */
+    void drainArenas() {
+        final List<SegmentRef> drained = new ArrayList<>();
+        for (SegmentArena arena : allArenas) {
+            arena.drainTo(drained);
+        }
+        if (drained.isEmpty()) {
+            return;
+        }
+        segmentsAllocationLock.lock();
+        try {
+            recycledSegments.addAll(drained);
+        } finally {
+            segmentsAllocationLock.unlock();
+        }
+    }
+
+    /**
+     * Give back segments allocated and never used by a queue.
+     * */
+    void releaseUnusedSegments(Collection<Segment> segments) {
+        segmentsAllocationLock.lock();
+        try {
+            for (Segment segment : segments) {
+                recycledSegments.add(new SegmentRef(segment));
+            }
+        } finally {
+            segmentsAllocationLock.unlock();
+        }
+    }
+
+    /**
+     * Take the first recycled segment, the deleted pages are used only when there are no recycled segments
+     * before the limit. To be invoked holding segmentsAllocationLock.
+     *
+     * @return the recycled segment or null if there isn't any before the page limit.
+     * */
+    private SegmentRef pollRecycledSegment(int pageLimit) {
+        SegmentRef first = recycledSegments.isEmpty() ? null : recycledSegments.first();
+        if ((first == null || first.pageId >= pageLimit)
+            && !deletedPages.isEmpty() && deletedPages.first() < pageLimit) {
+            // the file of the page is created again when its segments are reopened
+            final int pageId = deletedPages.pollFirst();
+            LOG.debug("Reusing deleted page {}", pageId);
+            recycledSegments.addAll(recreateRecycledSegments(0, allocator.getPageSize(), pageId));
+            first = recycledSegments.first();
+        }
+        if (first == null || first.pageId >= pageLimit) {
+            return null;
+        }
+        recycledSegments.remove(first);
+        return first;
+    }
+
+    /**
+     * The segments of the queue, the monitor the queue holds while writing a record.
+     * */
+    Object segmentsMonitor(String name) {
+        return queueSegments.get(new QueueName(name));
+    }
+
+    /**
+     * @return the first of the trailing pages with at most maxLiveSegments each, whose live segments fit in the
+     * free segments of the pages before them, or -1 if there isn't any with live segments to move.
+     * */
+    int evacuationStart(int maxLiveSegments) {
+        segmentsAllocationLock.lock();
+        try {
+            final int segmentsPerPage = allocator.getPageSize() / segmentSize;
+            final int lastPage = allocator.lastPage();
+            final int[] free = new int[lastPage + 1];
+            for (SegmentRef segmentRef : recycledSegments) {
+                if (segmentRef.pageId <= lastPage) {
+                    free[segmentRef.pageId]++;
+                }
+            }
+            long freeBefore = 0;
+            for (Integer pageId : deletedPages) {
+                free[pageId] = segmentsPerPage;
+            }
+            for (int pageId = 0; pageId < lastPage; pageId++) {
+                freeBefore += free[pageId];
+            }
+
+            int start = -1;
+            long liveAfter = 0;
+            for (int pageId = lastPage; pageId > 0; pageId--) {
+                final int allocated = pageId == lastPage ? allocator.lastSegmentAllocated() : segmentsPerPage;
+                final int live = allocated - free[pageId];
+                if (live > maxLiveSegments) {
+                    break;
+                }
+                liveAfter += live;
+                if (liveAfter > 0 && liveAfter <= freeBefore) {
+                    start = pageId;
+                }
+                freeBefore -= free[pageId - 1];
+            }
+            return start;
+        } finally {
+            segmentsAllocationLock.unlock();
+        }
+    }
+
+    /**
+     * @return for each queue its segments in fromPage or after, that are neither the head nor the tail.
+     * */
+    Map<String, List<SegmentRef>> middleSegmentsFrom(int fromPage) {
+        final Map<String, List<SegmentRef>> candidates = new HashMap<>();
+        for (Map.Entry<QueueName, LinkedList<SegmentRef>> entry : queueSegments.entrySet()) {
+            final LinkedList<SegmentRef> segmentRefs = entry.getValue();
+            final List<SegmentRef> middle = new ArrayList<>();
+            synchronized (segmentRefs) {
+                // the head is written and the tail is read, the segments between them don't change
+                for (int i = 1; i < segmentRefs.size() - 1; i++) {
+                    final SegmentRef segmentRef = segmentRefs.get(i);
+                    if (segmentRef.pageId >= fromPage) {
+                        middle.add(segmentRef);
+                    }
+                }
+            }
+            if (!middle.isEmpty()) {
+                candidates.put(entry.getKey().name, middle);
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * @return a recycled segment in the pages before pageLimit, or null if there isn't any.
+     * */
+    Segment nextFreeSegmentBefore(int pageLimit) throws QueueException {
+        segmentsAllocationLock.lock();
+        try {
+            final SegmentRef recycledSegment = pollRecycledSegment(pageLimit);
             if (recycledSegment == null) {
-                throw new QueueException("Invalid state, expected available recycled segment");
+                return null;
             }
-            LOG.debug("Reusing recycled segment from page: {} at page offset: {}", recycledSegment.pageId, recycledSegment.offset);
             return allocator.reopenSegment(recycledSegment.pageId, recycledSegment.offset);
         } finally {
             segmentsAllocationLock.unlock();
         }
     }
+
+    /**
+     * @return a copy of the segments of the queue, head first, for a read that doesn't consume them. To be called
+     * holding the segments monitor of the queue.
+     * */
+    Deque<SegmentRef> copySegments(String name) {
+        return new ArrayDeque<>(queueSegments.get(new QueueName(name)));
+    }
+
+    // visible for testing
+    /**
+     * @return the segments that can be handed out to a queue: the recycled ones, the ones cached by the arenas
+     * and the ones of the pages with the file deleted.
+     * */
+    NavigableSet<SegmentRef> freeSegments() {
+        final NavigableSet<SegmentRef> free = new TreeSet<>();
+        for (SegmentArena arena : allArenas) {
+            arena.copyTo(free);
+        }
+        segmentsAllocationLock.lock();
+        try {
+            free.addAll(recycledSegments);
+            for (Integer pageId : deletedPages) {
+                free.addAll(recreateRecycledSegments(0, allocator.getPageSize(), pageId));
+            }
+        } finally {
+            segmentsAllocationLock.unlock();
+        }
+        return free;
+    }
+
+    Segment openSegment(SegmentRef segmentRef) throws QueueException {
+        return allocator.reopenSegment(segmentRef.pageId, segmentRef.offset);
+    }
+
+    /**
+     * Replace the segment of the queue with the one its content has been copied to, if it's still between
+     * the head and the tail.
+     *
+     * @return false if the segment has become the tail, or has been consumed, in the meantime.
+     * */
+    boolean relocateSegment(String name, SegmentRef from, Segment to) throws QueueException {
+        final LinkedList<SegmentRef> segmentRefs = queueSegments.get(new QueueName(name));
+        synchronized (segmentRefs) {
+            // the instance taken by middleSegmentsFrom, SegmentRef doesn't override equals
+            final int index = segmentRefs.indexOf(from);
+            if (index < 1 || index >= segmentRefs.size() - 1) {
+                return false;
+            }
+            final SegmentRef target = new SegmentRef(to);
+            segmentRefs.set(index, target);
+            journal.segmentMoved(name, from, target);
+            return true;
+        }
+    }
+
+    /**
+     * Recycle the segments replaced by relocateSegment, once the journal recording the moves is on the disk.
+     * */
+    void recycleRelocated(Collection<SegmentRef> relocated) throws QueueException {
+        journal.force();
+        segmentsAllocationLock.lock();
+        try {
+            recycledSegments.addAll(relocated);
+        } finally {
+            segmentsAllocationLock.unlock();
+        }
+    }
+
+    /**
+     * Move the allocation back before the free segments at the end and delete the page files after it, then
+     * delete the files of the other pages with only free segments.
+     *
+     * @return the number of page files deleted.
+     * */
+    int deleteFreePages() throws QueueException {
+        segmentsAllocationLock.lock();
+        try {
+            final int segmentsPerPage = allocator.getPageSize() / segmentSize;
+            final int lastPage = allocator.lastPage();
+            int pageId = lastPage;
+            int allocated = allocator.lastSegmentAllocated();
+            while (true) {
+                if (deletedPages.contains(pageId)) {
+                    allocated = 0;
+                }
+                while (allocated > 0
+                    && recycledSegments.contains(new SegmentRef(pageId, (allocated - 1) * segmentSize))) {
+                    allocated--;
+                }
+                if (allocated > 0 || pageId == 0) {
+                    break;
+                }
+                pageId--;
+                allocated = segmentsPerPage;
+            }
+
+            int deleted = 0;
+            if (pageId != lastPage || allocated != allocator.lastSegmentAllocated()) {
+                // the free segments after the new position are handed out again by the allocator
+                recycledSegments.tailSet(new SegmentRef(pageId, allocated * segmentSize)).clear();
+                allocator.rewind(pageId, allocated);
+                deletedPages.remove(pageId);
+                journal.allocatorMoved(pageId, allocated);
+                for (int trailingPage = lastPage; trailingPage > pageId; trailingPage--) {
+                    if (!deletedPages.remove(trailingPage)) {
+                        deletePageFile(trailingPage);
+                        deleted++;
+                    }
+                }
+                LOG.debug("Moved the segments allocation back to page {} segment {}", pageId, allocated);
+            }
+
+            for (int freePage = 0; freePage < pageId; freePage++) {
+                final NavigableSet<SegmentRef> pageSegments = pageSegments(freePage);
+                if (pageSegments.size() == segmentsPerPage) {
+                    pageSegments.clear();
+                    deletePageFile(freePage);
+                    deletedPages.add(freePage);
+                    deleted++;
+                }
+            }
+            return deleted;
+        } finally {
+            segmentsAllocationLock.unlock();
+        }
+    }
+
+    private void deletePageFile(int pageId) throws QueueException {
+        try {
+            // the mappings still open keep the space until they are collected
+            pageFiles.delete(pageId);
+        } catch (IOException ex) {
+            throw new QueueException("Can't delete free page file " + pageId, ex);
+        }
+        LOG.debug("Deleted free page file {}", pageId);
+    }
+
+    /**
+     * @return the number of page files on the disk.
+     * */
+    int pageFiles() {
+        segmentsAllocationLock.lock();
+        try {
+            return allocator.lastPage() + 1 - deletedPages.size();
+        } finally {
+            segmentsAllocationLock.unlock();
+        }
+    }
 }
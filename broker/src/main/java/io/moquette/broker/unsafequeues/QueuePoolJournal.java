@@ -0,0 +1,851 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.unsafequeues;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Persisted state of the QueuePool: a binary snapshot plus an append only journal of the changes after it.
+ *
+ * The journal records the segments added to and consumed from each queue, the moves of their head and tail,
+ * the moves of the segment allocator and the segments relocated by the compaction of the pages. The segment
+ * changes of a queue are applied only when the queue journals its pointers, that commits them, so the state
+ * is always the one at the end of a queue operation.
+ * When the journal grows over a threshold the state is written as a new snapshot and the journal restarts
+ * empty, so the recovery replays only the changes since the last compaction.
+ *
+ * After each force of the segments a marker records which heads are on the disk, so the recovery has to
+ * validate only the records written after the last marker.
+ *
+ * The state attached to the pool, like the shared payloads, is saved in the same snapshot and journal.
+ *
+ * Thread safe, the records are buffered and written to the file in batches.
+ * */
+final class QueuePoolJournal {
+
+    private static final Logger LOG = LoggerFactory.getLogger(QueuePoolJournal.class);
+
+    static final String SNAPSHOT_FILE = "checkpoint.bin";
+    static final String JOURNAL_FILE = "checkpoint.journal";
+    static final String LEGACY_CHECKPOINT_FILE = "checkpoint.properties";
+
+    private static final int SNAPSHOT_MAGIC = 0x4d515150;
+    // 2 adds the checksums flag and the verified head of each queue, 3 the attached state
+    private static final int SNAPSHOT_VERSION = 3;
+
+    private static final byte SEGMENT_ADDED = 1;
+    private static final byte SEGMENT_CONSUMED = 2;
+    private static final byte POINTERS = 3;
+    private static final byte ALLOCATOR = 4;
+    private static final byte FORCED = 5;
+    private static final byte SEGMENT_MOVED = 6;
+    private static final byte ATTACHED_STATE = 7;
+
+    // buffered records are written when they are more than this or older than the flush interval
+    private static final int FLUSH_THRESHOLD_BYTES = 32 * 1024;
+    private static final long FLUSH_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    // a queue name is at most 64KB in modified UTF-8
+    private static final int MAX_RECORD_SIZE = 80 * 1024;
+    private static final long COMPACTION_THRESHOLD_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * Committed state of a queue.
+     * */
+    static final class QueueState {
+        // head segment first
+        final LinkedList<QueuePool.SegmentRef> segments = new LinkedList<>();
+        long headOffset = -1;
+        long tailOffset = -1;
+        // false for the queues written before the records had a checksum
+        final boolean checksummed;
+        // the records up to this head are on the disk, verifiedSegment is null if none is known to be
+        QueuePool.SegmentRef verifiedSegment;
+        long verifiedOffset = -1;
+        // segment changes waiting for the pointers that commit them
+        private final List<Object> uncommitted = new ArrayList<>();
+        // heads journaled after the last force marker
+        private final ArrayDeque<JournaledHead> unverifiedHeads = new ArrayDeque<>();
+
+        private QueueState(boolean checksummed) {
+            this.checksummed = checksummed;
+        }
+
+        boolean isHeadVerified() {
+            return verifiedSegment != null && !segments.isEmpty() && verifiedSegment.compareTo(segments.getFirst()) == 0
+                && verifiedOffset == headOffset;
+        }
+
+        void verifyHead() {
+            verifiedSegment = segments.peekFirst();
+            verifiedOffset = headOffset;
+            unverifiedHeads.clear();
+        }
+
+        private void commit() {
+            for (Object change : uncommitted) {
+                if (change instanceof QueuePool.SegmentRef) {
+                    segments.addFirst((QueuePool.SegmentRef) change);
+                } else {
+                    segments.pollLast();
+                }
+            }
+            uncommitted.clear();
+        }
+
+        /**
+         * Replace the segment, wherever it's referenced, with the one its content has been copied to.
+         * */
+        private void moved(QueuePool.SegmentRef from, QueuePool.SegmentRef to) {
+            replace(segments, from, to);
+            replace(uncommitted, from, to);
+            if (verifiedSegment != null && verifiedSegment.compareTo(from) == 0) {
+                verifiedSegment = to;
+            }
+            for (JournaledHead head : unverifiedHeads) {
+                if (head.segment != null && head.segment.compareTo(from) == 0) {
+                    head.segment = to;
+                }
+            }
+        }
+
+        private static void replace(List<? super QueuePool.SegmentRef> refs, QueuePool.SegmentRef from,
+                                    QueuePool.SegmentRef to) {
+            final ListIterator<? super QueuePool.SegmentRef> iterator = refs.listIterator();
+            while (iterator.hasNext()) {
+                final Object ref = iterator.next();
+                if (ref instanceof QueuePool.SegmentRef && ((QueuePool.SegmentRef) ref).compareTo(from) == 0) {
+                    iterator.set(to);
+                    return;
+                }
+            }
+        }
+    }
+
+    private static final class JournaledHead {
+        // number of journal records up to the one that moved the head
+        private final long records;
+        // updated if the segment is relocated
+        private QueuePool.SegmentRef segment;
+        private final long offset;
+
+        private JournaledHead(long records, QueuePool.SegmentRef segment, long offset) {
+            this.records = records;
+            this.segment = segment;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * Position of the journal when a force of the segments started.
+     * */
+    static final class ForceMark {
+        private final int generation;
+        private final long records;
+
+        private ForceMark(int generation, long records) {
+            this.generation = generation;
+            this.records = records;
+        }
+    }
+
+    /**
+     * Journal of the attached state, its changes are appended while holding the lock of the journal.
+     * */
+    private final class AttachedStateJournal implements JournaledState.Journal {
+
+        @Override
+        public <T> T change(JournaledState.Change<T> change) throws IOException {
+            lock.lock();
+            try {
+                return change.apply(QueuePoolJournal.this::appendState);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void force() throws IOException {
+            attachedState.force();
+            lock.lock();
+            try {
+                flushPending();
+                journalChannel.force(false);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void checkpoint() throws IOException {
+            lock.lock();
+            try {
+                compact();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static final Object CONSUMED = new Object();
+
+    private final Path dataPath;
+    // null if nothing is attached to the pool
+    private final JournaledState attachedState;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, QueueState> queues = new HashMap<>();
+    private int lastPage;
+    private int lastSegment;
+    private FileChannel journalChannel;
+    private long journalSize;
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream(FLUSH_THRESHOLD_BYTES);
+    private final DataOutputStream pendingOut = new DataOutputStream(pending);
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream(256);
+    private final DataOutputStream recordOut = new DataOutputStream(record);
+    private final CRC32 crc = new CRC32();
+    private long lastFlushNanos = System.nanoTime();
+    // records in the journal file and compactions done, to match the force markers
+    private long records;
+    private int generation;
+    private boolean trackForces;
+    // states with heads not yet covered by a force marker
+    private final Set<QueueState> unverified = new HashSet<>();
+    // checksums flag of the states created while loading, the older formats don't have them
+    private boolean checksummedDefault = true;
+    // attached state found while loading with nothing attached to the pool
+    private boolean detachedStateDropped;
+
+    private QueuePoolJournal(Path dataPath, JournaledState attachedState) {
+        this.dataPath = dataPath;
+        this.attachedState = attachedState;
+    }
+
+    /**
+     * Load the last snapshot, or the legacy checkpoint.properties, and replay the journal on it.
+     *
+     * @param attachedState the state saved with the queues, null if none.
+     * */
+    static QueuePoolJournal open(Path dataPath, JournaledState attachedState) throws QueueException {
+        final QueuePoolJournal journal = new QueuePoolJournal(dataPath, attachedState);
+        final long start = System.nanoTime();
+        final Path snapshot = dataPath.resolve(SNAPSHOT_FILE);
+        final Path legacy = dataPath.resolve(LEGACY_CHECKPOINT_FILE);
+        final boolean migrate = !Files.exists(snapshot) && Files.exists(legacy);
+        try {
+            if (Files.exists(snapshot)) {
+                journal.loadSnapshot(snapshot);
+            } else if (migrate) {
+                journal.checksummedDefault = false;
+                journal.loadLegacyCheckpoint(legacy);
+            }
+            final int replayed = journal.replay(dataPath.resolve(JOURNAL_FILE));
+            journal.checksummedDefault = true;
+            if (journal.detachedStateDropped) {
+                LOG.warn("Dropping the state attached to the queues in {}, nothing is attached to the pool",
+                         dataPath);
+            }
+            LOG.info("Loaded queues checkpoint with {} queues, replayed {} journal records in {} ms",
+                     journal.queues.size(), replayed, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            // restart from a clean snapshot and an empty journal
+            journal.compact();
+            if (migrate) {
+                Files.delete(legacy);
+                LOG.info("Migrated {} to the binary checkpoint", legacy);
+            }
+        } catch (IOException ex) {
+            throw new QueueException("Problem loading the queues checkpoint from " + dataPath, ex);
+        }
+        return journal;
+    }
+
+    int lastPage() {
+        return lastPage;
+    }
+
+    int lastSegment() {
+        return lastSegment;
+    }
+
+    /**
+     * @return the committed state of the queues, to be used only during the loading of the pool.
+     * */
+    Map<String, QueueState> queues() {
+        return queues;
+    }
+
+    /**
+     * Write a new snapshot of the state, after it has been changed by the recovery.
+     * */
+    void checkpoint() throws QueueException {
+        lock.lock();
+        try {
+            compact();
+        } catch (IOException ex) {
+            throw new QueueException("Problem writing the queues checkpoint", ex);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the journal of the attached state, null if none.
+     * */
+    JournaledState.Journal attachedStateJournal() {
+        return attachedState == null ? null : new AttachedStateJournal();
+    }
+
+    /**
+     * Force the data of the attached state, to be done before forcing the journal that references it.
+     * */
+    void forceAttachedState() throws QueueException {
+        if (attachedState == null) {
+            return;
+        }
+        try {
+            attachedState.force();
+        } catch (IOException ex) {
+            throw new QueueException("Problem forcing the state attached to the queues", ex);
+        }
+    }
+
+    /**
+     * Keep track of the heads forced to the disk, used only when the segments are forced.
+     * */
+    void trackForces() {
+        lock.lock();
+        try {
+            trackForces = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the position of the journal, to be passed to forced once the segments have been forced.
+     * */
+    ForceMark beginForce() {
+        lock.lock();
+        try {
+            return new ForceMark(generation, records);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Record that the segments written before the mark are on the disk.
+     * */
+    void forced(ForceMark mark) throws QueueException {
+        lock.lock();
+        try {
+            if (mark.generation != generation) {
+                // compacted in the meantime, the next force will mark the heads
+                return;
+            }
+            recordOut.writeByte(FORCED);
+            recordOut.writeLong(mark.records);
+            append();
+            applyForced(mark.records);
+        } catch (IOException ex) {
+            throw new QueueException("Problem writing the queues journal", ex);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void segmentAdded(String queue, QueuePool.SegmentRef segment) throws QueueException {
+        lock.lock();
+        try {
+            appendSegmentAdded(queue, segment);
+            stateOf(queue).uncommitted.add(segment);
+        } catch (IOException ex) {
+            throw new QueueException("Problem writing the queues journal", ex);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void segmentConsumed(String queue) throws QueueException {
+        lock.lock();
+        try {
+            appendSegmentConsumed(queue);
+            stateOf(queue).uncommitted.add(CONSUMED);
+        } catch (IOException ex) {
+            throw new QueueException("Problem writing the queues journal", ex);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Record the head and tail of the queue, committing its segment changes.
+     *
+     * @param headOffset offset of the head inside the head segment.
+     * @param tailOffset offset of the tail inside the tail segment.
+     * */
+    void pointersMoved(String queue, long headOffset, long tailOffset) throws QueueException {
+        lock.lock();
+        try {
+            recordOut.writeByte(POINTERS);
+            recordOut.writeUTF(queue);
+            recordOut.writeLong(headOffset);
+            recordOut.writeLong(tailOffset);
+            append();
+            applyPointers(stateOf(queue), headOffset, tailOffset);
+            if (journalSize > COMPACTION_THRESHOLD_BYTES) {
+                compact();
+            }
+        } catch (IOException ex) {
+            throw new QueueException("Problem writing the queues journal", ex);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void allocatorMoved(int lastPage, int lastSegment) throws QueueException {
+        lock.lock();
+        try {
+            recordOut.writeByte(ALLOCATOR);
+            recordOut.writeInt(lastPage);
+            recordOut.writeInt(lastSegment);
+            append();
+            this.lastPage = lastPage;
+            this.lastSegment = lastSegment;
+        } catch (IOException ex) {
+            throw new QueueException("Problem writing the queues journal", ex);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Record that the content of a segment of the queue has been copied to another one, that replaces it.
+     * The move is applied at once, it doesn't wait for the pointers of the queue.
+     * */
+    void segmentMoved(String queue, QueuePool.SegmentRef from, QueuePool.SegmentRef to) throws QueueException {
+        lock.lock();
+        try {
+            recordOut.writeByte(SEGMENT_MOVED);
+            recordOut.writeUTF(queue);
+            recordOut.writeInt(from.pageId);
+            recordOut.writeInt(from.offset);
+            recordOut.writeInt(to.pageId);
+            recordOut.writeInt(to.offset);
+            append();
+            stateOf(queue).moved(from, to);
+        } catch (IOException ex) {
+            throw new QueueException("Problem writing the queues journal", ex);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void appendSegmentAdded(String queue, QueuePool.SegmentRef segment) throws IOException {
+        recordOut.writeByte(SEGMENT_ADDED);
+        recordOut.writeUTF(queue);
+        recordOut.writeInt(segment.pageId);
+        recordOut.writeInt(segment.offset);
+        append();
+    }
+
+    private void appendSegmentConsumed(String queue) throws IOException {
+        recordOut.writeByte(SEGMENT_CONSUMED);
+        recordOut.writeUTF(queue);
+        append();
+    }
+
+    private void appendState(byte[] content) throws IOException {
+        recordOut.writeByte(ATTACHED_STATE);
+        recordOut.write(content);
+        append();
+    }
+
+    /**
+     * Write the buffered records and force the journal to the disk.
+     * */
+    void force() throws QueueException {
+        lock.lock();
+        try {
+            flushPending();
+            journalChannel.force(false);
+        } catch (IOException ex) {
+            throw new QueueException("Problem forcing the queues journal", ex);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private QueueState stateOf(String queue) {
+        return queues.computeIfAbsent(queue, k -> new QueueState(checksummedDefault));
+    }
+
+    private void applyPointers(QueueState state, long headOffset, long tailOffset) {
+        state.commit();
+        state.headOffset = headOffset;
+        state.tailOffset = tailOffset;
+        if (trackForces) {
+            state.unverifiedHeads.add(new JournaledHead(records, state.segments.peekFirst(), headOffset));
+            unverified.add(state);
+        }
+    }
+
+    private void applyForced(long forcedRecords) {
+        final Iterator<QueueState> states = unverified.iterator();
+        while (states.hasNext()) {
+            final QueueState state = states.next();
+            while (!state.unverifiedHeads.isEmpty() && state.unverifiedHeads.peekFirst().records <= forcedRecords) {
+                final JournaledHead head = state.unverifiedHeads.pollFirst();
+                state.verifiedSegment = head.segment;
+                state.verifiedOffset = head.offset;
+            }
+            if (state.unverifiedHeads.isEmpty()) {
+                states.remove();
+            }
+        }
+    }
+
+    /**
+     * Frame the record in recordOut with its length and checksum and buffer it.
+     * */
+    private void append() throws IOException {
+        crc.reset();
+        crc.update(record.toByteArray());
+        pendingOut.writeInt(record.size());
+        pendingOut.writeInt((int) crc.getValue());
+        record.writeTo(pendingOut);
+        record.reset();
+        records++;
+        final long now = System.nanoTime();
+        if (pending.size() >= FLUSH_THRESHOLD_BYTES || now - lastFlushNanos >= FLUSH_INTERVAL_NANOS) {
+            flushPending();
+        }
+    }
+
+    private void flushPending() throws IOException {
+        lastFlushNanos = System.nanoTime();
+        if (pending.size() == 0) {
+            return;
+        }
+        final ByteBuffer buffer = ByteBuffer.wrap(pending.toByteArray());
+        while (buffer.hasRemaining()) {
+            journalSize += journalChannel.write(buffer);
+        }
+        pending.reset();
+    }
+
+    /**
+     * Write the committed state as the new snapshot and truncate the journal.
+     * */
+    private void compact() throws IOException {
+        final long start = System.nanoTime();
+        final Path tmpSnapshot = dataPath.resolve(SNAPSHOT_FILE + ".tmp");
+        try (DataOutputStream out =
+                 new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpSnapshot)))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeInt(lastPage);
+            out.writeInt(lastSegment);
+            out.writeInt(queues.size());
+            for (Map.Entry<String, QueueState> entry : queues.entrySet()) {
+                final QueueState state = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeBoolean(state.checksummed);
+                out.writeLong(state.headOffset);
+                out.writeLong(state.tailOffset);
+                if (state.verifiedSegment == null) {
+                    out.writeInt(-1);
+                    out.writeInt(-1);
+                } else {
+                    out.writeInt(state.verifiedSegment.pageId);
+                    out.writeInt(state.verifiedSegment.offset);
+                }
+                out.writeLong(state.verifiedOffset);
+                out.writeInt(state.segments.size());
+                for (QueuePool.SegmentRef segment : state.segments) {
+                    out.writeInt(segment.pageId);
+                    out.writeInt(segment.offset);
+                }
+            }
+            writeAttachedState(out);
+        }
+        try (FileChannel snapshotChannel = FileChannel.open(tmpSnapshot, StandardOpenOption.WRITE)) {
+            snapshotChannel.force(true);
+        }
+        Files.move(tmpSnapshot, dataPath.resolve(SNAPSHOT_FILE), StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+
+        // the buffered records are already part of the snapshot
+        pending.reset();
+        if (journalChannel != null) {
+            journalChannel.close();
+        }
+        journalChannel = FileChannel.open(dataPath.resolve(JOURNAL_FILE), StandardOpenOption.CREATE,
+                                          StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        journalSize = 0;
+        records = 0;
+        generation++;
+        // the force markers of the new journal count from 0
+        for (QueueState state : unverified) {
+            state.unverifiedHeads.clear();
+        }
+        unverified.clear();
+        // segment changes of queues in the middle of an operation are not in the snapshot
+        for (Map.Entry<String, QueueState> entry : queues.entrySet()) {
+            for (Object change : entry.getValue().uncommitted) {
+                if (change instanceof QueuePool.SegmentRef) {
+                    appendSegmentAdded(entry.getKey(), (QueuePool.SegmentRef) change);
+                } else {
+                    appendSegmentConsumed(entry.getKey());
+                }
+            }
+        }
+        flushPending();
+        LOG.debug("Compacted queues journal in snapshot of {} queues in {} ms", queues.size(),
+                  TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    private void loadSnapshot(Path snapshot) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshot)))) {
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Unrecognized queues checkpoint format in " + snapshot);
+            }
+            final int version = in.readInt();
+            if (version < 1 || version > SNAPSHOT_VERSION) {
+                throw new IOException("Unsupported queues checkpoint version " + version + " in " + snapshot);
+            }
+            // the queues of version 1 and the ones created by its journal have records without checksum
+            checksummedDefault = version >= 2;
+            lastPage = in.readInt();
+            lastSegment = in.readInt();
+            final int queuesCount = in.readInt();
+            for (int i = 0; i < queuesCount; i++) {
+                final String name = in.readUTF();
+                final QueueState state = new QueueState(version >= 2 ? in.readBoolean() : false);
+                queues.put(name, state);
+                state.headOffset = in.readLong();
+                state.tailOffset = in.readLong();
+                if (version >= 2) {
+                    final int verifiedPage = in.readInt();
+                    final int verifiedSegmentOffset = in.readInt();
+                    state.verifiedOffset = in.readLong();
+                    if (verifiedPage >= 0) {
+                        state.verifiedSegment = new QueuePool.SegmentRef(verifiedPage, verifiedSegmentOffset);
+                    }
+                }
+                final int segmentsCount = in.readInt();
+                for (int s = 0; s < segmentsCount; s++) {
+                    state.segments.add(new QueuePool.SegmentRef(in.readInt(), in.readInt()));
+                }
+            }
+            if (version >= 3) {
+                loadAttachedState(in);
+            }
+        }
+    }
+
+    private void writeAttachedState(DataOutputStream out) throws IOException {
+        if (attachedState == null) {
+            out.writeInt(0);
+            return;
+        }
+        final ByteArrayOutputStream state = new ByteArrayOutputStream();
+        try (DataOutputStream stateOut = new DataOutputStream(state)) {
+            attachedState.writeSnapshot(stateOut);
+        }
+        out.writeInt(state.size());
+        state.writeTo(out);
+    }
+
+    private void loadAttachedState(DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length == 0) {
+            return;
+        }
+        final byte[] state = new byte[length];
+        in.readFully(state);
+        if (attachedState == null) {
+            detachedStateDropped = true;
+            return;
+        }
+        attachedState.loadSnapshot(new DataInputStream(new ByteArrayInputStream(state)));
+    }
+
+    /**
+     * @return the number of replayed records, the replay stops at the first truncated or corrupted one.
+     * */
+    private int replay(Path journalPath) throws IOException {
+        if (!Files.exists(journalPath)) {
+            return 0;
+        }
+        int replayed = 0;
+        // the heads in the journal are verified by the force markers that follow them
+        trackForces = true;
+        try (InputStream input = new BufferedInputStream(Files.newInputStream(journalPath));
+             DataInputStream in = new DataInputStream(input)) {
+            while (true) {
+                final byte[] content;
+                try {
+                    final int length = in.readInt();
+                    final int checksum = in.readInt();
+                    if (length <= 0 || length > MAX_RECORD_SIZE) {
+                        LOG.warn("Invalid queues journal record length {}, stop replaying", length);
+                        break;
+                    }
+                    content = new byte[length];
+                    in.readFully(content);
+                    crc.reset();
+                    crc.update(content);
+                    if ((int) crc.getValue() != checksum) {
+                        LOG.warn("Corrupted queues journal record after {} records, stop replaying", replayed);
+                        break;
+                    }
+                } catch (EOFException eof) {
+                    // end of the journal, or a record truncated by a crash
+                    break;
+                }
+                records++;
+                replayRecord(new DataInputStream(new ByteArrayInputStream(content)));
+                replayed++;
+            }
+        }
+        // segment changes never committed by their pointers are dropped
+        for (QueueState state : queues.values()) {
+            state.uncommitted.clear();
+        }
+        trackForces = false;
+        return replayed;
+    }
+
+    private void replayRecord(DataInputStream in) throws IOException {
+        final byte type = in.readByte();
+        switch (type) {
+            case SEGMENT_ADDED:
+                stateOf(in.readUTF()).uncommitted.add(new QueuePool.SegmentRef(in.readInt(), in.readInt()));
+                break;
+            case SEGMENT_CONSUMED:
+                stateOf(in.readUTF()).uncommitted.add(CONSUMED);
+                break;
+            case POINTERS:
+                applyPointers(stateOf(in.readUTF()), in.readLong(), in.readLong());
+                break;
+            case ALLOCATOR:
+                lastPage = in.readInt();
+                lastSegment = in.readInt();
+                break;
+            case FORCED:
+                applyForced(in.readLong());
+                break;
+            case SEGMENT_MOVED:
+                stateOf(in.readUTF()).moved(new QueuePool.SegmentRef(in.readInt(), in.readInt()),
+                                            new QueuePool.SegmentRef(in.readInt(), in.readInt()));
+                break;
+            case ATTACHED_STATE:
+                if (attachedState == null) {
+                    detachedStateDropped = true;
+                } else {
+                    attachedState.replay(in);
+                }
+                break;
+            default:
+                throw new IOException("Unrecognized queues journal record type " + type);
+        }
+    }
+
+    private void loadLegacyCheckpoint(Path legacy) throws IOException {
+        final Properties checkpointProps = new Properties();
+        try (FileReader reader = new FileReader(legacy.toFile())) {
+            checkpointProps.load(reader);
+        }
+        lastPage = Integer.parseInt(checkpointProps.getProperty("segments.last_page", "0"));
+        lastSegment = Integer.parseInt(checkpointProps.getProperty("segments.last_segment", "0"));
+        // queues.<n>.name, queues.<n>.segments = head (id_page, offset), ... tail, head_offset and tail_offset
+        for (int queueId = 0; checkpointProps.containsKey("queues." + queueId + ".name"); queueId++) {
+            final String prefix = "queues." + queueId;
+            final QueueState state = stateOf(checkpointProps.getProperty(prefix + ".name"));
+            state.segments.addAll(decodeSegments(checkpointProps.getProperty(prefix + ".segments")));
+            state.headOffset = Long.parseLong(checkpointProps.getProperty(prefix + ".head_offset"));
+            state.tailOffset = Long.parseLong(checkpointProps.getProperty(prefix + ".tail_offset"));
+        }
+    }
+
+    private static LinkedList<QueuePool.SegmentRef> decodeSegments(String s) {
+        final String[] segments = s.substring(s.indexOf("(") + 1, s.lastIndexOf(")"))
+                .split("\\), \\(");
+
+        LinkedList<QueuePool.SegmentRef> acc = new LinkedList<>();
+        for (String segment : segments) {
+            final String[] split = segment.split(",");
+            final int idPage = Integer.parseInt(split[0].trim());
+            final int offset = Integer.parseInt(split[1].trim());
+
+            acc.offer(new QueuePool.SegmentRef(idPage, offset));
+        }
+        return acc;
+    }
+
+    /**
+     * Write the last snapshot and close the journal.
+     * */
+    void close() throws QueueException {
+        lock.lock();
+        try {
+            // clean shutdown, the next start doesn't need to validate the records
+            for (QueueState state : queues.values()) {
+                state.verifyHead();
+            }
+            if (attachedState != null) {
+                attachedState.force();
+            }
+            compact();
+            journalChannel.close();
+        } catch (IOException ex) {
+            throw new QueueException("Problem writing the queues checkpoint", ex);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.unsafequeues;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+/**
+ * Validates, after the load of the checkpoint, the records written after the last verified head of each queue.
+ *
+ * A head journaled before its pages reached the disk can point past torn or zeroed records: each queue is
+ * scanned from its verified head, or from the tail if none, checking the length and the checksum of every
+ * record, and it's truncated before the first invalid one. The queues are scanned in parallel.
+ * */
+final class QueueRecovery {
+
+    private static final Logger LOG = LoggerFactory.getLogger(QueueRecovery.class);
+
+    private final SegmentAllocator allocator;
+    private final int segmentSize;
+    private final LongAdder recoveredRecords = new LongAdder();
+    private final LongAdder truncatedQueues = new LongAdder();
+    private final LongAdder truncatedBytes = new LongAdder();
+
+    QueueRecovery(SegmentAllocator allocator, int segmentSize) {
+        this.allocator = allocator;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Scan the queues with not verified heads, truncating them, and mark all the heads as verified.
+     *
+     * @return true if any queue has been scanned, so the state has to be saved.
+     * */
+    boolean recover(Map<String, QueuePoolJournal.QueueState> queues) throws QueueException {
+        final List<Map.Entry<String, QueuePoolJournal.QueueState>> toScan = new ArrayList<>();
+        for (Map.Entry<String, QueuePoolJournal.QueueState> entry : queues.entrySet()) {
+            if (!entry.getValue().segments.isEmpty() && !entry.getValue().isHeadVerified()) {
+                toScan.add(entry);
+            }
+        }
+        if (toScan.isEmpty()) {
+            return false;
+        }
+
+        final long start = System.nanoTime();
+        final int threads = Math.min(toScan.size(), Runtime.getRuntime().availableProcessors());
+        final AtomicInteger threadId = new AtomicInteger();
+        final ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+            final Thread thread = new Thread(r, "queues-recovery-" + threadId.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            final List<Future<Void>> scans = new ArrayList<>(toScan.size());
+            for (Map.Entry<String, QueuePoolJournal.QueueState> entry : toScan) {
+                scans.add(executor.submit(() -> {
+                    scan(entry.getKey(), entry.getValue());
+                    return null;
+                }));
+            }
+            for (Future<Void> scan : scans) {
+                scan.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new QueueException("Interrupted during the recovery of the queues", e);
+        } catch (ExecutionException e) {
+            throw new QueueException("Problem recovering the queues", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        LOG.info("Recovered {} queues in {} ms: {} records recovered, {} queues truncated, {} bytes truncated",
+                 toScan.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+                 recoveredRecords.sum(), truncatedQueues.sum(), truncatedBytes.sum());
+        return true;
+    }
+
+    /**
+     * @return the number of queues truncated before an invalid record.
+     * */
+    long truncatedQueues() {
+        return truncatedQueues.sum();
+    }
+
+    long truncatedBytes() {
+        return truncatedBytes.sum();
+    }
+
+    private void scan(String name, QueuePoolJournal.QueueState state) throws QueueException {
+        final QueueBytes bytes = new QueueBytes(state.segments);
+        final int headerSize = Queue.headerSize(state.checksummed);
+        final CRC32 crc = new CRC32();
+
+        // positions are relative to the begin of the tail segment, end is after the last written byte
+        final long end = (long) (state.segments.size() - 1) * segmentSize + state.headOffset + 1;
+        long position = Math.max(state.tailOffset, 0);
+        final int verifiedIndex = bytes.indexOf(state.verifiedSegment);
+        if (verifiedIndex >= 0) {
+            final long afterVerified = (long) verifiedIndex * segmentSize + state.verifiedOffset + 1;
+            if (afterVerified <= end) {
+                position = Math.max(position, afterVerified);
+            }
+        }
+
+        while (position < end) {
+            if (end - position < headerSize) {
+                break;
+            }
+            final int length = bytes.readInt(position);
+            if (length < 0 || length > end - position - headerSize) {
+                break;
+            }
+            if (state.checksummed) {
+                Queue.resetChecksum(crc, length);
+                bytes.updateChecksum(crc, position + headerSize, length);
+                if ((int) crc.getValue() != bytes.readInt(position + Queue.LENGTH_HEADER_SIZE)) {
+                    break;
+                }
+            }
+            position += headerSize + length;
+            recoveredRecords.increment();
+        }
+
+        if (position < end) {
+            LOG.warn("Queue {} has an invalid record at position {}, truncating {} bytes", name, position,
+                     end - position);
+            truncatedQueues.increment();
+            truncatedBytes.add(end - position);
+            truncate(state, position - 1);
+        }
+        state.verifyHead();
+    }
+
+    /**
+     * Move the head to the last valid byte, releasing the segments after it.
+     * */
+    private void truncate(QueuePoolJournal.QueueState state, long lastValidByte) {
+        final int headIndex = lastValidByte < 0 ? 0 : (int) (lastValidByte / segmentSize);
+        while (state.segments.size() > headIndex + 1) {
+            state.segments.removeFirst();
+        }
+        state.headOffset = lastValidByte < 0 ? -1 : lastValidByte % segmentSize;
+    }
+
+    /**
+     * The bytes of a queue, addressed from the begin of its tail segment.
+     * */
+    private final class QueueBytes {
+        // tail segment first
+        private final List<QueuePool.SegmentRef> segments;
+        private final ByteBuffer[] views;
+
+        private QueueBytes(List<QueuePool.SegmentRef> headFirstSegments) {
+            this.segments = new ArrayList<>(headFirstSegments);
+            Collections.reverse(this.segments);
+            this.views = new ByteBuffer[segments.size()];
+        }
+
+        private int indexOf(QueuePool.SegmentRef segment) {
+            if (segment == null) {
+                return -1;
+            }
+            for (int i = 0; i < segments.size(); i++) {
+                if (segments.get(i).compareTo(segment) == 0) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private ByteBuffer view(int index) throws QueueException {
+            if (views[index] == null) {
+                final QueuePool.SegmentRef ref = segments.get(index);
+                final Segment segment = allocator.reopenSegment(ref.pageId, ref.offset);
+                views[index] = segment.region(segment.begin, segmentSize);
+            }
+            return views[index];
+        }
+
+        private byte get(long position) throws QueueException {
+            return view((int) (position / segmentSize)).get((int) (position % segmentSize));
+        }
+
+        private int readInt(long position) throws QueueException {
+            return (get(position) & 0xFF) << 24 | (get(position + 1) & 0xFF) << 16 |
+                (get(position + 2) & 0xFF) << 8 | get(position + 3) & 0xFF;
+        }
+
+        private void updateChecksum(CRC32 crc, long position, int length) throws QueueException {
+            while (length > 0) {
+                final int offset = (int) (position % segmentSize);
+                final int chunk = Math.min(length, segmentSize - offset);
+                final ByteBuffer part = view((int) (position / segmentSize)).duplicate();
+                part.position(offset);
+                part.limit(offset + chunk);
+                crc.update(part);
+                position += chunk;
+                length -= chunk;
+            }
+        }
+    }
+}
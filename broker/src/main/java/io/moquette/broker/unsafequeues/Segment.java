@@ -116,6 +116,24 @@ final class Segment {
         return ByteBuffer.wrap(dst);
     }
 
+    /**
+     * @return a view of the mapped page, from start for length bytes, nothing is copied.
+     * */
+    ByteBuffer region(VirtualPointer start, int length) {
+        return region(rebasedOffset(start), length);
+    }
+
+    ByteBuffer region(SegmentPointer start, int length) {
+        return region(start.offset(), length);
+    }
+
+    private ByteBuffer region(int pageOffset, int length) {
+        final ByteBuffer view = mappedBuffer.duplicate();
+        view.position(pageOffset);
+        view.limit(pageOffset + length);
+        return view.slice();
+    }
+
     public ByteBuffer read(SegmentPointer start, int length) {
         byte[] dst = new byte[length];
 
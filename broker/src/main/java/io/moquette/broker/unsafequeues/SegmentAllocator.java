@@ -1,7 +1,5 @@
 package io.moquette.broker.unsafequeues;
 
-import java.util.Properties;
-
 interface SegmentAllocator {
 
     /**
@@ -13,11 +11,31 @@ interface SegmentAllocator {
      * */
     Segment nextFreeSegment() throws QueueException;
 
+    /**
+     * Map again an allocated segment, thread safe, it doesn't need the allocation lock.
+     * */
     Segment reopenSegment(int pageId, int beginOffset) throws QueueException;
 
     void close() throws QueueException;
 
-    void dumpState(Properties checkpoint);
+    /**
+     * Move the allocation back, the segments after the new position have to be free, to be invoked
+     * inside the same lock of nextFreeSegment.
+     *
+     * @param lastPage the page that becomes the current one, its file is created if missing.
+     * @param lastSegmentAllocated the number of segments still allocated in it.
+     * */
+    void rewind(int lastPage, int lastSegmentAllocated) throws QueueException;
+
+    /**
+     * @return the page containing the last allocated segment, to be saved in the checkpoint.
+     * */
+    int lastPage();
+
+    /**
+     * @return the number of segments allocated in the last page, to be saved in the checkpoint.
+     * */
+    int lastSegmentAllocated();
 
     /**
      * Get the size of a page that this allocator uses.
@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.unsafequeues;
+
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.buffer.UnpooledDirectByteBuf;
+
+import java.nio.ByteBuffer;
+
+/**
+ * ByteBuf that wraps, without copying, a region of a mapped page. The mapping is never freed by the buffer,
+ * when the last reference is released the lease on the segment is returned to the QueuePool, so the segment
+ * can be recycled.
+ * */
+final class SegmentSliceByteBuf extends UnpooledDirectByteBuf {
+
+    private final Runnable onRelease;
+
+    SegmentSliceByteBuf(ByteBuffer region, Runnable onRelease) {
+        super(UnpooledByteBufAllocator.DEFAULT, region, region.remaining());
+        this.onRelease = onRelease;
+    }
+
+    @Override
+    protected void deallocate() {
+        super.deallocate();
+        onRelease.run();
+    }
+}
@@ -166,6 +166,15 @@ public final class BrokerInterceptor implements Interceptor {
         }
     }
 
+    @Override
+    public void notifyMessageDropped(final InterceptDroppedMessage msg) {
+        for (final InterceptHandler handler : this.handlers.get(InterceptDroppedMessage.class)) {
+            LOG.debug("Notifying dropped message to interceptor. CId={}, topic={}, reason={}, interceptorId={}",
+                msg.getClientID(), msg.getTopic(), msg.getReason(), handler.getID());
+            executor.execute(() -> handler.onMessageDropped(msg));
+        }
+    }
+
     @Override
     public void addInterceptHandler(InterceptHandler interceptHandler) {
         Class<?>[] interceptedMessageTypes = getInterceptedMessageTypes(interceptHandler);
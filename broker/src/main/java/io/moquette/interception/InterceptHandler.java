@@ -33,7 +33,7 @@ public interface InterceptHandler {
 
     Class<?>[] ALL_MESSAGE_TYPES = {InterceptConnectMessage.class, InterceptDisconnectMessage.class,
             InterceptConnectionLostMessage.class, InterceptPublishMessage.class, InterceptSubscribeMessage.class,
-            InterceptUnsubscribeMessage.class, InterceptAcknowledgedMessage.class};
+            InterceptUnsubscribeMessage.class, InterceptAcknowledgedMessage.class, InterceptDroppedMessage.class};
 
     /**
      * @return the identifier of this intercept handler.
@@ -65,4 +65,13 @@ public interface InterceptHandler {
     void onUnsubscribe(InterceptUnsubscribeMessage msg);
 
     void onMessageAcknowledged(InterceptAcknowledgedMessage msg);
+
+    /**
+     * Called when a message is dropped because the queue of the target session is full. A default is provided
+     * so the existing handlers keep compiling.
+     *
+     * @param msg The message that was dropped.
+     */
+    default void onMessageDropped(InterceptDroppedMessage msg) {
+    }
 }
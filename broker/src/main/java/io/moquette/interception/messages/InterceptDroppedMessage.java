@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package io.moquette.interception.messages;
+
+import io.moquette.broker.QueueOverflowPolicy;
+import io.netty.handler.codec.mqtt.MqttQoS;
+
+/**
+ * A message dropped by the limits of a session queue, the payload has already been released.
+ */
+public class InterceptDroppedMessage implements InterceptMessage {
+
+    private final String clientID;
+    private final String topic;
+    private final MqttQoS qos;
+    private final long payloadSize;
+    private final QueueOverflowPolicy reason;
+
+    public InterceptDroppedMessage(String clientID, String topic, MqttQoS qos, long payloadSize,
+                                   QueueOverflowPolicy reason) {
+        this.clientID = clientID;
+        this.topic = topic;
+        this.qos = qos;
+        this.payloadSize = payloadSize;
+        this.reason = reason;
+    }
+
+    public String getClientID() {
+        return clientID;
+    }
+
+    /**
+     * @return the topic of the message, null if it's not a publish.
+     */
+    public String getTopic() {
+        return topic;
+    }
+
+    /**
+     * @return the qos of the message, null if it's not a publish.
+     */
+    public MqttQoS getQos() {
+        return qos;
+    }
+
+    public long getPayloadSize() {
+        return payloadSize;
+    }
+
+    /**
+     * @return the overflow policy that dropped the message. A message too big for the whole queue is dropped as
+     * DROP_NEWEST also when the policy is DROP_OLDEST.
+     */
+    public QueueOverflowPolicy getReason() {
+        return reason;
+    }
+}
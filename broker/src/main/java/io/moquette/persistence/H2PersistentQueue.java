@@ -21,6 +21,10 @@ import io.moquette.broker.SessionRegistry;
 import org.h2.mvstore.MVMap;
 import org.h2.mvstore.MVStore;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicLong;
 
 class H2PersistentQueue extends AbstractSessionMessageQueue<SessionRegistry.EnqueuedMessage> {
@@ -29,6 +33,8 @@ class H2PersistentQueue extends AbstractSessionMessageQueue<SessionRegistry.Enqu
     private final MVMap<String, Long> metadataMap;
     private final AtomicLong head;
     private final AtomicLong tail;
+    // payload bytes of the queued messages, kept in the metadata with head and tail
+    private long payloadBytes;
     private final MVStore store;
     private final String queueName;
 
@@ -62,6 +68,20 @@ class H2PersistentQueue extends AbstractSessionMessageQueue<SessionRegistry.Enqu
             this.metadataMap.put("tail", tailIdx);
         }
         this.tail = new AtomicLong(tailIdx);
+
+        final Long bytes = this.metadataMap.get("bytes");
+        if (bytes != null) {
+            this.payloadBytes = bytes;
+        } else {
+            // queue stored before the bytes were kept, sum them once
+            for (long idx = tailIdx; idx < headIdx; idx++) {
+                final SessionRegistry.EnqueuedMessage message = this.queueMap.get(idx);
+                if (message != null) {
+                    this.payloadBytes += message.payloadSize();
+                }
+            }
+            this.metadataMap.put("bytes", this.payloadBytes);
+        }
     }
 
     @Override
@@ -70,6 +90,27 @@ class H2PersistentQueue extends AbstractSessionMessageQueue<SessionRegistry.Enqu
         final long nextHead = head.getAndIncrement();
         this.queueMap.put(nextHead, t);
         this.metadataMap.put("head", nextHead + 1);
+        payloadBytes += t.payloadSize();
+        this.metadataMap.put("bytes", payloadBytes);
+    }
+
+    @Override
+    public void enqueueAll(Collection<? extends SessionRegistry.EnqueuedMessage> messages) {
+        for (SessionRegistry.EnqueuedMessage message : messages) {
+            checkEnqueuePreconditions(message);
+        }
+        if (messages.isEmpty()) {
+            return;
+        }
+        final long firstHead = head.getAndAdd(messages.size());
+        long nextHead = firstHead;
+        for (SessionRegistry.EnqueuedMessage message : messages) {
+            this.queueMap.put(nextHead++, message);
+            payloadBytes += message.payloadSize();
+        }
+        // move the head once for the whole batch
+        this.metadataMap.put("head", nextHead);
+        this.metadataMap.put("bytes", payloadBytes);
     }
 
     @Override
@@ -82,15 +123,52 @@ class H2PersistentQueue extends AbstractSessionMessageQueue<SessionRegistry.Enqu
         final SessionRegistry.EnqueuedMessage tail = this.queueMap.get(nextTail);
         queueMap.remove(nextTail);
         this.metadataMap.put("tail", nextTail + 1);
+        if (tail != null) {
+            payloadBytes -= tail.payloadSize();
+            this.metadataMap.put("bytes", payloadBytes);
+        }
         return tail;
     }
 
+    @Override
+    public List<SessionRegistry.EnqueuedMessage> dequeueBatch(int maxMessages) {
+        checkDequeuePreconditions();
+        final long currentTail = tail.get();
+        final int count = (int) Math.min(maxMessages, head.get() - currentTail);
+        if (count <= 0) {
+            return Collections.emptyList();
+        }
+        final List<SessionRegistry.EnqueuedMessage> batch = new ArrayList<>(count);
+        for (long idx = currentTail; idx < currentTail + count; idx++) {
+            final SessionRegistry.EnqueuedMessage message = queueMap.remove(idx);
+            if (message != null) {
+                payloadBytes -= message.payloadSize();
+            }
+            batch.add(message);
+        }
+        // move the tail once for the whole batch
+        tail.set(currentTail + count);
+        this.metadataMap.put("tail", currentTail + count);
+        this.metadataMap.put("bytes", payloadBytes);
+        return batch;
+    }
+
     @Override
     public boolean isEmpty() {
         checkIsEmptyPreconditions();
         return (this.head.intValue() - this.tail.intValue()) == 0;
     }
 
+    @Override
+    public int size() {
+        return (int) (head.get() - tail.get());
+    }
+
+    @Override
+    public long payloadBytes() {
+        return payloadBytes;
+    }
+
     @Override
     public void closeAndPurge() {
         this.closed = true;
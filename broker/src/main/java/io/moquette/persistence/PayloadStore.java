@@ -0,0 +1,896 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.persistence;
+
+import io.moquette.broker.unsafequeues.JournaledState;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.buffer.UnpooledDirectByteBuf;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.LongObjectHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Content addressed store of the payloads shared by the persistent session queues.
+ *
+ * A payload published to many offline sessions is written once: the queues keep only its id and the id of
+ * its topic, each enqueue takes a reference and each dequeue drops it, the last one frees the payload.
+ * Payloads are appended to memory mapped data files; a background compaction moves the live payloads out of
+ * the files that are mostly freed and deletes them.
+ *
+ * The index is attached to the QueuePool: every change is a record of the journal of the queues, written
+ * before the queue records referencing it and forced with them, so after a crash the index is the one the
+ * recovered queues point to. A reference dropped by a queue whose dequeue was lost can only be left taken,
+ * leaking the payload. A data file is deleted only once its retirement has been forced to the journal.
+ *
+ * Lock order is the journal of the pool and then the lock of the store.
+ * */
+public final class PayloadStore implements JournaledState {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PayloadStore.class);
+
+    private static final int INDEX_MAGIC = 0x4d515053;
+    // 2 is saved in the snapshot of the queues and adds the retired files
+    private static final int INDEX_VERSION = 2;
+    // index saved on close by the versions before the journal, migrated on the first start
+    private static final String LEGACY_INDEX_FILE = "payloads.index";
+    private static final int LEGACY_INDEX_VERSION = 1;
+    private static final String DATA_FILE_SUFFIX = ".payloads";
+    // a data file with less live bytes than this fraction of its used bytes is compacted
+    private static final double COMPACTION_LIVE_RATIO = 0.5;
+    private static final long COMPACTION_PERIOD_SECONDS = 30;
+
+    private static final byte FILE_CREATED = 1;
+    private static final byte STORED = 2;
+    private static final byte RETAINED = 3;
+    private static final byte RELEASED = 4;
+    private static final byte MOVED = 5;
+    private static final byte FILE_RETIRED = 6;
+    private static final byte TOPIC_CREATED = 7;
+    private static final byte TOPIC_RETAINED = 8;
+    private static final byte TOPIC_RELEASED = 9;
+
+    private static final class DataFile {
+        final int id;
+        final Path path;
+        // null for the files retired before the last stop
+        final MappedByteBuffer buffer;
+        int used;
+        long liveBytes;
+        // buffers sliced on the file and not yet released
+        int leases;
+        // compacted or emptied, deleted when the retirement is forced and the last lease is released
+        boolean retired;
+
+        DataFile(int id, Path path, MappedByteBuffer buffer, int used) {
+            this.id = id;
+            this.path = path;
+            this.buffer = buffer;
+            this.used = used;
+        }
+
+        int capacity() {
+            return buffer.capacity();
+        }
+
+        ByteBuffer region(int offset, int length) {
+            final ByteBuffer view = buffer.duplicate();
+            view.position(offset);
+            view.limit(offset + length);
+            return view.slice();
+        }
+    }
+
+    private static final class Entry {
+        final long id;
+        final int hash;
+        final int length;
+        DataFile file;
+        int offset;
+        int refs;
+        // next entry with the same content hash
+        Entry nextSameHash;
+
+        Entry(long id, int hash, DataFile file, int offset, int length, int refs) {
+            this.id = id;
+            this.hash = hash;
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+            this.refs = refs;
+        }
+    }
+
+    private static final class TopicEntry {
+        final int id;
+        final String name;
+        int refs;
+
+        TopicEntry(int id, String name, int refs) {
+            this.id = id;
+            this.name = name;
+            this.refs = refs;
+        }
+    }
+
+    /**
+     * Slice of a data file, the file is not deleted until all its slices are released.
+     * */
+    private final class LeasedSlice extends UnpooledDirectByteBuf {
+
+        private final DataFile file;
+
+        LeasedSlice(DataFile file, ByteBuffer region) {
+            super(UnpooledByteBufAllocator.DEFAULT, region, region.remaining());
+            this.file = file;
+        }
+
+        @Override
+        protected void deallocate() {
+            super.deallocate();
+            releaseLease(file);
+        }
+    }
+
+    private final Path dir;
+    private final int fileSize;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LongObjectHashMap<Entry> entries = new LongObjectHashMap<>();
+    private final IntObjectHashMap<Entry> entriesByHash = new IntObjectHashMap<>();
+    private final Map<String, TopicEntry> topicsByName = new HashMap<>();
+    private final IntObjectHashMap<TopicEntry> topicsById = new IntObjectHashMap<>();
+    private final IntObjectHashMap<DataFile> files = new IntObjectHashMap<>();
+    private final IntObjectHashMap<DataFile> retiredFiles = new IntObjectHashMap<>();
+    // files written since the last force
+    private final Set<DataFile> dirtyFiles = new HashSet<>();
+    private DataFile activeFile;
+    private int nextFileId;
+    private long nextPayloadId;
+    private int nextTopicId;
+    // true once a snapshot or a journal record has been loaded
+    private boolean loaded;
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream(64);
+    private final DataOutputStream recordOut = new DataOutputStream(record);
+    private JournaledState.Journal journal;
+    private final ScheduledExecutorService compactor;
+
+    private PayloadStore(Path dir, int fileSize) {
+        this.dir = dir;
+        this.fileSize = fileSize;
+        this.compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "payload-store-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Create the store in the directory, empty until the QueuePool it's attached to loads its index.
+     *
+     * @param fileSize the size of each data file, a bigger payload gets a data file of its own size.
+     * */
+    public static PayloadStore open(Path dir, int fileSize) throws IOException {
+        Files.createDirectories(dir);
+        return new PayloadStore(dir, fileSize);
+    }
+
+    /**
+     * Start recording the changes in the journal of the pool the store has been loaded by, migrating the
+     * index saved by the previous versions, and start the compaction.
+     *
+     * The data files retired before the stop are deleted, the ones unknown to the index are left in place.
+     * */
+    public void attach(JournaledState.Journal journal) throws IOException {
+        this.journal = journal;
+        final Path legacyIndex = dir.resolve(LEGACY_INDEX_FILE);
+        if (Files.exists(legacyIndex)) {
+            if (loaded) {
+                LOG.warn("Ignoring the payloads index {}, the index is in the queues checkpoint", legacyIndex);
+            } else {
+                loadLegacyIndex(legacyIndex);
+                journal.checkpoint();
+                LOG.info("Migrated {} to the queues checkpoint", legacyIndex);
+            }
+            Files.delete(legacyIndex);
+        }
+        lock.lock();
+        try {
+            // retired in the recovered state, so no queue references them anymore
+            for (DataFile file : retiredFiles.values()) {
+                delete(file);
+            }
+            retiredFiles.clear();
+            skipUnknownFiles();
+        } finally {
+            lock.unlock();
+        }
+        compactor.scheduleWithFixedDelay(this::compactSafely, COMPACTION_PERIOD_SECONDS,
+                                         COMPACTION_PERIOD_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Take a reference to the payload, storing it if the same content is not already present.
+     *
+     * @return the id of the payload.
+     * */
+    public long retain(ByteBuf payload) throws IOException {
+        final int length = payload.readableBytes();
+        final int hash = ByteBufUtil.hashCode(payload);
+        return journal.change(records -> {
+            lock.lock();
+            try {
+                for (Entry candidate = entriesByHash.get(hash); candidate != null; candidate = candidate.nextSameHash) {
+                    if (candidate.length == length && sameContent(candidate, payload)) {
+                        appendRecord(records, RETAINED, candidate.id);
+                        candidate.refs++;
+                        return candidate.id;
+                    }
+                }
+                final DataFile file = fileWithSpace(length, records);
+                final int offset = file.used;
+                payload.getBytes(payload.readerIndex(), file.region(offset, length));
+                dirtyFiles.add(file);
+                final Entry entry = new Entry(nextPayloadId, hash, file, offset, length, 1);
+                recordOut.writeByte(STORED);
+                recordOut.writeLong(entry.id);
+                recordOut.writeInt(hash);
+                recordOut.writeInt(file.id);
+                recordOut.writeInt(offset);
+                recordOut.writeInt(length);
+                append(records);
+                stored(entry);
+                return entry.id;
+            } finally {
+                lock.unlock();
+            }
+        });
+    }
+
+    private boolean sameContent(Entry entry, ByteBuf payload) {
+        final ByteBuf stored = Unpooled.wrappedBuffer(entry.file.region(entry.offset, entry.length));
+        return ByteBufUtil.equals(stored, 0, payload, payload.readerIndex(), entry.length);
+    }
+
+    /**
+     * @return a buffer wrapping the stored payload without copying it, to be released after use, or null if
+     * the id is unknown.
+     * */
+    public ByteBuf read(long payloadId) {
+        lock.lock();
+        try {
+            final Entry entry = entries.get(payloadId);
+            if (entry == null) {
+                return null;
+            }
+            entry.file.leases++;
+            return new LeasedSlice(entry.file, entry.file.region(entry.offset, entry.length));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the length of the stored payload, or -1 if the id is unknown.
+     * */
+    public int length(long payloadId) {
+        lock.lock();
+        try {
+            final Entry entry = entries.get(payloadId);
+            return entry == null ? -1 : entry.length;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drop a reference to the payload, the last one frees it.
+     * */
+    public void release(long payloadId) throws IOException {
+        journal.change(records -> {
+            lock.lock();
+            try {
+                final Entry entry = entries.get(payloadId);
+                if (entry == null) {
+                    LOG.warn("Released an unknown payload {}", payloadId);
+                    return null;
+                }
+                appendRecord(records, RELEASED, payloadId);
+                final DataFile file = entry.file;
+                if (released(entry) && file.liveBytes == 0 && file != activeFile) {
+                    // nothing to move, the file can go without compaction
+                    retire(file, records);
+                }
+                return null;
+            } finally {
+                lock.unlock();
+            }
+        });
+    }
+
+    /**
+     * Take a reference to the topic.
+     *
+     * @return the id of the topic.
+     * */
+    public int retainTopic(String topic) throws IOException {
+        return journal.change(records -> {
+            lock.lock();
+            try {
+                final TopicEntry entry = topicsByName.get(topic);
+                if (entry != null) {
+                    recordOut.writeByte(TOPIC_RETAINED);
+                    recordOut.writeInt(entry.id);
+                    append(records);
+                    entry.refs++;
+                    return entry.id;
+                }
+                final TopicEntry created = new TopicEntry(nextTopicId, topic, 1);
+                recordOut.writeByte(TOPIC_CREATED);
+                recordOut.writeInt(created.id);
+                recordOut.writeUTF(topic);
+                append(records);
+                topicCreated(created);
+                return created.id;
+            } finally {
+                lock.unlock();
+            }
+        });
+    }
+
+    /**
+     * @return the topic or null if the id is unknown.
+     * */
+    public String topic(int topicId) {
+        lock.lock();
+        try {
+            final TopicEntry entry = topicsById.get(topicId);
+            return entry == null ? null : entry.name;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void releaseTopic(int topicId) throws IOException {
+        journal.change(records -> {
+            lock.lock();
+            try {
+                final TopicEntry entry = topicsById.get(topicId);
+                if (entry == null) {
+                    LOG.warn("Released an unknown topic {}", topicId);
+                    return null;
+                }
+                recordOut.writeByte(TOPIC_RELEASED);
+                recordOut.writeInt(topicId);
+                append(records);
+                topicReleased(entry);
+                return null;
+            } finally {
+                lock.unlock();
+            }
+        });
+    }
+
+    private void appendRecord(Records records, byte type, long payloadId) throws IOException {
+        recordOut.writeByte(type);
+        recordOut.writeLong(payloadId);
+        append(records);
+    }
+
+    /**
+     * Append the record written in recordOut.
+     * */
+    private void append(Records records) throws IOException {
+        try {
+            records.append(record.toByteArray());
+        } finally {
+            record.reset();
+        }
+    }
+
+    private void stored(Entry entry) {
+        index(entry);
+        final DataFile file = entry.file;
+        file.used = Math.max(file.used, entry.offset + entry.length);
+        file.liveBytes += entry.length;
+        nextPayloadId = Math.max(nextPayloadId, entry.id + 1);
+    }
+
+    /**
+     * @return true if the last reference has been dropped and the payload freed.
+     * */
+    private boolean released(Entry entry) {
+        if (--entry.refs > 0) {
+            return false;
+        }
+        unindex(entry);
+        entry.file.liveBytes -= entry.length;
+        return true;
+    }
+
+    private static void moved(Entry entry, DataFile target, int offset) {
+        entry.file.liveBytes -= entry.length;
+        entry.file = target;
+        entry.offset = offset;
+        target.used = Math.max(target.used, offset + entry.length);
+        target.liveBytes += entry.length;
+    }
+
+    private void topicCreated(TopicEntry entry) {
+        topicsByName.put(entry.name, entry);
+        topicsById.put(entry.id, entry);
+        nextTopicId = Math.max(nextTopicId, entry.id + 1);
+    }
+
+    private void topicReleased(TopicEntry entry) {
+        if (--entry.refs == 0) {
+            topicsById.remove(entry.id);
+            topicsByName.remove(entry.name);
+        }
+    }
+
+    private void index(Entry entry) {
+        entry.nextSameHash = entriesByHash.put(entry.hash, entry);
+        entries.put(entry.id, entry);
+    }
+
+    private void unindex(Entry entry) {
+        entries.remove(entry.id);
+        Entry prev = null;
+        for (Entry current = entriesByHash.get(entry.hash); current != null; current = current.nextSameHash) {
+            if (current == entry) {
+                if (prev == null) {
+                    if (entry.nextSameHash == null) {
+                        entriesByHash.remove(entry.hash);
+                    } else {
+                        entriesByHash.put(entry.hash, entry.nextSameHash);
+                    }
+                } else {
+                    prev.nextSameHash = entry.nextSameHash;
+                }
+                return;
+            }
+            prev = current;
+        }
+    }
+
+    private DataFile fileWithSpace(int length, Records records) throws IOException {
+        if (activeFile != null && activeFile.capacity() - activeFile.used >= length) {
+            return activeFile;
+        }
+        final DataFile previous = activeFile;
+        final int id = nextFileId;
+        final int size = Math.max(fileSize, length);
+        final DataFile file = mapFile(id, size);
+        recordOut.writeByte(FILE_CREATED);
+        recordOut.writeInt(id);
+        recordOut.writeInt(size);
+        append(records);
+        fileCreated(file);
+        LOG.debug("Created payloads data file {} of {} bytes", file.path, size);
+        if (previous != null && previous.liveBytes == 0) {
+            retire(previous, records);
+        }
+        return activeFile;
+    }
+
+    private DataFile mapFile(int id, int size) throws IOException {
+        final Path path = dir.resolve(id + DATA_FILE_SUFFIX);
+        return new DataFile(id, path, map(path, size), 0);
+    }
+
+    private void fileCreated(DataFile file) {
+        files.put(file.id, file);
+        activeFile = file;
+        nextFileId = Math.max(nextFileId, file.id + 1);
+    }
+
+    private static MappedByteBuffer map(Path path, int size) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                                    StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private void retire(DataFile file, Records records) throws IOException {
+        recordOut.writeByte(FILE_RETIRED);
+        recordOut.writeInt(file.id);
+        append(records);
+        retired(file);
+    }
+
+    private void retired(DataFile file) {
+        file.retired = true;
+        files.remove(file.id);
+        retiredFiles.put(file.id, file);
+        dirtyFiles.remove(file);
+    }
+
+    private void releaseLease(DataFile file) {
+        lock.lock();
+        try {
+            file.leases--;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void delete(DataFile file) {
+        try {
+            Files.deleteIfExists(file.path);
+            LOG.debug("Deleted payloads data file {}", file.path);
+        } catch (IOException ex) {
+            LOG.warn("Can't delete payloads data file {}", file.path, ex);
+        }
+    }
+
+    /**
+     * Delete the retired files no more sliced, after forcing the journal that records their retirement:
+     * a crash must not recover payloads in a deleted file.
+     * */
+    private void deleteRetiredFiles() throws IOException {
+        final List<DataFile> deletable = new ArrayList<>();
+        lock.lock();
+        try {
+            for (DataFile file : retiredFiles.values()) {
+                if (file.leases == 0) {
+                    deletable.add(file);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (deletable.isEmpty()) {
+            return;
+        }
+        journal.force();
+        lock.lock();
+        try {
+            // a retired file is never sliced again
+            for (DataFile file : deletable) {
+                delete(file);
+                retiredFiles.remove(file.id);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void compactSafely() {
+        try {
+            compact();
+            deleteRetiredFiles();
+        } catch (IOException | RuntimeException ex) {
+            LOG.error("Payloads compaction failed", ex);
+        }
+    }
+
+    /**
+     * Move the live payloads out of the sparsest data file, if its live bytes are under the threshold,
+     * and retire it. A file per invocation, so the store is not locked for long.
+     * */
+    void compact() throws IOException {
+        journal.change(records -> {
+            lock.lock();
+            try {
+                DataFile sparsest = null;
+                for (DataFile file : files.values()) {
+                    if (file == activeFile || file.used == 0) {
+                        continue;
+                    }
+                    final double liveRatio = (double) file.liveBytes / file.used;
+                    if (liveRatio < COMPACTION_LIVE_RATIO &&
+                        (sparsest == null || liveRatio < (double) sparsest.liveBytes / sparsest.used)) {
+                        sparsest = file;
+                    }
+                }
+                if (sparsest == null) {
+                    return null;
+                }
+                LOG.info("Compacting payloads data file {}, {} live bytes of {}", sparsest.path, sparsest.liveBytes,
+                         sparsest.used);
+                for (Entry entry : entries.values()) {
+                    if (entry.file != sparsest) {
+                        continue;
+                    }
+                    final DataFile target = fileWithSpace(entry.length, records);
+                    final int offset = target.used;
+                    target.region(offset, entry.length).put(sparsest.region(entry.offset, entry.length));
+                    dirtyFiles.add(target);
+                    recordOut.writeByte(MOVED);
+                    recordOut.writeLong(entry.id);
+                    recordOut.writeInt(target.id);
+                    recordOut.writeInt(offset);
+                    append(records);
+                    moved(entry, target, offset);
+                }
+                retire(sparsest, records);
+                return null;
+            } finally {
+                lock.unlock();
+            }
+        });
+    }
+
+    /**
+     * Force the data files written since the last force.
+     * */
+    @Override
+    public void force() {
+        final List<DataFile> dirty;
+        lock.lock();
+        try {
+            dirty = new ArrayList<>(dirtyFiles);
+            // a write after this point marks the file again
+            dirtyFiles.clear();
+        } finally {
+            lock.unlock();
+        }
+        for (DataFile file : dirty) {
+            file.buffer.force();
+        }
+    }
+
+    @Override
+    public void writeSnapshot(DataOutputStream out) throws IOException {
+        lock.lock();
+        try {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(INDEX_VERSION);
+            out.writeInt(nextFileId);
+            out.writeLong(nextPayloadId);
+            out.writeInt(nextTopicId);
+            out.writeInt(activeFile == null ? -1 : activeFile.id);
+
+            out.writeInt(files.size());
+            for (DataFile file : files.values()) {
+                out.writeInt(file.id);
+                out.writeInt(file.capacity());
+                out.writeInt(file.used);
+            }
+
+            out.writeInt(retiredFiles.size());
+            for (DataFile file : retiredFiles.values()) {
+                out.writeInt(file.id);
+            }
+
+            out.writeInt(topicsById.size());
+            for (TopicEntry topic : topicsById.values()) {
+                out.writeInt(topic.id);
+                out.writeUTF(topic.name);
+                out.writeInt(topic.refs);
+            }
+
+            out.writeInt(entries.size());
+            for (Entry entry : entries.values()) {
+                out.writeLong(entry.id);
+                out.writeInt(entry.hash);
+                out.writeInt(entry.file.id);
+                out.writeInt(entry.offset);
+                out.writeInt(entry.length);
+                out.writeInt(entry.refs);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void loadSnapshot(DataInputStream in) throws IOException {
+        if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) {
+            throw new IOException("Unrecognized payloads index format in the queues checkpoint");
+        }
+        loadIndex(in, INDEX_VERSION);
+    }
+
+    private void loadLegacyIndex(Path indexPath) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexPath)))) {
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != LEGACY_INDEX_VERSION) {
+                throw new IOException("Unrecognized payloads index format in " + indexPath);
+            }
+            loadIndex(in, LEGACY_INDEX_VERSION);
+        }
+    }
+
+    private void loadIndex(DataInputStream in, int version) throws IOException {
+        lock.lock();
+        try {
+            nextFileId = in.readInt();
+            nextPayloadId = in.readLong();
+            nextTopicId = in.readInt();
+            final int activeFileId = in.readInt();
+
+            final int filesCount = in.readInt();
+            for (int i = 0; i < filesCount; i++) {
+                final int id = in.readInt();
+                final int capacity = in.readInt();
+                final int used = in.readInt();
+                final Path path = dir.resolve(id + DATA_FILE_SUFFIX);
+                files.put(id, new DataFile(id, path, map(path, capacity), used));
+            }
+            activeFile = files.get(activeFileId);
+
+            if (version >= 2) {
+                final int retiredCount = in.readInt();
+                for (int i = 0; i < retiredCount; i++) {
+                    final int id = in.readInt();
+                    retiredFiles.put(id, new DataFile(id, dir.resolve(id + DATA_FILE_SUFFIX), null, 0));
+                }
+            }
+
+            final int topicsCount = in.readInt();
+            for (int i = 0; i < topicsCount; i++) {
+                final TopicEntry topic = new TopicEntry(in.readInt(), in.readUTF(), in.readInt());
+                topicsByName.put(topic.name, topic);
+                topicsById.put(topic.id, topic);
+            }
+
+            final int entriesCount = in.readInt();
+            for (int i = 0; i < entriesCount; i++) {
+                final long id = in.readLong();
+                final int hash = in.readInt();
+                final DataFile file = files.get(in.readInt());
+                final int offset = in.readInt();
+                final int length = in.readInt();
+                final int refs = in.readInt();
+                if (file == null) {
+                    throw new IOException("Payload " + id + " references a data file not in the index");
+                }
+                file.liveBytes += length;
+                index(new Entry(id, hash, file, offset, length, refs));
+            }
+            loaded = true;
+            LOG.info("Loaded payloads index with {} payloads in {} data files", entries.size(), files.size());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void replay(DataInputStream in) throws IOException {
+        lock.lock();
+        try {
+            loaded = true;
+            final byte type = in.readByte();
+            switch (type) {
+                case FILE_CREATED:
+                    fileCreated(mapFile(in.readInt(), in.readInt()));
+                    break;
+                case STORED: {
+                    final long id = in.readLong();
+                    final int hash = in.readInt();
+                    final DataFile file = replayedFile(id, in.readInt());
+                    stored(new Entry(id, hash, file, in.readInt(), in.readInt(), 1));
+                    break;
+                }
+                case RETAINED:
+                    replayedEntry(in.readLong()).refs++;
+                    break;
+                case RELEASED:
+                    released(replayedEntry(in.readLong()));
+                    break;
+                case MOVED: {
+                    final Entry entry = replayedEntry(in.readLong());
+                    moved(entry, replayedFile(entry.id, in.readInt()), in.readInt());
+                    break;
+                }
+                case FILE_RETIRED: {
+                    final int fileId = in.readInt();
+                    final DataFile file = files.get(fileId);
+                    if (file == null) {
+                        throw new IOException("Retired payloads data file " + fileId + " not in the index");
+                    }
+                    retired(file);
+                    break;
+                }
+                case TOPIC_CREATED:
+                    topicCreated(new TopicEntry(in.readInt(), in.readUTF(), 1));
+                    break;
+                case TOPIC_RETAINED:
+                    replayedTopic(in.readInt()).refs++;
+                    break;
+                case TOPIC_RELEASED:
+                    topicReleased(replayedTopic(in.readInt()));
+                    break;
+                default:
+                    throw new IOException("Unrecognized payloads journal record type " + type);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private DataFile replayedFile(long payloadId, int fileId) throws IOException {
+        final DataFile file = files.get(fileId);
+        if (file == null) {
+            throw new IOException("Payload " + payloadId + " references a data file not in the index");
+        }
+        return file;
+    }
+
+    private Entry replayedEntry(long payloadId) throws IOException {
+        final Entry entry = entries.get(payloadId);
+        if (entry == null) {
+            throw new IOException("Payloads journal references the unknown payload " + payloadId);
+        }
+        return entry;
+    }
+
+    private TopicEntry replayedTopic(int topicId) throws IOException {
+        final TopicEntry entry = topicsById.get(topicId);
+        if (entry == null) {
+            throw new IOException("Payloads journal references the unknown topic " + topicId);
+        }
+        return entry;
+    }
+
+    /**
+     * Leave the data files unknown to the index where they are, they could be all that's left of payloads
+     * lost by the index, and never reuse their ids.
+     * */
+    private void skipUnknownFiles() throws IOException {
+        try (DirectoryStream<Path> dataFiles = Files.newDirectoryStream(dir, "*" + DATA_FILE_SUFFIX)) {
+            for (Path path : dataFiles) {
+                final String name = path.getFileName().toString();
+                final String id = name.substring(0, name.length() - DATA_FILE_SUFFIX.length());
+                if (id.matches("\\d+") && files.containsKey(Integer.parseInt(id))) {
+                    continue;
+                }
+                LOG.warn("Payloads data file {} is not referenced by the index, leaving it in place", path);
+                if (id.matches("\\d+")) {
+                    nextFileId = Math.max(nextFileId, Integer.parseInt(id) + 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop the compaction, the index is saved by the QueuePool when it's closed.
+     * */
+    public void close() {
+        compactor.shutdownNow();
+        try {
+            compactor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -6,146 +6,272 @@ import io.moquette.broker.subscriptions.Topic;
 import io.moquette.broker.unsafequeues.Queue;
 import io.moquette.broker.unsafequeues.QueueException;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.handler.codec.mqtt.MqttQoS;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import java.nio.ByteBuffer;
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.Collection;
 import java.util.Optional;
 
 public class SegmentPersistentQueue extends AbstractSessionMessageQueue<SessionRegistry.EnqueuedMessage> {
 
-    private static class SerDes {
+    private static final Logger LOG = LoggerFactory.getLogger(SegmentPersistentQueue.class);
 
-        private enum MessageType {PUB_REL_MARKER, PUBLISHED_MESSAGE}
+    private static class SerDes implements Queue.RecordSerializer<SessionRegistry.EnqueuedMessage> {
 
-        public ByteBuffer toBytes(SessionRegistry.EnqueuedMessage message) {
-            final int memorySize = getMemory(message);
-            final ByteBuffer payload = ByteBuffer.allocate(memorySize);
-            payload.mark();
-            write(message, payload);
-            payload.reset();
-            return payload;
+        private enum MessageType {PUB_REL_MARKER, PUBLISHED_MESSAGE, PUBLISHED_REFERENCE}
+
+        private static final int REFERENCE_RECORD_SIZE = 1 + // message type
+            1 + // qos
+            4 + // topic id
+            8; // payload id
+
+        // when present, published messages are stored as references to shared topic and payload
+        private final PayloadStore payloadStore;
+
+        SerDes(PayloadStore payloadStore) {
+            this.payloadStore = payloadStore;
+        }
+
+        /**
+         * @return the exact size of the serialized message.
+         * */
+        @Override
+        public int size(SessionRegistry.EnqueuedMessage obj) {
+            if (obj instanceof SessionRegistry.PubRelMarker) {
+                return 1;
+            }
+            if (payloadStore != null) {
+                return REFERENCE_RECORD_SIZE;
+            }
+            final SessionRegistry.PublishedMessage casted = (SessionRegistry.PublishedMessage) obj;
+            return 1 + // message type
+                1 + // qos
+                4 + ByteBufUtil.utf8Bytes(casted.getTopic().toString()) +
+                4 + casted.getPayload().readableBytes();
         }
 
-        private void write(SessionRegistry.EnqueuedMessage obj, ByteBuffer buff) {
-            if (obj instanceof SessionRegistry.PublishedMessage) {
-                buff.put((byte) MessageType.PUBLISHED_MESSAGE.ordinal());
+        @Override
+        public void write(SessionRegistry.EnqueuedMessage obj, ByteBuf target) {
+            if (obj instanceof SessionRegistry.PublishedMessage && payloadStore != null) {
+                final SessionRegistry.PublishedMessage casted = (SessionRegistry.PublishedMessage) obj;
+                final long payloadId;
+                final int topicId;
+                try {
+                    payloadId = payloadStore.retain(casted.getPayload());
+                    topicId = payloadStore.retainTopic(casted.getTopic().toString());
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                target.writeByte(MessageType.PUBLISHED_REFERENCE.ordinal());
+                target.writeByte(casted.getPublishingQos().value());
+                target.writeInt(topicId);
+                target.writeLong(payloadId);
+            } else if (obj instanceof SessionRegistry.PublishedMessage) {
+                target.writeByte(MessageType.PUBLISHED_MESSAGE.ordinal());
 
                 final SessionRegistry.PublishedMessage casted = (SessionRegistry.PublishedMessage) obj;
-                buff.put((byte) casted.getPublishingQos().value());
+                target.writeByte(casted.getPublishingQos().value());
 
                 final String topic = casted.getTopic().toString();
+                final int topicLength = ByteBufUtil.utf8Bytes(topic);
+                target.writeInt(topicLength);
+                // writeUtf8 would reserve the worst case of 3 bytes per char, more than the sized target has
+                ByteBufUtil.reserveAndWriteUtf8(target, topic, topicLength);
 
-                writeTopic(buff, topic);
-                writePayload(buff, casted.getPayload());
+                // copied straight into the segment, without moving the reader index of the payload
+                final ByteBuf payload = casted.getPayload();
+                target.writeInt(payload.readableBytes());
+                target.writeBytes(payload, payload.readerIndex(), payload.readableBytes());
             } else if (obj instanceof SessionRegistry.PubRelMarker) {
-                buff.put((byte) MessageType.PUB_REL_MARKER.ordinal());
+                target.writeByte(MessageType.PUB_REL_MARKER.ordinal());
             } else {
                 throw new IllegalArgumentException("Unrecognized message class " + obj.getClass());
             }
         }
 
-        private void writePayload(ByteBuffer target, ByteBuf source) {
-            final int payloadSize = source.readableBytes();
-            byte[] rawBytes = new byte[payloadSize];
-            final int pinPoint = source.readerIndex();
-            source.readBytes(rawBytes).release();
-            source.readerIndex(pinPoint);
-            target.putInt(payloadSize);
-            target.put(rawBytes);
-        }
-
-        private void writeTopic(ByteBuffer buff, String topic) {
-            final byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
-            buff.putInt(topicBytes.length).put(topicBytes);
-        }
-
-        private int getMemory(SessionRegistry.EnqueuedMessage obj) {
-            if (obj instanceof SessionRegistry.PubRelMarker) {
-                return 1;
+        /**
+         * Decode the record, the payload of the message is a retained slice of the record, so it keeps
+         * referencing the segments without copying. The record is released.
+         *
+         * @return null if the record references a payload missing from the store.
+         * */
+        public SessionRegistry.EnqueuedMessage fromBytes(ByteBuf record) {
+            try {
+                final byte messageType = record.readByte();
+                if (messageType == MessageType.PUB_REL_MARKER.ordinal()) {
+                    return new SessionRegistry.PubRelMarker();
+                } else if (messageType == MessageType.PUBLISHED_MESSAGE.ordinal()) {
+                    final MqttQoS qos = MqttQoS.valueOf(record.readByte());
+                    final String topicStr = readTopic(record);
+                    final ByteBuf payload = readPayload(record);
+                    return new SessionRegistry.PublishedMessage(Topic.asTopic(topicStr), qos, payload, false);
+                } else if (messageType == MessageType.PUBLISHED_REFERENCE.ordinal()) {
+                    return readReference(record);
+                } else {
+                    throw new IllegalArgumentException("Can't recognize record of type: " + messageType);
+                }
+            } finally {
+                record.release();
             }
-            final SessionRegistry.PublishedMessage casted = (SessionRegistry.PublishedMessage) obj;
-            return 1 + // message type
-                1 + // qos
-                topicMemorySize(casted.getTopic()) +
-                payloadMemorySize(casted.getPayload());
-        }
-
-        private int payloadMemorySize(ByteBuf payload) {
-            return 4 + // size
-                payload.readableBytes();
         }
 
-        private int topicMemorySize(Topic topic) {
-            return 4 + // size
-                topic.toString().getBytes(StandardCharsets.UTF_8).length;
+        private SessionRegistry.EnqueuedMessage readReference(ByteBuf record) {
+            if (payloadStore == null) {
+                throw new IllegalStateException(
+                    "Found a record referencing the shared payloads but the store is not enabled");
+            }
+            final MqttQoS qos = MqttQoS.valueOf(record.readByte());
+            final int topicId = record.readInt();
+            final long payloadId = record.readLong();
+            final String topicStr = payloadStore.topic(topicId);
+            // the slice keeps the payload readable after the reference of this queue is dropped
+            final ByteBuf payload = payloadStore.read(payloadId);
+            try {
+                payloadStore.release(payloadId);
+                payloadStore.releaseTopic(topicId);
+            } catch (IOException e) {
+                if (payload != null) {
+                    payload.release();
+                }
+                throw new RuntimeException(e);
+            }
+            if (topicStr == null || payload == null) {
+                LOG.warn("Dropping queued message referencing missing payload {} or topic {}", payloadId, topicId);
+                if (payload != null) {
+                    payload.release();
+                }
+                return null;
+            }
+            return new SessionRegistry.PublishedMessage(Topic.asTopic(topicStr), qos, payload, false);
         }
 
-        public SessionRegistry.EnqueuedMessage fromBytes(ByteBuffer buff) {
-            final byte messageType = buff.get();
+        /**
+         * @return the payload bytes of the message in the record, or -1 if dequeue would skip it, without
+         * decoding the message. The reader index of the record is not moved.
+         * */
+        long payloadSize(ByteBuf record) {
+            final int start = record.readerIndex();
+            final byte messageType = record.getByte(start);
             if (messageType == MessageType.PUB_REL_MARKER.ordinal()) {
-                return new SessionRegistry.PubRelMarker();
+                return 0;
             } else if (messageType == MessageType.PUBLISHED_MESSAGE.ordinal()) {
-                final MqttQoS qos = MqttQoS.valueOf(buff.get());
-                final String topicStr = readTopic(buff);
-                final ByteBuf payload = readPayload(buff);
-                return new SessionRegistry.PublishedMessage(Topic.asTopic(topicStr), qos, payload, false);
+                // after the message type, the qos and the topic
+                final int topicLength = record.getInt(start + 2);
+                return record.getInt(start + 6 + topicLength);
+            } else if (messageType == MessageType.PUBLISHED_REFERENCE.ordinal()) {
+                if (payloadStore == null) {
+                    throw new IllegalStateException("Found a record referencing the shared payloads but the store " +
+                        "is not enabled");
+                }
+                final int topicId = record.getInt(start + 2);
+                final int length = payloadStore.length(record.getLong(start + 6));
+                return length < 0 || payloadStore.topic(topicId) == null ? -1 : length;
             } else {
                 throw new IllegalArgumentException("Can't recognize record of type: " + messageType);
             }
         }
 
-        private String readTopic(ByteBuffer buff) {
-            final int stringLen = buff.getInt();
-            final byte[] rawString = new byte[stringLen];
-            buff.get(rawString);
-            return new String(rawString, StandardCharsets.UTF_8);
+        private String readTopic(ByteBuf buff) {
+            final int stringLen = buff.readInt();
+            final String topic = buff.toString(buff.readerIndex(), stringLen, StandardCharsets.UTF_8);
+            buff.skipBytes(stringLen);
+            return topic;
         }
 
-        private ByteBuf readPayload(ByteBuffer buff) {
-            final int payloadSize = buff.getInt();
-            byte[] payload = new byte[payloadSize];
-            buff.get(payload);
-            return Unpooled.wrappedBuffer(payload);
+        private ByteBuf readPayload(ByteBuf buff) {
+            final int payloadSize = buff.readInt();
+            return buff.readRetainedSlice(payloadSize);
         }
     }
 
     private final Queue segmentedQueue;
-    private final SerDes serdes = new SerDes();
+    private final SerDes serdes;
+    // counted from the stored records on the first query, then kept updated, -1 until then
+    private int messages = -1;
+    private long payloadBytes;
 
     public SegmentPersistentQueue(Queue segmentedQueue) {
+        this(segmentedQueue, null);
+    }
+
+    /**
+     * @param payloadStore store of the payloads shared with the other queues, null to keep a copy per queue.
+     * */
+    public SegmentPersistentQueue(Queue segmentedQueue, PayloadStore payloadStore) {
         this.segmentedQueue = segmentedQueue;
+        this.serdes = new SerDes(payloadStore);
     }
 
     @Override
     public void enqueue(SessionRegistry.EnqueuedMessage message) {
         checkEnqueuePreconditions(message);
 
-        final ByteBuffer payload = serdes.toBytes(message);
         try {
-            segmentedQueue.enqueue(payload);
+            segmentedQueue.enqueue(serdes.size(message), target -> serdes.write(message, target));
+            added(message);
         } catch (QueueException e) {
             throw new RuntimeException(e);
+        } finally {
+            // the content has been copied in the segments, drop the reference retained for the queue
+            message.release();
         }
     }
 
     @Override
-    public SessionRegistry.EnqueuedMessage dequeue() {
-        checkDequeuePreconditions();
-
-        final Optional<ByteBuffer> dequeue;
+    public void enqueueAll(Collection<? extends SessionRegistry.EnqueuedMessage> messages) {
+        for (SessionRegistry.EnqueuedMessage message : messages) {
+            checkEnqueuePreconditions(message);
+        }
         try {
-            dequeue = segmentedQueue.dequeue();
+            segmentedQueue.enqueueAll(messages, serdes);
+            for (SessionRegistry.EnqueuedMessage message : messages) {
+                added(message);
+            }
         } catch (QueueException e) {
             throw new RuntimeException(e);
+        } finally {
+            for (SessionRegistry.EnqueuedMessage message : messages) {
+                message.release();
+            }
         }
-        if (!dequeue.isPresent()) {
-            return null;
+    }
+
+    @Override
+    public SessionRegistry.EnqueuedMessage dequeue() {
+        checkDequeuePreconditions();
+
+        while (true) {
+            final Optional<ByteBuf> dequeue;
+            try {
+                dequeue = segmentedQueue.dequeueSlice();
+            } catch (QueueException e) {
+                throw new RuntimeException(e);
+            }
+            if (!dequeue.isPresent()) {
+                return null;
+            }
+
+            final SessionRegistry.EnqueuedMessage message = serdes.fromBytes(dequeue.get());
+            if (message != null) {
+                if (messages >= 0) {
+                    messages--;
+                    payloadBytes -= message.payloadSize();
+                }
+                return message;
+            }
+            // skip the record that can't be resolved
         }
+    }
 
-        final ByteBuffer content = dequeue.get();
-        return serdes.fromBytes(content);
+    private void added(SessionRegistry.EnqueuedMessage message) {
+        if (messages >= 0) {
+            messages++;
+            payloadBytes += message.payloadSize();
+        }
     }
 
     @Override
@@ -153,8 +279,50 @@ public class SegmentPersistentQueue extends AbstractSessionMessageQueue<SessionR
         return segmentedQueue.isEmpty();
     }
 
+    @Override
+    public int size() {
+        countStored();
+        return messages;
+    }
+
+    @Override
+    public long payloadBytes() {
+        countStored();
+        return payloadBytes;
+    }
+
+    /**
+     * Count the messages and the payload bytes of the stored records once, the records are scanned without
+     * decoding the messages.
+     * */
+    private void countStored() {
+        if (messages >= 0) {
+            return;
+        }
+        final int[] count = {0};
+        final long[] bytes = {0};
+        try {
+            segmentedQueue.scan(record -> {
+                final long size = serdes.payloadSize(record);
+                if (size >= 0) {
+                    count[0]++;
+                    bytes[0] += size;
+                }
+            });
+        } catch (QueueException e) {
+            throw new RuntimeException(e);
+        }
+        messages = count[0];
+        payloadBytes = bytes[0];
+    }
+
     @Override
     public void closeAndPurge() {
+        // consume the remaining records, so they drop their references to the shared payloads
+        SessionRegistry.EnqueuedMessage message;
+        while ((message = dequeue()) != null) {
+            message.release();
+        }
         closed = true;
     }
 }
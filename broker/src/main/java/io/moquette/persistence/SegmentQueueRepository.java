@@ -3,28 +3,100 @@ package io.moquette.persistence;
 import io.moquette.broker.IQueueRepository;
 import io.moquette.broker.SessionMessageQueue;
 import io.moquette.broker.SessionRegistry;
+import io.moquette.broker.metrics.QueueCompactionMetrics;
+import io.moquette.broker.metrics.QueueDurabilityMetrics;
+import io.moquette.broker.unsafequeues.PagePlacement;
 import io.moquette.broker.unsafequeues.Queue;
+import io.moquette.broker.unsafequeues.QueueDurability;
 import io.moquette.broker.unsafequeues.QueueException;
 import io.moquette.broker.unsafequeues.QueuePool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 public class SegmentQueueRepository implements IQueueRepository {
 
     private static final Logger LOG = LoggerFactory.getLogger(SegmentQueueRepository.class);
 
     private final QueuePool queuePool;
+    // null when each queue keeps its own copy of the payloads
+    private final PayloadStore payloadStore;
 
     public SegmentQueueRepository(String path, int pageSize, int segmentSize) throws QueueException {
-        queuePool = QueuePool.loadQueues(Paths.get(path), pageSize, segmentSize);
+        this(Paths.get(path), pageSize, segmentSize);
     }
 
     public SegmentQueueRepository(Path path, int pageSize, int segmentSize) throws QueueException {
-        queuePool = QueuePool.loadQueues(path, pageSize, segmentSize);
+        this(path, pageSize, segmentSize, false);
+    }
+
+    /**
+     * @param sharedPayloads store the payloads once in a PayloadStore shared by all the queues, in the
+     *                       "payloads" sub folder of path, the queues keep only references.
+     * */
+    public SegmentQueueRepository(Path path, int pageSize, int segmentSize, boolean sharedPayloads)
+        throws QueueException {
+        this(path, pageSize, segmentSize, sharedPayloads, QueueDurability.Mode.NONE, 0);
+    }
+
+    /**
+     * @param durability when the segments are forced to the disk, with group commit the acknowledge of the
+     *                   QoS1 publishes waits for the force.
+     * @param forceIntervalMillis interval between the forces of the periodic durability.
+     * */
+    public SegmentQueueRepository(Path path, int pageSize, int segmentSize, boolean sharedPayloads,
+                                  QueueDurability.Mode durability, long forceIntervalMillis) throws QueueException {
+        this(path, pageSize, segmentSize, sharedPayloads, durability, forceIntervalMillis, 0, 0);
+    }
+
+    /**
+     * @param compactionIntervalMillis interval between the runs of the background compaction, that deletes the
+     *                                 page files left free, 0 disables it.
+     * @param compactionBytesPerSecond max rate of the segments copied by the compaction, 0 for no limit.
+     * */
+    public SegmentQueueRepository(Path path, int pageSize, int segmentSize, boolean sharedPayloads,
+                                  QueueDurability.Mode durability, long forceIntervalMillis,
+                                  long compactionIntervalMillis, long compactionBytesPerSecond) throws QueueException {
+        this(path, Collections.singletonList(path), PagePlacement.ROUND_ROBIN, pageSize, segmentSize, sharedPayloads,
+            durability, forceIntervalMillis, compactionIntervalMillis, compactionBytesPerSecond);
+    }
+
+    /**
+     * @param pagePaths directories where the page files are spread, path keeps the checkpoint and the shared
+     *                  payloads.
+     * @param placement how the new page files are spread over pagePaths.
+     * */
+    public SegmentQueueRepository(Path path, List<Path> pagePaths, PagePlacement placement, int pageSize,
+                                  int segmentSize, boolean sharedPayloads, QueueDurability.Mode durability,
+                                  long forceIntervalMillis, long compactionIntervalMillis,
+                                  long compactionBytesPerSecond) throws QueueException {
+        if (sharedPayloads) {
+            try {
+                payloadStore = PayloadStore.open(path.resolve("payloads"), pageSize);
+            } catch (IOException e) {
+                throw new QueueException("Problem opening the shared payload store in " + path, e);
+            }
+        } else {
+            payloadStore = null;
+        }
+        // the index of the payloads is loaded and journaled with the queues referencing them
+        queuePool = QueuePool.loadQueues(path, pagePaths, placement, pageSize, segmentSize, durability,
+            forceIntervalMillis, compactionIntervalMillis, compactionBytesPerSecond, payloadStore);
+        if (payloadStore != null) {
+            try {
+                payloadStore.attach(queuePool.attachedStateJournal());
+            } catch (IOException e) {
+                throw new QueueException("Problem opening the shared payload store in " + path, e);
+            }
+        }
     }
 
     @Override
@@ -45,11 +117,35 @@ public class SegmentQueueRepository implements IQueueRepository {
         } catch (QueueException e) {
             throw new RuntimeException(e);
         }
-        return new SegmentPersistentQueue(segmentedQueue);
+        return new SegmentPersistentQueue(segmentedQueue, payloadStore);
+    }
+
+    @Override
+    public boolean isCommitAwaited() {
+        return queuePool.durability().isGroupCommit();
+    }
+
+    @Override
+    public CompletableFuture<Void> commit() {
+        return queuePool.durability().commit();
+    }
+
+    @Override
+    public Optional<QueueDurabilityMetrics> durabilityMetrics() {
+        return Optional.of(queuePool.durability().metrics());
+    }
+
+    @Override
+    public Optional<QueueCompactionMetrics> compactionMetrics() {
+        return Optional.of(queuePool.compaction().metrics());
     }
 
     @Override
     public void close() {
+        // stopped first, the pool saves its index
+        if (payloadStore != null) {
+            payloadStore.close();
+        }
         try {
             queuePool.close();
         } catch (QueueException e) {
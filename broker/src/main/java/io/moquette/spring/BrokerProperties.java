@@ -116,11 +116,77 @@ public class BrokerProperties {
 	 */
 	private String websocketMaxFrameSize;
 
+	/**
+	 * 默认 10
+	 * @see BrokerConstants#INFLIGHT_WINDOW_SIZE_PROPERTY_NAME
+	 */
+	private Integer inflightWindowSize;
+
+	/**
+	 * 默认 inflightWindowSize
+	 * @see BrokerConstants#WEB_SOCKET_INFLIGHT_WINDOW_SIZE_PROPERTY_NAME
+	 */
+	private Integer websocketInflightWindowSize;
+
+	/**
+	 * 默认 inflightWindowSize
+	 * @see BrokerConstants#SSL_INFLIGHT_WINDOW_SIZE_PROPERTY_NAME
+	 */
+	private Integer sslInflightWindowSize;
+
+	/**
+	 * 默认 inflightWindowSize
+	 * @see BrokerConstants#WSS_INFLIGHT_WINDOW_SIZE_PROPERTY_NAME
+	 */
+	private Integer secureWebsocketInflightWindowSize;
+
+	/**
+	 * 默认 false
+	 * @see BrokerConstants#INFLIGHT_WINDOW_ADAPTIVE_PROPERTY_NAME
+	 */
+	private Boolean inflightWindowAdaptive;
+
+	/**
+	 * 默认 1024
+	 * @see BrokerConstants#INFLIGHT_WINDOW_MAX_SIZE_PROPERTY_NAME
+	 */
+	private Integer inflightWindowMaxSize;
+
 	/**
 	 * @see BrokerConstants#SESSION_QUEUE_SIZE
 	 */
 	private Integer sessionQueueSize;
 
+	/**
+	 * 默认 park, 可选 busy_spin
+	 * @see BrokerConstants#SESSION_LOOP_IDLE_STRATEGY
+	 */
+	private String sessionLoopIdleStrategy;
+
+	/**
+	 * 默认 CPU 核数
+	 * @see BrokerConstants#SESSION_LOOPS
+	 */
+	private Integer sessionLoops;
+
+	/**
+	 * 默认 0 (关闭)
+	 * @see BrokerConstants#SESSION_QUEUE_HIGH_WATERMARK
+	 */
+	private Integer sessionQueueHighWatermark;
+
+	/**
+	 * 默认 high watermark 的一半
+	 * @see BrokerConstants#SESSION_QUEUE_LOW_WATERMARK
+	 */
+	private Integer sessionQueueLowWatermark;
+
+	/**
+	 * 默认 0 (关闭)
+	 * @see BrokerConstants#ROUTE_CACHE_SIZE
+	 */
+	private Integer routeCacheSize;
+
 	/**
 	 * Defines the SSL implementation to use, default to "JDK".
 	 * @see BrokerConstants#SSL_PROVIDER
@@ -331,7 +397,18 @@ public class BrokerProperties {
 			put("secureWebsocketPort", "secure_websocket_port");
 			put("websocketPath", "websocket_path");
 			put("websocketMaxFrameSize", "websocket_max_frame_size");
+			put("inflightWindowSize", "inflight_window_size");
+			put("websocketInflightWindowSize", "websocket_inflight_window_size");
+			put("sslInflightWindowSize", "ssl_inflight_window_size");
+			put("secureWebsocketInflightWindowSize", "secure_websocket_inflight_window_size");
+			put("inflightWindowAdaptive", "inflight_window_adaptive");
+			put("inflightWindowMaxSize", "inflight_window_max_size");
 			put("sessionQueueSize", "session_queue_size");
+			put("sessionLoopIdleStrategy", "session_loop_idle_strategy");
+			put("sessionLoops", "session_loops");
+			put("sessionQueueHighWatermark", "session_queue_high_watermark");
+			put("sessionQueueLowWatermark", "session_queue_low_watermark");
+			put("routeCacheSize", "route_cache_size");
 			put("sslProvider", "ssl_provider");
 			put("sslPort", "ssl_port");
 			put("jksPath", "jks_path");
@@ -0,0 +1,190 @@
+package io.moquette.broker;
+
+import io.moquette.broker.metrics.QueueOverflowMetrics;
+import io.moquette.broker.subscriptions.CTrieSubscriptionDirectory;
+import io.moquette.broker.subscriptions.ISubscriptionsDirectory;
+import io.moquette.broker.subscriptions.Topic;
+import io.moquette.interception.Interceptor;
+import io.moquette.interception.messages.InterceptDroppedMessage;
+import io.moquette.persistence.MemorySubscriptionsRepository;
+import io.moquette.persistence.SegmentQueueRepository;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class BoundedQueueTest {
+
+    private static final String CLIENT = "subscriber";
+
+    @TempDir
+    Path dataPath;
+
+    private final Interceptor interceptor = mock(Interceptor.class);
+    private SessionRegistry registry;
+
+    @BeforeEach
+    public void setUp() {
+        final ISubscriptionsDirectory subscriptions = new CTrieSubscriptionDirectory();
+        subscriptions.init(new MemorySubscriptionsRepository());
+        // a bounded global limit, so the registry reports the overflow metrics
+        final SessionQueueLimits limits = new SessionQueueLimits(
+            new SessionQueueLimits.Limit(1, 0, QueueOverflowPolicy.DROP_NEWEST), "");
+        registry = new SessionRegistry(subscriptions, new MemoryQueueRepository(), null, interceptor, limits);
+    }
+
+    private static SessionRegistry.PublishedMessage message(String content) {
+        return new SessionRegistry.PublishedMessage(new Topic("sensors/temp"), MqttQoS.AT_LEAST_ONCE,
+            Unpooled.copiedBuffer(content, StandardCharsets.UTF_8), false);
+    }
+
+    private BoundedQueue bounded(SessionMessageQueue<SessionRegistry.EnqueuedMessage> queue, int maxMessages,
+                                 long maxBytes, QueueOverflowPolicy policy) {
+        return new BoundedQueue(registry, CLIENT, queue,
+            new SessionQueueLimits.Limit(maxMessages, maxBytes, policy));
+    }
+
+    private static List<String> drain(SessionMessageQueue<SessionRegistry.EnqueuedMessage> queue) {
+        final List<String> contents = new ArrayList<>();
+        SessionRegistry.EnqueuedMessage message;
+        while ((message = queue.dequeue()) != null) {
+            final ByteBuf payload = ((SessionRegistry.PublishedMessage) message).getPayload();
+            contents.add(payload.toString(StandardCharsets.UTF_8));
+            message.release();
+        }
+        return contents;
+    }
+
+    private QueueOverflowMetrics metrics() {
+        return registry.queuesOverflowMetrics().get();
+    }
+
+    @Test
+    public void dropOldestMakesRoomForTheNewMessage() {
+        final BoundedQueue queue = bounded(new InMemoryQueue(), 2, 0, QueueOverflowPolicy.DROP_OLDEST);
+        final SessionRegistry.PublishedMessage oldest = message("m1");
+        queue.enqueue(oldest);
+        queue.enqueue(message("m2"));
+        queue.enqueue(message("m3"));
+
+        assertThat(oldest.getPayload().refCnt()).isEqualTo(0);
+        assertThat(metrics().droppedOldest()).isEqualTo(1);
+        assertThat(metrics().droppedBytes()).isEqualTo(2);
+        assertThat(queue.size()).isEqualTo(2);
+        assertThat(queue.payloadBytes()).isEqualTo(4);
+        verify(interceptor, times(1)).notifyMessageDropped(any(InterceptDroppedMessage.class));
+        assertThat(drain(queue)).isEqualTo(Arrays.asList("m2", "m3"));
+        assertThat(queue.size()).isEqualTo(0);
+        assertThat(queue.payloadBytes()).isEqualTo(0);
+    }
+
+    @Test
+    public void dropOldestDropsTheNewMessageLargerThanTheLimit() {
+        final BoundedQueue queue = bounded(new InMemoryQueue(), 0, 8, QueueOverflowPolicy.DROP_OLDEST);
+        queue.enqueue(message("m1"));
+        final SessionRegistry.PublishedMessage oversized = message("larger than 8");
+        queue.enqueue(oversized);
+
+        // the queue is kept, emptying it wouldn't make room anyway
+        assertThat(oversized.getPayload().refCnt()).isEqualTo(0);
+        assertThat(metrics().droppedNewest()).isEqualTo(1);
+        assertThat(metrics().droppedOldest()).isEqualTo(0);
+        assertThat(drain(queue)).isEqualTo(Arrays.asList("m1"));
+    }
+
+    @Test
+    public void dropNewestKeepsTheQueuedMessages() {
+        final BoundedQueue queue = bounded(new InMemoryQueue(), 0, 4, QueueOverflowPolicy.DROP_NEWEST);
+        queue.enqueue(message("m1"));
+        queue.enqueue(message("m2"));
+        final SessionRegistry.PublishedMessage newest = message("m3");
+        queue.enqueue(newest);
+
+        assertThat(newest.getPayload().refCnt()).isEqualTo(0);
+        assertThat(metrics().droppedNewest()).isEqualTo(1);
+        assertThat(metrics().droppedBytes()).isEqualTo(2);
+        assertThat(drain(queue)).isEqualTo(Arrays.asList("m1", "m2"));
+    }
+
+    @Test
+    public void disconnectDropsTheNewMessageAndReportsTheOverflow() {
+        final BoundedQueue queue = bounded(new InMemoryQueue(), 1, 0, QueueOverflowPolicy.DISCONNECT);
+        queue.enqueue(message("m1"));
+        final SessionRegistry.PublishedMessage newest = message("m2");
+        // the client has no session in the registry, there is no connection to drop or session to expire
+        queue.enqueue(newest);
+
+        assertThat(newest.getPayload().refCnt()).isEqualTo(0);
+        assertThat(metrics().droppedOnDisconnect()).isEqualTo(1);
+        assertThat(drain(queue)).isEqualTo(Arrays.asList("m1"));
+    }
+
+    @Test
+    public void countersStartFromTheMessagesAlreadyQueued() {
+        // a persistent queue reloaded with its messages
+        final InMemoryQueue reloaded = new InMemoryQueue();
+        reloaded.enqueue(message("m1"));
+        reloaded.enqueue(message("m2"));
+
+        final BoundedQueue queue = bounded(reloaded, 3, 0, QueueOverflowPolicy.DROP_NEWEST);
+        assertThat(queue.size()).isEqualTo(2);
+        assertThat(queue.payloadBytes()).isEqualTo(4);
+
+        queue.enqueue(message("m3"));
+        queue.enqueue(message("m4"));
+
+        assertThat(metrics().droppedNewest()).isEqualTo(1);
+        assertThat(queue.size()).isEqualTo(3);
+        assertThat(drain(queue)).isEqualTo(Arrays.asList("m1", "m2", "m3"));
+    }
+
+    @Test
+    public void countersStartFromAReloadedSegmentedQueue() throws Exception {
+        final SegmentQueueRepository repository = new SegmentQueueRepository(dataPath, 64 * 1024, 4 * 1024);
+        final SessionMessageQueue<SessionRegistry.EnqueuedMessage> stored = repository.getOrCreateQueue(CLIENT);
+        stored.enqueue(message("m1"));
+        stored.enqueue(message("m2"));
+        stored.enqueue(message("m3"));
+        stored.dequeue().release();
+        repository.close();
+
+        final SegmentQueueRepository reopened = new SegmentQueueRepository(dataPath, 64 * 1024, 4 * 1024);
+        final BoundedQueue queue = bounded(reopened.getOrCreateQueue(CLIENT), 3, 0,
+            QueueOverflowPolicy.DROP_NEWEST);
+        assertThat(queue.size()).isEqualTo(2);
+        assertThat(queue.payloadBytes()).isEqualTo(4);
+
+        queue.enqueue(message("m4"));
+        queue.enqueue(message("m5"));
+
+        assertThat(metrics().droppedNewest()).isEqualTo(1);
+        assertThat(drain(queue)).isEqualTo(Arrays.asList("m2", "m3", "m4"));
+        reopened.close();
+    }
+
+    @Test
+    public void closedQueueReleasesTheMessagesRoutedToIt() {
+        final BoundedQueue queue = bounded(new InMemoryQueue(), 1, 0, QueueOverflowPolicy.DISCONNECT);
+        queue.closeAndPurge();
+        final SessionRegistry.PublishedMessage late = message("m1");
+
+        queue.enqueue(late);
+
+        assertThat(late.getPayload().refCnt()).isEqualTo(0);
+        assertThat(queue.size()).isEqualTo(0);
+    }
+}
@@ -0,0 +1,67 @@
+package io.moquette.broker;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.MqttPubAckMessage;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MQTTConnectionPubAckTest {
+
+    private EmbeddedChannel channel;
+    private MQTTConnection connection;
+
+    @BeforeEach
+    public void setUp() {
+        channel = new EmbeddedChannel();
+        final BrokerConfiguration config = new BrokerConfiguration(true, false, false, true);
+        connection = new MQTTConnection(channel, config, null, null, null);
+    }
+
+    private List<Integer> sentPubAcks() {
+        final List<Integer> ids = new ArrayList<>();
+        Object msg;
+        while ((msg = channel.readOutbound()) != null) {
+            ids.add(((MqttPubAckMessage) msg).variableHeader().messageId());
+        }
+        return ids;
+    }
+
+    @Test
+    public void pubAcksWaitForTheCommitOfThePreviousPublishes() {
+        final CompletableFuture<Void> firstCommit = new CompletableFuture<>();
+        final CompletableFuture<Void> thirdCommit = new CompletableFuture<>();
+
+        connection.sendPubAckInOrder(1, firstCommit);
+        connection.sendPubAckInOrder(2, null);
+        connection.sendPubAckInOrder(3, thirdCommit);
+        connection.sendPubAckInOrder(4, null);
+        assertThat(sentPubAcks()).isEmpty();
+
+        thirdCommit.complete(null);
+        assertThat(sentPubAcks()).isEmpty();
+
+        firstCommit.complete(null);
+        assertThat(sentPubAcks()).containsExactly(1, 2, 3, 4);
+
+        connection.sendPubAckInOrder(5, null);
+        assertThat(sentPubAcks()).containsExactly(5);
+    }
+
+    @Test
+    public void aFailedCommitIsNotAcknowledgedAndDoesNotBlockTheNextOnes() {
+        final CompletableFuture<Void> failedCommit = new CompletableFuture<>();
+
+        connection.sendPubAckInOrder(1, failedCommit);
+        connection.sendPubAckInOrder(2, null);
+        failedCommit.completeExceptionally(new IOException("force failed"));
+
+        assertThat(sentPubAcks()).containsExactly(2);
+    }
+}
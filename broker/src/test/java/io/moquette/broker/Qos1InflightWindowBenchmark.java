@@ -0,0 +1,110 @@
+package io.moquette.broker;
+
+import io.moquette.broker.subscriptions.Topic;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttQoS;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * QoS1 delivery throughput of a session to a subscriber whose PUBACKs arrive one round trip after the
+ * PUBLISH, for a range of inflight window sizes. The bound is window / RTT: the benchmark shows how close the
+ * session gets to it, with the acks delayed by a simulated link instead of a real network.
+ *
+ * The current thread plays the session loop, the subscriber is an EmbeddedChannel that acks each PUBLISH once
+ * the round trip time has passed.
+ *
+ * Run with: java Qos1InflightWindowBenchmark [rttMillis] [secondsPerWindow] [messageSize]
+ * */
+public final class Qos1InflightWindowBenchmark {
+
+    private static final int[] WINDOW_SIZES = {10, 100, 1000};
+    private static final Topic TOPIC = new Topic("benchmark/qos1");
+
+    private static final class SentPublish {
+        private final int packetId;
+        private final long ackAt;
+
+        private SentPublish(int packetId, long ackAt) {
+            this.packetId = packetId;
+            this.ackAt = ackAt;
+        }
+    }
+
+    private Qos1InflightWindowBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        final long rttMillis = args.length > 0 ? Long.parseLong(args[0]) : 50;
+        final int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        final int messageSize = args.length > 2 ? Integer.parseInt(args[2]) : 256;
+
+        new ResendTimingWheel().bindToCurrentThread();
+        final ByteBuf payload = Unpooled.directBuffer(messageSize).writeZero(messageSize);
+        try {
+            System.out.printf("%8s %10s %16s %16s%n", "window", "rtt ms", "messages/s", "bound msg/s");
+            for (int window : WINDOW_SIZES) {
+                final double throughput = run(window, rttMillis, seconds, payload);
+                System.out.printf("%8d %10d %16.0f %16.0f%n", window, rttMillis, throughput,
+                                  window * 1000.0 / rttMillis);
+            }
+        } finally {
+            payload.release();
+        }
+    }
+
+    /**
+     * @return the messages acknowledged per second.
+     * */
+    private static double run(int window, long rttMillis, int seconds, ByteBuf payload) throws InterruptedException {
+        final EmbeddedChannel channel = new EmbeddedChannel();
+        NettyUtils.inflightWindowSize(channel, window);
+        final BrokerConfiguration config = new BrokerConfiguration(true, false, false, false);
+        final MQTTConnection connection = new MQTTConnection(channel, config, null, null, null);
+        final Session session = new Session("benchmark-subscriber", false, new InMemoryQueue());
+        session.markConnecting();
+        session.bind(connection);
+        session.completeConnection();
+
+        final long rttNanos = TimeUnit.MILLISECONDS.toNanos(rttMillis);
+        final ArrayDeque<SentPublish> onTheWire = new ArrayDeque<>();
+        long published = 0;
+        long acked = 0;
+        final long start = System.nanoTime();
+        final long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        long now = start;
+        while (now < end) {
+            // keep a backlog in the session queue, so the window is the only limit
+            while (published - acked < 2L * window) {
+                session.sendNotRetainedPublishOnSessionAtQos(TOPIC, MqttQoS.AT_LEAST_ONCE, payload);
+                published++;
+            }
+            channel.flushOutbound();
+            MqttPublishMessage publish;
+            while ((publish = channel.readOutbound()) != null) {
+                onTheWire.addLast(new SentPublish(publish.variableHeader().packetId(), now + rttNanos));
+                publish.release();
+            }
+            SentPublish head;
+            while ((head = onTheWire.peekFirst()) != null && head.ackAt <= now) {
+                onTheWire.pollFirst();
+                session.pubAckReceived(head.packetId);
+                acked++;
+            }
+            if (head != null) {
+                final long waitNanos = head.ackAt - System.nanoTime();
+                if (waitNanos > 0) {
+                    TimeUnit.NANOSECONDS.sleep(waitNanos);
+                }
+            }
+            now = System.nanoTime();
+        }
+        final double elapsedSeconds = (now - start) / 1e9;
+        channel.finishAndReleaseAll();
+        return acked / elapsedSeconds;
+    }
+}
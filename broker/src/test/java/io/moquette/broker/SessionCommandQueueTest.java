@@ -0,0 +1,154 @@
+package io.moquette.broker;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SessionCommandQueueTest {
+
+    private static final String MOVED = "moved";
+
+    private final List<String> executed = new ArrayList<>();
+
+    private Callable<String> recording(String name) {
+        return () -> {
+            executed.add(name);
+            return null;
+        };
+    }
+
+    /**
+     * Source loop 0 of a session moved to loop 1.
+     * */
+    private static SessionCommandQueue sourceOf(SessionCommandQueue target) {
+        return new SessionCommandQueue(0, 8, SessionCommandQueue.IdleStrategy.BUSY_SPIN,
+            new SessionCommandQueue.Rerouter() {
+                @Override
+                public int ownerLoop(int fromLoop, String sessionId) {
+                    return MOVED.equals(sessionId) ? target.loopId() : fromLoop;
+                }
+
+                @Override
+                public boolean forward(int toLoop, String sessionId, Callable<String> action,
+                                       CompletableFuture<String> task) {
+                    return target.offer(sessionId, action, task);
+                }
+            });
+    }
+
+    @Test
+    public void forwardsOfAFullLoopAreDeferredInOrderAndNeverFailed() {
+        final SessionCommandQueue target = new SessionCommandQueue(1, 2, SessionCommandQueue.IdleStrategy.BUSY_SPIN,
+            SessionCommandQueue.NO_REROUTE);
+        final SessionCommandQueue source = sourceOf(target);
+        assertThat(target.offer("other", recording("filler-1"), new CompletableFuture<>())).isTrue();
+        assertThat(target.offer("other", recording("filler-2"), new CompletableFuture<>())).isTrue();
+
+        final List<CompletableFuture<String>> tasks = new ArrayList<>();
+        for (int i = 1; i <= 3; i++) {
+            final CompletableFuture<String> task = new CompletableFuture<>();
+            tasks.add(task);
+            assertThat(source.offer(MOVED, recording("moved-" + i), task)).isTrue();
+        }
+
+        // the target is full, the source keeps the commands instead of failing them
+        assertThat(source.drain(16)).isEqualTo(3);
+        for (CompletableFuture<String> task : tasks) {
+            assertThat(task.isDone()).isFalse();
+        }
+        assertThat(source.reroutedCommands()).isEqualTo(3);
+
+        // the source forwards as soon as the target has room, at most what fits
+        assertThat(target.drain(16)).isEqualTo(2);
+        assertThat(source.drain(16)).isEqualTo(2);
+        assertThat(target.drain(16)).isEqualTo(2);
+        assertThat(source.drain(16)).isEqualTo(1);
+        assertThat(target.drain(16)).isEqualTo(1);
+
+        assertThat(executed).containsExactly("filler-1", "filler-2", "moved-1", "moved-2", "moved-3");
+        for (CompletableFuture<String> task : tasks) {
+            assertThat(task.isDone()).isTrue();
+            assertThat(task.isCompletedExceptionally()).isFalse();
+        }
+    }
+
+    @Test
+    public void newCommandsOfAMovedSessionQueueBehindTheDeferredOnes() {
+        final SessionCommandQueue target = new SessionCommandQueue(1, 1, SessionCommandQueue.IdleStrategy.BUSY_SPIN,
+            SessionCommandQueue.NO_REROUTE);
+        final SessionCommandQueue source = sourceOf(target);
+        assertThat(target.offer("other", recording("filler"), new CompletableFuture<>())).isTrue();
+        source.offer(MOVED, recording("moved-1"), new CompletableFuture<>());
+        source.drain(16);
+        source.offer(MOVED, recording("moved-2"), new CompletableFuture<>());
+        source.drain(16);
+
+        // one slot free at a time, the deferred commands go in the order they were queued
+        for (int i = 0; i < 3; i++) {
+            target.drain(16);
+            source.drain(16);
+        }
+
+        assertThat(executed).containsExactly("filler", "moved-1", "moved-2");
+    }
+
+    @Test
+    public void seesTheCommandsQueuedAfterTheExecutingOne() {
+        final SessionCommandQueue queue = new SessionCommandQueue(16, SessionCommandQueue.IdleStrategy.BUSY_SPIN);
+        final List<Boolean> seen = new ArrayList<>();
+        queue.offer("a", () -> {
+            seen.add(queue.hasQueuedCommandsOf("a"));
+            seen.add(queue.hasQueuedCommandsOf("b"));
+            return null;
+        }, new CompletableFuture<>());
+        queue.offer("b", recording("b"), new CompletableFuture<>());
+
+        queue.drain(16);
+
+        assertThat(seen).containsExactly(false, true);
+        assertThat(queue.hasQueuedCommandsOf("b")).isFalse();
+    }
+
+    @Test
+    public void commandsOfThrottledPublishersAreParkedAndExecutedInOrder() {
+        final SessionCommandQueue queue = new SessionCommandQueue(2, SessionCommandQueue.IdleStrategy.BUSY_SPIN);
+        assertThat(queue.offer("pub", recording("pub-1"), new CompletableFuture<>())).isTrue();
+        assertThat(queue.offer("pub", recording("pub-2"), new CompletableFuture<>())).isTrue();
+        assertThat(queue.offer("pub", recording("rejected"), new CompletableFuture<>())).isFalse();
+
+        final CompletableFuture<String> parkedTask = new CompletableFuture<>();
+        assertThat(queue.offerOrPark("pub", recording("pub-3"), parkedTask)).isTrue();
+        assertThat(queue.size()).isEqualTo(3);
+        // while a command is parked the new ones queue behind it, even if the ring has room
+        queue.drain(1);
+        assertThat(queue.offer("other", recording("other"), new CompletableFuture<>())).isTrue();
+
+        while (queue.drain(16) > 0) {
+            // execute everything
+        }
+
+        assertThat(executed).containsExactly("pub-1", "pub-2", "pub-3", "other");
+        assertThat(parkedTask.isDone()).isTrue();
+        assertThat(queue.parkedCommands()).isEqualTo(2);
+        assertThat(queue.rejectedCommands()).isEqualTo(1);
+        assertThat(queue.size()).isEqualTo(0);
+        assertThat(queue.isEmpty()).isTrue();
+    }
+
+    @Test
+    public void parkedCommandsAreBoundedByTheCapacity() {
+        final SessionCommandQueue queue = new SessionCommandQueue(2, SessionCommandQueue.IdleStrategy.BUSY_SPIN);
+        for (int i = 0; i < 4; i++) {
+            assertThat(queue.offerOrPark("pub", recording("pub-" + i), new CompletableFuture<>())).isTrue();
+        }
+        assertThat(queue.offerOrPark("pub", recording("over"), new CompletableFuture<>())).isFalse();
+
+        assertThat(queue.drain(16)).isEqualTo(4);
+        assertThat(executed).containsExactly("pub-0", "pub-1", "pub-2", "pub-3");
+    }
+}
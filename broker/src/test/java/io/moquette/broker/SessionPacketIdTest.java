@@ -0,0 +1,77 @@
+package io.moquette.broker;
+
+import io.moquette.broker.subscriptions.Topic;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SessionPacketIdTest {
+
+    private static final Topic TOPIC = new Topic("sensors/temp");
+    private static final BrokerConfiguration CONFIG = new BrokerConfiguration(true, false, false, true);
+
+    private final ByteBuf payload = Unpooled.copiedBuffer("22.5", StandardCharsets.UTF_8);
+    private Session session;
+
+    @BeforeEach
+    public void setUp() {
+        // resends are scheduled on the wheel of the session loop, the test thread plays its part
+        new ResendTimingWheel().bindToCurrentThread();
+        session = new Session("subscriber", false, new InMemoryQueue());
+    }
+
+    @AfterEach
+    public void tearDown() {
+        payload.release();
+    }
+
+    private static MQTTConnection connectionOn(EmbeddedChannel channel) {
+        return new MQTTConnection(channel, CONFIG, null, null, null);
+    }
+
+    private List<Integer> publishQos1(EmbeddedChannel channel, int messages) {
+        for (int i = 0; i < messages; i++) {
+            session.sendNotRetainedPublishOnSessionAtQos(TOPIC, MqttQoS.AT_LEAST_ONCE, payload);
+        }
+        final List<Integer> packetIds = new ArrayList<>();
+        MqttPublishMessage publish;
+        while ((publish = channel.readOutbound()) != null) {
+            packetIds.add(publish.variableHeader().packetId());
+            publish.release();
+        }
+        return packetIds;
+    }
+
+    @Test
+    public void packetIdsStillInflightAreSkippedAfterAReconnection() {
+        final EmbeddedChannel firstChannel = new EmbeddedChannel();
+        session.markConnecting();
+        session.bind(connectionOn(firstChannel));
+        session.completeConnection();
+        assertThat(publishQos1(firstChannel, 3)).containsExactly(1, 2, 3);
+
+        // the new connection numbers its packets from the start again, while 1, 2 and 3 wait for the ack
+        final EmbeddedChannel secondChannel = new EmbeddedChannel();
+        session.bind(connectionOn(secondChannel));
+        session.pubAckReceived(2);
+
+        assertThat(publishQos1(secondChannel, 3)).containsExactly(2, 4, 5);
+        assertThat(session.inflightMessages()).isEqualTo(5);
+
+        for (int packetId = 1; packetId <= 5; packetId++) {
+            session.pubAckReceived(packetId);
+        }
+        assertThat(session.inflightMessages()).isEqualTo(0);
+    }
+}
@@ -0,0 +1,56 @@
+package io.moquette.broker;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class SessionQueueLimitsTest {
+
+    private static final SessionQueueLimits.Limit GLOBAL =
+        new SessionQueueLimits.Limit(100, 0, QueueOverflowPolicy.DROP_OLDEST);
+
+    @Test
+    public void longestMatchingPrefixWins() {
+        final SessionQueueLimits limits = new SessionQueueLimits(GLOBAL,
+            "sensor:10:0, sensor-fleet:20:2048:disconnect,sens:5:0");
+
+        final SessionQueueLimits.Limit fleet = limits.forClient("sensor-fleet-7");
+        assertThat(fleet.maxMessages()).isEqualTo(20);
+        assertThat(fleet.maxBytes()).isEqualTo(2048);
+        assertThat(fleet.policy()).isEqualTo(QueueOverflowPolicy.DISCONNECT);
+
+        final SessionQueueLimits.Limit sensor = limits.forClient("sensor-12");
+        assertThat(sensor.maxMessages()).isEqualTo(10);
+        // without a policy the override takes the global one
+        assertThat(sensor.policy()).isEqualTo(QueueOverflowPolicy.DROP_OLDEST);
+
+        assertThat(limits.forClient("sensing").maxMessages()).isEqualTo(5);
+        assertThat(limits.forClient("dashboard")).isSameAs(GLOBAL);
+    }
+
+    @Test
+    public void unboundedOnlyWithoutAnyLimit() {
+        final SessionQueueLimits.Limit none = new SessionQueueLimits.Limit(0, 0, QueueOverflowPolicy.DROP_OLDEST);
+        assertThat(new SessionQueueLimits(none, "").isUnbounded()).isTrue();
+        assertThat(new SessionQueueLimits(none, "vip:0:0").isUnbounded()).isTrue();
+        assertThat(new SessionQueueLimits(none, "vip:0:1024").isUnbounded()).isFalse();
+        assertThat(new SessionQueueLimits(GLOBAL, "").isUnbounded()).isFalse();
+    }
+
+    @Test
+    public void malformedOverridesAreRejected() {
+        final String[] malformed = {
+            "sensor:10",
+            "sensor:10:0:drop_oldest:extra",
+            ":10:0",
+            "sensor:ten:0",
+            "sensor:10:0:drop_all",
+            "sensor:-1:0",
+        };
+        for (String override : malformed) {
+            assertThrows(IllegalArgumentException.class, () -> new SessionQueueLimits(GLOBAL, override),
+                "override " + override);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package io.moquette.broker;
+
+import io.moquette.broker.metrics.MQTTMessageLogger;
+import io.moquette.broker.subscriptions.Topic;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.MqttEncoder;
+import io.netty.handler.codec.mqtt.MqttMessageBuilders;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SharedPublishFramesTest {
+
+    private final ByteBuf payload = Unpooled.copiedBuffer("hello subscribers", StandardCharsets.UTF_8);
+    private final SharedPublishFrames frames = new SharedPublishFrames(new Topic("sensors/temp"), payload, false);
+
+    @AfterEach
+    public void tearDown() {
+        frames.release();
+        payload.release();
+    }
+
+    private static String encodedByNetty(MqttQoS qos, int packetId, ByteBuf payload) {
+        final MqttPublishMessage publish = MqttMessageBuilders.publish()
+            .topicName("sensors/temp")
+            .qos(qos)
+            .messageId(packetId)
+            .retained(false)
+            .payload(payload.retainedDuplicate())
+            .build();
+        final EmbeddedChannel encoder = new EmbeddedChannel(MqttEncoder.INSTANCE);
+        encoder.writeOutbound(publish);
+        final ByteBuf encoded = encoder.readOutbound();
+        try {
+            return ByteBufUtil.hexDump(encoded);
+        } finally {
+            encoded.release();
+            encoder.finishAndReleaseAll();
+        }
+    }
+
+    private String frameOf(MqttQoS qos, int packetId, EmbeddedChannel channel) {
+        final ByteBuf frame = frames.frame(qos, packetId, channel.alloc());
+        try {
+            return ByteBufUtil.hexDump(frame);
+        } finally {
+            frame.release();
+        }
+    }
+
+    @Test
+    public void framesAreEncodedAsTheMqttEncoderDoes() {
+        final EmbeddedChannel channel = new EmbeddedChannel();
+
+        assertThat(frameOf(MqttQoS.AT_MOST_ONCE, 0, channel))
+            .isEqualTo(encodedByNetty(MqttQoS.AT_MOST_ONCE, 0, payload));
+        assertThat(frameOf(MqttQoS.AT_LEAST_ONCE, 42, channel))
+            .isEqualTo(encodedByNetty(MqttQoS.AT_LEAST_ONCE, 42, payload));
+        // the header is shared, only the packet id changes
+        assertThat(frameOf(MqttQoS.AT_LEAST_ONCE, 43, channel))
+            .isEqualTo(encodedByNetty(MqttQoS.AT_LEAST_ONCE, 43, payload));
+    }
+
+    @Test
+    public void loggerLetsTheEncodedFramesThrough() {
+        final EmbeddedChannel channel = new EmbeddedChannel(new MQTTMessageLogger());
+
+        channel.writeOutbound(frames.frame(MqttQoS.EXACTLY_ONCE, 7, channel.alloc()));
+
+        final ByteBuf written = channel.readOutbound();
+        try {
+            assertThat(ByteBufUtil.hexDump(written)).isEqualTo(encodedByNetty(MqttQoS.EXACTLY_ONCE, 7, payload));
+        } finally {
+            written.release();
+        }
+    }
+}
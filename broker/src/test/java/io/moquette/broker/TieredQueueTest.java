@@ -0,0 +1,96 @@
+package io.moquette.broker;
+
+import io.moquette.broker.subscriptions.Topic;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TieredQueueTest {
+
+    private static final String CLIENT = "subscriber";
+
+    private final MemoryQueueRepository spillRepository = new MemoryQueueRepository();
+
+    private static SessionRegistry.EnqueuedMessage message(String content) {
+        return new SessionRegistry.PublishedMessage(new Topic("sensors/temp"), MqttQoS.AT_LEAST_ONCE,
+            Unpooled.copiedBuffer(content, StandardCharsets.UTF_8), false);
+    }
+
+    private static void enqueue(SessionMessageQueue<SessionRegistry.EnqueuedMessage> queue, String... contents) {
+        for (String content : contents) {
+            queue.enqueue(message(content));
+        }
+    }
+
+    private static List<String> drain(SessionMessageQueue<SessionRegistry.EnqueuedMessage> queue) {
+        final List<String> contents = new ArrayList<>();
+        SessionRegistry.EnqueuedMessage message;
+        while ((message = queue.dequeue()) != null) {
+            contents.add(content(message));
+        }
+        return contents;
+    }
+
+    private static String content(SessionRegistry.EnqueuedMessage message) {
+        final SessionRegistry.PublishedMessage published = (SessionRegistry.PublishedMessage) message;
+        final String content = published.getPayload().toString(StandardCharsets.UTF_8);
+        published.release();
+        return content;
+    }
+
+    @Test
+    public void messagesOverTheCountLimitAreSpilledAndReadFirst() {
+        final TieredQueueRepository repository = new TieredQueueRepository(spillRepository, 3, 0);
+        final SessionMessageQueue<SessionRegistry.EnqueuedMessage> queue = repository.getOrCreateQueue(CLIENT);
+
+        enqueue(queue, "m1", "m2", "m3", "m4", "m5");
+        assertThat(spillRepository.getOrCreateQueue(CLIENT).size()).isEqualTo(2);
+        assertThat(queue.size()).isEqualTo(5);
+        assertThat(queue.payloadBytes()).isEqualTo(10);
+
+        assertThat(content(queue.dequeue())).isEqualTo("m1");
+        // m3 goes after m2 in the spill queue, still before the messages left in memory
+        enqueue(queue, "m6");
+        assertThat(spillRepository.getOrCreateQueue(CLIENT).size()).isEqualTo(2);
+
+        assertThat(drain(queue)).isEqualTo(Arrays.asList("m2", "m3", "m4", "m5", "m6"));
+        assertThat(queue.isEmpty()).isTrue();
+        assertThat(queue.payloadBytes()).isEqualTo(0);
+    }
+
+    @Test
+    public void messagesOverTheBytesLimitAreSpilledInOrder() {
+        final TieredQueueRepository repository = new TieredQueueRepository(spillRepository, 0, 8);
+        final SessionMessageQueue<SessionRegistry.EnqueuedMessage> queue = repository.getOrCreateQueue(CLIENT);
+
+        enqueue(queue, "aaaa", "bbbb", "cccc");
+        assertThat(spillRepository.getOrCreateQueue(CLIENT).size()).isEqualTo(1);
+        // once the spill queue is drained the memory is read, until the next spill
+        assertThat(content(queue.dequeue())).isEqualTo("aaaa");
+        assertThat(content(queue.dequeue())).isEqualTo("bbbb");
+        enqueue(queue, "dddd", "eeee");
+
+        assertThat(drain(queue)).isEqualTo(Arrays.asList("cccc", "dddd", "eeee"));
+    }
+
+    @Test
+    public void closeSpillsTheMessagesInMemory() {
+        final TieredQueueRepository repository = new TieredQueueRepository(spillRepository, 3, 0);
+        final SessionMessageQueue<SessionRegistry.EnqueuedMessage> queue = repository.getOrCreateQueue(CLIENT);
+        enqueue(queue, "m1", "m2", "m3", "m4");
+        final SessionMessageQueue<SessionRegistry.EnqueuedMessage> spillQueue =
+            spillRepository.getOrCreateQueue(CLIENT);
+        assertThat(spillQueue.size()).isEqualTo(1);
+
+        repository.close();
+
+        assertThat(drain(spillQueue)).isEqualTo(Arrays.asList("m1", "m2", "m3", "m4"));
+    }
+}
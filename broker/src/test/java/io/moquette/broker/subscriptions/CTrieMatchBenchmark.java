@@ -0,0 +1,107 @@
+package io.moquette.broker.subscriptions;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Single threaded benchmark of CTrie.match against the reference CTrie.recursiveMatch, on a tree of literal
+ * subscriptions with a share of + and # filters. The tree and the published topics come from a fixed seed, so
+ * every run matches the same topics against the same tree.
+ *
+ * Run with: java CTrieMatchBenchmark [literalSubscriptions] [wildcardSubscriptions] [iterations]
+ * */
+public final class CTrieMatchBenchmark {
+
+    private static final long SEED = 42;
+    private static final int LEVELS = 4;
+    private static final int TOKENS_PER_LEVEL = 32;
+    private static final int TOPICS = 1024;
+
+    private static volatile long blackhole;
+
+    private CTrieMatchBenchmark() {
+    }
+
+    public static void main(String[] args) {
+        final int literals = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        final int wildcards = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        final int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 500_000;
+
+        final Random random = new Random(SEED);
+        final CTrie trie = new CTrie();
+        for (int i = 0; i < literals; i++) {
+            trie.addToTree(new Subscription("literal-" + i, new Topic(randomTopic(random)), MqttQoS.AT_MOST_ONCE));
+        }
+        for (int i = 0; i < wildcards; i++) {
+            trie.addToTree(new Subscription("wildcard-" + i, new Topic(randomFilter(random)), MqttQoS.AT_MOST_ONCE));
+        }
+        final List<Topic> topics = new ArrayList<>(TOPICS);
+        for (int i = 0; i < TOPICS; i++) {
+            final Topic topic = new Topic(randomTopic(random));
+            // parsed once, like the topic of a publish
+            topic.getTokens();
+            topics.add(topic);
+        }
+
+        // warm up
+        runRecursive(trie, topics, iterations / 10);
+        runIterative(trie, topics, iterations / 10);
+        System.out.printf("%16s %12s%n", "matcher", "ns/op");
+        System.out.printf("%16s %12.1f%n", "recursiveMatch", runRecursive(trie, topics, iterations));
+        System.out.printf("%16s %12.1f%n", "match", runIterative(trie, topics, iterations));
+    }
+
+    private static String randomTopic(Random random) {
+        final StringBuilder topic = new StringBuilder();
+        for (int level = 0; level < LEVELS; level++) {
+            if (level > 0) {
+                topic.append('/');
+            }
+            topic.append("t").append(random.nextInt(TOKENS_PER_LEVEL));
+        }
+        return topic.toString();
+    }
+
+    // a topic with one level replaced by +, or cut by a #
+    private static String randomFilter(Random random) {
+        final String[] tokens = randomTopic(random).split("/");
+        final int level = random.nextInt(LEVELS);
+        if (random.nextBoolean()) {
+            tokens[level] = "+";
+            return String.join("/", tokens);
+        }
+        final StringBuilder filter = new StringBuilder();
+        for (int i = 0; i < level; i++) {
+            filter.append(tokens[i]).append('/');
+        }
+        return filter.append('#').toString();
+    }
+
+    /**
+     * @return the nanoseconds per matched topic.
+     * */
+    private static double runRecursive(CTrie trie, List<Topic> topics, int iterations) {
+        long matched = 0;
+        final long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            matched += trie.recursiveMatch(topics.get(i % TOPICS)).size();
+        }
+        final long elapsed = System.nanoTime() - start;
+        blackhole += matched;
+        return (double) elapsed / iterations;
+    }
+
+    private static double runIterative(CTrie trie, List<Topic> topics, int iterations) {
+        final long[] matched = new long[1];
+        final long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            trie.match(topics.get(i % TOPICS), sub -> matched[0]++);
+        }
+        final long elapsed = System.nanoTime() - start;
+        blackhole += matched[0];
+        return (double) elapsed / iterations;
+    }
+}
@@ -0,0 +1,109 @@
+package io.moquette.broker.subscriptions;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * The iterative match has to find exactly the subscriptions of the recursive one, which is the reference.
+ * */
+public class CTrieMatchTest {
+
+    private CTrie trie;
+
+    @BeforeEach
+    public void setUp() {
+        trie = new CTrie();
+    }
+
+    private void subscribe(String clientId, String filter) {
+        trie.addToTree(new Subscription(clientId, new Topic(filter), MqttQoS.AT_LEAST_ONCE));
+    }
+
+    /**
+     * @return the client ids matched by the iterative match, checked against the recursive one.
+     * */
+    private Set<String> matchedClients(String topicName) {
+        final List<Subscription> matched = new ArrayList<>();
+        trie.match(new Topic(topicName), matched::add);
+
+        // no subscription is pushed twice
+        assertThat(new HashSet<>(matched)).hasSameSizeAs(matched);
+        assertThat(matched).containsOnlyElementsOf(trie.recursiveMatch(new Topic(topicName)));
+        assertThat(trie.recursiveMatch(new Topic(topicName))).containsOnlyElementsOf(matched);
+
+        final Set<String> clients = new HashSet<>();
+        for (Subscription subscription : matched) {
+            clients.add(subscription.getClientId());
+        }
+        return clients;
+    }
+
+    @Test
+    public void singleLevelWildcardMatchesExactlyOneLevel() {
+        subscribe("plus", "a/+");
+        subscribe("plusMiddle", "a/+/c");
+        subscribe("literal", "a/b");
+
+        assertThat(matchedClients("a/b")).containsOnly("plus", "literal");
+        assertThat(matchedClients("a/x/c")).containsOnly("plusMiddle");
+        assertThat(matchedClients("a")).isEmpty();
+        assertThat(matchedClients("a/b/c/d")).isEmpty();
+    }
+
+    @Test
+    public void multiLevelWildcardMatchesAnyDepth() {
+        subscribe("all", "#");
+        subscribe("underA", "a/#");
+        subscribe("underAB", "a/b/#");
+
+        assertThat(matchedClients("a/b/c/d")).containsOnly("all", "underA", "underAB");
+        assertThat(matchedClients("x")).containsOnly("all");
+    }
+
+    @Test
+    public void multiLevelWildcardMatchesItsParentLevel() {
+        subscribe("underA", "a/#");
+        subscribe("literal", "a");
+
+        assertThat(matchedClients("a")).containsOnly("underA", "literal");
+        assertThat(matchedClients("b")).isEmpty();
+    }
+
+    @Test
+    public void wildcardsAndLiteralsOfTheSameClientAreEachMatched() {
+        subscribe("client", "a/+/c");
+        subscribe("client", "a/b/#");
+        subscribe("client", "+/b/c");
+
+        assertThat(matchedClients("a/b/c")).containsOnly("client");
+    }
+
+    @Test
+    public void dollarTopicsMatchLikeTheReference() {
+        subscribe("sys", "$SYS/#");
+        subscribe("sysUptime", "$SYS/broker/+");
+        subscribe("all", "#");
+        subscribe("plus", "+/broker/uptime");
+
+        assertThat(matchedClients("$SYS/broker/uptime")).contains("sys", "sysUptime");
+        assertThat(matchedClients("$SYS")).contains("sys");
+        assertThat(matchedClients("broker/uptime")).doesNotContain("sys", "sysUptime");
+    }
+
+    @Test
+    public void removedSubscriptionsAreNotMatched() {
+        subscribe("kept", "a/+");
+        subscribe("removed", "a/b");
+        trie.removeFromTree(new Topic("a/b"), "removed");
+
+        assertThat(matchedClients("a/b")).containsOnly("kept");
+    }
+}
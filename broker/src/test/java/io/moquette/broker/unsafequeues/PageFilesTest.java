@@ -0,0 +1,125 @@
+package io.moquette.broker.unsafequeues;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class PageFilesTest {
+
+    private static final int PAGE_SIZE = 16 * 1024;
+    private static final int SEGMENT_SIZE = 4 * 1024;
+
+    @TempDir
+    Path root;
+
+    private Path directory(String name) {
+        return root.resolve(name);
+    }
+
+    private Path createPage(String directory, String fileName) throws Exception {
+        final Path dir = Files.createDirectories(directory(directory));
+        return Files.createFile(dir.resolve(fileName));
+    }
+
+    @Test
+    public void roundRobinPlacesConsecutivePagesInConsecutiveDirectories() throws Exception {
+        final PageFiles pageFiles = PageFiles.scan(Arrays.asList(directory("a"), directory("b"), directory("c")),
+            directory("data"), PagePlacement.ROUND_ROBIN);
+
+        for (int pageId = 0; pageId < 6; pageId++) {
+            final String expected = new String[] {"a", "b", "c"}[pageId % 3];
+            assertThat(pageFiles.pageFile(pageId)).isEqualTo(directory(expected).resolve(pageId + ".page"));
+        }
+    }
+
+    @Test
+    public void freeSpacePlacesEachPageInTheDirectoryWithMostUsableSpace() throws Exception {
+        final Map<Path, Long> space = new HashMap<>();
+        space.put(directory("a"), 100L);
+        space.put(directory("b"), 300L);
+        space.put(directory("c"), 200L);
+        final PageFiles pageFiles = PageFiles.scan(Arrays.asList(directory("a"), directory("b"), directory("c")),
+            directory("data"), PagePlacement.FREE_SPACE, space::get);
+
+        assertThat(pageFiles.pageFile(0).getParent()).isEqualTo(directory("b"));
+
+        space.put(directory("b"), 50L);
+        assertThat(pageFiles.pageFile(1).getParent()).isEqualTo(directory("c"));
+        // a page keeps the directory it has been placed in
+        assertThat(pageFiles.pageFile(0).getParent()).isEqualTo(directory("b"));
+    }
+
+    @Test
+    public void rescanFindsThePagesInEveryDirectory() throws Exception {
+        final Path page0 = createPage("a", "0.page");
+        final Path page1 = createPage("b", "1.page");
+        // left by the single directory setup
+        final Path page2 = createPage("data", "2.page");
+        createPage("a", "notes.page");
+
+        // the directories in another order than the one the pages were placed with
+        final PageFiles pageFiles = PageFiles.scan(Arrays.asList(directory("b"), directory("a")),
+            directory("data"), PagePlacement.ROUND_ROBIN);
+
+        assertThat(pageFiles.pageFile(0)).isEqualTo(page0);
+        assertThat(pageFiles.pageFile(1)).isEqualTo(page1);
+        assertThat(pageFiles.pageFile(2)).isEqualTo(page2);
+        assertThat(pageFiles.exists(2)).isTrue();
+        assertThat(pageFiles.exists(3)).isFalse();
+        // the new pages go only to the page directories
+        assertThat(pageFiles.pageFile(3)).isEqualTo(directory("a").resolve("3.page"));
+    }
+
+    @Test
+    public void pageFoundInTwoDirectoriesIsRejected() throws Exception {
+        createPage("a", "0.page");
+        createPage("b", "0.page");
+
+        assertThrows(QueueException.class, () -> PageFiles.scan(Arrays.asList(directory("a"), directory("b")),
+            directory("data"), PagePlacement.ROUND_ROBIN));
+    }
+
+    @Test
+    public void queuesSpreadOverDirectoriesAreReloadedWithTheDirectoriesReordered() throws Exception {
+        final Path dataPath = Files.createDirectories(directory("data"));
+        final QueuePool pool = QueuePool.loadQueues(dataPath, Arrays.asList(directory("a"), directory("b")),
+            PagePlacement.ROUND_ROBIN, PAGE_SIZE, SEGMENT_SIZE, QueueDurability.Mode.NONE, 0, 0, 0);
+        final Queue queue = pool.getOrCreate("client");
+        // four pages worth of records
+        for (int i = 0; i < 64; i++) {
+            queue.enqueue(ByteBuffer.wrap(record(i)));
+        }
+        pool.close();
+        assertThat(Files.exists(directory("a").resolve("0.page"))).isTrue();
+        assertThat(Files.exists(directory("b").resolve("1.page"))).isTrue();
+
+        final QueuePool reloaded = QueuePool.loadQueues(dataPath, Arrays.asList(directory("b"), directory("a")),
+            PagePlacement.ROUND_ROBIN, PAGE_SIZE, SEGMENT_SIZE, QueueDurability.Mode.NONE, 0, 0, 0);
+        final Queue reloadedQueue = reloaded.getOrCreate("client");
+        for (int i = 0; i < 64; i++) {
+            final Optional<ByteBuffer> record = reloadedQueue.dequeue();
+            assertThat(record.isPresent()).isTrue();
+            assertThat(StandardCharsets.UTF_8.decode(record.get()).toString())
+                .isEqualTo(new String(record(i), StandardCharsets.UTF_8));
+        }
+        assertThat(reloadedQueue.dequeue().isPresent()).isFalse();
+        reloaded.close();
+    }
+
+    private static byte[] record(int index) {
+        final byte[] record = new byte[1000];
+        Arrays.fill(record, (byte) ('a' + index % 26));
+        return record;
+    }
+}
@@ -0,0 +1,152 @@
+package io.moquette.broker.unsafequeues;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Compaction runs racing the session loops that enqueue and dequeue on their queues: the queues must read back
+ * exactly what was written, and no segment handed back to the pool may still be part of a queue.
+ * */
+public class QueueCompactionConcurrencyTest {
+
+    private static final int PAGE_SIZE = 64 * 1024;
+    private static final int SEGMENT_SIZE = 4 * 1024;
+    private static final int QUEUES = 4;
+    private static final int ROUNDS = 40;
+
+    @TempDir
+    Path dataPath;
+
+    /**
+     * The records of a queue, numbered in order, with a size that makes some of them span two segments.
+     * */
+    private static final class QueueLoop implements Callable<Void> {
+        private final Queue queue;
+        private final String name;
+        private long written;
+        private long read;
+
+        private QueueLoop(Queue queue, String name) {
+            this.queue = queue;
+            this.name = name;
+        }
+
+        private byte[] record(long sequence) {
+            final byte[] record = new byte[100 + (int) (sequence * 37 % 1400)];
+            Arrays.fill(record, (byte) sequence);
+            final byte[] prefix = (name + ":" + sequence + ":").getBytes(StandardCharsets.UTF_8);
+            System.arraycopy(prefix, 0, record, 0, prefix.length);
+            return record;
+        }
+
+        private void enqueue(int count) throws QueueException {
+            for (int i = 0; i < count; i++) {
+                queue.enqueue(ByteBuffer.wrap(record(written++)));
+            }
+        }
+
+        private void dequeue(int count) throws QueueException {
+            for (int i = 0; i < count; i++) {
+                final Optional<ByteBuffer> record = queue.dequeue();
+                assertThat(record.isPresent()).as("record %d of %s", read, name).isTrue();
+                final ByteBuffer buffer = record.get();
+                final byte[] content = new byte[buffer.remaining()];
+                buffer.get(content);
+                assertThat(content).as("record %d of %s", read, name).isEqualTo(record(read++));
+            }
+        }
+
+        @Override
+        public Void call() throws QueueException {
+            // the backlog moves forward through the pages, leaving few live segments in the ones behind
+            for (int round = 0; round < ROUNDS; round++) {
+                enqueue(120);
+                dequeue(100);
+            }
+            return null;
+        }
+
+        private void drain() throws QueueException {
+            // the new records take the free segments, overwriting any that the queue still referenced
+            enqueue(100);
+            dequeue((int) (written - read));
+            assertThat(queue.dequeue().isPresent()).isFalse();
+        }
+    }
+
+    private static void assertNoFreeSegmentIsReferenced(QueuePool pool) {
+        final NavigableSet<QueuePool.SegmentRef> free = pool.freeSegments();
+        for (int i = 0; i < QUEUES; i++) {
+            final String name = "client-" + i;
+            synchronized (pool.segmentsMonitor(name)) {
+                for (QueuePool.SegmentRef segment : pool.copySegments(name)) {
+                    assertThat(free.contains(segment)).as("segment %s of %s is free", segment, name).isFalse();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void compactionRacingEnqueuesAndDequeuesKeepsTheQueuesIntact() throws Exception {
+        // compaction disabled, the test runs it
+        final QueuePool pool = QueuePool.loadQueues(dataPath, PAGE_SIZE, SEGMENT_SIZE, QueueDurability.Mode.NONE,
+            0, 0, 0);
+        final List<QueueLoop> loops = new ArrayList<>();
+        for (int i = 0; i < QUEUES; i++) {
+            final String name = "client-" + i;
+            loops.add(new QueueLoop(pool.getOrCreate(name), name));
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(QUEUES + 1);
+        final AtomicBoolean looping = new AtomicBoolean(true);
+        try {
+            final Future<Integer> compactions = executor.submit(() -> {
+                int runs = 0;
+                while (looping.get()) {
+                    pool.compaction().compact();
+                    runs++;
+                }
+                return runs;
+            });
+            final List<Future<Void>> results = new ArrayList<>();
+            for (QueueLoop loop : loops) {
+                results.add(executor.submit(loop));
+            }
+            for (Future<Void> result : results) {
+                result.get(60, TimeUnit.SECONDS);
+            }
+            looping.set(false);
+            assertThat(compactions.get(60, TimeUnit.SECONDS)).isGreaterThan(0);
+        } finally {
+            looping.set(false);
+            executor.shutdownNow();
+        }
+
+        assertThat(pool.compaction().metrics().movedSegments()).isGreaterThan(0);
+        assertNoFreeSegmentIsReferenced(pool);
+        // once more with the queues still
+        pool.compaction().compact();
+        assertNoFreeSegmentIsReferenced(pool);
+        for (QueueLoop loop : loops) {
+            loop.drain();
+        }
+        pool.close();
+    }
+}
@@ -0,0 +1,136 @@
+package io.moquette.broker.unsafequeues;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Records damaged on the disk: a flipped byte in the payload is caught by the checksum and the record is
+ * skipped, a flipped length header makes the next records unreachable.
+ * */
+public class QueueCorruptedRecordTest {
+
+    private static final int PAGE_SIZE = 64 * 1024;
+    private static final int SEGMENT_SIZE = 4 * 1024;
+    private static final String QUEUE = "client-1";
+
+    @TempDir
+    Path dataPath;
+
+    private static String record(int index) {
+        return "record-" + index + "-of-the-queue";
+    }
+
+    private static void enqueueRecords(Queue queue, int count) throws QueueException {
+        for (int i = 1; i <= count; i++) {
+            queue.enqueue(ByteBuffer.wrap(record(i).getBytes(StandardCharsets.UTF_8)));
+        }
+    }
+
+    private static String dequeued(Queue queue) throws QueueException {
+        final Optional<ByteBuffer> record = queue.dequeue();
+        return record.map(buffer -> StandardCharsets.UTF_8.decode(buffer).toString()).orElse(null);
+    }
+
+    /**
+     * @return the position in the page file of the payload of the record.
+     * */
+    private long payloadPosition(int index) throws Exception {
+        final byte[] page = Files.readAllBytes(dataPath.resolve("0.page"));
+        final byte[] payload = record(index).getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i <= page.length - payload.length; i++) {
+            boolean matches = true;
+            for (int j = 0; j < payload.length && matches; j++) {
+                matches = page[i + j] == payload[j];
+            }
+            if (matches) {
+                return i;
+            }
+        }
+        throw new AssertionError("Record " + index + " not found in the page");
+    }
+
+    private void flipByte(long position, int mask) throws Exception {
+        try (RandomAccessFile file = new RandomAccessFile(dataPath.resolve("0.page").toFile(), "rw")) {
+            file.seek(position);
+            final int value = file.read();
+            file.seek(position);
+            file.write(value ^ mask);
+        }
+    }
+
+    @Test
+    public void dequeueSkipsARecordWithAFlippedPayloadByte() throws Exception {
+        final QueuePool pool = QueuePool.loadQueues(dataPath, PAGE_SIZE, SEGMENT_SIZE);
+        final Queue queue = pool.getOrCreate(QUEUE);
+        enqueueRecords(queue, 3);
+
+        // the page is mapped, the change is seen by the queue
+        flipByte(payloadPosition(2) + 3, 0x20);
+
+        assertThat(dequeued(queue)).isEqualTo(record(1));
+        assertThat(dequeued(queue)).isEqualTo(record(3));
+        assertThat(dequeued(queue)).isNull();
+        assertThat(pool.durability().metrics().corruptedRecords()).isEqualTo(1);
+        pool.close();
+    }
+
+    @Test
+    public void dequeueFailsOnAFlippedLengthHeader() throws Exception {
+        final QueuePool pool = QueuePool.loadQueues(dataPath, PAGE_SIZE, SEGMENT_SIZE);
+        final Queue queue = pool.getOrCreate(QUEUE);
+        enqueueRecords(queue, 3);
+
+        // the most significant byte of the length, the record would end past the head
+        final long lengthPosition = payloadPosition(2) - Queue.headerSize(true);
+        flipByte(lengthPosition, 0x40);
+
+        assertThat(dequeued(queue)).isEqualTo(record(1));
+        final QueueException ex = assertThrows(QueueException.class, queue::dequeue);
+        assertThat(ex.getMessage()).startsWith("Corrupted record length");
+        pool.close();
+    }
+
+    @Test
+    public void recoveryTruncatesAtTheFirstInvalidRecordAndReportsIt() throws Exception {
+        final QueuePool pool = QueuePool.loadQueues(dataPath, PAGE_SIZE, SEGMENT_SIZE);
+        enqueueRecords(pool.getOrCreate(QUEUE), 4);
+        pool.close();
+        flipByte(payloadPosition(3), 0x01);
+
+        final QueuePoolJournal journal = QueuePoolJournal.open(dataPath, null);
+        // as after a crash, the head was journaled but never forced
+        journal.queues().get(QUEUE).verifiedSegment = null;
+        final PageFiles pageFiles = PageFiles.scan(Collections.singletonList(dataPath), dataPath,
+            PagePlacement.ROUND_ROBIN);
+        final PagedFilesAllocator allocator = new PagedFilesAllocator(pageFiles, PAGE_SIZE, SEGMENT_SIZE,
+            journal.lastPage(), journal.lastSegment());
+        final QueueRecovery recovery = new QueueRecovery(allocator, SEGMENT_SIZE);
+
+        assertThat(recovery.recover(journal.queues())).isTrue();
+        final int recordSize = Queue.headerSize(true) + record(3).length();
+        assertThat(recovery.truncatedQueues()).isEqualTo(1);
+        assertThat(recovery.truncatedBytes()).isEqualTo(2L * recordSize);
+        assertThat(journal.queues().get(QUEUE).isHeadVerified()).isTrue();
+        journal.checkpoint();
+        journal.close();
+        allocator.close();
+
+        final QueuePool recovered = QueuePool.loadQueues(dataPath, PAGE_SIZE, SEGMENT_SIZE);
+        final Queue queue = recovered.getOrCreate(QUEUE);
+        assertThat(dequeued(queue)).isEqualTo(record(1));
+        assertThat(dequeued(queue)).isEqualTo(record(2));
+        assertThat(dequeued(queue)).isNull();
+        recovered.close();
+    }
+}
@@ -0,0 +1,149 @@
+package io.moquette.broker.unsafequeues;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class QueueDurabilityTest {
+
+    private static final int PAGE_SIZE = 64 * 1024;
+    private static final int SEGMENT_SIZE = 4 * 1024;
+
+    /**
+     * State attached to the pool whose force, done by every force of the pool before the journal, waits to be
+     * released.
+     * */
+    private static final class GatedState implements JournaledState {
+        private final AtomicInteger forces = new AtomicInteger();
+        private final CountDownLatch entered = new CountDownLatch(1);
+        private final CountDownLatch released = new CountDownLatch(1);
+        private volatile IOException failure;
+
+        @Override
+        public void loadSnapshot(DataInputStream in) {
+        }
+
+        @Override
+        public void writeSnapshot(DataOutputStream out) {
+        }
+
+        @Override
+        public void replay(DataInputStream record) {
+        }
+
+        @Override
+        public void force() throws IOException {
+            forces.incrementAndGet();
+            entered.countDown();
+            try {
+                released.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        private void awaitForce() throws InterruptedException {
+            assertThat(entered.await(10, TimeUnit.SECONDS)).as("force started").isTrue();
+        }
+    }
+
+    @TempDir
+    Path dataPath;
+
+    private final GatedState state = new GatedState();
+    private QueuePool pool;
+
+    private Queue groupCommitQueue() throws QueueException {
+        pool = QueuePool.loadQueues(dataPath, Collections.singletonList(dataPath), PagePlacement.ROUND_ROBIN,
+            PAGE_SIZE, SEGMENT_SIZE, QueueDurability.Mode.GROUP_COMMIT, 0, 0, 0, state);
+        return pool.getOrCreate("client");
+    }
+
+    private static void enqueue(Queue queue, String record) throws QueueException {
+        queue.enqueue(ByteBuffer.wrap(record.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @AfterEach
+    public void tearDown() throws QueueException {
+        state.released.countDown();
+        if (pool != null) {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void commitCompletesOnlyAfterTheForce() throws Exception {
+        final Queue queue = groupCommitQueue();
+        enqueue(queue, "first");
+
+        final CompletableFuture<Void> commit = pool.durability().commit();
+        state.awaitForce();
+        assertThat(commit.isDone()).isFalse();
+
+        state.released.countDown();
+        commit.get(10, TimeUnit.SECONDS);
+        assertThat(state.forces.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void commitRequestedDuringAForceWaitsForTheNextOne() throws Exception {
+        final Queue queue = groupCommitQueue();
+        enqueue(queue, "first");
+        final CompletableFuture<Void> first = pool.durability().commit();
+        state.awaitForce();
+
+        // written after the pages have been collected by the force in progress
+        enqueue(queue, "second");
+        final CompletableFuture<Void> second = pool.durability().commit();
+        assertThat(first.isDone()).isFalse();
+        assertThat(second.isDone()).isFalse();
+
+        state.released.countDown();
+        first.get(10, TimeUnit.SECONDS);
+        second.get(10, TimeUnit.SECONDS);
+        assertThat(state.forces.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void failedForceFailsTheCommit() throws Exception {
+        final Queue queue = groupCommitQueue();
+        enqueue(queue, "first");
+        state.failure = new IOException("disk full");
+
+        final CompletableFuture<Void> commit = pool.durability().commit();
+        state.released.countDown();
+
+        final ExecutionException ex = assertThrows(ExecutionException.class, () -> commit.get(10, TimeUnit.SECONDS));
+        assertThat(ex.getCause()).isInstanceOf(QueueException.class);
+        state.failure = null;
+    }
+
+    @Test
+    public void commitIsAlreadyCompletedWithoutGroupCommit() throws Exception {
+        pool = QueuePool.loadQueues(dataPath, Collections.singletonList(dataPath), PagePlacement.ROUND_ROBIN,
+            PAGE_SIZE, SEGMENT_SIZE, QueueDurability.Mode.NONE, 0, 0, 0, state);
+        enqueue(pool.getOrCreate("client"), "first");
+
+        assertThat(pool.durability().commit().isDone()).isTrue();
+        assertThat(state.forces.get()).isEqualTo(0);
+    }
+}
@@ -0,0 +1,131 @@
+package io.moquette.broker.unsafequeues;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Multi-threaded enqueue benchmark of the QueuePool, each thread writes and drains its own queues like a
+ * session loop. Small segments make the rollovers, and so the allocations, frequent.
+ *
+ * Only the public API of the pool is used, so the same harness runs against older versions of the allocator.
+ *
+ * Run with: java QueuePoolEnqueueBenchmark [maxThreads] [messagesPerThread] [messageSize]
+ * */
+public final class QueuePoolEnqueueBenchmark {
+
+    private static final int PAGE_SIZE = 4 * 1024 * 1024;
+    private static final int SEGMENT_SIZE = 64 * 1024;
+    private static final int QUEUES_PER_THREAD = 16;
+    // messages enqueued to each queue before draining it, so the consumed segments are recycled
+    private static final int BATCH = 256;
+
+    private QueuePoolEnqueueBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int maxThreads = args.length > 0 ? Integer.parseInt(args[0])
+            : Runtime.getRuntime().availableProcessors();
+        final int messagesPerThread = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+        final int messageSize = args.length > 2 ? Integer.parseInt(args[2]) : 256;
+
+        // warm up
+        run(maxThreads, messagesPerThread / 10, messageSize);
+        System.out.printf("%8s %16s %12s%n", "threads", "messages/s", "MB/s");
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            final double seconds = run(threads, messagesPerThread, messageSize);
+            final double messages = (double) threads * messagesPerThread;
+            System.out.printf("%8d %16.0f %12.1f%n", threads, messages / seconds,
+                              messages * messageSize / seconds / (1024 * 1024));
+        }
+    }
+
+    /**
+     * @return the seconds taken by all the threads to enqueue their messages.
+     * */
+    private static double run(int threads, int messagesPerThread, int messageSize) throws Exception {
+        final Path dataPath = Files.createTempDirectory("queue-pool-benchmark");
+        final QueuePool pool = QueuePool.loadQueues(dataPath, PAGE_SIZE, SEGMENT_SIZE);
+        try {
+            final CyclicBarrier start = new CyclicBarrier(threads + 1);
+            final List<Thread> writers = new ArrayList<>(threads);
+            final List<Exception> failures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final List<Queue> queues = new ArrayList<>(QUEUES_PER_THREAD);
+                for (int q = 0; q < QUEUES_PER_THREAD; q++) {
+                    queues.add(pool.getOrCreate("thread-" + t + "-queue-" + q));
+                }
+                final Thread writer = new Thread(() -> {
+                    try {
+                        start.await();
+                        write(queues, messagesPerThread, messageSize);
+                    } catch (Exception ex) {
+                        synchronized (failures) {
+                            failures.add(ex);
+                        }
+                    }
+                }, "benchmark-writer-" + t);
+                writers.add(writer);
+                writer.start();
+            }
+            start.await();
+            final long startNanos = System.nanoTime();
+            for (Thread writer : writers) {
+                writer.join();
+            }
+            final long elapsed = System.nanoTime() - startNanos;
+            if (!failures.isEmpty()) {
+                throw failures.get(0);
+            }
+            return (double) elapsed / TimeUnit.SECONDS.toNanos(1);
+        } finally {
+            pool.close();
+            deleteRecursively(dataPath);
+        }
+    }
+
+    private static void write(List<Queue> queues, int messages, int messageSize) throws QueueException {
+        final ByteBuffer message = ByteBuffer.allocate(messageSize);
+        int written = 0;
+        while (written < messages) {
+            for (Queue queue : queues) {
+                final int batch = Math.min(BATCH, messages - written);
+                for (int i = 0; i < batch; i++) {
+                    message.clear();
+                    queue.enqueue(message);
+                }
+                written += batch;
+                while (queue.dequeue().isPresent()) {
+                    // drained, the consumed segments go back to the pool
+                }
+                if (written == messages) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path directory, IOException exc) throws IOException {
+                Files.delete(directory);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,171 @@
+package io.moquette.broker.unsafequeues;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class QueuePoolJournalTest {
+
+    private static final String QUEUE = "client-1";
+
+    @TempDir
+    Path dataPath;
+
+    private static QueuePool.SegmentRef segment(int page, int offset) {
+        return new QueuePool.SegmentRef(page, offset);
+    }
+
+    private static List<String> segmentsOf(QueuePoolJournal journal, String queue) {
+        final List<String> segments = new ArrayList<>();
+        for (QueuePool.SegmentRef segment : journal.queues().get(queue).segments) {
+            segments.add(segment.toString());
+        }
+        return segments;
+    }
+
+    /**
+     * Copy of the files of a journal left open, as a crash would leave them.
+     * */
+    private Path crashImage(QueuePoolJournal journal) throws Exception {
+        journal.force();
+        final Path image = Files.createDirectory(dataPath.resolve("crash-" + System.nanoTime()));
+        Files.copy(dataPath.resolve(QueuePoolJournal.SNAPSHOT_FILE), image.resolve(QueuePoolJournal.SNAPSHOT_FILE));
+        Files.copy(dataPath.resolve(QueuePoolJournal.JOURNAL_FILE), image.resolve(QueuePoolJournal.JOURNAL_FILE));
+        journal.close();
+        return image;
+    }
+
+    /**
+     * Two committed operations, the second one adds the segment (0, 1) and moves the tail to 200.
+     * */
+    private QueuePoolJournal journalWithTwoOperations() throws Exception {
+        final QueuePoolJournal journal = QueuePoolJournal.open(dataPath, null);
+        journal.segmentAdded(QUEUE, segment(0, 0));
+        journal.pointersMoved(QUEUE, 0, 100);
+        journal.segmentAdded(QUEUE, segment(0, 1));
+        journal.pointersMoved(QUEUE, 0, 200);
+        return journal;
+    }
+
+    @Test
+    public void replayStopsBeforeATruncatedLastRecord() throws Exception {
+        final Path image = crashImage(journalWithTwoOperations());
+        final Path journalFile = image.resolve(QueuePoolJournal.JOURNAL_FILE);
+        try (RandomAccessFile file = new RandomAccessFile(journalFile.toFile(), "rw")) {
+            // the last pointers record loses its tail offset
+            file.setLength(file.length() - 3);
+        }
+
+        final QueuePoolJournal reloaded = QueuePoolJournal.open(image, null);
+
+        // the segment added by the second operation is never committed
+        assertThat(segmentsOf(reloaded, QUEUE)).containsExactly("(0, 0)");
+        assertThat(reloaded.queues().get(QUEUE).tailOffset).isEqualTo(100);
+        reloaded.close();
+    }
+
+    @Test
+    public void replayStopsAtACorruptedLastRecord() throws Exception {
+        final Path image = crashImage(journalWithTwoOperations());
+        final Path journalFile = image.resolve(QueuePoolJournal.JOURNAL_FILE);
+        try (RandomAccessFile file = new RandomAccessFile(journalFile.toFile(), "rw")) {
+            // flip a bit of the tail offset of the last pointers record, its checksum doesn't match anymore
+            final long position = file.length() - 1;
+            file.seek(position);
+            final int last = file.read();
+            file.seek(position);
+            file.write(last ^ 0x01);
+        }
+
+        final QueuePoolJournal reloaded = QueuePoolJournal.open(image, null);
+
+        assertThat(segmentsOf(reloaded, QUEUE)).containsExactly("(0, 0)");
+        assertThat(reloaded.queues().get(QUEUE).tailOffset).isEqualTo(100);
+        reloaded.close();
+    }
+
+    @Test
+    public void replayOfAnIntactJournalRestoresTheLastOperation() throws Exception {
+        final QueuePoolJournal reloaded = QueuePoolJournal.open(crashImage(journalWithTwoOperations()), null);
+
+        assertThat(segmentsOf(reloaded, QUEUE)).containsExactly("(0, 1)", "(0, 0)");
+        assertThat(reloaded.queues().get(QUEUE).tailOffset).isEqualTo(200);
+        reloaded.close();
+    }
+
+    @Test
+    public void compactionKeepsTheSegmentChangesOfAnOperationInProgress() throws Exception {
+        final QueuePoolJournal journal = QueuePoolJournal.open(dataPath, null);
+        journal.segmentAdded(QUEUE, segment(0, 0));
+        journal.pointersMoved(QUEUE, 0, 100);
+        // an enqueue in progress rolled over to a new segment when the snapshot is written
+        journal.segmentAdded(QUEUE, segment(0, 1));
+        journal.checkpoint();
+        journal.pointersMoved(QUEUE, 0, 150);
+
+        final QueuePoolJournal reloaded = QueuePoolJournal.open(crashImage(journal), null);
+
+        assertThat(segmentsOf(reloaded, QUEUE)).containsExactly("(0, 1)", "(0, 0)");
+        assertThat(reloaded.queues().get(QUEUE).tailOffset).isEqualTo(150);
+        reloaded.close();
+    }
+
+    @Test
+    public void segmentChangesCompactedButNeverCommittedAreDropped() throws Exception {
+        final QueuePoolJournal journal = QueuePoolJournal.open(dataPath, null);
+        journal.segmentAdded(QUEUE, segment(0, 0));
+        journal.pointersMoved(QUEUE, 0, 100);
+        journal.segmentAdded(QUEUE, segment(0, 1));
+        journal.checkpoint();
+        // crash before the operation journals its pointers
+
+        final QueuePoolJournal reloaded = QueuePoolJournal.open(crashImage(journal), null);
+
+        assertThat(segmentsOf(reloaded, QUEUE)).containsExactly("(0, 0)");
+        assertThat(reloaded.queues().get(QUEUE).tailOffset).isEqualTo(100);
+        reloaded.close();
+    }
+
+    @Test
+    public void legacyPropertiesCheckpointIsMigrated() throws Exception {
+        final Path legacy = dataPath.resolve(QueuePoolJournal.LEGACY_CHECKPOINT_FILE);
+        try (Writer writer = Files.newBufferedWriter(legacy, StandardCharsets.ISO_8859_1)) {
+            writer.write("segments.last_page=1\n");
+            writer.write("segments.last_segment=3\n");
+            writer.write("queues.0.name=" + QUEUE + "\n");
+            writer.write("queues.0.segments=(1, 2), (0, 7)\n");
+            writer.write("queues.0.head_offset=10\n");
+            writer.write("queues.0.tail_offset=20\n");
+        }
+
+        final QueuePoolJournal migrated = QueuePoolJournal.open(dataPath, null);
+        assertMigratedState(migrated);
+        migrated.close();
+        assertThat(Files.exists(legacy)).isFalse();
+        assertThat(Files.exists(dataPath.resolve(QueuePoolJournal.SNAPSHOT_FILE))).isTrue();
+
+        // the next start reads the binary snapshot, the queue still has records without checksum
+        final QueuePoolJournal reloaded = QueuePoolJournal.open(dataPath, null);
+        assertMigratedState(reloaded);
+        reloaded.close();
+    }
+
+    private static void assertMigratedState(QueuePoolJournal journal) {
+        assertThat(journal.lastPage()).isEqualTo(1);
+        assertThat(journal.lastSegment()).isEqualTo(3);
+        assertThat(segmentsOf(journal, QUEUE)).containsExactly("(1, 2)", "(0, 7)");
+        final QueuePoolJournal.QueueState state = journal.queues().get(QUEUE);
+        assertThat(state.headOffset).isEqualTo(10);
+        assertThat(state.tailOffset).isEqualTo(20);
+        assertThat(state.checksummed).isFalse();
+    }
+}
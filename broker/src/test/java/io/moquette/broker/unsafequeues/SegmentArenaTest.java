@@ -0,0 +1,151 @@
+package io.moquette.broker.unsafequeues;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * The free segments handed out by the arenas of the session loops: a loop takes a whole page at a time, so
+ * the loops write to pages of their own.
+ * */
+public class SegmentArenaTest {
+
+    private static final int PAGE_SIZE = 64 * 1024;
+    private static final int SEGMENT_SIZE = 4 * 1024;
+    private static final int SEGMENTS_PER_PAGE = PAGE_SIZE / SEGMENT_SIZE;
+
+    @TempDir
+    Path dataPath;
+
+    private QueuePool pool;
+    // each executor plays a session loop, with its own arena
+    private final ExecutorService firstLoop = Executors.newSingleThreadExecutor();
+    private final ExecutorService secondLoop = Executors.newSingleThreadExecutor();
+
+    @BeforeEach
+    public void setUp() throws QueueException {
+        pool = QueuePool.loadQueues(dataPath, PAGE_SIZE, SEGMENT_SIZE);
+    }
+
+    @AfterEach
+    public void tearDown() throws QueueException {
+        firstLoop.shutdownNow();
+        secondLoop.shutdownNow();
+        pool.close();
+    }
+
+    private static <T> T on(ExecutorService loop, Callable<T> task) throws Exception {
+        return loop.submit(task).get(10, TimeUnit.SECONDS);
+    }
+
+    private static QueuePool.SegmentRef ref(Segment segment) {
+        return new QueuePool.SegmentRef(segment);
+    }
+
+    private List<QueuePool.SegmentRef> take(ExecutorService loop, int count) throws Exception {
+        return on(loop, () -> {
+            final List<QueuePool.SegmentRef> segments = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                segments.add(ref(pool.nextFreeSegment()));
+            }
+            return segments;
+        });
+    }
+
+    @Test
+    public void eachLoopTakesTheSegmentsOfAPageOfItsOwn() throws Exception {
+        final List<QueuePool.SegmentRef> first = take(firstLoop, 2);
+        final List<QueuePool.SegmentRef> second = take(secondLoop, 2);
+        final List<QueuePool.SegmentRef> firstAgain = take(firstLoop, 1);
+
+        final int firstPage = first.get(0).pageId;
+        assertThat(first.get(1).pageId).isEqualTo(firstPage);
+        assertThat(firstAgain.get(0).pageId).isEqualTo(firstPage);
+        assertThat(second.get(0).pageId).isNotEqualTo(firstPage);
+        assertThat(second.get(1).pageId).isEqualTo(second.get(0).pageId);
+        // the segments of a page are handed out in order
+        assertThat(first.get(1).offset).isEqualTo(first.get(0).offset + SEGMENT_SIZE);
+        assertThat(firstAgain.get(0).offset).isEqualTo(first.get(1).offset + SEGMENT_SIZE);
+    }
+
+    @Test
+    public void cachedSegmentsAreFreeAndGoBackToThePoolWhenDrained() throws Exception {
+        final QueuePool.SegmentRef taken = take(firstLoop, 1).get(0);
+        // the rest of the page is cached by the arena of the first loop
+        assertThat(pool.freeSegments().size()).isEqualTo(SEGMENTS_PER_PAGE - 1);
+        assertThat(pool.freeSegments().contains(taken)).isFalse();
+
+        pool.drainArenas();
+
+        // the second loop reuses the page of the first one, before opening a new page
+        final List<QueuePool.SegmentRef> reused = take(secondLoop, SEGMENTS_PER_PAGE - 1);
+        for (QueuePool.SegmentRef segment : reused) {
+            assertThat(segment.pageId).isEqualTo(taken.pageId);
+            assertThat(segment.offset).isNotEqualTo(taken.offset);
+        }
+        assertThat(take(secondLoop, 1).get(0).pageId).isNotEqualTo(taken.pageId);
+    }
+
+    @Test
+    public void arenaIsRefilledWithTheRecycledSegmentsOfOnePageAtATime() throws Exception {
+        // two pages allocated, then two segments of the first and one of the second given back
+        final List<Segment> segments = on(firstLoop, () -> {
+            final List<Segment> all = new ArrayList<>();
+            for (int i = 0; i < 2 * SEGMENTS_PER_PAGE; i++) {
+                all.add(pool.nextFreeSegment());
+            }
+            return all;
+        });
+        final Segment firstPageA = segments.get(3);
+        final Segment firstPageB = segments.get(7);
+        final Segment secondPage = segments.get(SEGMENTS_PER_PAGE + 5);
+        pool.releaseUnusedSegments(Arrays.asList(secondPage, firstPageB, firstPageA));
+
+        final List<QueuePool.SegmentRef> refill = take(secondLoop, 1);
+        // the refill took the recycled segments of the first page only
+        assertThat(pool.freeSegments()).hasSize(2);
+        assertThat(pool.freeSegments().contains(ref(secondPage))).isTrue();
+
+        refill.addAll(take(secondLoop, 3));
+        assertThat(refill.get(0).compareTo(ref(firstPageA))).isEqualTo(0);
+        assertThat(refill.get(1).compareTo(ref(firstPageB))).isEqualTo(0);
+        assertThat(refill.get(2).compareTo(ref(secondPage))).isEqualTo(0);
+        // no recycled segments left, a new page is opened
+        assertThat(refill.get(3).pageId).isGreaterThan(ref(secondPage).pageId);
+    }
+
+    @Test
+    public void bulkAllocationUsesTheArenaFirst() throws Exception {
+        final QueuePool.SegmentRef single = take(firstLoop, 1).get(0);
+
+        final List<QueuePool.SegmentRef> bulk = on(firstLoop, () -> {
+            final List<QueuePool.SegmentRef> refs = new ArrayList<>();
+            for (Segment segment : pool.nextFreeSegments(SEGMENTS_PER_PAGE + 2)) {
+                refs.add(ref(segment));
+            }
+            return refs;
+        });
+
+        assertThat(bulk).hasSize(SEGMENTS_PER_PAGE + 2);
+        // the cached rest of the page, then new segments from the pool
+        for (int i = 0; i < SEGMENTS_PER_PAGE - 1; i++) {
+            assertThat(bulk.get(i).pageId).isEqualTo(single.pageId);
+        }
+        assertThat(bulk.get(SEGMENTS_PER_PAGE - 1).pageId).isNotEqualTo(single.pageId);
+        for (QueuePool.SegmentRef segment : bulk) {
+            assertThat(segment.compareTo(single)).isNotEqualTo(0);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package io.moquette.persistence;
+
+import io.moquette.broker.SessionMessageQueue;
+import io.moquette.broker.SessionRegistry;
+import io.moquette.broker.subscriptions.Topic;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SegmentPersistentQueueTest {
+
+    private static final int PAGE_SIZE = 64 * 1024;
+    private static final int SEGMENT_SIZE = 4 * 1024;
+
+    @TempDir
+    Path dataPath;
+
+    private static void assertDequeued(SessionMessageQueue<SessionRegistry.EnqueuedMessage> queue, String topic,
+                                       String payload) {
+        final SessionRegistry.PublishedMessage message = (SessionRegistry.PublishedMessage) queue.dequeue();
+        assertThat(message.getTopic()).isEqualTo(new Topic(topic));
+        assertThat(message.getPublishingQos()).isEqualTo(MqttQoS.AT_LEAST_ONCE);
+        assertThat(message.getPayload().toString(StandardCharsets.UTF_8)).isEqualTo(payload);
+        message.release();
+    }
+
+    @Test
+    public void publishedMessagesAreWrittenInRecordsOfTheirExactSize() throws Exception {
+        final SegmentQueueRepository repository = new SegmentQueueRepository(dataPath, PAGE_SIZE, SEGMENT_SIZE);
+        final SessionMessageQueue<SessionRegistry.EnqueuedMessage> queue = repository.getOrCreateQueue("client");
+        // ASCII and multi-byte topics, the record is sized on the UTF-8 bytes of the topic
+        final String[] topics = {"sensors/temp", "capteurs/température", "センサー/温度"};
+        for (String topic : topics) {
+            queue.enqueue(new SessionRegistry.PublishedMessage(new Topic(topic), MqttQoS.AT_LEAST_ONCE,
+                Unpooled.copiedBuffer("payload of " + topic, StandardCharsets.UTF_8), false));
+        }
+        queue.enqueue(new SessionRegistry.PubRelMarker());
+
+        for (String topic : topics) {
+            assertDequeued(queue, topic, "payload of " + topic);
+        }
+        assertThat(queue.dequeue()).isInstanceOf(SessionRegistry.PubRelMarker.class);
+        assertThat(queue.isEmpty()).isTrue();
+        repository.close();
+    }
+}